@@ -0,0 +1,160 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * A range scan over a B+ tree with integer keys that returns its entries
+ * in batches: next_batch fills arrays the caller owns with the keys and
+ * the rids of as many entries as they hold, copying every leaf it passes
+ * with one loop over the page bytes, or one per array on dense leaves.
+ * Where the range ends on a leaf is found with one binary search per leaf,
+ * not one key compare per entry, and nothing is allocated per entry or per
+ * leaf. Get one from BTreeFile.new_batch_scan. In concurrent mode
+ * (BTreeFile.setConcurrent) the leaf the scan is on stays read latched.
+ */
+public class BTBatchScan implements GlobalConst {
+
+	private boolean pinned; // false at the end of the scan
+	private PageId leafId = new PageId(); // the pinned leaf
+	private PageId nextId = new PageId(); // the one after it, while moving
+	private Page page = new Page();
+	private BTLeafPage leafPage; // view of `page', reused for every leaf
+	private int slot; // next entry of leafPage
+	private int end; // entry of leafPage after the last one in range
+	private byte[] hiBytes; // hi_key as stored in the pages, or null
+	private boolean dense; // the leaves are dense
+
+	/*
+	 * Scan from entry `slot' of the pinned `leafPage' (null for an empty
+	 * scan) up to `hi_key' (null for no bound); `dense' is set for a tree
+	 * with dense leaves.
+	 */
+	BTBatchScan(BTLeafPage leafPage, int slot, KeyClass hi_key, boolean dense)
+			throws KeyNotMatchException, IOException {
+		hiBytes = hi_key == null ? null : BTSortedPages.keyBytes(hi_key);
+		this.dense = dense;
+		if (leafPage == null)
+			return;
+
+		this.leafPage = leafPage;
+		this.slot = slot;
+		leafId.pid = leafPage.getCurPage().pid;
+		pinned = true;
+		end = Math.max(rangeEnd(), slot);
+	}
+
+	/**
+	 * Fill the arrays with the next entries of the scan: keys[i] is the key
+	 * of entry i, and pageIds[i] and slotNos[i] its rid. The three arrays
+	 * must be at least `max' long.
+	 *
+	 * @param keys
+	 *            the keys. Output parameter.
+	 * @param pageIds
+	 *            the page numbers of the rids. Output parameter.
+	 * @param slotNos
+	 *            the slot numbers of the rids. Output parameter.
+	 * @param max
+	 *            most entries to return. Input parameter.
+	 * @return the number of entries returned, less than `max' only at the
+	 *         end of the scan, 0 when it is done
+	 * @exception ScanIteratorException
+	 *                error when moving to the next leaf page
+	 */
+	public int next_batch(int[] keys, int[] pageIds, int[] slotNos, int max)
+			throws ScanIteratorException {
+		int count = 0;
+
+		try {
+			while (pinned && count < max) {
+				int n = Math.min(end - slot, max - count);
+				if (dense)
+					BTDenseLeaves.copyEntries(leafPage, slot, slot + n, keys,
+							pageIds, slotNos, count);
+				else
+					BTSortedPages.copyIntegerEntries(leafPage, slot, slot + n,
+							keys, pageIds, slotNos, count);
+				slot += n;
+				count += n;
+				if (slot == end)
+					nextLeaf();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "next_batch failed");
+		}
+		return count;
+	}
+
+	/**
+	 * Fill the arrays with the next entries of the scan, as many as they
+	 * hold; see next_batch(keys, pageIds, slotNos, max).
+	 */
+	public int next_batch(int[] keys, int[] pageIds, int[] slotNos)
+			throws ScanIteratorException {
+		return next_batch(keys, pageIds, slotNos, Math.min(keys.length, Math
+				.min(pageIds.length, slotNos.length)));
+	}
+
+	/**
+	 * Unpin the leaf the scan is on, if it has not reached its end.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (pinned)
+			unpin();
+	}
+
+	/*
+	 * The slot after the last entry of the current leaf that is in range.
+	 */
+	private int rangeEnd() {
+		if (hiBytes == null)
+			return BTSortedPages.slotCount(leafPage);
+		if (dense)
+			return BTDenseLeaves.upperBound(leafPage, hiBytes);
+		return BTSortedPages.upperBound(leafPage, hiBytes);
+	}
+
+	/*
+	 * Unpin the current leaf and pin the next one that has entries in
+	 * range, or end the scan.
+	 */
+	private void nextLeaf() throws Exception {
+		do {
+			boolean last = end < BTSortedPages.slotCount(leafPage);
+			int next = BTSortedPages.nextPage(leafPage);
+			if (last || next == INVALID_PAGE) {
+				unpin();
+				return;
+			}
+
+			// the next leaf is latched before this one is let go of
+			nextId.pid = next;
+			BTLatches.shared(nextId);
+			SystemDefs.JavabaseBM.pinPage(nextId, page, false);
+			SystemDefs.JavabaseBM.unpinPage(leafId, false);
+			BTLatches.release(leafId);
+			PageId left = leafId;
+			leafId = nextId;
+			nextId = left;
+			leafPage.openHFpage(page);
+			slot = 0;
+			end = rangeEnd();
+		} while (slot == end);
+	}
+
+	/* unpin the leaf and let go of its latch */
+	private void unpin() throws IOException, InvalidFrameNumberException,
+			ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException {
+		SystemDefs.JavabaseBM.unpinPage(leafId, false);
+		BTLatches.release(leafId);
+		pinned = false;
+	}
+}
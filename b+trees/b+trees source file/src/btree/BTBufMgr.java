@@ -0,0 +1,1011 @@
+package btree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * A buffer manager with a choice of replacement policies (BTReplacer),
+ * among them 2Q, which a scan does not flush the pages other work keeps
+ * going back to out of. It takes the place of the buffer manager in
+ * SystemDefs.JavabaseBM, with as many frames, and reads and writes the
+ * pages through SystemDefs.JavabaseDB as bufmgr.BufMgr does.
+ * <p>
+ * It also counts its hits, the pins of pages that were in the pool, and
+ * its misses, the pins that read the page from disk.
+ * <p>
+ * Unlike bufmgr.BufMgr it may be called by any number of threads, so
+ * BTreeFile's concurrent mode does not put BTSyncBufMgr in front of it:
+ * <ul>
+ * <li>the page table is split in stripes by page number, each a hash table
+ * with a lock of its own. A pin or an unpin of a page in the pool takes the
+ * lock of its stripe only, and changes the pin count of its frame, an
+ * atomic integer;</li>
+ * <li>a pin of a page not in the pool takes a victim, one frame nobody has
+ * pinned, under the lock of the stripe of the page in it, and writes the
+ * page out first if it is dirty. It then reads its own page under the lock
+ * of that page's stripe, so that a thread pinning the same page waits for
+ * the read instead of reading it too;</li>
+ * <li>Clock finds victims without a lock, each thread moving the hand on
+ * with an atomic increment. The other policies keep their queues under one
+ * lock, which a pin of a page in the pool takes too;</li>
+ * <li>the reads and writes of the database, and its allocations, are one
+ * at a time, as diskmgr.DB is not thread-safe.</li>
+ * </ul>
+ * No thread holds the locks of two stripes at once.
+ * <p>
+ * A frame is allocated the first time a page is put in it, so a large pool
+ * costs neither time nor heap until it fills. With `mapped' the pool reads
+ * and writes the pages through a memory mapping of the database file
+ * instead of diskmgr.DB: a read is one copy out of the operating system's
+ * page cache, without a system call or DB's lock. The frames stay byte
+ * arrays, as a Page and every page class over it work on one.
+ * <p>
+ * A background writer (startWriter) writes dirty pages out before they
+ * are taken as victims, so that a pin that takes a victim seldom waits
+ * for its write.
+ * <p>
+ * The writer and flushAllPages write adjacent pages with one call
+ * (BTPageIO), through a handle on the database file that the pool keeps
+ * open until close. They write a copy of
+ * each page taken under the lock of its stripe, and keep the page pinned
+ * until it is written, so it is not taken as a victim meanwhile; one that
+ * is changed meanwhile is dirty again when it is unpinned.
+ */
+public class BTBufMgr extends BufMgr implements GlobalConst {
+
+	/* a power of 2 */
+	private static final int STRIPES = Math.min(256, Integer
+			.highestOneBit(Math.max(16, Runtime.getRuntime()
+					.availableProcessors() * 4) * 2 - 1));
+
+	/* the background writer's round, in milliseconds */
+	private static final int WRITER_TICK = 10;
+
+	/* diskmgr.DB: its reads and writes, and its allocations */
+	private static final Object io = new Object();
+	private static final Object space = new Object();
+
+	/**
+	 * One stripe of the page table: page number to frame, by open
+	 * addressing over two int arrays, so that a lookup boxes nothing. The
+	 * callers lock the stripe.
+	 */
+	private static final class Stripe {
+		private int[] keys = emptyKeys(16);
+		private int[] values = new int[16];
+		private int size;
+
+		/** The frame of page `pid', or -1 if it is not in the pool. */
+		int get(int pid) {
+			for (int i = slot(keys, pid);; i = (i + 1) & (keys.length - 1)) {
+				if (keys[i] == pid)
+					return values[i];
+				if (keys[i] == INVALID_PAGE)
+					return -1;
+			}
+		}
+
+		void put(int pid, int frame) {
+			if (2 * (size + 1) > keys.length)
+				resize(2 * keys.length);
+			int i = slot(keys, pid);
+			while (keys[i] != INVALID_PAGE && keys[i] != pid)
+				i = (i + 1) & (keys.length - 1);
+			if (keys[i] == INVALID_PAGE)
+				size++;
+			keys[i] = pid;
+			values[i] = frame;
+		}
+
+		void remove(int pid) {
+			int mask = keys.length - 1;
+			int i = slot(keys, pid);
+			while (keys[i] != pid) {
+				if (keys[i] == INVALID_PAGE)
+					return;
+				i = (i + 1) & mask;
+			}
+			// move back the entries after it that would not be found past
+			// the hole
+			for (int j = (i + 1) & mask; keys[j] != INVALID_PAGE; j = (j + 1)
+					& mask) {
+				if (((j - slot(keys, keys[j])) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = INVALID_PAGE;
+			size--;
+		}
+
+		private void resize(int capacity) {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = emptyKeys(capacity);
+			values = new int[capacity];
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldKeys[i] != INVALID_PAGE) {
+					int j = slot(keys, oldKeys[i]);
+					while (keys[j] != INVALID_PAGE)
+						j = (j + 1) & (capacity - 1);
+					keys[j] = oldKeys[i];
+					values[j] = oldValues[i];
+				}
+		}
+
+		private static int slot(int[] keys, int pid) {
+			return (pid * 0x9E3779B9 >>> 7) & (keys.length - 1);
+		}
+
+		private static int[] emptyKeys(int capacity) {
+			int[] keys = new int[capacity];
+			Arrays.fill(keys, INVALID_PAGE);
+			return keys;
+		}
+	}
+
+	private final byte[][] frames;
+	private final AtomicIntegerArray pageOf;
+	private final AtomicIntegerArray pins;
+	/* 1 while writeOut has the frame pinned to write a copy of it */
+	private final AtomicIntegerArray inWrite;
+	private final boolean[] dirty;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final ConcurrentLinkedQueue<Integer> free = new ConcurrentLinkedQueue<Integer>();
+	private final BTReplacer replacer;
+	private final boolean lockFree;
+	private final ByteBuffer mapped;
+
+	private final AtomicInteger dirtyFrames = new AtomicInteger();
+
+	private final BTMetrics.Counter hits = new BTMetrics.Counter();
+	private final BTMetrics.Counter misses = new BTMetrics.Counter();
+	private final BTMetrics.Counter victimWrites = new BTMetrics.Counter();
+	private final BTMetrics.Counter writerWrites = new BTMetrics.Counter();
+	private final BTMetrics.Counter fileWrites = new BTMetrics.Counter();
+
+	/* the background writer, and the frame it looks at next */
+	private Thread writer;
+	private volatile boolean writing;
+	private int writerCursor;
+	/* the write the writer stopped at, until it is reported */
+	private volatile BufMgrException writerFailure;
+
+	/* the database file, for the writes of writeOut, and its lock */
+	private RandomAccessFile file;
+	private final Object fileLock = new Object();
+
+	/**
+	 * A buffer pool of `numBufs' frames, all empty.
+	 *
+	 * @param numBufs
+	 *            the number of frames
+	 * @param replacerArg
+	 *            the name of the replacement policy: "Clock", "LRU", "MRU"
+	 *            or "2Q"; anything else is Clock
+	 */
+	public BTBufMgr(int numBufs, String replacerArg) {
+		this(numBufs, replacerArg, null, null);
+	}
+
+	private BTBufMgr(int numBufs, String replacerArg, RandomAccessFile file,
+			ByteBuffer mapped) {
+		super(1, "Clock"); // the frames used are the ones below
+		frames = new byte[numBufs][];
+		pageOf = new AtomicIntegerArray(numBufs);
+		pins = new AtomicIntegerArray(numBufs);
+		inWrite = new AtomicIntegerArray(numBufs);
+		dirty = new boolean[numBufs];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+		for (int i = 0; i < numBufs; i++) {
+			pageOf.set(i, INVALID_PAGE);
+			free.add(i);
+		}
+		replacer = BTReplacer.forName(replacerArg, numBufs);
+		lockFree = replacer.lockFree();
+		this.file = file;
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Put a buffer manager with the replacement policy `replacerArg' in
+	 * place of the one of the open database, with as many frames. The
+	 * dirty pages of the old one are written out first; none of its pages
+	 * may be pinned, so call this before any file is opened (and before
+	 * BTreeFile.setConcurrent).
+	 *
+	 * @param replacerArg
+	 *            the name of the replacement policy, as for the constructor
+	 * @return the new buffer manager
+	 * @exception PagePinnedException
+	 *                a page of the old buffer manager is pinned
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static BTBufMgr attach(String replacerArg)
+			throws HashOperationException, PageUnpinnedException,
+			PagePinnedException, PageNotFoundException, BufMgrException,
+			IOException {
+		return attach(replacerArg, false);
+	}
+
+	/**
+	 * As attach(replacerArg), and with `mapped' the new buffer manager
+	 * reads and writes the pages through a memory mapping of the whole
+	 * database file. The mapping is the file's, so a page written through
+	 * it is read back by diskmgr.DB and the other way round; it goes away
+	 * with the buffer manager, after the database is closed.
+	 *
+	 * @param replacerArg
+	 *            the name of the replacement policy, as for the constructor
+	 * @param mapped
+	 *            whether to read and write through a memory mapping
+	 * @return the new buffer manager
+	 * @exception PagePinnedException
+	 *                a page of the old buffer manager is pinned
+	 * @exception IOException
+	 *                error from the lower layer, or the file cannot be mapped
+	 */
+	public static synchronized BTBufMgr attach(String replacerArg,
+			boolean mapped) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		BufMgr old = SystemDefs.JavabaseBM;
+		if (old instanceof BTBufMgr)
+			((BTBufMgr) old).close();
+		else
+			old.flushAllPages();
+		DB db = SystemDefs.JavabaseDB;
+		RandomAccessFile file = new RandomAccessFile(db.db_name(), "rw");
+		try {
+			BTBufMgr bufMgr = new BTBufMgr(old.getNumBuffers(), replacerArg,
+					file, mapped ? file.getChannel().map(
+							FileChannel.MapMode.READ_WRITE, 0,
+							(long) db.db_num_pages() * MINIBASE_PAGESIZE)
+							: null);
+			SystemDefs.JavabaseBM = bufMgr;
+			return bufMgr;
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stop the background writer, write out every dirty page and close the
+	 * handle on the database file the pool writes through; a mapping stays.
+	 * Close the pool before the database is closed; attach closes the one
+	 * it replaces. A pool that is used after close opens the file again.
+	 *
+	 * @exception PagePinnedException
+	 *                a page is pinned; the pages are written all the same
+	 * @exception BufMgrException
+	 *                a write failed, or the writer had stopped at one
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void close() throws HashOperationException, PageUnpinnedException,
+			PagePinnedException, PageNotFoundException, BufMgrException,
+			IOException {
+		try {
+			stopWriter();
+			flushAllPages();
+		} finally {
+			synchronized (fileLock) {
+				if (file != null)
+					file.close();
+				file = null;
+			}
+		}
+	}
+
+	/*
+	 * The channel of the database file, opened on first use.
+	 */
+	private FileChannel channel() throws IOException {
+		synchronized (fileLock) {
+			if (file == null)
+				file = new RandomAccessFile(SystemDefs.JavabaseDB.db_name(),
+						"rw");
+			return file.getChannel();
+		}
+	}
+
+	/**
+	 * Whether the pages are read and written through a memory mapping.
+	 */
+	public boolean mapped() {
+		return mapped != null;
+	}
+
+	/**
+	 * The name of the replacement policy.
+	 */
+	public String replacerName() {
+		return replacer.name();
+	}
+
+	/**
+	 * The pins of a page that was in the pool since the last resetCounts.
+	 */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * The pins that read the page from disk since the last resetCounts.
+	 */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * The pages written out by pins that took them as victims since the
+	 * last resetCounts.
+	 */
+	public long victimWrites() {
+		return victimWrites.sum();
+	}
+
+	/**
+	 * The pages the background writer wrote out since the last
+	 * resetCounts.
+	 */
+	public long writerWrites() {
+		return writerWrites.sum();
+	}
+
+	/**
+	 * The calls that wrote pages to the database file since the last
+	 * resetCounts; adjacent pages written together take one, and pages
+	 * written through a memory mapping none.
+	 */
+	public long fileWrites() {
+		return fileWrites.sum();
+	}
+
+	/**
+	 * The frames whose page was changed since it was last written out.
+	 */
+	public int dirtyPages() {
+		return dirtyFrames.get();
+	}
+
+	public void resetCounts() {
+		hits.reset();
+		misses.reset();
+		victimWrites.reset();
+		writerWrites.reset();
+		fileWrites.reset();
+	}
+
+	/**
+	 * Start a thread that writes out dirty pages nobody has pinned, ahead
+	 * of the victims: it goes round the frames from the one the policy
+	 * looks at next (the hand of Clock). While more than `lowRatio' of the
+	 * frames are dirty it writes up to `pagesPerSecond' pages a second,
+	 * and while more than `highRatio' are it writes as fast as it can. The
+	 * pages stay in the pool. A writer already running is stopped first.
+	 * The writer stops by itself at a write that fails, and the next
+	 * stopWriter, startWriter or flushAllPages throws what it failed with.
+	 * <p>
+	 * Stop the writer, or close the pool, before the database is closed.
+	 *
+	 * @param pagesPerSecond
+	 *            the pages written a second below `highRatio', at least 1
+	 * @param lowRatio
+	 *            the share of dirty frames the writer brings the pool down to
+	 * @param highRatio
+	 *            the share of dirty frames over which it does not wait
+	 * @exception BufMgrException
+	 *                the writer that ran before failed
+	 */
+	public synchronized void startWriter(int pagesPerSecond,
+			final double lowRatio, final double highRatio)
+			throws BufMgrException {
+		stopWriter();
+		final long perTick = Math.max(1, (long) pagesPerSecond * WRITER_TICK
+				/ 1000);
+		writing = true;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write(perTick, lowRatio, highRatio);
+			}
+		}, "BTBufMgr writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop the background writer, if there is one, and wait for it.
+	 *
+	 * @exception BufMgrException
+	 *                the writer had stopped at a write that failed
+	 */
+	public synchronized void stopWriter() throws BufMgrException {
+		if (writer != null) {
+			writing = false;
+			writer.interrupt();
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		writerFailed();
+	}
+
+	/*
+	 * Throw what the writer stopped at, once.
+	 */
+	private void writerFailed() throws BufMgrException {
+		BufMgrException failure = writerFailure;
+		if (failure != null) {
+			writerFailure = null;
+			throw new BufMgrException(failure,
+					"BTBufMgr: the background writer failed");
+		}
+	}
+
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		int pid = pin_pgid.pid;
+		Stripe stripe = stripe(pid);
+		int frame = pinResident(stripe, pid);
+		if (frame != -1) {
+			page.setpage(frames[frame]);
+			return;
+		}
+
+		int victim = takeVictim();
+		synchronized (stripe) {
+			int resident = stripe.get(pid);
+			if (resident < 0) {
+				frame = victim;
+				pageOf.set(frame, pid);
+				dirty[frame] = false;
+				if (!emptyPage) {
+					try {
+						read_page(pin_pgid, frames[frame]);
+					} catch (BufMgrException e) {
+						pageOf.set(frame, INVALID_PAGE);
+						release(frame);
+						throw new PageNotReadException(e,
+								"BUFMGR: DB_READ_PAGE_ERROR.");
+					}
+					misses.increment();
+				}
+				stripe.put(pid, frame);
+				if (lockFree)
+					replacer.loaded(frame, pid);
+				else
+					synchronized (replacer) {
+						replacer.loaded(frame, pid);
+					}
+			} else {
+				// another thread read the page meanwhile
+				frame = resident;
+				pins.incrementAndGet(frame);
+			}
+		}
+		if (frame != victim) {
+			release(victim);
+			touch(frame);
+		}
+		page.setpage(frames[frame]);
+	}
+
+	public void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		Stripe stripe = stripe(PageId_in_a_DB.pid);
+		synchronized (stripe) {
+			int frame = stripe.get(PageId_in_a_DB.pid);
+			if (frame < 0)
+				throw new HashEntryNotFoundException(null,
+						"BUFMGR: HASH_NOT_FOUND.");
+			if (pins.get(frame) == 0)
+				throw new PageUnpinnedException(null,
+						"BUFMGR: PAGE_NOT_PINNED.");
+			if (dirty && !this.dirty[frame]) {
+				this.dirty[frame] = true;
+				dirtyFrames.incrementAndGet();
+			}
+			pins.decrementAndGet(frame);
+		}
+	}
+
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		PageId pageId = new PageId();
+		allocate_page(pageId, howmany);
+		try {
+			pinPage(pageId, firstpage, true);
+		} catch (Exception e) {
+			for (int i = 0; i < howmany; i++)
+				deallocate_page(new PageId(pageId.pid + i));
+			return null;
+		}
+		return pageId;
+	}
+
+	public void freePage(PageId globalPageId) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		Stripe stripe = stripe(globalPageId.pid);
+		int frame = -1;
+		synchronized (stripe) {
+			int resident = stripe.get(globalPageId.pid);
+			if (resident >= 0) {
+				frame = resident;
+				if (pins.get(frame) - inWrite.get(frame) > 1)
+					throw new PagePinnedException(null,
+							"BUFMGR: PAGE_PINNED.");
+				stripe.remove(globalPageId.pid);
+				pageOf.set(frame, INVALID_PAGE);
+				if (dirty[frame]) {
+					dirty[frame] = false;
+					dirtyFrames.decrementAndGet();
+				}
+			}
+		}
+		if (frame != -1) {
+			// not given to another page while it is being written
+			while (inWrite.get(frame) != 0)
+				Thread.yield();
+			release(frame);
+		}
+		deallocate_page(globalPageId);
+	}
+
+	/**
+	 * Write the page out if it is dirty. Unlike bufmgr.BufMgr, the page
+	 * stays in the pool.
+	 */
+	public void flushPage(PageId pageid) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException,
+			PageNotFoundException, BufMgrException, IOException {
+		Stripe stripe = stripe(pageid.pid);
+		for (;;) {
+			synchronized (stripe) {
+				int frame = stripe.get(pageid.pid);
+				if (frame < 0)
+					return;
+				// not written over by the writer's older copy
+				if (inWrite.get(frame) == 0) {
+					flush(frame);
+					if (pins.get(frame) != 0)
+						throw new PagePinnedException(null,
+								"BUFMGR: PAGE_PINNED.");
+					return;
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Write out every dirty page, adjacent ones with one call. Unlike
+	 * bufmgr.BufMgr, the pages stay in the pool. If the background writer
+	 * stopped at a write that failed, this throws that failure instead.
+	 */
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException,
+			PageNotFoundException, BufMgrException, IOException {
+		writerFailed();
+		int[] all = new int[frames.length];
+		for (int frame = 0; frame < frames.length; frame++)
+			all[frame] = frame;
+		writeOut(all, all.length, false);
+		// pages the writer had taken are written once it is done with them
+		for (int frame = 0; frame < frames.length; frame++)
+			if (inWrite.get(frame) != 0) {
+				while (inWrite.get(frame) != 0)
+					Thread.yield();
+				writeOut(new int[] { frame }, 1, false);
+			}
+		for (int frame = 0; frame < frames.length; frame++)
+			if (pageOf.get(frame) != INVALID_PAGE
+					&& pins.get(frame) - inWrite.get(frame) > 0)
+				throw new PagePinnedException(null, "BUFMGR: PAGE_PINNED.");
+	}
+
+	public int getNumBuffers() {
+		if (frames == null) // the replacer of super, while it is made
+			return super.getNumBuffers();
+		return frames.length;
+	}
+
+	public int getNumUnpinnedBuffers() {
+		int unpinned = 0;
+		// nor pinned by the writer, which lets go of it soon
+		for (int frame = 0; frame < frames.length; frame++)
+			if (pins.get(frame) - inWrite.get(frame) <= 0)
+				unpinned++;
+		return unpinned;
+	}
+
+	private Stripe stripe(int pid) {
+		// spread runs of page numbers over the stripes
+		return stripes[(pid * 0x9E3779B9 >>> 16) & (STRIPES - 1)];
+	}
+
+	/*
+	 * Pin page `pid' if it is in the pool, and return its frame; -1 if it
+	 * is not.
+	 */
+	private int pinResident(Stripe stripe, int pid) {
+		int frame;
+		synchronized (stripe) {
+			int resident = stripe.get(pid);
+			if (resident < 0)
+				return -1;
+			frame = resident;
+			pins.incrementAndGet(frame);
+		}
+		touch(frame);
+		return frame;
+	}
+
+	private void touch(int frame) {
+		if (lockFree)
+			replacer.hit(frame);
+		else
+			synchronized (replacer) {
+				replacer.hit(frame);
+			}
+		hits.increment();
+	}
+
+	/*
+	 * A frame for another page, pinned once and out of the page table: an
+	 * empty one, or the victim of the policy once its page is written out.
+	 */
+	private int takeVictim() throws BufferPoolExceededException,
+			BufMgrException {
+		// another thread may pin the page of a victim, or take it, before
+		// this one has the lock of its stripe; then try the next one
+		for (;;) {
+			Integer empty = free.poll();
+			if (empty != null) {
+				pins.set(empty, 1);
+				if (frames[empty] == null)
+					frames[empty] = new byte[MAX_SPACE];
+				return empty;
+			}
+
+			int frame;
+			if (lockFree)
+				frame = replacer.victim(pins);
+			else
+				synchronized (replacer) {
+					frame = replacer.victim(pins);
+				}
+			if (frame == -1) {
+				if (getNumUnpinnedBuffers() == 0)
+					throw new BufferPoolExceededException(null,
+							"BUFMGR: BUFFER_EXCEEDED.");
+				Thread.yield();
+				continue;
+			}
+			int pid = pageOf.get(frame);
+			if (pid != INVALID_PAGE) {
+				Stripe stripe = stripe(pid);
+				synchronized (stripe) {
+					int resident = stripe.get(pid);
+					if (resident == frame
+							&& pins.get(frame) == 0) {
+						// pinned before it leaves the page table, so no
+						// other thread takes it as a victim meanwhile
+						pins.set(frame, 1);
+						try {
+							if (flush(frame))
+								victimWrites.increment();
+						} catch (BufMgrException e) {
+							pins.set(frame, 0);
+							throw e;
+						}
+						stripe.remove(pid);
+						pageOf.set(frame, INVALID_PAGE);
+						return frame;
+					}
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	/*
+	 * Give back a frame that holds no page.
+	 */
+	private void release(int frame) {
+		if (lockFree)
+			replacer.removed(frame);
+		else
+			synchronized (replacer) {
+				replacer.removed(frame);
+			}
+		pins.set(frame, 0);
+		free.add(frame);
+	}
+
+	/*
+	 * Write out the page in `frame' if it is dirty, and tell whether it
+	 * was; the caller has the lock of its stripe.
+	 */
+	private boolean flush(int frame) throws BufMgrException {
+		if (!dirty[frame])
+			return false;
+		write_page(new PageId(pageOf.get(frame)), frames[frame]);
+		dirty[frame] = false;
+		dirtyFrames.decrementAndGet();
+		return true;
+	}
+
+	/*
+	 * The background writer: `perTick' pages a round while over
+	 * `lowRatio', every dirty page it can while over `highRatio'.
+	 */
+	private void write(long perTick, double lowRatio, double highRatio) {
+		int low = (int) (lowRatio * frames.length);
+		int high = Math.max(low, (int) (highRatio * frames.length));
+		boolean hurry = false;
+		while (writing) {
+			if (!hurry) {
+				try {
+					Thread.sleep(WRITER_TICK);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			int dirty = dirtyFrames.get();
+			hurry = dirty > high;
+			if (dirty <= low)
+				continue;
+			try {
+				// without a page to write, it is all pinned: wait a round
+				if (sweep(hurry ? frames.length : perTick, low) == 0)
+					hurry = false;
+			} catch (BufMgrException e) {
+				writerFailure = e;
+				writing = false;
+			}
+		}
+	}
+
+	/*
+	 * Write out up to `budget' dirty pages nobody has pinned, from the
+	 * frame the policy looks at next, until no more than `low' are dirty;
+	 * the pages written.
+	 */
+	private int sweep(long budget, int low) throws BufMgrException {
+		int hand = replacer.hand();
+		if (hand != -1)
+			writerCursor = hand;
+		int[] candidates = new int[(int) Math.min(budget, frames.length)];
+		int wanted = dirtyFrames.get() - low;
+		int count = 0;
+		for (int i = 0; i < frames.length && count < candidates.length
+				&& count < wanted; i++) {
+			int frame = writerCursor;
+			writerCursor = (frame + 1) % frames.length;
+			// a hint, looked at again under the lock
+			if (dirty[frame] && pins.get(frame) == 0
+					&& pageOf.get(frame) != INVALID_PAGE)
+				candidates[count++] = frame;
+		}
+		int written = writeOut(candidates, count, true);
+		writerWrites.add(written);
+		return written;
+	}
+
+	/*
+	 * Write out the dirty pages of frames `candidates[0..count)' that are
+	 * still in the pool, those nobody has pinned only if `unpinned', in
+	 * the order of their page numbers; the pages written.
+	 */
+	private int writeOut(int[] candidates, int count, boolean unpinned)
+			throws BufMgrException {
+		// page number and index of frames pinned and clean until written,
+		// and copies of them taken under the lock, as a page may change
+		// while it is written
+		long[] taken = new long[count];
+		int[] takenFrames = new int[count];
+		byte[][] copies = new byte[count][];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			int frame = candidates[i];
+			int pid = pageOf.get(frame);
+			if (pid == INVALID_PAGE || !dirty[frame])
+				continue;
+			synchronized (stripe(pid)) {
+				int resident = stripe(pid).get(pid);
+				if (resident != frame || !dirty[frame]
+						|| inWrite.get(frame) != 0 || unpinned
+						&& pins.get(frame) != 0)
+					continue;
+				copies[n] = frames[frame].clone();
+				pins.incrementAndGet(frame);
+				inWrite.set(frame, 1);
+				dirty[frame] = false;
+				dirtyFrames.decrementAndGet();
+			}
+			takenFrames[n] = frame;
+			taken[n] = (long) pid << 32 | n;
+			n++;
+		}
+		if (n == 0)
+			return 0;
+		Arrays.sort(taken, 0, n);
+
+		int[] pids = new int[n];
+		int[] inFrames = new int[n];
+		byte[][] pages = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			pids[i] = (int) (taken[i] >>> 32);
+			inFrames[i] = takenFrames[(int) taken[i]];
+			pages[i] = copies[(int) taken[i]];
+		}
+		try {
+			write_pages(pids, pages, n);
+		} catch (BufMgrException e) {
+			for (int i = 0; i < n; i++) {
+				int frame = inFrames[i];
+				synchronized (stripe(pids[i])) {
+					int resident = stripe(pids[i]).get(pids[i]);
+					if (resident == frame
+							&& !dirty[frame]) {
+						dirty[frame] = true;
+						dirtyFrames.incrementAndGet();
+					}
+				}
+			}
+			throw e;
+		} finally {
+			// the pin goes first, so that the frame never looks pinned
+			// by another thread
+			for (int i = 0; i < n; i++) {
+				pins.decrementAndGet(inFrames[i]);
+				inWrite.set(inFrames[i], 0);
+			}
+		}
+		return n;
+	}
+
+	/*
+	 * Write pages `pids[0..count)', in ascending order, adjacent ones with
+	 * one call.
+	 */
+	private void write_pages(int[] pids, byte[][] pages, int count)
+			throws BufMgrException {
+		try {
+			if (mapped != null) {
+				for (int i = 0; i < count; i++)
+					page(new PageId(pids[i])).put(pages[i]);
+			} else {
+				fileWrites.add(BTPageIO.write(channel(), pids, pages, count));
+			}
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BufMgr.java: write_page() failed");
+		}
+		for (int i = 0; i < count; i++)
+			written(pids[i]);
+	}
+
+	/*
+	 * Page `pid' was written around diskmgr.DB, so a page BTReadAhead
+	 * read of it before is stale.
+	 */
+	private static void written(int pid) {
+		DB db = SystemDefs.JavabaseDB;
+		if (db instanceof BTReadAhead)
+			((BTReadAhead) db).dropStaged(pid, 1);
+	}
+
+	private void write_page(PageId pageno, byte[] data)
+			throws BufMgrException {
+		try {
+			if (mapped != null) {
+				page(pageno).put(data);
+				written(pageno.pid);
+				return;
+			}
+			synchronized (io) {
+				SystemDefs.JavabaseDB.write_page(pageno, new Page(data));
+			}
+			fileWrites.increment();
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BufMgr.java: write_page() failed");
+		}
+	}
+
+	private void read_page(PageId pageno, byte[] data)
+			throws BufMgrException {
+		try {
+			if (mapped != null) {
+				page(pageno).get(data);
+				return;
+			}
+			synchronized (io) {
+				SystemDefs.JavabaseDB.read_page(pageno, new Page(data));
+			}
+		} catch (Exception e) {
+			throw new BufMgrException(e, "BufMgr.java: read_page() failed");
+		}
+	}
+
+	/*
+	 * Page `pageno' of the mapping, in a buffer of this thread's own.
+	 */
+	private ByteBuffer page(PageId pageno) throws InvalidPageNumberException {
+		if (pageno.pid < 0
+				|| (long) pageno.pid * MINIBASE_PAGESIZE >= mapped.capacity())
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+		ByteBuffer page = mapped.duplicate();
+		page.position(pageno.pid * MINIBASE_PAGESIZE);
+		return page;
+	}
+
+	/*
+	 * The database pins its space map through the buffer manager while it
+	 * allocates, so `space' is taken before the lock of a stripe, never
+	 * after.
+	 *
+	 * Runs that BTreeFile.compact allocates itself come here too, so that
+	 * they are allocated under the same lock as newPage and freePage: that
+	 * of the buffer manager in use, `space' for a BTBufMgr, the buffer
+	 * manager itself for the others (BTSyncBufMgr synchronizes on itself).
+	 */
+	static void allocate_page(PageId pageno, int num) throws BufMgrException {
+		try {
+			synchronized (spaceLock()) {
+				SystemDefs.JavabaseDB.allocate_page(pageno, num);
+			}
+		} catch (Exception e) {
+			throw new BufMgrException(e,
+					"BufMgr.java: allocate_page() failed");
+		}
+	}
+
+	static void deallocate_page(PageId pageno, int num)
+			throws BufMgrException {
+		try {
+			synchronized (spaceLock()) {
+				SystemDefs.JavabaseDB.deallocate_page(pageno, num);
+			}
+		} catch (Exception e) {
+			throw new BufMgrException(e,
+					"BufMgr.java: deallocate_page() failed");
+		}
+	}
+
+	private static void deallocate_page(PageId pageno) throws BufMgrException {
+		deallocate_page(pageno, 1);
+	}
+
+	private static Object spaceLock() {
+		BufMgr bufMgr = SystemDefs.JavabaseBM;
+		return bufMgr instanceof BTBufMgr ? space : bufMgr;
+	}
+}
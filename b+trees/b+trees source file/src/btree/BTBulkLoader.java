@@ -0,0 +1,501 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTBulkLoader builds a B+ tree bottom-up from entries that arrive in key
+ * order. Leaf pages are filled left to right up to a fill factor and linked
+ * through their next/prev pointers; every time a leaf is closed its
+ * successor's first key is pushed into the index level above, which is
+ * filled the same way, its pages linked through their next pointers. Only
+ * the right-most page of each level is pinned at any time, so the cost is
+ * one page write per page of the final tree.
+ * <p>
+ * Pages come from the buffer manager one at a time, or from a run of
+ * consecutive pages given to the constructor: then the leaves take the run
+ * from its first page up, in key order, and the index pages take it from
+ * its last page down.
+ * <p>
+ * For a tree with prefix-compressed leaves (see BTPrefixLeaves) the prefix
+ * of a leaf depends on the separator that closes it, which is only known
+ * once the records after it have arrived. Records wait in a list until a
+ * leaf is full with the prefix it would get, and the separators pushed up
+ * are the shortest that tell the two leaves apart.
+ * <p>
+ * Dense leaves (see BTDenseLeaves) take entries without slots, up to the
+ * fill factor or the entries they hold, whichever comes first.
+ * <p>
+ * In a counted tree (see BTCounts) the count of a page is set in the level
+ * above once the page is closed: the index record of a page is pushed up
+ * when the page is started, with a count of 0, and stays the last one of
+ * its index page until the page is closed.
+ * <p>
+ * A load that fails, on input that is not sorted or on a page error, is
+ * given up with abort, which unpins the open pages and frees the pages
+ * taken so far.
+ */
+class BTBulkLoader implements GlobalConst {
+
+	/* usable bytes of an empty BTSortedPage */
+	private final static int PAGE_CAPACITY = MAX_SPACE - HFPage.DPFIXED;
+
+	private int keyType;
+	private int fillLimit;
+
+	/* the run of pages to build into, null to allocate page by page */
+	private PageId run;
+	private int runLength;
+	private int leavesTaken;
+	private int indexPagesTaken;
+
+	private BTLeafPage leafPage;
+	private int leafUsed;
+	private byte[] lastKey;
+
+	/* prefix-compressed leaves: the records not yet on a leaf, the fence
+	 * left of them, and how many of them, at most, the next leaf takes */
+	private boolean prefixLeaves;
+	private ArrayList<byte[]> pending = new ArrayList<byte[]>();
+	private byte[] low;
+	private int closing;
+	private int closingSpace; // of pending [0, closing) with their slots
+	private byte[] closingHigh; // separator in front of pending[closing]
+	private byte[] closingPrefix;
+
+	private boolean denseLeaves;
+
+	/* counted index pages, which keep the count of their left-most child at
+	 * the end; their fill limit leaves room for it */
+	private boolean counted;
+	private int indexFillLimit;
+
+	/* right-most open page of every index level, lowest level first, and
+	 * the leaf entries under the closed children of each */
+	private ArrayList<BTIndexPage> indexPages = new ArrayList<BTIndexPage>();
+	private ArrayList<Integer> indexUsed = new ArrayList<Integer>();
+	private ArrayList<Integer> indexCounts = new ArrayList<Integer>();
+
+	/* the pages pinned now, and the pages allocated one at a time, which
+	 * abort frees; the pages of a run are the caller's */
+	private LinkedHashSet<Integer> pinned = new LinkedHashSet<Integer>();
+	private ArrayList<Integer> allocated = new ArrayList<Integer>();
+
+	/**
+	 * @param keyType
+	 *            the key type of the tree being built
+	 * @param fillFactor
+	 *            percentage (1..100) of each page to fill before starting
+	 *            the next one
+	 * @param prefixLeaves
+	 *            whether to build prefix-compressed leaves
+	 * @param denseLeaves
+	 *            whether to build dense leaves
+	 * @param counted
+	 *            whether to build counted index pages
+	 */
+	BTBulkLoader(int keyType, int fillFactor, boolean prefixLeaves,
+			boolean denseLeaves, boolean counted) {
+		this.keyType = keyType;
+		this.fillLimit = PAGE_CAPACITY * fillFactor / 100;
+		this.prefixLeaves = prefixLeaves;
+		this.denseLeaves = denseLeaves;
+		this.counted = counted;
+		this.indexFillLimit = counted ? Math.min(fillLimit, PAGE_CAPACITY - 4)
+				: fillLimit;
+	}
+
+	/**
+	 * @param keyType
+	 *            the key type of the tree being built
+	 * @param fillFactor
+	 *            percentage (1..100) of each page to fill before starting
+	 *            the next one
+	 * @param prefixLeaves
+	 *            whether to build prefix-compressed leaves
+	 * @param denseLeaves
+	 *            whether to build dense leaves
+	 * @param counted
+	 *            whether to build counted index pages
+	 * @param run
+	 *            first page of an allocated run to build the tree in
+	 * @param runLength
+	 *            number of pages in the run, at least maxPages for the
+	 *            input
+	 */
+	BTBulkLoader(int keyType, int fillFactor, boolean prefixLeaves,
+			boolean denseLeaves, boolean counted, PageId run, int runLength) {
+		this(keyType, fillFactor, prefixLeaves, denseLeaves, counted);
+		this.run = new PageId(run.pid);
+		this.runLength = runLength;
+	}
+
+	/**
+	 * Upper bound on the pages of a tree built from `records' leaf records
+	 * that take `space' bytes with their slots, none of them more than
+	 * `maxRecordSpace'. For prefix-compressed leaves the records are
+	 * counted with their full keys, and maxRecordSpace with two more bytes
+	 * for the prefix length each leaf stores. Dense leaves are counted as
+	 * slotted ones, which hold fewer entries. The index records of a counted
+	 * tree are as long as the leaf records.
+	 */
+	static int maxPages(int records, int space, int maxRecordSpace,
+			int fillFactor, boolean counted) {
+		int fillLimit = PAGE_CAPACITY * fillFactor / 100;
+		int pages = records;
+		int total;
+
+		// a page is only closed when the next record does not fit, so
+		// every page of a level but the last holds more than fillLimit -
+		// maxRecordSpace bytes
+		if (fillLimit > maxRecordSpace)
+			pages = Math.min(pages, space / (fillLimit - maxRecordSpace) + 1);
+		total = pages;
+
+		// an index level gets one record per page of the level below but
+		// the first, and index records have a 4 byte page id where leaf
+		// records have an 8 byte rid. Every page of an index level but the
+		// first takes one of its records as the separator to the level
+		// above, and holds at least one of the others.
+		if (counted)
+			fillLimit = Math.min(fillLimit, PAGE_CAPACITY - 4);
+		else
+			maxRecordSpace -= 4;
+		while (pages > 1) {
+			records = pages - 1;
+			pages = records / 2;
+			if (fillLimit > maxRecordSpace)
+				pages = Math.min(pages, records * maxRecordSpace
+						/ (fillLimit - maxRecordSpace));
+			pages++;
+			total += pages;
+		}
+		return total;
+	}
+
+	/**
+	 * Append a leaf entry. Keys must not decrease from one call to the next.
+	 */
+	void add(KeyClass key, RID rid) throws IOException, InsertException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			ConstructPageException, UnpinPageException {
+
+		byte[] bytes = BTSortedPages.keyBytes(key);
+		if (lastKey != null
+				&& BTSortedPages.compareKey(bytes, 0, keyType, lastKey) < 0)
+			throw new InsertException(null, "bulk load input is not sorted");
+		lastKey = bytes;
+
+		addRecord(bytes, BT
+				.getBytesFromEntry(new KeyDataEntry(key, rid)));
+	}
+
+	/**
+	 * Append a leaf record that is known to be in order, such as one copied
+	 * from the leaf level of another tree.
+	 *
+	 * @param key
+	 *            the key of the record, as BTSortedPages.keyBytes returns it
+	 * @param record
+	 *            the record: key followed by rid
+	 */
+	void addRecord(byte[] key, byte[] record) throws IOException,
+			ConstructPageException, UnpinPageException {
+
+		if (prefixLeaves) {
+			pending.add(record);
+			closeLeaves();
+			return;
+		}
+
+		int space = denseLeaves ? BTDenseLeaves.ENTRY_SIZE : record.length
+				+ HFPage.SIZE_OF_SLOT;
+		if (leafPage == null) {
+			leafPage = newLeafPage();
+			leafUsed = 0;
+		} else if (leafUsed + space > fillLimit) {
+			BTLeafPage nextLeaf = newLeafPage();
+			PageId leafId = leafPage.getCurPage();
+			nextLeaf.setPrevPage(leafId);
+			leafPage.setNextPage(nextLeaf.getCurPage());
+			int entries = leafPage.getSlotCnt();
+			unpinPage(leafId);
+			push(0, key, leafId, entries, nextLeaf.getCurPage());
+			leafPage = nextLeaf;
+			leafUsed = 0;
+		}
+
+		// input is sorted, so appending keeps the entries in key order
+		if (denseLeaves)
+			BTDenseLeaves.insertRecord(leafPage, record);
+		else
+			leafPage.insertRecord(record);
+		leafUsed += space;
+	}
+
+	/**
+	 * Unpin every open page.
+	 *
+	 * @return the page id of the root, INVALID_PAGE if nothing was added
+	 */
+	PageId finish() throws IOException, ConstructPageException,
+			UnpinPageException {
+		PageId root = new PageId(INVALID_PAGE);
+
+		// the last leaf has no fence on the right and no prefix
+		while (!pending.isEmpty()) {
+			if (pending.size() == 1
+					|| BTPrefixLeaves.space(pending, 0, pending.size(), 0) <= fillLimit) {
+				writeLeaf(pending.size(), null, BTPrefixLeaves.NO_PREFIX);
+			} else {
+				writeLeaf(closing, closingHigh, closingPrefix);
+				closeLeaves();
+			}
+		}
+
+		int entries = 0; // under the right-most page of the level
+		if (leafPage != null) {
+			root = leafPage.getCurPage();
+			entries = leafPage.getSlotCnt();
+			unpinPage(root);
+			leafPage = null;
+		}
+		for (int level = 0; level < indexPages.size(); level++) {
+			BTIndexPage indexPage = indexPages.get(level);
+			root = indexPage.getCurPage();
+			if (counted) {
+				BTCounts.setCount(indexPage, indexPage.getSlotCnt(), entries);
+				entries += indexCounts.get(level);
+			}
+			unpinPage(root);
+		}
+		indexPages.clear();
+		indexUsed.clear();
+		indexCounts.clear();
+
+		return root;
+	}
+
+	/**
+	 * Give up the tree being built: unpin the pages still pinned and free
+	 * every page allocated for it. The pages of a run are only unpinned, the
+	 * run is deallocated by its owner. Errors are printed, not thrown, so
+	 * that the one the load failed with is the one reported.
+	 */
+	void abort() {
+		for (int pid : pinned)
+			try {
+				SystemDefs.JavabaseBM.unpinPage(new PageId(pid), false);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		pinned.clear();
+		for (int pid : allocated)
+			try {
+				SystemDefs.JavabaseBM.freePage(new PageId(pid));
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		allocated.clear();
+
+		leafPage = null;
+		pending.clear();
+		indexPages.clear();
+		indexUsed.clear();
+		indexCounts.clear();
+	}
+
+	/**
+	 * First page of the part of the run that no page was taken from.
+	 */
+	PageId unusedStart() {
+		return new PageId(run.pid + leavesTaken);
+	}
+
+	/**
+	 * Number of pages of the run that no page was taken from.
+	 */
+	int unusedLength() {
+		return runLength - leavesTaken - indexPagesTaken;
+	}
+
+	/*
+	 * Prefix leaves: move `closing' on over the pending records for as long
+	 * as a leaf closed in front of pending[closing] fits, with the prefix
+	 * that the separator there would give it. Where one does not, write
+	 * the leaf that ends at the last one that did.
+	 */
+	private void closeLeaves() throws IOException, ConstructPageException,
+			UnpinPageException {
+		while (closing < pending.size() - 1) {
+			int next = closing + 1;
+			byte[] record = pending.get(closing);
+			byte[] high = BTPrefixLeaves.separator(record, pending.get(next));
+			byte[] prefix = BTPrefixLeaves.prefixOf(low, high);
+			int space = closingSpace + record.length + HFPage.SIZE_OF_SLOT;
+
+			if (next > 1
+					&& space - next * prefix.length + prefix.length + 2 > fillLimit) {
+				writeLeaf(closing, closingHigh, closingPrefix);
+				continue;
+			}
+			closing = next;
+			closingSpace = space;
+			closingHigh = high;
+			closingPrefix = prefix;
+		}
+	}
+
+	/*
+	 * Prefix leaves: put the first `count' pending records on a new leaf
+	 * with prefix `prefix', whose right fence is `high'.
+	 */
+	private void writeLeaf(int count, byte[] high, byte[] prefix)
+			throws IOException, ConstructPageException, UnpinPageException {
+		BTLeafPage nextLeaf = newLeafPage();
+		if (!BTPrefixLeaves.fill(nextLeaf, prefix, pending, 0, count))
+			throw new ConstructPageException(null, "leaf records do not fit");
+
+		if (leafPage != null) {
+			PageId leafId = leafPage.getCurPage();
+			int entries = leafPage.getSlotCnt();
+			nextLeaf.setPrevPage(leafId);
+			leafPage.setNextPage(nextLeaf.getCurPage());
+			unpinPage(leafId);
+			push(0, low, leafId, entries, nextLeaf.getCurPage());
+		}
+		leafPage = nextLeaf;
+
+		pending.subList(0, count).clear();
+		low = high;
+		closing = 0;
+		closingSpace = 0;
+	}
+
+	/*
+	 * Insert separator `key' between the closed page `left', which has
+	 * `entries' leaf entries under it, and its new right sibling `right'
+	 * into index level `level'.
+	 */
+	private void push(int level, byte[] key, PageId left, int entries,
+			PageId right) throws IOException, ConstructPageException,
+			UnpinPageException {
+
+		if (level == indexPages.size()) { // first separator on this level
+			BTIndexPage indexPage = newIndexPage();
+			indexPage.setPrevPage(left);
+			indexPages.add(indexPage);
+			indexUsed.add(0);
+			indexCounts.add(0);
+		}
+
+		BTIndexPage indexPage = indexPages.get(level);
+		byte[] record;
+		if (counted) {
+			// `left' is the last child of the page
+			BTCounts.setCount(indexPage, indexPage.getSlotCnt(), entries);
+			indexCounts.set(level, indexCounts.get(level) + entries);
+			record = BTCounts.indexRecord(key, 0, right);
+		} else {
+			record = BTSortedPages.indexRecord(key, right);
+		}
+
+		if (!fits(indexUsed.get(level), record.length)) {
+			// `key' does not go into a page, it becomes the separator
+			// between the full page and a new one that starts at `right'
+			BTIndexPage nextIndexPage = newIndexPage();
+			PageId indexPageId = indexPage.getCurPage();
+			nextIndexPage.setPrevPage(right);
+			indexPage.setNextPage(nextIndexPage.getCurPage());
+			unpinPage(indexPageId);
+			indexPages.set(level, nextIndexPage);
+			indexUsed.set(level, 0);
+			entries = indexCounts.get(level);
+			indexCounts.set(level, 0);
+			push(level + 1, key, indexPageId, entries, nextIndexPage
+					.getCurPage());
+			return;
+		}
+
+		indexPage.insertRecord(record);
+		indexUsed.set(level, indexUsed.get(level) + record.length
+				+ HFPage.SIZE_OF_SLOT);
+	}
+
+	private boolean fits(int used, int recordLength) {
+		return used == 0
+				|| used + recordLength + HFPage.SIZE_OF_SLOT <= indexFillLimit;
+	}
+
+	private BTLeafPage newLeafPage() throws IOException,
+			ConstructPageException {
+		BTLeafPage page;
+		if (run == null) {
+			page = new BTLeafPage(keyType);
+			taken(page.getCurPage().pid);
+		} else {
+			PageId pageno = new PageId(run.pid + leavesTaken++);
+			page = new BTLeafPage(pinNewPage(pageno), keyType);
+			page.init(pageno, page);
+			page.setType(NodeType.LEAF);
+		}
+		if (denseLeaves)
+			BTDenseLeaves.init(page);
+		return page;
+	}
+
+	private BTIndexPage newIndexPage() throws IOException,
+			ConstructPageException {
+		BTIndexPage page;
+		if (run == null) {
+			page = new BTIndexPage(keyType);
+			taken(page.getCurPage().pid);
+		} else {
+			PageId pageno = new PageId(run.pid + runLength - 1
+					- indexPagesTaken++);
+			page = new BTIndexPage(pinNewPage(pageno), keyType);
+			page.init(pageno, page);
+			page.setType(NodeType.INDEX);
+		}
+		if (counted)
+			BTCounts.init(page);
+		return page;
+	}
+
+	/* a page allocated and pinned for the tree */
+	private void taken(int pid) {
+		allocated.add(pid);
+		pinned.add(pid);
+	}
+
+	/*
+	 * Pin a page of the run without reading it, it has not been written yet.
+	 */
+	private Page pinNewPage(PageId pageno) throws ConstructPageException {
+		if (leavesTaken + indexPagesTaken > runLength)
+			throw new ConstructPageException(null, "page run exhausted");
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, true /* = empty */);
+			pinned.add(pageno.pid);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "pin page failed");
+		}
+	}
+
+	private void unpinPage(PageId pageno) throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, true /* = DIRTY */);
+			pinned.remove(pageno.pid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package btree;
+
+import global.*;
+
+/**
+ * Static helpers over the index pages of a counted tree
+ * (IndexLayout.COUNTED).
+ * <p>
+ * Every child of such a page has a count: the number of leaf entries in
+ * the subtree under it. An index record holds the count of its child
+ * between the key and the child page, so the key is still read from the
+ * front of the record and the child from its last 4 bytes, as on any other
+ * index page. The left-most child, the prev page, has no record; its count
+ * is in the last 4 bytes of the page, below which the records are packed
+ * (BTSortedPages.moveRange keeps them there).
+ * <p>
+ * The entries under an index page are the sum of the counts of its
+ * children, so the entries left of a key, or the entry at a position, are
+ * found on the way down one path from the root.
+ */
+final class BTCounts implements GlobalConst {
+
+	/** Bytes of an index record after its key: the count and the child. */
+	static final int DATA_SIZE = 8;
+
+	/* HFPage header: used pointer at 2, free space at 4, type at 6 */
+	private final static int USED_PTR = 2;
+	private final static int FREE_SPACE = 4;
+	private final static int TYPE = 6;
+
+	/* the count of the left-most child */
+	private final static int LEFT_COUNT = MAX_SPACE - 4;
+
+	private BTCounts() {
+	}
+
+	/**
+	 * Make a newly initialized index page an empty counted one.
+	 */
+	static void init(BTIndexPage page) {
+		byte[] data = page.getpage();
+		BTSortedPages.setShort(data, USED_PTR, LEFT_COUNT);
+		BTSortedPages.setShort(data, FREE_SPACE, BTSortedPages.getShort(data,
+				FREE_SPACE) - 4);
+		BTSortedPages.setInt(data, LEFT_COUNT, 0);
+	}
+
+	/**
+	 * An index record: the serialized key, the count, then the child page.
+	 */
+	static byte[] indexRecord(byte[] key, int count, PageId pageNo) {
+		byte[] record = new byte[key.length + DATA_SIZE];
+		System.arraycopy(key, 0, record, 0, key.length);
+		BTSortedPages.setInt(record, key.length, count);
+		BTSortedPages.setInt(record, key.length + 4, pageNo.pid);
+		return record;
+	}
+
+	/**
+	 * Set the count of an index record.
+	 */
+	static void setCountOf(byte[] indexRecord, int count) {
+		BTSortedPages.setInt(indexRecord, indexRecord.length - DATA_SIZE,
+				count);
+	}
+
+	/**
+	 * The count of child `n' of an index page, numbered as in
+	 * BTSortedPages.child.
+	 */
+	static int count(BTSortedPage page, int n) {
+		byte[] data = page.getpage();
+		return BTSortedPages.getInt(data, position(data, n));
+	}
+
+	/**
+	 * Set the count of child `n' of an index page.
+	 */
+	static void setCount(BTSortedPage page, int n, int count) {
+		byte[] data = page.getpage();
+		BTSortedPages.setInt(data, position(data, n), count);
+	}
+
+	/**
+	 * Add `delta' to the count of child `n' of an index page.
+	 */
+	static void add(BTSortedPage page, int n, int delta) {
+		byte[] data = page.getpage();
+		int pos = position(data, n);
+		BTSortedPages.setInt(data, pos, BTSortedPages.getInt(data, pos)
+				+ delta);
+	}
+
+	/**
+	 * The leaf entries under the children of an index page left of child
+	 * `n'.
+	 */
+	static int before(BTSortedPage page, int n) {
+		byte[] data = page.getpage();
+		int sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += BTSortedPages.getInt(data, position(data, i));
+		return sum;
+	}
+
+	/**
+	 * The leaf entries under a page: those of a leaf, or the sum of the
+	 * counts of an index page.
+	 */
+	static int total(BTSortedPage page) {
+		byte[] data = page.getpage();
+		int children = BTSortedPages.slotCount(page);
+		if (BTSortedPages.getShort(data, TYPE) != NodeType.INDEX)
+			return children;
+		return before(page, children + 1);
+	}
+
+	private static int position(byte[] data, int n) {
+		if (n == 0)
+			return LEFT_COUNT;
+		return BTSortedPages.slotOffset(data, n - 1)
+				+ BTSortedPages.slotLength(data, n - 1) - DATA_SIZE;
+	}
+}
@@ -0,0 +1,281 @@
+package btree;
+
+import java.io.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * Static helpers over the dense leaf pages of a tree with integer keys.
+ * <p>
+ * A slotted leaf spends a 4 byte slot on every 12 byte record. A dense leaf
+ * keeps the HFPage header, for the page links and the node type, and after
+ * it three parallel arrays of CAPACITY entries: the keys, the page numbers
+ * and the slot numbers of the rids, in key order. The slot count of the
+ * header is the number of entries, and the free space field is kept so that
+ * BTSortedPages.usedSpace works on the page. A binary search looks only at
+ * the key array, and a scan reads each array front to back.
+ * <p>
+ * BTLeafPage cannot read these pages: BTreeFile goes through the helpers
+ * here for every leaf of a tree that has them, and its scans decode the
+ * entries themselves.
+ */
+final class BTDenseLeaves implements GlobalConst {
+
+	/** Bytes of one entry: key, page number and slot number. */
+	static final int ENTRY_SIZE = 12;
+
+	/** Entries a dense leaf holds. */
+	static final int CAPACITY = (MAX_SPACE - HFPage.DPFIXED) / ENTRY_SIZE;
+
+	/* HFPage header: slot count at 0, used pointer at 2, free space at 4 */
+	private final static int SLOT_CNT = 0;
+	private final static int USED_PTR = 2;
+	private final static int FREE_SPACE = 4;
+
+	/* the arrays */
+	private final static int KEYS = HFPage.DPFIXED;
+	private final static int PAGE_NOS = KEYS + 4 * CAPACITY;
+	private final static int SLOT_NOS = PAGE_NOS + 4 * CAPACITY;
+
+	private BTDenseLeaves() {
+	}
+
+	/**
+	 * Make a newly initialized leaf page an empty dense leaf.
+	 */
+	static void init(BTLeafPage page) {
+		byte[] data = page.getpage();
+		BTSortedPages.setShort(data, USED_PTR, MAX_SPACE);
+		setCount(data, 0);
+	}
+
+	/**
+	 * The key of entry `slot'.
+	 */
+	static int key(BTLeafPage page, int slot) {
+		return getInt(page.getpage(), KEYS + 4 * slot);
+	}
+
+	/**
+	 * The key of entry `slot', serialized like BTSortedPages.keyBytes.
+	 */
+	static byte[] keyBytes(BTLeafPage page, int slot) {
+		byte[] key = new byte[4];
+		System.arraycopy(page.getpage(), KEYS + 4 * slot, key, 0, 4);
+		return key;
+	}
+
+	/**
+	 * The key of an index record, or of a serialized key.
+	 */
+	static KeyClass getKey(byte[] key) {
+		return new IntegerKey(getInt(key, 0));
+	}
+
+	/**
+	 * Entry `slot' as a leaf record of a slotted page.
+	 */
+	static byte[] record(BTLeafPage page, int slot) {
+		byte[] data = page.getpage();
+		byte[] record = new byte[ENTRY_SIZE];
+		// key, then the rid: slot number, then page number
+		System.arraycopy(data, KEYS + 4 * slot, record, 0, 4);
+		System.arraycopy(data, SLOT_NOS + 4 * slot, record, 4, 4);
+		System.arraycopy(data, PAGE_NOS + 4 * slot, record, 8, 4);
+		return record;
+	}
+
+	/**
+	 * Decode entry `slot'.
+	 */
+	static KeyDataEntry getEntry(BTLeafPage page, int slot) {
+		byte[] data = page.getpage();
+		return new KeyDataEntry(new IntegerKey(getInt(data, KEYS + 4 * slot)),
+				new RID(new PageId(getInt(data, PAGE_NOS + 4 * slot)), getInt(
+						data, SLOT_NOS + 4 * slot)));
+	}
+
+	/**
+	 * Whether the rid of entry `slot' is `rid'.
+	 */
+	static boolean hasRid(BTLeafPage page, int slot, RID rid) {
+		byte[] data = page.getpage();
+		return getInt(data, SLOT_NOS + 4 * slot) == rid.slotNo
+				&& getInt(data, PAGE_NOS + 4 * slot) == rid.pageNo.pid;
+	}
+
+	/**
+	 * The rid of entry `slot'.
+	 */
+	static RID getRid(BTLeafPage page, int slot) {
+		byte[] data = page.getpage();
+		return new RID(new PageId(getInt(data, PAGE_NOS + 4 * slot)), getInt(
+				data, SLOT_NOS + 4 * slot));
+	}
+
+	/**
+	 * BTSortedPages.compareKey for entry `slot' and a serialized key.
+	 */
+	static int compareKey(BTLeafPage page, int slot, byte[] key) {
+		int stored = key(page, slot);
+		int other = getInt(key, 0);
+		return stored < other ? -1 : (stored == other ? 0 : 1);
+	}
+
+	/**
+	 * The first entry with a key not less than `key'; the entry count if
+	 * there is none.
+	 */
+	static int lowerBound(BTLeafPage page, int key) {
+		return search(page.getpage(), key, false);
+	}
+
+	/**
+	 * The first entry with a key greater than `key'; the entry count if
+	 * there is none.
+	 */
+	static int upperBound(BTLeafPage page, int key) {
+		return search(page.getpage(), key, true);
+	}
+
+	/**
+	 * lowerBound for a serialized key.
+	 */
+	static int lowerBound(BTLeafPage page, byte[] key) {
+		return search(page.getpage(), getInt(key, 0), false);
+	}
+
+	/**
+	 * upperBound for a serialized key.
+	 */
+	static int upperBound(BTLeafPage page, byte[] key) {
+		return search(page.getpage(), getInt(key, 0), true);
+	}
+
+	/**
+	 * Insert a leaf record after the entries with a key not greater than
+	 * its own.
+	 *
+	 * @return the rid of the new entry, null if the page is full
+	 */
+	static RID insertRecord(BTLeafPage page, byte[] record)
+			throws IOException {
+		byte[] data = page.getpage();
+		int count = BTSortedPages.getShort(data, SLOT_CNT);
+		if (count == CAPACITY)
+			return null;
+
+		int slot = search(data, getInt(record, 0), true);
+		int moved = 4 * (count - slot);
+		System.arraycopy(data, KEYS + 4 * slot, data, KEYS + 4 * slot + 4,
+				moved);
+		System.arraycopy(data, PAGE_NOS + 4 * slot, data, PAGE_NOS + 4 * slot
+				+ 4, moved);
+		System.arraycopy(data, SLOT_NOS + 4 * slot, data, SLOT_NOS + 4 * slot
+				+ 4, moved);
+		set(data, slot, record);
+		setCount(data, count + 1);
+		return new RID(page.getCurPage(), slot);
+	}
+
+	/**
+	 * Delete entry `slot'; the entries after it move down by one.
+	 */
+	static void deleteEntry(BTLeafPage page, int slot) {
+		byte[] data = page.getpage();
+		int count = BTSortedPages.getShort(data, SLOT_CNT);
+		int moved = 4 * (count - slot - 1);
+		System.arraycopy(data, KEYS + 4 * slot + 4, data, KEYS + 4 * slot,
+				moved);
+		System.arraycopy(data, PAGE_NOS + 4 * slot + 4, data, PAGE_NOS + 4
+				* slot, moved);
+		System.arraycopy(data, SLOT_NOS + 4 * slot + 4, data, SLOT_NOS + 4
+				* slot, moved);
+		setCount(data, count - 1);
+	}
+
+	/**
+	 * Move entries [start, end) of `from' into `to', in front of its entry
+	 * `at'; the counterpart of BTSortedPages.moveRange. `to' must have room
+	 * for them.
+	 */
+	static void moveRange(BTLeafPage from, int start, int end, BTLeafPage to,
+			int at) {
+		byte[] src = from.getpage();
+		byte[] dst = to.getpage();
+		int fromCount = BTSortedPages.getShort(src, SLOT_CNT);
+		int toCount = BTSortedPages.getShort(dst, SLOT_CNT);
+		int n = end - start;
+		int[] arrays = { KEYS, PAGE_NOS, SLOT_NOS };
+
+		for (int i = 0; i < arrays.length; i++) {
+			int array = arrays[i];
+			System.arraycopy(dst, array + 4 * at, dst, array + 4 * (at + n),
+					4 * (toCount - at));
+			System.arraycopy(src, array + 4 * start, dst, array + 4 * at,
+					4 * n);
+			System.arraycopy(src, array + 4 * end, src, array + 4 * start,
+					4 * (fromCount - end));
+		}
+		setCount(src, fromCount - n);
+		setCount(dst, toCount + n);
+	}
+
+	/**
+	 * Copy the keys and the rids of entries [from, to) into the arrays,
+	 * starting at index `at'. Each array of the page is read front to back
+	 * in its own loop, and nothing is allocated.
+	 */
+	static void copyEntries(BTLeafPage page, int from, int to, int[] keys,
+			int[] pageIds, int[] slotNos, int at) {
+		byte[] data = page.getpage();
+		int n = to - from;
+		int i, pos;
+
+		for (i = 0, pos = KEYS + 4 * from; i < n; i++, pos += 4)
+			keys[at + i] = getInt(data, pos);
+		for (i = 0, pos = PAGE_NOS + 4 * from; i < n; i++, pos += 4)
+			pageIds[at + i] = getInt(data, pos);
+		for (i = 0, pos = SLOT_NOS + 4 * from; i < n; i++, pos += 4)
+			slotNos[at + i] = getInt(data, pos);
+	}
+
+	private static int search(byte[] data, int key, boolean upper) {
+		int lo = 0;
+		int hi = BTSortedPages.getShort(data, SLOT_CNT);
+		int mid, stored;
+
+		// invariant: entries < lo are before the answer, entries >= hi are
+		// not
+		while (lo < hi) {
+			mid = (lo + hi) >>> 1;
+			stored = getInt(data, KEYS + 4 * mid);
+			if (stored < key || (upper && stored == key))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/* entry `slot' from a leaf record: key, slot number, page number */
+	private static void set(byte[] data, int slot, byte[] record) {
+		System.arraycopy(record, 0, data, KEYS + 4 * slot, 4);
+		System.arraycopy(record, 4, data, SLOT_NOS + 4 * slot, 4);
+		System.arraycopy(record, 8, data, PAGE_NOS + 4 * slot, 4);
+	}
+
+	private static void setCount(byte[] data, int count) {
+		BTSortedPages.setShort(data, SLOT_CNT, count);
+		BTSortedPages.setShort(data, FREE_SPACE, MAX_SPACE - HFPage.DPFIXED
+				- count * ENTRY_SIZE);
+	}
+
+	/* big-endian, as written by Convert */
+
+	private static int getInt(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+}
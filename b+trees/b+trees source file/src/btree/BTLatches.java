@@ -0,0 +1,88 @@
+package btree;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import global.*;
+
+/**
+ * The page latches of BTreeFile's concurrent mode (BTreeFile.setConcurrent).
+ * <p>
+ * Every page has a read/write latch, found by its page number. A thread
+ * takes the latch of a page before it pins it and lets go of it after it
+ * unpinned the page, so a thread holding the write latch of a page is the
+ * only one that has it pinned, and may free it. Latches are taken from the
+ * header page down, and from left to right along the leaf level; the one
+ * step the other way, from a leaf to the one before it, only tries the
+ * latch. No two threads can then wait for each other.
+ * <p>
+ * While concurrent mode is off every call returns at once.
+ */
+final class BTLatches {
+
+	private static volatile boolean enabled;
+
+	private static final ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches = new ConcurrentHashMap<Integer, ReentrantReadWriteLock>();
+
+	private BTLatches() {
+	}
+
+	static boolean enabled() {
+		return enabled;
+	}
+
+	static void enable(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Take the read latch of page `pageno', waiting for a writer.
+	 */
+	static void shared(PageId pageno) {
+		if (enabled)
+			latch(pageno.pid).readLock().lock();
+	}
+
+	/**
+	 * Take the read latch of page `pageno' if no writer has it.
+	 *
+	 * @return whether the latch was taken
+	 */
+	static boolean tryShared(PageId pageno) {
+		return !enabled || latch(pageno.pid).readLock().tryLock();
+	}
+
+	/**
+	 * Take the write latch of page `pageno', waiting for the readers and
+	 * the writer.
+	 */
+	static void exclusive(PageId pageno) {
+		if (enabled)
+			latch(pageno.pid).writeLock().lock();
+	}
+
+	/**
+	 * Let go of the latch this thread holds on page `pageno'.
+	 */
+	static void release(PageId pageno) {
+		if (!enabled)
+			return;
+		ReentrantReadWriteLock latch = latch(pageno.pid);
+		if (latch.isWriteLockedByCurrentThread())
+			latch.writeLock().unlock();
+		else
+			latch.readLock().unlock();
+	}
+
+	/* latches are never dropped: a freed page number comes back */
+	private static ReentrantReadWriteLock latch(int pid) {
+		ReentrantReadWriteLock latch = latches.get(pid);
+		if (latch == null) {
+			latch = new ReentrantReadWriteLock();
+			ReentrantReadWriteLock raced = latches.putIfAbsent(pid, latch);
+			if (raced != null)
+				latch = raced;
+		}
+		return latch;
+	}
+}
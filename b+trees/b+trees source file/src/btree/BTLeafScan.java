@@ -0,0 +1,182 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * The BTFileScan of a tree whose leaves BTFileScan cannot read by itself.
+ * <p>
+ * With KeyCompression.PREFIX, BTFileScan returns the keys as the leaf
+ * records hold them, without the prefix of their leaf, so this scan puts
+ * the prefix back in front of every key, compares full keys against hi_key
+ * itself and deletes entries by their full key. LeafLayout.DENSE leaves
+ * have no slots at all, and this scan walks their arrays instead. In
+ * concurrent mode (BTreeFile.setConcurrent) it walks the leaves of every
+ * tree itself, keeping the read latch of the leaf it is on until it has
+ * the one of the next leaf. On a tree with neither it is a BTFileScan
+ * that compares the keys with hi_key itself, as BT.keyCompare overflows on
+ * integer keys far apart. BTreeFile.new_scan returns one for every tree,
+ * and times its get_next for a tree with metrics
+ * (BTreeFile.enableMetrics).
+ */
+public class BTLeafScan extends BTFileScan {
+
+	boolean prefixed; // set for trees with prefix-compressed leaves
+	boolean dense; // set for trees with dense leaves
+	boolean latched; // set in concurrent mode
+	byte[] hikey; // hi_key as stored in the pages, or null; endkey is null
+	BTMetrics metrics; // set for trees with metrics
+
+	/* the prefix of the leaf the last entry was returned from */
+	private BTLeafPage prefixLeaf;
+	private String prefix;
+
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		BTMetrics timed = metrics;
+		if (timed == null)
+			return next();
+
+		long start = System.nanoTime();
+		KeyDataEntry entry = next();
+		timed.scanNext.record(System.nanoTime() - start);
+		return entry;
+	}
+
+	/* get_next, untimed */
+	private KeyDataEntry next() throws ScanIteratorException {
+		if (dense || latched)
+			return walk();
+
+		KeyDataEntry entry = super.get_next();
+		if (entry == null)
+			return null;
+
+		try {
+			if (hikey != null && compareKey(hikey) > 0) {
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				leafPage = null;
+				return null;
+			}
+			if (!prefixed)
+				return entry;
+
+			if (leafPage != prefixLeaf) { // on to the next leaf
+				prefix = BTPrefixLeaves.prefixString(leafPage);
+				prefixLeaf = leafPage;
+			}
+			if (prefix.length() > 0)
+				entry.key = new StringKey(prefix
+						+ ((StringKey) entry.key).getKey());
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	public void delete_current() throws ScanDeleteException {
+		if (!prefixed && !dense && !latched) {
+			super.delete_current();
+			return;
+		}
+
+		KeyDataEntry entry;
+		try {
+			if (leafPage == null) {
+				System.out.println("No Record to delete!");
+				throw new ScanDeleteException();
+			}
+			if (!didfirst || deletedcurrent)
+				return;
+
+			// the delete latches the leaf itself
+			entry = getEntry();
+			unpin();
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			leafPage = bfile.findRunStart(entry.key, curRid);
+			deletedcurrent = true;
+		} catch (ScanDeleteException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			unpin();
+	}
+
+	/*
+	 * get_next for dense leaves, and for any leaves in concurrent mode:
+	 * the entries of a leaf are read by position, and the leaf is left for
+	 * the next one when they run out.
+	 */
+	private KeyDataEntry walk() throws ScanIteratorException {
+		try {
+			if (leafPage == null)
+				return null;
+
+			if (didfirst && !deletedcurrent)
+				curRid.slotNo++;
+			didfirst = true;
+			deletedcurrent = false;
+
+			while (curRid.slotNo >= leafPage.getSlotCnt()) {
+				PageId next = leafPage.getNextPage();
+				if (next.pid == INVALID_PAGE) {
+					unpin();
+					return null;
+				}
+
+				// latched before the leaf it is on is let go of
+				BTLatches.shared(next);
+				BTLeafPage nextPage = new BTLeafPage(next, keyType);
+				unpin();
+				leafPage = nextPage;
+				curRid.pageNo = new PageId(next.pid);
+				curRid.slotNo = 0;
+			}
+
+			if (hikey != null && compareKey(hikey) > 0) {
+				unpin();
+				return null;
+			}
+			return getEntry();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	private KeyDataEntry getEntry() throws Exception {
+		if (dense)
+			return BTDenseLeaves.getEntry(leafPage, curRid.slotNo);
+		if (prefixed)
+			return BTPrefixLeaves.getEntry(leafPage, curRid.slotNo);
+		return leafPage.getCurrent(curRid);
+	}
+
+	private int compareKey(byte[] key) {
+		if (dense)
+			return BTDenseLeaves.compareKey(leafPage, curRid.slotNo, key);
+		if (prefixed)
+			return BTPrefixLeaves.compareKey(leafPage, curRid.slotNo, key);
+		return BTSortedPages.compareKey(leafPage, curRid.slotNo, key);
+	}
+
+	/* unpin the leaf and let go of its latch; the scan is on no leaf */
+	private void unpin() throws IOException, InvalidFrameNumberException,
+			ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException {
+		PageId pageno = leafPage.getCurPage();
+		SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		BTLatches.release(pageno);
+		leafPage = null;
+	}
+}
@@ -0,0 +1,101 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * The cache of BTreeFile.search, turned on with BTreeFile.setLookupCache:
+ * the rids of the keys looked up last, up to a number of keys, keyed by the
+ * key bytes as stored in the pages. When it is full the key looked up
+ * longest ago goes. A hit costs no page pins at all.
+ * <p>
+ * Every insert and delete of a key drops that key. A lookup that read the
+ * tree while one of them was going on does not put what it found: each
+ * drop counts up the version of the cache, and a lookup only puts its rids
+ * if the version is still the one from before it went down the tree. The
+ * calls are synchronized, for concurrent mode.
+ */
+final class BTLookupCache {
+
+	private final LinkedHashMap<Key, RID[]> entries;
+	private long version;
+
+	/* the key bytes of a tree, compared by their contents */
+	private static final class Key {
+		private final byte[] bytes;
+		private final int hash;
+
+		Key(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Key
+					&& Arrays.equals(bytes, ((Key) other).bytes);
+		}
+	}
+
+	BTLookupCache(final int capacity) {
+		// in access order, the eldest entry is the one looked up longest
+		// ago
+		entries = new LinkedHashMap<Key, RID[]>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, RID[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * The rids of `key', null if they are not in the cache.
+	 */
+	synchronized RID[] get(byte[] key) {
+		RID[] rids = entries.get(new Key(key));
+		return rids == null ? null : copy(rids);
+	}
+
+	/**
+	 * The version to pass to put, taken before the lookup reads the tree.
+	 */
+	synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Keep the rids a lookup found for `key', unless a key was dropped
+	 * since the lookup took `version'.
+	 */
+	synchronized void put(byte[] key, RID[] rids, long version) {
+		if (version == this.version)
+			entries.put(new Key(key), copy(rids));
+	}
+
+	/**
+	 * Drop `key', whose rids are about to change or just did.
+	 */
+	synchronized void invalidate(byte[] key) {
+		version++;
+		entries.remove(new Key(key));
+	}
+
+	/**
+	 * Drop every key.
+	 */
+	synchronized void clear() {
+		version++;
+		entries.clear();
+	}
+
+	/* the caller may change the rids it gets, the cache keeps its own */
+	private static RID[] copy(RID[] rids) {
+		RID[] copy = new RID[rids.length];
+		for (int i = 0; i < rids.length; i++)
+			copy[i] = new RID(new PageId(rids[i].pageNo.pid), rids[i].slotNo);
+		return copy;
+	}
+}
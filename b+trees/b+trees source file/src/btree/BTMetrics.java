@@ -0,0 +1,319 @@
+package btree;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The metrics of one BTreeFile, kept while BTreeFile.enableMetrics is in
+ * effect: counters of splits, page pins and descents, and latency
+ * histograms of insert, Delete, opening a scan and a scan's get_next.
+ * <p>
+ * Each counter and histogram is striped: a thread adds to the stripe its
+ * id picks, so threads of concurrent mode seldom write to the same cache
+ * line, and a read sums the stripes. The histograms count latencies in
+ * buckets by powers of 2 of nanoseconds, so a percentile is exact to a
+ * factor of 2. Read them with snapshot, or through JMX (BTMetricsMBean).
+ * <p>
+ * The pins counted are the ones BTreeFile makes itself. Pages a scan pins
+ * as it goes from leaf to leaf, and pages newly allocated, are not. A
+ * descent goes from the root to a leaf: one for each search, Delete, scan
+ * and insert, two for an insert whose first go through cached levels or
+ * in concurrent mode finds the leaf full, and one for a whole insertBatch,
+ * down to the leaf of its smallest key.
+ */
+public class BTMetrics implements BTMetricsMBean {
+
+	/* a power of 2 */
+	private static final int STRIPES = Math.min(64, Integer.highestOneBit(Math
+			.max(4, Runtime.getRuntime().availableProcessors()) * 2 - 1));
+
+	/* longs between two stripes of a counter: one 64 byte cache line */
+	private static final int PAD = 8;
+
+	/* histogram bucket b counts latencies of b significant bits */
+	private static final int BUCKETS = 64;
+
+	/** A counter in stripes. */
+	static final class Counter {
+		private final AtomicLongArray stripes = new AtomicLongArray(STRIPES
+				* PAD);
+
+		void add(long n) {
+			stripes.addAndGet(stripe() * PAD, n);
+		}
+
+		void increment() {
+			add(1);
+		}
+
+		long sum() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++)
+				sum += stripes.get(i * PAD);
+			return sum;
+		}
+
+		void reset() {
+			for (int i = 0; i < STRIPES; i++)
+				stripes.set(i * PAD, 0);
+		}
+	}
+
+	/** A latency histogram in stripes, each a row of buckets. */
+	static final class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(STRIPES
+				* BUCKETS);
+		private final Counter nanos = new Counter();
+
+		void record(long latency) {
+			int bucket = BUCKETS - Long.numberOfLeadingZeros(Math.max(latency,
+					0));
+			buckets.incrementAndGet(stripe() * BUCKETS
+					+ Math.min(bucket, BUCKETS - 1));
+			nanos.add(latency);
+		}
+
+		Latency snapshot() {
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < STRIPES; i++)
+				for (int b = 0; b < BUCKETS; b++)
+					counts[b] += buckets.get(i * BUCKETS + b);
+			return new Latency(counts, nanos.sum());
+		}
+
+		void reset() {
+			for (int i = 0; i < buckets.length(); i++)
+				buckets.set(i, 0);
+			nanos.reset();
+		}
+	}
+
+	/** The latencies of one kind of operation at the time of a snapshot. */
+	public static final class Latency {
+		private final long[] buckets;
+		private final long count;
+		private final long totalNanos;
+
+		private Latency(long[] buckets, long totalNanos) {
+			long count = 0;
+			for (int b = 0; b < buckets.length; b++)
+				count += buckets[b];
+			this.buckets = buckets;
+			this.count = count;
+			this.totalNanos = totalNanos;
+		}
+
+		/**
+		 * The number of operations.
+		 */
+		public long count() {
+			return count;
+		}
+
+		/**
+		 * The mean latency in microseconds, 0 if there was none.
+		 */
+		public double meanMicros() {
+			return count == 0 ? 0 : totalNanos / 1e3 / count;
+		}
+
+		/**
+		 * The latency in microseconds that `percent' percent of the
+		 * operations took at most, rounded up to a power of 2 nanoseconds;
+		 * 0 if there was none.
+		 */
+		public double percentileMicros(double percent) {
+			long rank = (long) Math.ceil(count * percent / 100);
+			long seen = 0;
+			for (int b = 0; b < buckets.length; b++) {
+				seen += buckets[b];
+				if (seen >= rank && seen > 0)
+					return b == 0 ? 0 : Math.pow(2, b) / 1e3;
+			}
+			return 0;
+		}
+
+		public String toString() {
+			return String.format("%d ops, mean %.2f us, p50 %.2f us, "
+					+ "p99 %.2f us", count, meanMicros(),
+					percentileMicros(50), percentileMicros(99));
+		}
+	}
+
+	/** All the metrics of a BTreeFile at one time. */
+	public static final class Snapshot {
+		public final Latency insert;
+		public final Latency delete;
+		public final Latency scanOpen;
+		public final Latency scanNext;
+		public final long leafSplits;
+		public final long indexSplits;
+		public final long rootSplits;
+		public final long pins;
+		public final long unpins;
+		public final long dirtyUnpins;
+		public final long descents;
+		public final long descentLevels; // pages visited by all descents
+		public final long leafSkips;
+
+		private Snapshot(BTMetrics metrics) {
+			insert = metrics.insert.snapshot();
+			delete = metrics.delete.snapshot();
+			scanOpen = metrics.scanOpen.snapshot();
+			scanNext = metrics.scanNext.snapshot();
+			leafSplits = metrics.leafSplits.sum();
+			indexSplits = metrics.indexSplits.sum();
+			rootSplits = metrics.rootSplits.sum();
+			pins = metrics.pins.sum();
+			unpins = metrics.unpins.sum();
+			dirtyUnpins = metrics.dirtyUnpins.sum();
+			descents = metrics.descents.sum();
+			descentLevels = metrics.descentLevels.sum();
+			leafSkips = metrics.leafSkips.sum();
+		}
+
+		public String toString() {
+			return "insert    " + insert + "\ndelete    " + delete
+					+ "\nscan open " + scanOpen + "\nscan next " + scanNext
+					+ "\nsplits: leaf " + leafSplits + ", index "
+					+ indexSplits + ", root " + rootSplits + "\npins "
+					+ pins + ", unpins " + unpins + " (" + dirtyUnpins
+					+ " dirty), descents " + descents + " of "
+					+ String.format("%.2f", descents == 0 ? 0.0
+							: (double) descentLevels / descents)
+					+ " levels, leaf skips " + leafSkips;
+		}
+	}
+
+	final Histogram insert = new Histogram();
+	final Histogram delete = new Histogram();
+	final Histogram scanOpen = new Histogram();
+	final Histogram scanNext = new Histogram();
+	final Counter leafSplits = new Counter();
+	final Counter indexSplits = new Counter();
+	final Counter rootSplits = new Counter();
+	final Counter pins = new Counter();
+	final Counter unpins = new Counter();
+	final Counter dirtyUnpins = new Counter();
+	final Counter descents = new Counter();
+	final Counter descentLevels = new Counter();
+	final Counter leafSkips = new Counter();
+
+	BTMetrics() {
+	}
+
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	/**
+	 * Read every counter and histogram.
+	 *
+	 * @return the metrics as they are now
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public void reset() {
+		insert.reset();
+		delete.reset();
+		scanOpen.reset();
+		scanNext.reset();
+		leafSplits.reset();
+		indexSplits.reset();
+		rootSplits.reset();
+		pins.reset();
+		unpins.reset();
+		dirtyUnpins.reset();
+		descents.reset();
+		descentLevels.reset();
+		leafSkips.reset();
+	}
+
+	/* BTMetricsMBean */
+
+	public long getInserts() {
+		return insert.snapshot().count();
+	}
+
+	public double getInsertMeanMicros() {
+		return insert.snapshot().meanMicros();
+	}
+
+	public double getInsertP99Micros() {
+		return insert.snapshot().percentileMicros(99);
+	}
+
+	public long getDeletes() {
+		return delete.snapshot().count();
+	}
+
+	public double getDeleteMeanMicros() {
+		return delete.snapshot().meanMicros();
+	}
+
+	public double getDeleteP99Micros() {
+		return delete.snapshot().percentileMicros(99);
+	}
+
+	public long getScanOpens() {
+		return scanOpen.snapshot().count();
+	}
+
+	public double getScanOpenMeanMicros() {
+		return scanOpen.snapshot().meanMicros();
+	}
+
+	public double getScanOpenP99Micros() {
+		return scanOpen.snapshot().percentileMicros(99);
+	}
+
+	public long getScanNexts() {
+		return scanNext.snapshot().count();
+	}
+
+	public double getScanNextMeanMicros() {
+		return scanNext.snapshot().meanMicros();
+	}
+
+	public double getScanNextP99Micros() {
+		return scanNext.snapshot().percentileMicros(99);
+	}
+
+	public long getLeafSplits() {
+		return leafSplits.sum();
+	}
+
+	public long getIndexSplits() {
+		return indexSplits.sum();
+	}
+
+	public long getRootSplits() {
+		return rootSplits.sum();
+	}
+
+	public long getPins() {
+		return pins.sum();
+	}
+
+	public long getUnpins() {
+		return unpins.sum();
+	}
+
+	public long getDirtyUnpins() {
+		return dirtyUnpins.sum();
+	}
+
+	public long getDescents() {
+		return descents.sum();
+	}
+
+	public double getAverageDescentDepth() {
+		long n = descents.sum();
+		return n == 0 ? 0 : (double) descentLevels.sum() / n;
+	}
+
+	public long getLeafSkips() {
+		return leafSkips.sum();
+	}
+}
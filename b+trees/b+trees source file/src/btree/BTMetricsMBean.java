@@ -0,0 +1,56 @@
+package btree;
+
+/**
+ * The JMX view of BTMetrics: the counters of one BTreeFile, and the count,
+ * mean and 99th percentile latency of each kind of operation. Registered
+ * by BTreeFile.enableMetrics as btree:type=BTreeFile,name="file name".
+ */
+public interface BTMetricsMBean {
+
+	long getInserts();
+
+	double getInsertMeanMicros();
+
+	double getInsertP99Micros();
+
+	long getDeletes();
+
+	double getDeleteMeanMicros();
+
+	double getDeleteP99Micros();
+
+	long getScanOpens();
+
+	double getScanOpenMeanMicros();
+
+	double getScanOpenP99Micros();
+
+	long getScanNexts();
+
+	double getScanNextMeanMicros();
+
+	double getScanNextP99Micros();
+
+	long getLeafSplits();
+
+	long getIndexSplits();
+
+	long getRootSplits();
+
+	long getPins();
+
+	long getUnpins();
+
+	long getDirtyUnpins();
+
+	long getDescents();
+
+	double getAverageDescentDepth();
+
+	long getLeafSkips();
+
+	/**
+	 * Set every counter and histogram back to 0.
+	 */
+	void reset();
+}
@@ -0,0 +1,98 @@
+package btree;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import global.*;
+
+/**
+ * Static helpers that read and write many pages of a database file at
+ * once, as diskmgr.DB reads and writes one: the pages are given in
+ * ascending order, and each run of adjacent ones is moved with one
+ * positional read or write of the channel, instead of a seek and a call
+ * per page.
+ * <p>
+ * A run goes through a direct buffer of the calling thread's own, as the
+ * channel would copy the pages to and from one anyway, and a scatter or
+ * gather call of heap buffers takes a temporary one per page.
+ * <p>
+ * The channel is a file handle of the caller's own on the database file,
+ * so what it writes is what diskmgr.DB reads, and the other way round.
+ */
+final class BTPageIO implements GlobalConst {
+
+	/** Most pages moved by one call. */
+	static final int MAX_RUN = 64;
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(MAX_RUN * MINIBASE_PAGESIZE);
+		}
+	};
+
+	private BTPageIO() {
+	}
+
+	/**
+	 * Read pages `pids[0..count)', in ascending order, into `pages'; the
+	 * number of them read in full, which is short of `count' only at the
+	 * end of the file.
+	 */
+	static int read(FileChannel channel, int[] pids, byte[][] pages,
+			int count) throws IOException {
+		ByteBuffer buffer = buffers.get();
+		for (int start = 0; start < count;) {
+			int end = runEnd(pids, start, count);
+			long position = (long) pids[start] * MINIBASE_PAGESIZE;
+			buffer.clear();
+			buffer.limit((end - start) * MINIBASE_PAGESIZE);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					break;
+			int read = buffer.position() / MINIBASE_PAGESIZE;
+			buffer.flip();
+			for (int i = start; i < start + read; i++)
+				buffer.get(pages[i], 0, MINIBASE_PAGESIZE);
+			if (read < end - start)
+				return start + read;
+			start = end;
+		}
+		return count;
+	}
+
+	/**
+	 * Write pages `pids[0..count)', in ascending order, from `pages'; the
+	 * number of calls it took.
+	 */
+	static int write(FileChannel channel, int[] pids, byte[][] pages,
+			int count) throws IOException {
+		ByteBuffer buffer = buffers.get();
+		int calls = 0;
+		for (int start = 0; start < count;) {
+			int end = runEnd(pids, start, count);
+			long position = (long) pids[start] * MINIBASE_PAGESIZE;
+			buffer.clear();
+			for (int i = start; i < end; i++)
+				buffer.put(pages[i], 0, MINIBASE_PAGESIZE);
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer, position + buffer.position());
+			calls++;
+			start = end;
+		}
+		return calls;
+	}
+
+	/*
+	 * The end of the run of adjacent pages from `start', at most MAX_RUN
+	 * long.
+	 */
+	private static int runEnd(int[] pids, int start, int count) {
+		int end = start + 1;
+		while (end < count && end - start < MAX_RUN
+				&& pids[end] == pids[end - 1] + 1)
+			end++;
+		return end;
+	}
+}
@@ -0,0 +1,116 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * A BTFileScan that reads the leaf pages ahead of the one it is on through
+ * BTReadAhead, so that the caller consumes one leaf while the next ones are
+ * read. Get one from BTreeFile.new_scan(lo_key, hi_key, prefetch).
+ * <p>
+ * The number of leaves read ahead is either fixed or, with ADAPTIVE,
+ * starts at MIN_WINDOW and doubles every time the scan has read as many
+ * leaves from the database as the window holds, up to MAX_WINDOW: a short
+ * range scan reads hardly any pages it does not need, a long one keeps the
+ * reader well ahead. Every leaf that was found in the buffer pool halves
+ * the window, down to no read ahead at all, since reading a page the pool
+ * already has is wasted work.
+ */
+public class BTPrefetchScan extends BTLeafScan {
+
+	/** Read ahead window that grows with the length of the scan. */
+	public final static int ADAPTIVE = -1;
+
+	public final static int MIN_WINDOW = 2;
+	public final static int MAX_WINDOW = 64;
+
+	private BTReadAhead readAhead;
+	private BTReadAhead.Stream stream;
+	private boolean adaptive;
+	private int window;
+	private int leaves; // leaves visited since the window last grew
+	private int current = INVALID_PAGE;
+
+	/**
+	 * @param prefetch
+	 *            number of leaves to read ahead (1..MAX_WINDOW), or ADAPTIVE
+	 */
+	BTPrefetchScan(int prefetch) {
+		adaptive = prefetch == ADAPTIVE;
+		window = adaptive ? MIN_WINDOW : Math.min(Math.max(prefetch, 1),
+				MAX_WINDOW);
+	}
+
+	/**
+	 * Current size of the read ahead window, in leaf pages.
+	 */
+	public int window() {
+		return window;
+	}
+
+	/*
+	 * Start reading ahead from the leaf the scan was positioned on.
+	 */
+	void start() throws IOException {
+		if (leafPage == null)
+			return;
+		readAhead = BTReadAhead.attach();
+		stream = readAhead.open();
+		moved(true);
+	}
+
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (stream == null)
+			return super.get_next();
+
+		long reads = readAhead.hits() + readAhead.misses();
+		KeyDataEntry entry = super.get_next();
+
+		if (leafPage == null) { // end of the scan
+			stream.close();
+			stream = null;
+			return entry;
+		}
+		try {
+			if (leafPage.getCurPage().pid != current)
+				moved(readAhead.hits() + readAhead.misses() != reads);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "read ahead failed");
+		}
+		return entry;
+	}
+
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (stream != null) {
+			stream.close();
+			stream = null;
+		}
+		super.DestroyBTreeFileScan();
+	}
+
+	/*
+	 * The scan is on a new leaf, which was `read' from the database (or
+	 * the read ahead) rather than found in the buffer pool: adapt the
+	 * window and tell the stream.
+	 */
+	private void moved(boolean read) throws IOException {
+		current = leafPage.getCurPage().pid;
+		if (adaptive) {
+			if (!read) {
+				window /= 2;
+				leaves = 0;
+			} else if (window == 0) {
+				window = MIN_WINDOW;
+			} else if (++leaves >= window && window < MAX_WINDOW) {
+				window = Math.min(2 * window, MAX_WINDOW);
+				leaves = 0;
+			}
+		}
+		stream.advance(current, leafPage.getNextPage().pid, window);
+	}
+}
@@ -0,0 +1,427 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * Static helpers over the leaf pages of a tree created with
+ * KeyCompression.PREFIX.
+ * <p>
+ * Such a leaf stores the prefix its keys share once, behind its records at
+ * the end of the page: the prefix bytes, then their number in the last two
+ * bytes. Every record is an ordinary leaf record of what follows the prefix
+ * in its key, so the searches and record moves of BTSortedPages work on the
+ * page unchanged; the helpers here put the prefix back where a full key is
+ * needed and take it off a search key.
+ * <p>
+ * The prefix of a leaf is the common prefix of its fences, the separators
+ * left and right of it in the index. Every key that goes into the leaf lies
+ * between the two and so starts with the prefix too, and an insert never
+ * has to shorten it. The left-most and the right-most leaf have no fence on
+ * one side and store no prefix. A prefix always ends on a character
+ * boundary, so the rest of a key is modified UTF-8 on its own.
+ */
+final class BTPrefixLeaves implements GlobalConst {
+
+	/** The prefix of a leaf without a fence on one side. */
+	static final byte[] NO_PREFIX = new byte[0];
+
+	/* HFPage header: slot count at 0, used pointer at 2, free space at 4 */
+	private final static int SLOT_CNT = 0;
+	private final static int USED_PTR = 2;
+	private final static int FREE_SPACE = 4;
+
+	/* the prefix length, in the last two bytes of the page */
+	private final static int PREFIX_LENGTH = MAX_SPACE - 2;
+
+	private final static int PAGE_CAPACITY = MAX_SPACE - HFPage.DPFIXED;
+
+	private BTPrefixLeaves() {
+	}
+
+	/**
+	 * Give a newly initialized, empty leaf page its prefix.
+	 */
+	static void init(BTLeafPage page, byte[] prefix) {
+		byte[] data = page.getpage();
+		int space = prefix.length + 2;
+
+		System.arraycopy(prefix, 0, data, PREFIX_LENGTH - prefix.length,
+				prefix.length);
+		BTSortedPages.setShort(data, PREFIX_LENGTH, prefix.length);
+		BTSortedPages.setShort(data, USED_PTR, BTSortedPages.getShort(data,
+				USED_PTR)
+				- space);
+		BTSortedPages.setShort(data, FREE_SPACE, BTSortedPages.getShort(data,
+				FREE_SPACE)
+				- space);
+	}
+
+	/**
+	 * Number of bytes of the prefix of a leaf.
+	 */
+	static int prefixLength(BTLeafPage page) {
+		return BTSortedPages.getShort(page.getpage(), PREFIX_LENGTH);
+	}
+
+	/**
+	 * The prefix of a leaf.
+	 */
+	static byte[] prefix(BTLeafPage page) {
+		byte[] data = page.getpage();
+		int length = BTSortedPages.getShort(data, PREFIX_LENGTH);
+		return Arrays.copyOfRange(data, PREFIX_LENGTH - length, PREFIX_LENGTH);
+	}
+
+	/**
+	 * The prefix of a leaf, decoded.
+	 */
+	static String prefixString(BTLeafPage page) throws IOException {
+		byte[] data = page.getpage();
+		int length = BTSortedPages.getShort(data, PREFIX_LENGTH);
+		byte[] key = new byte[length + 2];
+		BTSortedPages.setShort(key, 0, length);
+		System.arraycopy(data, PREFIX_LENGTH - length, key, 2, length);
+		return Convert.getStrValue(0, key, key.length);
+	}
+
+	/**
+	 * The prefix of a leaf whose fences are `low' and `high', two keys as
+	 * BTSortedPages.keyBytes returns them (or records), or null for no
+	 * fence.
+	 */
+	static byte[] prefixOf(byte[] low, byte[] high) {
+		if (low == null || high == null)
+			return NO_PREFIX;
+		return commonPrefix(low, 2, keyLength(low), high, 2, keyLength(high));
+	}
+
+	/**
+	 * The part of a prefix that a serialized key starts with too.
+	 */
+	static byte[] narrow(byte[] prefix, byte[] key) {
+		return commonPrefix(prefix, 0, prefix.length, key, 2, keyLength(key));
+	}
+
+	/**
+	 * The part two prefixes have in common.
+	 */
+	static byte[] commonPrefix(byte[] a, byte[] b) {
+		return commonPrefix(a, 0, a.length, b, 0, b.length);
+	}
+
+	/**
+	 * The separator to push up between two leaves whose keys end with
+	 * `left' and start with `right', both serialized keys (or records) with
+	 * left <= right: the shortest prefix of `right' that is greater than
+	 * `left'. It is the key of `right' itself if the two are equal.
+	 */
+	static byte[] separator(byte[] left, byte[] right) {
+		int leftLength = keyLength(left);
+		int rightLength = keyLength(right);
+		int n = 0;
+
+		while (n < leftLength && n < rightLength && left[2 + n] == right[2 + n])
+			n++;
+		if (n == rightLength)
+			return Arrays.copyOf(right, rightLength + 2);
+
+		// up to and with the first byte where `right' is greater, to the
+		// end of the character it is in
+		for (n++; n < rightLength && continues(right[2 + n]); n++)
+			;
+		byte[] key = new byte[n + 2];
+		BTSortedPages.setShort(key, 0, n);
+		System.arraycopy(right, 2, key, 2, n);
+		return key;
+	}
+
+	/**
+	 * The size of a leaf record with key `key', as stored on `page'.
+	 */
+	static int recordLength(BTLeafPage page, KeyClass key)
+			throws KeyNotMatchException, NodeNotMatchException, IOException {
+		return BT.getKeyDataLength(key, NodeType.LEAF) - prefixLength(page);
+	}
+
+	/**
+	 * BTSortedPages.compareKey for the full key of record `slot'.
+	 */
+	static int compareKey(BTLeafPage page, int slot, byte[] key) {
+		byte[] data = page.getpage();
+		int side = againstPrefix(data, key);
+		if (side != 0)
+			return -side;
+
+		int length = BTSortedPages.getShort(data, PREFIX_LENGTH);
+		int offset = BTSortedPages.slotOffset(data, slot);
+		return BTSortedPages.compareUTF(data, offset + 2, BTSortedPages
+				.getShort(data, offset) & 0xffff, key, 2 + length,
+				keyLength(key) - length);
+	}
+
+	/**
+	 * BTSortedPages.lowerBound for the full keys of a leaf.
+	 */
+	static int lowerBound(BTLeafPage page, byte[] key) {
+		return search(page, key, false);
+	}
+
+	/**
+	 * BTSortedPages.upperBound for the full keys of a leaf.
+	 */
+	static int upperBound(BTLeafPage page, byte[] key) {
+		return search(page, key, true);
+	}
+
+	/**
+	 * Insert a leaf record, given with its full key, after the records
+	 * with a key not greater than its own.
+	 *
+	 * @return the rid of the inserted record, null if it does not fit
+	 * @exception InsertRecException
+	 *                the key does not start with the prefix of the page, or
+	 *                error when inserting into the page
+	 */
+	static RID insertRecord(BTLeafPage page, byte[] record)
+			throws InsertRecException {
+		byte[] data = page.getpage();
+		if (againstPrefix(data, record) != 0)
+			throw new InsertRecException(null, "key outside the leaf prefix");
+
+		byte[] rest = strip(record, BTSortedPages.getShort(data,
+				PREFIX_LENGTH));
+		return BTSortedPages.insertRecord(page, BTSortedPages.upperBound(page,
+				rest), rest);
+	}
+
+	/**
+	 * The full key of record `slot', as BTSortedPages.keyBytes returns it.
+	 */
+	static byte[] keyBytes(BTLeafPage page, int slot) {
+		return expand(page.getpage(), slot, 0);
+	}
+
+	/**
+	 * Record `slot' with its full key.
+	 */
+	static byte[] record(BTLeafPage page, int slot) {
+		return expand(page.getpage(), slot, 8);
+	}
+
+	/**
+	 * Every record of a leaf, with its full key.
+	 */
+	static ArrayList<byte[]> records(BTLeafPage page) {
+		int count = BTSortedPages.slotCount(page);
+		ArrayList<byte[]> records = new ArrayList<byte[]>(count);
+		for (int slot = 0; slot < count; slot++)
+			records.add(record(page, slot));
+		return records;
+	}
+
+	/**
+	 * Decode record `slot', with its full key.
+	 */
+	static KeyDataEntry getEntry(BTLeafPage page, int slot)
+			throws IteratorException {
+		byte[] record = record(page, slot);
+		try {
+			return BT.getEntryFromBytes(record, 0, record.length,
+					AttrType.attrString, NodeType.LEAF);
+		} catch (Exception e) {
+			throw new IteratorException(e, "Get entry failed");
+		}
+	}
+
+	/**
+	 * Decode a serialized string key.
+	 */
+	static KeyClass getKey(byte[] key) throws IOException {
+		return new StringKey(Convert.getStrValue(0, key, keyLength(key) + 2));
+	}
+
+	/**
+	 * Bytes a leaf holding records [from, to) of `records', which have full
+	 * keys, would take with a prefix of `prefixLength' bytes.
+	 */
+	static int space(List<byte[]> records, int from, int to, int prefixLength) {
+		int space = prefixLength + 2;
+		for (int i = from; i < to; i++)
+			space += records.get(i).length - prefixLength
+					+ HFPage.SIZE_OF_SLOT;
+		return space;
+	}
+
+	/**
+	 * Give a leaf another prefix, one that the keys on it all start with,
+	 * and store its records with the rest of their keys.
+	 *
+	 * @return false, with the page unchanged, if the records do not fit
+	 *         with the new prefix
+	 */
+	static boolean setPrefix(BTLeafPage page, byte[] prefix) {
+		byte[] data = page.getpage();
+		int count = BTSortedPages.slotCount(page);
+		int oldLength = BTSortedPages.getShort(data, PREFIX_LENGTH);
+		int grow = oldLength - prefix.length; // bytes every record grows
+		int slot, offset, length;
+
+		int space = prefix.length + 2;
+		for (slot = 0; slot < count; slot++)
+			space += BTSortedPages.slotLength(data, slot) + grow
+					+ HFPage.SIZE_OF_SLOT;
+		if (space > PAGE_CAPACITY)
+			return false;
+
+		byte[] buffer = new byte[MAX_SPACE];
+		int used = PREFIX_LENGTH - prefix.length;
+		System.arraycopy(prefix, 0, buffer, used, prefix.length);
+		for (slot = 0; slot < count; slot++) {
+			offset = BTSortedPages.slotOffset(data, slot);
+			length = BTSortedPages.slotLength(data, slot);
+			used -= length + grow;
+			BTSortedPages.setShort(buffer, used, BTSortedPages.getShort(data,
+					offset)
+					+ grow);
+			if (grow >= 0) {
+				// what the prefix loses goes in front of the rest
+				System.arraycopy(data, PREFIX_LENGTH - oldLength
+						+ prefix.length, buffer, used + 2, grow);
+				System.arraycopy(data, offset + 2, buffer, used + 2 + grow,
+						length - 2);
+			} else {
+				System.arraycopy(data, offset + 2 - grow, buffer, used + 2,
+						length - 2 + grow);
+			}
+			BTSortedPages.setSlot(data, slot, length + grow, used);
+		}
+
+		System.arraycopy(buffer, used, data, used, PREFIX_LENGTH - used);
+		BTSortedPages.setShort(data, PREFIX_LENGTH, prefix.length);
+		BTSortedPages.setShort(data, USED_PTR, used);
+		BTSortedPages.setShort(data, FREE_SPACE, used - HFPage.DPFIXED
+				- count * HFPage.SIZE_OF_SLOT);
+		return true;
+	}
+
+	/**
+	 * Replace everything on a leaf with records [from, to) of `records',
+	 * which have full keys and are in key order, stored under `prefix'.
+	 *
+	 * @return false, with the page unchanged, if the records do not fit
+	 */
+	static boolean fill(BTLeafPage page, byte[] prefix, List<byte[]> records,
+			int from, int to) {
+		if (space(records, from, to, prefix.length) > PAGE_CAPACITY)
+			return false;
+
+		byte[] data = page.getpage();
+		int used = PREFIX_LENGTH - prefix.length;
+		System.arraycopy(prefix, 0, data, used, prefix.length);
+		BTSortedPages.setShort(data, PREFIX_LENGTH, prefix.length);
+		for (int i = from; i < to; i++) {
+			byte[] record = records.get(i);
+			int length = record.length - prefix.length;
+			used -= length;
+			BTSortedPages.setShort(data, used, keyLength(record)
+					- prefix.length);
+			System.arraycopy(record, 2 + prefix.length, data, used + 2,
+					length - 2);
+			BTSortedPages.setSlot(data, i - from, length, used);
+		}
+		BTSortedPages.setShort(data, SLOT_CNT, to - from);
+		BTSortedPages.setShort(data, USED_PTR, used);
+		BTSortedPages.setShort(data, FREE_SPACE, used - HFPage.DPFIXED
+				- (to - from) * HFPage.SIZE_OF_SLOT);
+		return true;
+	}
+
+	/*
+	 * Where a serialized key (or a record) falls against the keys of a leaf:
+	 * negative if it is less than all of them, positive if greater, 0 if it
+	 * starts with the prefix of the page.
+	 */
+	private static int againstPrefix(byte[] data, byte[] key) {
+		int length = BTSortedPages.getShort(data, PREFIX_LENGTH);
+		int keyLength = keyLength(key);
+		int n = Math.min(length, keyLength);
+		int cmp = BTSortedPages.compareUTF(key, 2, n, data, PREFIX_LENGTH
+				- length, n);
+		if (cmp == 0 && keyLength < length)
+			return -1;
+		return cmp;
+	}
+
+	private static int search(BTLeafPage page, byte[] key, boolean upper) {
+		byte[] data = page.getpage();
+		int side = againstPrefix(data, key);
+		if (side < 0)
+			return 0;
+		if (side > 0)
+			return BTSortedPages.slotCount(page);
+
+		byte[] rest = strip(key, BTSortedPages.getShort(data, PREFIX_LENGTH));
+		return upper ? BTSortedPages.upperBound(page, rest) : BTSortedPages
+				.lowerBound(page, rest);
+	}
+
+	/*
+	 * A serialized key, or a record, without the first `length' bytes of
+	 * its key.
+	 */
+	private static byte[] strip(byte[] key, int length) {
+		if (length == 0)
+			return key;
+		byte[] rest = new byte[key.length - length];
+		BTSortedPages.setShort(rest, 0, keyLength(key) - length);
+		System.arraycopy(key, 2 + length, rest, 2, rest.length - 2);
+		return rest;
+	}
+
+	/*
+	 * Record `slot' with the prefix put back into its key, and the first
+	 * `data' bytes of what follows the key.
+	 */
+	private static byte[] expand(byte[] page, int slot, int data) {
+		int length = BTSortedPages.getShort(page, PREFIX_LENGTH);
+		int offset = BTSortedPages.slotOffset(page, slot);
+		int rest = BTSortedPages.getShort(page, offset) & 0xffff;
+		byte[] record = new byte[2 + length + rest + data];
+
+		BTSortedPages.setShort(record, 0, length + rest);
+		System.arraycopy(page, PREFIX_LENGTH - length, record, 2, length);
+		System.arraycopy(page, offset + 2, record, 2 + length, rest + data);
+		return record;
+	}
+
+	/*
+	 * The common prefix of two runs of modified UTF-8, cut back to a
+	 * character boundary.
+	 */
+	private static byte[] commonPrefix(byte[] a, int aOffset, int aLength,
+			byte[] b, int bOffset, int bLength) {
+		int n = 0;
+		while (n < aLength && n < bLength && a[aOffset + n] == b[bOffset + n])
+			n++;
+		while (n > 0
+				&& ((n < aLength && continues(a[aOffset + n])) || (n < bLength && continues(b[bOffset
+						+ n]))))
+			n--;
+		return Arrays.copyOfRange(a, aOffset, aOffset + n);
+	}
+
+	/*
+	 * Whether a byte of modified UTF-8 continues the character before it.
+	 */
+	private static boolean continues(byte b) {
+		return (b & 0xc0) == 0x80;
+	}
+
+	private static int keyLength(byte[] key) {
+		return BTSortedPages.getShort(key, 0) & 0xffff;
+	}
+}
@@ -0,0 +1,405 @@
+package btree;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTReadAhead reads leaf pages ahead of a scan on a background thread.
+ * <p>
+ * The buffer manager is not thread-safe, so the pages cannot be pinned
+ * from another thread. Instead BTReadAhead takes the place of the database
+ * in SystemDefs.JavabaseDB, under the buffer manager: the reader thread
+ * follows the leaf chain on disk with a file handle of its own and keeps
+ * the pages it read in a staging area, and when the scan pins one of them
+ * the buffer manager's read is served from there instead of the file.
+ * Every other call goes to the database underneath. A page that is written
+ * or deallocated is dropped from the staging area, so a staged page always
+ * has the contents of the file.
+ * <p>
+ * Each scan reads ahead through its own Stream, which keeps up to a window
+ * of pages read beyond the leaf the scan is on.
+ * <p>
+ * The leaves of a bulk-loaded tree are adjacent pages, so the reader reads
+ * the pages after the next leaf with it, in one call (BTPageIO), and keeps
+ * those the chain goes on to. A stream reads one page at a time at first,
+ * twice as many each time the chain went through all of them, and as many
+ * as it did go through otherwise.
+ */
+public class BTReadAhead extends DB implements GlobalConst {
+
+	/* most pages staged at a time, over all streams */
+	private final static int STAGED_PAGES = 1024;
+
+	/* HFPage header: type at 6, next page at 12 */
+	private final static int TYPE = 6;
+	private final static int NEXT_PAGE = 12;
+
+	private final DB db;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private Thread reader;
+	private boolean closed;
+
+	private LinkedHashMap<Integer, byte[]> staged = new LinkedHashMap<Integer, byte[]>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+			return size() > STAGED_PAGES;
+		}
+	};
+	private ArrayList<Stream> streams = new ArrayList<Stream>();
+	private int nextStream;
+
+	/* the pages the reader is reading, and whether one was written since */
+	private int inFlight = INVALID_PAGE;
+	private int inFlightCount;
+	private boolean inFlightStale;
+
+	private volatile long hits;
+	private volatile long misses;
+	private volatile long reads;
+
+	private BTReadAhead(DB db) {
+		this.db = db;
+	}
+
+	/**
+	 * The read-ahead for the open database, put in place on first use.
+	 */
+	public static synchronized BTReadAhead attach() {
+		if (!(SystemDefs.JavabaseDB instanceof BTReadAhead))
+			SystemDefs.JavabaseDB = new BTReadAhead(SystemDefs.JavabaseDB);
+		return (BTReadAhead) SystemDefs.JavabaseDB;
+	}
+
+	/**
+	 * Start reading ahead for a new scan.
+	 */
+	public synchronized Stream open() throws IOException {
+		if (reader == null) {
+			file = new RandomAccessFile(db.db_name(), "r");
+			channel = file.getChannel();
+			reader = new Thread(new Runnable() {
+				public void run() {
+					readAhead();
+				}
+			}, "BTReadAhead " + db.db_name());
+			reader.setDaemon(true);
+			reader.start();
+		}
+		Stream stream = new Stream();
+		streams.add(stream);
+		return stream;
+	}
+
+	/**
+	 * Reads served from the staging area.
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * Reads that went to the file.
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * The reads of the file the reader made, each of one or more adjacent
+	 * pages.
+	 */
+	public long reads() {
+		return reads;
+	}
+
+	/**
+	 * The read-ahead of one scan.
+	 */
+	public class Stream {
+
+		/* pages read beyond the scan's leaf, in chain order */
+		private LinkedList<Integer> ahead = new LinkedList<Integer>();
+		/* the next page to read, INVALID_PAGE at the end of the chain */
+		private int cursor = INVALID_PAGE;
+		private int window;
+		/* the pages to read from the cursor with one call */
+		private int run = 1;
+
+		private Stream() {
+		}
+
+		/**
+		 * The scan has moved to leaf `current', whose next page is `next';
+		 * read on until `window' pages beyond it are staged.
+		 */
+		public void advance(int current, int next, int window) {
+			synchronized (BTReadAhead.this) {
+				if (!ahead.isEmpty() && ahead.getFirst() == current) {
+					ahead.removeFirst();
+				} else if (ahead.isEmpty() && cursor == current) {
+					cursor = next;
+				} else if (!ahead.contains(current)) {
+					// off the chain the reader followed, e.g. it read a
+					// page before a split was written: start again here
+					ahead.clear();
+					cursor = next;
+				} else {
+					while (ahead.removeFirst() != current)
+						;
+				}
+				this.window = window;
+				if (cursor != INVALID_PAGE && ahead.size() < window)
+					BTReadAhead.this.notifyAll();
+			}
+		}
+
+		/**
+		 * Stop reading ahead; pages already staged stay until used or
+		 * evicted.
+		 */
+		public void close() {
+			synchronized (BTReadAhead.this) {
+				streams.remove(this);
+				cursor = INVALID_PAGE;
+			}
+		}
+	}
+
+	/*
+	 * The reader thread: read the next pages of the streams in turn until
+	 * every stream is `window' pages ahead.
+	 */
+	private void readAhead() {
+		int[] pids = new int[BTPageIO.MAX_RUN];
+		byte[][] pages = new byte[BTPageIO.MAX_RUN][];
+
+		for (;;) {
+			Stream stream = null;
+			int pid;
+			int count;
+
+			synchronized (this) {
+				while (!closed && (stream = nextStream()) == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed)
+					return;
+				pid = stream.cursor;
+				count = Math.min(Math.min(stream.run, stream.window
+						- stream.ahead.size()), db.db_num_pages() - pid);
+				inFlight = pid;
+				inFlightCount = count;
+				inFlightStale = false;
+			}
+
+			for (int i = 0; i < count; i++) {
+				pids[i] = pid + i;
+				if (pages[i] == null)
+					pages[i] = new byte[MINIBASE_PAGESIZE];
+			}
+			int read = readPages(pids, pages, count);
+			reads++; // by this thread only
+
+			synchronized (this) {
+				inFlight = INVALID_PAGE;
+				inFlightCount = 0;
+				if (stream.cursor == pid) {
+					if (read == 0 || getShort(pages[0], TYPE) != NodeType.LEAF) {
+						// end of the file, or not a leaf any more
+						stream.cursor = INVALID_PAGE;
+					} else if (!inFlightStale) {
+						int used = 0;
+						while (used < read
+								&& stream.cursor == pid + used
+								&& getShort(pages[used], TYPE) == NodeType.LEAF) {
+							staged.put(pid + used, pages[used]);
+							stream.ahead.addLast(pid + used);
+							stream.cursor = getInt(pages[used], NEXT_PAGE);
+							if (stream.cursor <= 0
+									|| stream.cursor >= db.db_num_pages())
+								stream.cursor = INVALID_PAGE;
+							pages[used++] = null;
+						}
+						stream.run = used == count ? Math.min(2 * count,
+								BTPageIO.MAX_RUN) : used;
+					}
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private Stream nextStream() {
+		for (int i = 0; i < streams.size(); i++) {
+			Stream stream = streams.get((nextStream + i) % streams.size());
+			if (stream.cursor != INVALID_PAGE
+					&& stream.ahead.size() < stream.window) {
+				nextStream = (nextStream + i + 1) % streams.size();
+				return stream;
+			}
+		}
+		return null;
+	}
+
+	/* big-endian, as written by Convert */
+
+	private static int getShort(byte[] data, int pos) {
+		return (short) (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff));
+	}
+
+	private static int getInt(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	/*
+	 * Read pages `pids[0..count)', adjacent ones at once; the number read,
+	 * 0 if the read failed.
+	 */
+	private int readPages(int[] pids, byte[][] pages, int count) {
+		try {
+			return BTPageIO.read(channel, pids, pages, count);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/*
+	 * Pages `pid' to `pid + runSize - 1' were written or deallocated, also
+	 * by BTBufMgr, which writes runs of pages around the database.
+	 */
+	synchronized void dropStaged(int pid, int runSize) {
+		for (int i = 0; i < runSize; i++) {
+			staged.remove(pid + i);
+			if (pid + i >= inFlight && pid + i < inFlight + inFlightCount)
+				inFlightStale = true;
+		}
+	}
+
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		synchronized (this) {
+			while (pageno.pid >= inFlight
+					&& pageno.pid < inFlight + inFlightCount) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new FileIOException(e, "interrupted");
+				}
+			}
+			byte[] data = staged.remove(pageno.pid);
+			if (data != null) {
+				System.arraycopy(data, 0, apage.getpage(), 0, data.length);
+				hits++;
+				return;
+			}
+			misses++;
+		}
+		db.read_page(pageno, apage);
+	}
+
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		db.write_page(pageno, apage);
+		dropStaged(pageno.pid, 1);
+	}
+
+	public void deallocate_page(PageId start_page_num, int run_size)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		db.deallocate_page(start_page_num, run_size);
+		dropStaged(start_page_num.pid, run_size);
+	}
+
+	public void deallocate_page(PageId start_page_num)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		db.deallocate_page(start_page_num);
+		dropStaged(start_page_num.pid, 1);
+	}
+
+	public void closeDB() throws IOException {
+		synchronized (this) {
+			closed = true;
+			staged.clear();
+			notifyAll();
+		}
+		if (file != null)
+			file.close();
+		db.closeDB();
+	}
+
+	/* the rest goes to the database as it is */
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		db.openDB(fname);
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		db.openDB(fname, num_pgs);
+	}
+
+	public void DBDestroy() throws IOException {
+		db.DBDestroy();
+	}
+
+	public void allocate_page(PageId start_page_num) throws OutOfSpaceException,
+			InvalidRunSizeException, InvalidPageNumberException,
+			FileIOException, DiskMgrException, IOException {
+		db.allocate_page(start_page_num);
+	}
+
+	public void allocate_page(PageId start_page_num, int runsize)
+			throws OutOfSpaceException, InvalidRunSizeException,
+			InvalidPageNumberException, FileIOException, DiskMgrException,
+			IOException {
+		db.allocate_page(start_page_num, runsize);
+	}
+
+	public void add_file_entry(String fname, PageId start_page_num)
+			throws FileNameTooLongException, InvalidPageNumberException,
+			InvalidRunSizeException, DuplicateEntryException,
+			OutOfSpaceException, FileIOException, IOException,
+			DiskMgrException {
+		db.add_file_entry(fname, start_page_num);
+	}
+
+	public void delete_file_entry(String fname)
+			throws FileEntryNotFoundException, IOException, FileIOException,
+			InvalidPageNumberException, DiskMgrException {
+		db.delete_file_entry(fname);
+	}
+
+	public PageId get_file_entry(String name) throws IOException,
+			FileIOException, InvalidPageNumberException, DiskMgrException {
+		return db.get_file_entry(name);
+	}
+
+	public String db_name() {
+		return db.db_name();
+	}
+
+	public int db_num_pages() {
+		return db.db_num_pages();
+	}
+
+	public int db_page_size() {
+		return db.db_page_size();
+	}
+
+	public void dump_space_map() throws DiskMgrException, IOException,
+			FileIOException, InvalidPageNumberException {
+		db.dump_space_map();
+	}
+}
@@ -0,0 +1,319 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The replacement policy of a BTBufMgr: which frame of the buffer pool a
+ * page that is not in it takes. The buffer manager tells the policy of
+ * every page it loads into a frame, every pin of a page already there and
+ * every page it frees; the policy picks the victims among the frames
+ * nobody has pinned.
+ * <p>
+ * Policies are chosen by name, as the replacers of bufmgr.BufMgr are:
+ * "Clock", "LRU", "MRU" and "2Q". Any other name is Clock.
+ * <p>
+ * Clock may be called by any number of threads at once (see lockFree);
+ * BTBufMgr calls the others under one lock.
+ */
+abstract class BTReplacer {
+
+	protected final int frames;
+
+	BTReplacer(int frames) {
+		this.frames = frames;
+	}
+
+	/**
+	 * The policy called `name' for a pool of `frames' frames.
+	 */
+	static BTReplacer forName(String name, int frames) {
+		if ("LRU".equals(name))
+			return new LRU(frames, false);
+		if ("MRU".equals(name))
+			return new LRU(frames, true);
+		if ("2Q".equals(name))
+			return new TwoQ(frames);
+		return new Clock(frames);
+	}
+
+	abstract String name();
+
+	/**
+	 * Whether threads may call the policy at the same time.
+	 */
+	boolean lockFree() {
+		return false;
+	}
+
+	/**
+	 * Page `pid' was just put in `frame', which was empty or a victim; the
+	 * policy forgets the page that was in it.
+	 */
+	abstract void loaded(int frame, int pid);
+
+	/**
+	 * The page in `frame' was pinned while it was in the pool.
+	 */
+	abstract void hit(int frame);
+
+	/**
+	 * The page in `frame' was freed, so the frame is empty.
+	 */
+	abstract void removed(int frame);
+
+	/**
+	 * The frame the policy looks at first for its next victim, -1 if it
+	 * keeps no such place.
+	 */
+	int hand() {
+		return -1;
+	}
+
+	/**
+	 * A frame with a pin count of 0 in `pins' to take for another page, -1
+	 * if there is none. The frame keeps its place until it is loaded, as
+	 * another thread may pin its page before the buffer manager takes it.
+	 */
+	abstract int victim(AtomicIntegerArray pins);
+
+	/**
+	 * A queue of frames, each in it at most once, that can take a frame out
+	 * of its middle.
+	 */
+	static final class Queue {
+		private final int[] prev;
+		private final int[] next;
+		private final boolean[] in;
+		private int first = -1;
+		private int last = -1;
+		private int size;
+
+		Queue(int frames) {
+			prev = new int[frames];
+			next = new int[frames];
+			in = new boolean[frames];
+		}
+
+		int size() {
+			return size;
+		}
+
+		boolean contains(int frame) {
+			return in[frame];
+		}
+
+		void add(int frame) {
+			prev[frame] = last;
+			next[frame] = -1;
+			if (last == -1)
+				first = frame;
+			else
+				next[last] = frame;
+			last = frame;
+			in[frame] = true;
+			size++;
+		}
+
+		void remove(int frame) {
+			if (!in[frame])
+				return;
+			if (prev[frame] == -1)
+				first = next[frame];
+			else
+				next[prev[frame]] = next[frame];
+			if (next[frame] == -1)
+				last = prev[frame];
+			else
+				prev[next[frame]] = prev[frame];
+			in[frame] = false;
+			size--;
+		}
+
+		/*
+		 * The first frame from the front, or the back if `backwards', that
+		 * nobody has pinned; -1 if none.
+		 */
+		int unpinned(AtomicIntegerArray pins, boolean backwards) {
+			int frame = backwards ? last : first;
+			while (frame != -1 && pins.get(frame) != 0)
+				frame = backwards ? prev[frame] : next[frame];
+			return frame;
+		}
+	}
+
+	/**
+	 * The frames in a ring, each with a reference bit, and a hand. Threads
+	 * move the hand on with an atomic increment, each to a frame of its
+	 * own; a reference bit set or cleared by two threads at once is only a
+	 * hint lost.
+	 */
+	static final class Clock extends BTReplacer {
+		private final boolean[] used;
+		private final boolean[] referenced;
+		private final AtomicInteger hand = new AtomicInteger();
+
+		Clock(int frames) {
+			super(frames);
+			used = new boolean[frames];
+			referenced = new boolean[frames];
+		}
+
+		String name() {
+			return "Clock";
+		}
+
+		boolean lockFree() {
+			return true;
+		}
+
+		void loaded(int frame, int pid) {
+			used[frame] = true;
+			referenced[frame] = true;
+		}
+
+		void hit(int frame) {
+			referenced[frame] = true;
+		}
+
+		void removed(int frame) {
+			used[frame] = false;
+		}
+
+		int hand() {
+			return (hand.get() & Integer.MAX_VALUE) % frames;
+		}
+
+		int victim(AtomicIntegerArray pins) {
+			// the second time round every reference bit is clear
+			for (int i = 0; i < 2 * frames; i++) {
+				int frame = (hand.getAndIncrement() & Integer.MAX_VALUE)
+						% frames;
+				if (!used[frame] || pins.get(frame) != 0)
+					continue;
+				if (referenced[frame]) {
+					referenced[frame] = false;
+					continue;
+				}
+				return frame;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * The frames in the order of their last pin; the victim is the one
+	 * pinned longest ago, or with `recent' the one pinned last.
+	 */
+	static final class LRU extends BTReplacer {
+		private final Queue queue;
+		private final boolean recent;
+
+		LRU(int frames, boolean recent) {
+			super(frames);
+			this.queue = new Queue(frames);
+			this.recent = recent;
+		}
+
+		String name() {
+			return recent ? "MRU" : "LRU";
+		}
+
+		void loaded(int frame, int pid) {
+			queue.remove(frame);
+			queue.add(frame);
+		}
+
+		void hit(int frame) {
+			queue.remove(frame);
+			queue.add(frame);
+		}
+
+		void removed(int frame) {
+			queue.remove(frame);
+		}
+
+		int victim(AtomicIntegerArray pins) {
+			return queue.unpinned(pins, recent);
+		}
+	}
+
+	/**
+	 * 2Q (Johnson and Shasha, VLDB 1994). A page read into the pool goes
+	 * into A1in, a first in, first out queue of a quarter of the frames,
+	 * and pins while it is there do not move it. When it is pushed out,
+	 * its page id goes into A1out, which remembers the last half a pool's
+	 * worth of such pages without their contents. A page read again while
+	 * in A1out was wanted twice a while apart; it goes into Am, kept in
+	 * least recently used order, where the victims are taken from only
+	 * when A1in is not over its share.
+	 * <p>
+	 * A scan reads each leaf once, so its pages go through A1in and out
+	 * again without touching the pages in Am, such as the index pages and
+	 * leaves that lookups go back to.
+	 */
+	static final class TwoQ extends BTReplacer {
+		private final Queue in;
+		private final Queue main;
+		private final LinkedHashSet<Integer> out = new LinkedHashSet<Integer>();
+		private final int inShare;
+		private final int outShare;
+		private final int[] pageOf;
+
+		TwoQ(int frames) {
+			super(frames);
+			in = new Queue(frames);
+			main = new Queue(frames);
+			inShare = Math.max(1, frames / 4);
+			outShare = Math.max(1, frames / 2);
+			pageOf = new int[frames];
+		}
+
+		String name() {
+			return "2Q";
+		}
+
+		void loaded(int frame, int pid) {
+			if (in.contains(frame)) {
+				// pushed out of A1in
+				in.remove(frame);
+				out.add(pageOf[frame]);
+				if (out.size() > outShare) {
+					Iterator<Integer> oldest = out.iterator();
+					oldest.next();
+					oldest.remove();
+				}
+			} else {
+				main.remove(frame);
+			}
+			pageOf[frame] = pid;
+			if (out.remove(pid))
+				main.add(frame);
+			else
+				in.add(frame);
+		}
+
+		void hit(int frame) {
+			if (main.contains(frame)) {
+				main.remove(frame);
+				main.add(frame);
+			}
+		}
+
+		void removed(int frame) {
+			in.remove(frame);
+			main.remove(frame);
+		}
+
+		int victim(AtomicIntegerArray pins) {
+			int frame = -1;
+			if (in.size() > inShare)
+				frame = in.unpinned(pins, false);
+			if (frame == -1)
+				frame = main.unpinned(pins, false);
+			if (frame == -1)
+				frame = in.unpinned(pins, false);
+			return frame;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReverseScan is the descending counterpart of BTFileScan: it returns
+ * the entries of a range from the last one to the first, following the
+ * prev links of the leaf pages. Get one from BTreeFile.new_reverse_scan.
+ * <p>
+ * In concurrent mode (BTreeFile.setConcurrent) the scan holds the read
+ * latch of the leaf it is on. Latches are taken left to right, so it only
+ * tries the one of the leaf before; if a writer has it, the scan lets go,
+ * waits for the writer and finds its place again from the last key it
+ * returned.
+ */
+public class BTReverseScan extends IndexFileScan implements GlobalConst {
+
+	BTreeFile bfile;
+	BTLeafPage leafPage; // pinned, null at the end of the scan
+	RID curRid; // the entry returned last, or the first to return
+	boolean didfirst;
+	boolean deletedcurrent;
+	byte[] lokey; // lo_key as stored in the pages, or null
+	boolean prefixed; // the leaves are prefix-compressed
+	boolean dense; // the leaves are dense
+	int keyType;
+	int maxKeysize;
+	boolean latched; // set in concurrent mode
+	BTMetrics metrics; // set for trees with metrics, times get_next
+
+	/* concurrent mode: the last key returned, and how many entries with it */
+	private KeyClass lastKey;
+	private int sameKey;
+
+	/* what step did */
+	private static final int STEPPED = 0;
+	private static final int AT_START = 1;
+	private static final int BLOCKED = 2;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		BTMetrics timed = metrics;
+		if (timed == null)
+			return next();
+
+		long start = System.nanoTime();
+		KeyDataEntry entry = next();
+		timed.scanNext.record(System.nanoTime() - start);
+		return entry;
+	}
+
+	/* get_next, untimed */
+	private KeyDataEntry next() throws ScanIteratorException {
+		try {
+			if (leafPage == null)
+				return null;
+
+			if (didfirst && !deletedcurrent && !back())
+				return null;
+			didfirst = true;
+			deletedcurrent = false;
+
+			if (lokey != null
+					&& compareKey(leafPage, curRid.slotNo, lokey) < 0) {
+				unpin();
+				return null;
+			}
+
+			KeyDataEntry entry = getCurrent();
+			if (latched) {
+				if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0)
+					sameKey++;
+				else {
+					lastKey = entry.key;
+					sameKey = 1;
+				}
+			}
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry. The
+	 * next get_next returns the entry before it.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		KeyDataEntry entry;
+		try {
+			if (leafPage == null) {
+				System.out.println("No Record to delete!");
+				throw new ScanDeleteException();
+			}
+			if (!didfirst || deletedcurrent)
+				return;
+
+			entry = getCurrent();
+			if (latched) {
+				// the delete latches the leaf itself
+				unpin();
+				bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+				sameKey--;
+				reposition();
+				deletedcurrent = true;
+				return;
+			}
+
+			// the entries with the same key right of this one were returned
+			// already, and the delete may move entries between pages: find
+			// the entry again from its key and the number of them
+			byte[] key = keyBytes();
+			int returned = equalKeysRight(key);
+
+			unpin();
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+
+			leafPage = bfile.findRunEnd(entry.key, curRid);
+			while (leafPage != null && returned-- > 0)
+				back();
+			deletedcurrent = true;
+		} catch (ScanDeleteException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			unpin();
+	}
+
+	/*
+	 * Step to the previous entry, across empty leaf pages. Returns false,
+	 * with no page pinned, if there is none.
+	 */
+	private boolean back() throws Exception {
+		switch (step()) {
+		case STEPPED:
+			return true;
+		case AT_START:
+			return false;
+		}
+		reposition();
+		return leafPage != null;
+	}
+
+	/*
+	 * back, unless the leaf before is write latched: then the scan lets go
+	 * of its leaf, waits for the writer and returns BLOCKED.
+	 */
+	private int step() throws Exception {
+		curRid.slotNo--;
+		while (curRid.slotNo < 0) {
+			PageId prev = leafPage.getPrevPage();
+			if (prev.pid == INVALID_PAGE) {
+				unpin();
+				return AT_START;
+			}
+			if (!BTLatches.tryShared(prev)) {
+				unpin();
+				BTLatches.shared(prev);
+				BTLatches.release(prev);
+				return BLOCKED;
+			}
+
+			BTLeafPage prevPage = new BTLeafPage(prev, keyType);
+			unpin();
+			leafPage = prevPage;
+			curRid.pageNo = new PageId(prev.pid);
+			curRid.slotNo = leafPage.getSlotCnt() - 1;
+		}
+		return STEPPED;
+	}
+
+	/*
+	 * Concurrent mode: find the place of the scan again, before the
+	 * entries with the last key returned.
+	 */
+	private void reposition() throws Exception {
+		for (;;) {
+			leafPage = bfile.findRunEnd(lastKey, curRid);
+			int n = sameKey;
+			int stepped = STEPPED;
+			while (leafPage != null && n > 0
+					&& (stepped = step()) == STEPPED)
+				n--;
+			if (stepped != BLOCKED)
+				return;
+		}
+	}
+
+	/* unpin the leaf and let go of its latch; the scan is on no leaf */
+	private void unpin() throws IOException, InvalidFrameNumberException,
+			ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException {
+		SystemDefs.JavabaseBM.unpinPage(curRid.pageNo, false);
+		BTLatches.release(curRid.pageNo);
+		leafPage = null;
+	}
+
+	private KeyDataEntry getCurrent() throws Exception {
+		if (prefixed)
+			return BTPrefixLeaves.getEntry(leafPage, curRid.slotNo);
+		if (dense)
+			return BTDenseLeaves.getEntry(leafPage, curRid.slotNo);
+		return leafPage.getCurrent(curRid);
+	}
+
+	private byte[] keyBytes() {
+		if (prefixed)
+			return BTPrefixLeaves.keyBytes(leafPage, curRid.slotNo);
+		if (dense)
+			return BTDenseLeaves.keyBytes(leafPage, curRid.slotNo);
+		return BTSortedPages.keyBytes(leafPage, curRid.slotNo);
+	}
+
+	private int compareKey(BTLeafPage page, int slot, byte[] key) {
+		if (prefixed)
+			return BTPrefixLeaves.compareKey(page, slot, key);
+		if (dense)
+			return BTDenseLeaves.compareKey(page, slot, key);
+		return BTSortedPages.compareKey(page, slot, key);
+	}
+
+	/*
+	 * Number of entries with key `key' after the current one.
+	 */
+	private int equalKeysRight(byte[] key) throws Exception {
+		int count = 0;
+		int slot = curRid.slotNo + 1;
+		BTLeafPage page = leafPage;
+
+		for (;;) {
+			while (slot < page.getSlotCnt()) {
+				if (compareKey(page, slot, key) != 0)
+					break;
+				count++;
+				slot++;
+			}
+			PageId next = page.getNextPage();
+			boolean done = slot < page.getSlotCnt()
+					|| next.pid == INVALID_PAGE;
+			if (page != leafPage)
+				SystemDefs.JavabaseBM.unpinPage(page.getCurPage(), false);
+			if (done)
+				return count;
+			page = new BTLeafPage(next, keyType);
+			slot = 0;
+		}
+	}
+}
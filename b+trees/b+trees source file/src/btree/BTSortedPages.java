@@ -0,0 +1,545 @@
+package btree;
+
+import global.*;
+import heap.*;
+
+/**
+ * Static helpers over the slot directory of a BTSortedPage.
+ * <p>
+ * BTSortedPage keeps its slot directory compact and ordered by key, so slot
+ * i holds the i-th smallest key of the page. The helpers here use that to
+ * binary search a page instead of walking it with getFirst/getNext.
+ * <p>
+ * Searches compare the serialized search key (see keyBytes) with the key
+ * bytes of each record in place, so no KeyDataEntry or KeyClass is built
+ * for the entries that are looked at.
+ */
+public final class BTSortedPages implements GlobalConst {
+
+	/* HFPage header: slot count at 0, next page at 12, slot directory from
+	 * DPFIXED on */
+	private final static int SLOT_CNT = 0;
+	private final static int USED_PTR = 2;
+	private final static int FREE_SPACE = 4;
+	private final static int NEXT_PAGE = 12;
+	private final static int SLOT_LENGTH = 0;
+	private final static int SLOT_OFFSET = 2;
+
+	private BTSortedPages() {
+	}
+
+	/**
+	 * Serialize a key the way it is stored in a page: a 4 byte big-endian
+	 * integer for IntegerKey, the writeUTF form (2 byte length followed by
+	 * modified UTF-8) for StringKey.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return the key bytes, to be passed to compareKey and the searches
+	 * @exception KeyNotMatchException
+	 *                key is neither integer key nor string key
+	 */
+	public static byte[] keyBytes(KeyClass key) throws KeyNotMatchException {
+		try {
+			if (key instanceof IntegerKey) {
+				byte[] bytes = new byte[4];
+				setInt(bytes, 0, ((IntegerKey) key).getKey().intValue());
+				return bytes;
+			}
+			if (key instanceof StringKey) {
+				byte[] bytes = new byte[BT.getKeyLength(key)];
+				Convert.setStrValue(((StringKey) key).getKey(), 0, bytes);
+				return bytes;
+			}
+		} catch (java.io.IOException e) {
+			throw new KeyNotMatchException(e, "key conversion failed");
+		}
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	/**
+	 * The serialized key of record `slot', as keyBytes would return it.
+	 */
+	static byte[] keyBytes(BTSortedPage page, int slot) {
+		byte[] data = page.getpage();
+		int offset = slotOffset(data, slot);
+		// the key says how long it is, whatever data follows it
+		byte[] key = new byte[page.keyType == AttrType.attrInteger ? 4
+				: 2 + (getShort(data, offset) & 0xffff)];
+		System.arraycopy(data, offset, key, 0, key.length);
+		return key;
+	}
+
+	/**
+	 * An index record: the serialized key followed by the child page. See
+	 * BTCounts for the records of counted trees.
+	 */
+	static byte[] indexRecord(byte[] key, PageId pageNo) {
+		byte[] record = new byte[key.length + 4];
+		System.arraycopy(key, 0, record, 0, key.length);
+		setInt(record, key.length, pageNo.pid);
+		return record;
+	}
+
+	/**
+	 * The child page of an index record.
+	 */
+	static PageId childOf(byte[] indexRecord) {
+		return new PageId(getInt(indexRecord, indexRecord.length - 4));
+	}
+
+	/**
+	 * Number of slots of the page, read without going through Convert.
+	 */
+	static int slotCount(BTSortedPage page) {
+		return getShort(page.getpage(), SLOT_CNT);
+	}
+
+	/**
+	 * The next page link of the page, read without going through Convert.
+	 */
+	static int nextPage(BTSortedPage page) {
+		return getInt(page.getpage(), NEXT_PAGE);
+	}
+
+	/**
+	 * Bytes taken by record `slot' and its slot.
+	 */
+	static int recordSpace(BTSortedPage page, int slot) {
+		return slotLength(page.getpage(), slot) + HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Bytes of the page taken by records and their slots.
+	 */
+	static int usedSpace(BTSortedPage page) {
+		return MAX_SPACE - HFPage.DPFIXED - getShort(page.getpage(), FREE_SPACE);
+	}
+
+	/**
+	 * Compare the key stored at `offset' of `data' with a serialized key,
+	 * without decoding either. Integer keys compare as signed 32 bit values
+	 * and string keys in String.compareTo order, like BT.keyCompare.
+	 *
+	 * @param data
+	 *            the page bytes. Input parameter.
+	 * @param offset
+	 *            where the stored key starts. Input parameter.
+	 * @param keyType
+	 *            AttrType.attrInteger or AttrType.attrString. Input
+	 *            parameter.
+	 * @param key
+	 *            the key, as returned by keyBytes. Input parameter.
+	 * @return negative, zero or positive as the stored key is less than,
+	 *         equal to or greater than `key'
+	 */
+	public static int compareKey(byte[] data, int offset, int keyType,
+			byte[] key) {
+		if (keyType == AttrType.attrInteger) {
+			int a = getInt(data, offset);
+			int b = getInt(key, 0);
+			return a < b ? -1 : (a == b ? 0 : 1);
+		}
+
+		return compareUTF(data, offset + 2, getShort(data, offset) & 0xffff,
+				key, 2, getShort(key, 0) & 0xffff);
+	}
+
+	/**
+	 * Compare two runs of modified UTF-8 bytes in String.compareTo order.
+	 */
+	static int compareUTF(byte[] a, int aOffset, int aLength, byte[] b,
+			int bOffset, int bLength) {
+		int n = Math.min(aLength, bLength);
+		for (int i = 0; i < n; i++) {
+			int x = a[aOffset + i] & 0xff;
+			int y = b[bOffset + i] & 0xff;
+			if (x != y) {
+				// Modified UTF-8 orders its bytes like the UTF-16 chars
+				// compareTo looks at, supplementary characters included as
+				// they are written as surrogate pairs; the one exception is
+				// U+0000, written as 0xC0 0x80. 0xC0 only ever starts that
+				// character, so a mismatch on it decides the order.
+				if (x == 0xC0)
+					return -1;
+				if (y == 0xC0)
+					return 1;
+				return x - y;
+			}
+		}
+		return aLength - bLength;
+	}
+
+	/**
+	 * compareKey for the key of record `slot' of `page'.
+	 */
+	static int compareKey(BTSortedPage page, int slot, byte[] key) {
+		byte[] data = page.getpage();
+		return compareKey(data, slotOffset(data, slot), page.keyType, key);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is not less than `key'.
+	 *
+	 * @param page
+	 *            a leaf or index page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, or the number of slots if every key on the
+	 *         page is less than `key'
+	 * @exception IteratorException
+	 *                error when reading an entry of the page
+	 */
+	public static int lowerBound(BTSortedPage page, KeyClass key)
+			throws IteratorException {
+		return search(page, toBytes(key), false);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than `key'.
+	 *
+	 * @param page
+	 *            a leaf or index page. Input parameter.
+	 * @param key
+	 *            the search key. Input parameter.
+	 * @return the slot number, or the number of slots if no key on the page
+	 *         is greater than `key'
+	 * @exception IteratorException
+	 *                error when reading an entry of the page
+	 */
+	public static int upperBound(BTSortedPage page, KeyClass key)
+			throws IteratorException {
+		return search(page, toBytes(key), true);
+	}
+
+	/**
+	 * lowerBound for a key already serialized by keyBytes.
+	 */
+	static int lowerBound(BTSortedPage page, byte[] key) {
+		return search(page, key, false);
+	}
+
+	/**
+	 * upperBound for a key already serialized by keyBytes.
+	 */
+	static int upperBound(BTSortedPage page, byte[] key) {
+		return search(page, key, true);
+	}
+
+	/**
+	 * The child of an index page that `key' is inserted into: the page of
+	 * the last entry whose key is not greater than `key', or the left-most
+	 * child if there is none. Same result as BTIndexPage.getPageNoByKey.
+	 */
+	static PageId childForInsert(BTIndexPage page, byte[] key)
+			throws IteratorException {
+		return child(page, upperBound(page, key));
+	}
+
+	/**
+	 * The child of an index page that holds the left-most occurrence of
+	 * `key': the page of the last entry whose key is less than `key', or the
+	 * left-most child if there is none (or if `key' is null).
+	 */
+	static PageId childForSearch(BTIndexPage page, byte[] key)
+			throws IteratorException {
+		if (key == null)
+			return child(page, 0);
+		return child(page, lowerBound(page, key));
+	}
+
+	/**
+	 * Child `n' of an index page: the left-most child (the prev page) for
+	 * n == 0, else the page of entry n - 1. Entry n separates children n
+	 * and n + 1.
+	 */
+	static PageId child(BTIndexPage page, int n) throws IteratorException {
+		try {
+			if (n == 0)
+				return page.getPrevPage();
+		} catch (Exception e) {
+			throw new IteratorException(e, "Get entry failed");
+		}
+		// an index record ends with the page number of its child
+		byte[] data = page.getpage();
+		return new PageId(getInt(data, slotOffset(data, n - 1)
+				+ slotLength(data, n - 1) - 4));
+	}
+
+	/**
+	 * Insert a record (key bytes followed by its data) at its place in key
+	 * order, after any records with an equal key. Replaces
+	 * BTSortedPage.insertRecord, which decodes two entries for every slot it
+	 * moves the new record past: here the slot is found by binary search and
+	 * the slot directory is shifted in one copy.
+	 *
+	 * @param page
+	 *            the leaf or index page. Input parameter.
+	 * @param key
+	 *            the key of the record, as returned by keyBytes. Input
+	 *            parameter.
+	 * @param record
+	 *            the record, as returned by BT.getBytesFromEntry. Input
+	 *            parameter.
+	 * @return the rid of the inserted record, null if it does not fit
+	 * @exception InsertRecException
+	 *                error when inserting into the page
+	 */
+	static RID insertRecord(BTSortedPage page, byte[] key, byte[] record)
+			throws InsertRecException {
+		return insertRecord(page, upperBound(page, key), record);
+	}
+
+	/**
+	 * Insert a record as slot `slot', moving the slots from there on up by
+	 * one. The caller keeps the page in key order.
+	 */
+	static RID insertRecord(BTSortedPage page, int slot, byte[] record)
+			throws InsertRecException {
+		RID rid;
+
+		try {
+			rid = page.insertRecord(record);
+		} catch (Exception e) {
+			throw new InsertRecException(e, "insert record failed");
+		}
+		if (rid == null)
+			return null;
+
+		// the slot directory is compact, so the record went into the last
+		// slot; rotate that slot down to `slot'
+		byte[] data = page.getpage();
+		int last = slotEntry(rid.slotNo);
+		int pos = slotEntry(slot);
+		int entry = getInt(data, last);
+		System.arraycopy(data, pos, data, pos + HFPage.SIZE_OF_SLOT, last
+				- pos);
+		setInt(data, pos, entry);
+
+		rid.slotNo = slot;
+		return rid;
+	}
+
+	/**
+	 * Move the records in slots [start, slot count) of `from' to the end of
+	 * `to'; this is the split of a full page. See the general form below.
+	 */
+	public static void moveRange(BTSortedPage from, int start, BTSortedPage to)
+			throws InsertRecException {
+		moveRange(from, start, getShort(from.getpage(), SLOT_CNT), to,
+				getShort(to.getpage(), SLOT_CNT));
+	}
+
+	/**
+	 * Move the records in slots [start, end) of `from' into `to', where
+	 * they become slots [at, at + end - start) and the slots of `to' from
+	 * `at' on move up. Both pages are rewritten in one pass each: the moved
+	 * records are copied into the free space of `to', and the records that
+	 * stay are packed towards the end of `from' through one temporary page
+	 * buffer. Deleting the moved records one at a time would compact the
+	 * page once per record.
+	 *
+	 * @param from
+	 *            the page to take the records from. Input parameter.
+	 * @param start
+	 *            the first slot to move. Input parameter.
+	 * @param end
+	 *            the slot after the last one to move. Input parameter.
+	 * @param to
+	 *            the page to put the records into. The caller picks `at' so
+	 *            that `to' stays in key order. Input parameter.
+	 * @param at
+	 *            the slot of `to' the first moved record goes to. Input
+	 *            parameter.
+	 * @exception InsertRecException
+	 *                the slots are not on the pages, or the records do not
+	 *                fit into `to'
+	 */
+	public static void moveRange(BTSortedPage from, int start, int end,
+			BTSortedPage to, int at) throws InsertRecException {
+		byte[] src = from.getpage();
+		byte[] dst = to.getpage();
+		int count = getShort(src, SLOT_CNT);
+		int dstCount = getShort(dst, SLOT_CNT);
+		int moved = end - start;
+		int i, j, len, needed;
+
+		if (start < 0 || moved < 0 || end > count || at < 0 || at > dstCount)
+			throw new InsertRecException(null, "no such slot");
+
+		needed = 0;
+		for (i = start; i < end; i++)
+			needed += slotLength(src, i) + HFPage.SIZE_OF_SLOT;
+		if (needed > getShort(dst, FREE_SPACE))
+			throw new InsertRecException(null, "not enough space");
+
+		// copy into `to', opening a gap in its slot directory at `at'
+		int dstUsed = getShort(dst, USED_PTR);
+		System.arraycopy(dst, slotEntry(at), dst, slotEntry(at + moved),
+				(dstCount - at) * HFPage.SIZE_OF_SLOT);
+		for (i = start; i < end; i++) {
+			len = slotLength(src, i);
+			dstUsed -= len;
+			System.arraycopy(src, slotOffset(src, i), dst, dstUsed, len);
+			setSlot(dst, at + i - start, len, dstUsed);
+		}
+		setShort(dst, SLOT_CNT, dstCount + moved);
+		setShort(dst, USED_PTR, dstUsed);
+		setShort(dst, FREE_SPACE, getShort(dst, FREE_SPACE) - needed);
+
+		// pack what stays in `from' below whatever the page keeps after its
+		// records (see BTPrefixLeaves); slot j is written only after slot i
+		// >= j has been read
+		byte[] buffer = new byte[MAX_SPACE];
+		int used = recordsEnd(src, count);
+		int top = used;
+		for (i = 0, j = 0; i < count; i++) {
+			if (i == start)
+				i = end;
+			if (i == count)
+				break;
+			len = slotLength(src, i);
+			used -= len;
+			System.arraycopy(src, slotOffset(src, i), buffer, used, len);
+			setSlot(src, j++, len, used);
+		}
+		System.arraycopy(buffer, used, src, used, top - used);
+		setShort(src, SLOT_CNT, j);
+		setShort(src, USED_PTR, used);
+		setShort(src, FREE_SPACE, used - HFPage.DPFIXED - j
+				* HFPage.SIZE_OF_SLOT);
+	}
+
+	/**
+	 * Whether the data of leaf record `slot' is `rid'.
+	 */
+	static boolean hasRid(BTLeafPage page, int slot, RID rid) {
+		byte[] data = page.getpage();
+		// a leaf record ends with the rid: slot number, then page number
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		return getInt(data, end - 8) == rid.slotNo
+				&& getInt(data, end - 4) == rid.pageNo.pid;
+	}
+
+	/**
+	 * The data of leaf record `slot'.
+	 */
+	static RID getRid(BTLeafPage page, int slot) {
+		byte[] data = page.getpage();
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		// a leaf record ends with the rid: slot number, then page number
+		return new RID(new PageId(getInt(data, end - 4)),
+				getInt(data, end - 8));
+	}
+
+	/**
+	 * Copy the integer keys and the rids of leaf records [from, to) into
+	 * the arrays, starting at index `at'. Reads the page bytes directly, so
+	 * nothing is allocated.
+	 */
+	static void copyIntegerEntries(BTLeafPage page, int from, int to,
+			int[] keys, int[] pageIds, int[] slotNos, int at) {
+		byte[] data = page.getpage();
+		for (int slot = from; slot < to; slot++, at++) {
+			// key, then the rid: slot number, then page number
+			int offset = slotOffset(data, slot);
+			keys[at] = getInt(data, offset);
+			slotNos[at] = getInt(data, offset + 4);
+			pageIds[at] = getInt(data, offset + 8);
+		}
+	}
+
+	/**
+	 * Decode the key stored in `slot'.
+	 */
+	static KeyClass getKey(BTSortedPage page, int slot)
+			throws IteratorException {
+		try {
+			return BT.getEntryFromBytes(page.getpage(),
+					page.getSlotOffset(slot), page.getSlotLength(slot),
+					page.keyType, page.getType()).key;
+		} catch (Exception e) {
+			throw new IteratorException(e, "Get entry failed");
+		}
+	}
+
+	private static byte[] toBytes(KeyClass key) throws IteratorException {
+		try {
+			return keyBytes(key);
+		} catch (KeyNotMatchException e) {
+			throw new IteratorException(e, "Compare key failed");
+		}
+	}
+
+	private static int search(BTSortedPage page, byte[] key, boolean upper) {
+		byte[] data = page.getpage();
+		int keyType = page.keyType;
+		int lo = 0;
+		int hi = getShort(data, SLOT_CNT);
+		int mid, cmp;
+
+		// invariant: slots < lo are before the answer, slots >= hi are not
+		while (lo < hi) {
+			mid = (lo + hi) >>> 1;
+			cmp = compareKey(data, slotOffset(data, mid), keyType, key);
+			if (cmp < 0 || (upper && cmp == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * Where the records of a page end: the records are packed from here
+	 * down to the used pointer, and any bytes from here to the end of the
+	 * page are neither records nor free space.
+	 */
+	private static int recordsEnd(byte[] data, int count) {
+		int end = HFPage.DPFIXED + getShort(data, FREE_SPACE) + count
+				* HFPage.SIZE_OF_SLOT;
+		for (int i = 0; i < count; i++)
+			end += slotLength(data, i);
+		return end;
+	}
+
+	private static int slotEntry(int slot) {
+		return HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		return getShort(data, slotEntry(slot) + SLOT_OFFSET);
+	}
+
+	static int slotLength(byte[] data, int slot) {
+		return getShort(data, slotEntry(slot) + SLOT_LENGTH);
+	}
+
+	static void setSlot(byte[] data, int slot, int length, int offset) {
+		setShort(data, slotEntry(slot) + SLOT_LENGTH, length);
+		setShort(data, slotEntry(slot) + SLOT_OFFSET, offset);
+	}
+
+	/* big-endian, as written by Convert */
+
+	static int getShort(byte[] data, int pos) {
+		return (short) (((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff));
+	}
+
+	static int getInt(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	static void setShort(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 8);
+		data[pos + 1] = (byte) value;
+	}
+
+	static void setInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,591 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * The statistics of a tree, for a planner that has to choose between an
+ * index scan and a heap scan: the height, the number of leaf and index
+ * pages, how full the leaves are, the number of entries and of distinct
+ * keys, and an equi-depth histogram of the keys. Get them from
+ * BTreeFile.getStatistics.
+ * <p>
+ * BTreeFile keeps them up to date as it goes: every insert and delete
+ * counts its entry in the entries, the bytes of the leaves and the bucket
+ * of the histogram its key falls in, and every split, merge and change of
+ * the root counts the pages and levels it adds or takes away. bulkLoad and
+ * compact count the tree they build. The bucket bounds and the number of
+ * distinct keys per entry only change when BTreeFile.analyze reads the
+ * leaves, all of them or a sample: between two analyses the number of
+ * distinct keys is estimated from the entries. A tree from before the
+ * statistics has none until it is analyzed; isStale tells.
+ * <p>
+ * The statistics are kept in the header page, after its slots, and
+ * written there when the file is closed and after an analysis.
+ */
+public final class BTStatistics implements GlobalConst {
+
+	/** The most buckets a histogram has, fewer with long string keys. */
+	public static final int MAX_BUCKETS = 64;
+
+	/* where they start in the header page, room for 8 header slots before */
+	static final int OFFSET = HFPage.DPFIXED + 8 * HFPage.SIZE_OF_SLOT;
+
+	private static final int MAGIC = 0x42545354; // "BTST"
+	private static final int VERSION = 1;
+
+	/* the fixed part: magic, version, flags, 7 counts and the bucket count */
+	private static final int FIXED_SIZE = 4 + 2 + 2 + 7 * 4 + 2;
+
+	/* flags */
+	private static final int STALE = 1;
+	private static final int SAMPLED = 2;
+
+	/* keys an analysis keeps to place the bounds of the buckets */
+	private static final int SAMPLE_KEYS = 4096;
+
+	/* the selectivity of a range without a histogram to go by */
+	private static final double DEFAULT_RANGE = 1.0 / 3;
+
+	private static final int PAGE_CAPACITY = MAX_SPACE - HFPage.DPFIXED;
+
+	private final int keyType;
+	private final int maxBuckets;
+
+	private final AtomicInteger height = new AtomicInteger();
+	private final AtomicInteger leaves = new AtomicInteger();
+	private final AtomicInteger indexPages = new AtomicInteger();
+	private final AtomicLong entries = new AtomicLong();
+	private final AtomicLong leafBytes = new AtomicLong();
+	private volatile int flags;
+
+	/* the last analysis: the entries it counted and their distinct keys */
+	private volatile long analyzedEntries;
+	private volatile long analyzedDistinct;
+
+	/* bounds[0] is the smallest key, bucket i has the keys up to bounds[i+1] */
+	private volatile byte[][] bounds = new byte[0][];
+	private volatile AtomicLongArray counts = new AtomicLongArray(0);
+
+	/**
+	 * What an analysis found, filled in by BTreeFile as it reads the tree
+	 * and then installed. The keys are offered in key order with their
+	 * position among all the entries, estimated when the leaves are
+	 * sampled; a sample of them at an even spacing is kept, halved each
+	 * time it fills up, and the bounds of the buckets are picked from it.
+	 */
+	static final class Analysis {
+		int height;
+		int leaves;
+		int indexPages;
+		long entries;
+		long distinct;
+		long leafBytes;
+		boolean sampled;
+		double unit = 1; // entries per unit of position
+
+		private final byte[][] keys = new byte[SAMPLE_KEYS][];
+		private final double[] positions = new double[SAMPLE_KEYS];
+		private int size;
+		private long offered;
+		private int stride = 1;
+		private byte[] lastKey;
+		private double lastPosition;
+
+		/**
+		 * Whether to keep the key of the next entry, in key order: call add
+		 * with it if so.
+		 */
+		boolean keeps() {
+			return offered++ % stride == 0;
+		}
+
+		/**
+		 * Keep key `key', at position `position' among the entries.
+		 */
+		void add(byte[] key, double position) {
+			keys[size] = key;
+			positions[size++] = position;
+			if (size == SAMPLE_KEYS) {
+				for (int i = 0; i < SAMPLE_KEYS / 2; i++) {
+					keys[i] = keys[2 * i];
+					positions[i] = positions[2 * i];
+				}
+				size = SAMPLE_KEYS / 2;
+				stride *= 2;
+			}
+		}
+
+		/**
+		 * The greatest key, at position `position'.
+		 */
+		void end(byte[] key, double position) {
+			lastKey = key;
+			lastPosition = position;
+		}
+	}
+
+	/**
+	 * The statistics of an empty tree.
+	 */
+	BTStatistics(int keyType, int maxKeySize) {
+		this.keyType = keyType;
+		int keyLength = keyType == AttrType.attrInteger ? 4 : maxKeySize;
+		int space = MAX_SPACE - OFFSET - FIXED_SIZE - keyLength;
+		maxBuckets = Math.max(0, Math.min(MAX_BUCKETS, space
+				/ (keyLength + 4)));
+	}
+
+	/**
+	 * Read the statistics from the header page `data'; statistics that are
+	 * stale if the page has none.
+	 */
+	static BTStatistics read(byte[] data, int keyType, int maxKeySize) {
+		BTStatistics stats = new BTStatistics(keyType, maxKeySize);
+		int pos = OFFSET;
+		if (BTSortedPages.getInt(data, pos) != MAGIC
+				|| BTSortedPages.getShort(data, pos + 4) != VERSION) {
+			stats.flags = STALE; // from before the statistics
+			return stats;
+		}
+
+		stats.flags = BTSortedPages.getShort(data, pos + 6);
+		stats.height.set(BTSortedPages.getInt(data, pos + 8));
+		stats.leaves.set(BTSortedPages.getInt(data, pos + 12));
+		stats.indexPages.set(BTSortedPages.getInt(data, pos + 16));
+		stats.entries.set(BTSortedPages.getInt(data, pos + 20));
+		stats.leafBytes.set(BTSortedPages.getInt(data, pos + 24));
+		stats.analyzedEntries = BTSortedPages.getInt(data, pos + 28);
+		stats.analyzedDistinct = BTSortedPages.getInt(data, pos + 32);
+		int buckets = BTSortedPages.getShort(data, pos + 36);
+		pos += FIXED_SIZE;
+
+		if (buckets == 0 || buckets > stats.maxBuckets)
+			return stats;
+		byte[][] bounds = new byte[buckets + 1][];
+		for (int i = 0; i <= buckets; i++) {
+			int length = keyType == AttrType.attrInteger ? 4
+					: 2 + BTSortedPages.getShort(data, pos);
+			if (pos + length + 4 * buckets > MAX_SPACE) {
+				stats.flags |= STALE; // not what write left there
+				return stats;
+			}
+			bounds[i] = new byte[length];
+			System.arraycopy(data, pos, bounds[i], 0, length);
+			pos += length;
+		}
+		AtomicLongArray counts = new AtomicLongArray(buckets);
+		for (int i = 0; i < buckets; i++, pos += 4)
+			counts.set(i, BTSortedPages.getInt(data, pos));
+		stats.counts = counts;
+		stats.bounds = bounds;
+		return stats;
+	}
+
+	/**
+	 * Write the statistics to the header page `data'.
+	 */
+	void write(byte[] data) {
+		byte[][] bounds = this.bounds;
+		AtomicLongArray counts = this.counts;
+		int pos = OFFSET;
+
+		BTSortedPages.setInt(data, pos, MAGIC);
+		BTSortedPages.setShort(data, pos + 4, VERSION);
+		BTSortedPages.setShort(data, pos + 6, flags);
+		BTSortedPages.setInt(data, pos + 8, height.get());
+		BTSortedPages.setInt(data, pos + 12, leaves.get());
+		BTSortedPages.setInt(data, pos + 16, indexPages.get());
+		BTSortedPages.setInt(data, pos + 20, (int) entries.get());
+		BTSortedPages.setInt(data, pos + 24, (int) leafBytes.get());
+		BTSortedPages.setInt(data, pos + 28, (int) analyzedEntries);
+		BTSortedPages.setInt(data, pos + 32, (int) analyzedDistinct);
+		BTSortedPages.setShort(data, pos + 36, counts.length());
+		pos += FIXED_SIZE;
+
+		if (counts.length() == 0)
+			return;
+		for (int i = 0; i < bounds.length; i++) {
+			System.arraycopy(bounds[i], 0, data, pos, bounds[i].length);
+			pos += bounds[i].length;
+		}
+		for (int i = 0; i < counts.length(); i++, pos += 4)
+			BTSortedPages.setInt(data, pos, (int) Math.max(0, counts.get(i)));
+	}
+
+	/* kept up to date by BTreeFile */
+
+	/**
+	 * An entry with key `key' that takes `space' bytes of its leaf was
+	 * inserted.
+	 */
+	void inserted(byte[] key, int space) {
+		entries.incrementAndGet();
+		leafBytes.addAndGet(space);
+		AtomicLongArray counts = this.counts;
+		if (counts.length() > 0)
+			counts.incrementAndGet(bucket(bounds, key));
+	}
+
+	/**
+	 * An entry with key `key' that took `space' bytes of its leaf was
+	 * deleted.
+	 */
+	void deleted(byte[] key, int space) {
+		entries.decrementAndGet();
+		leafBytes.addAndGet(-space);
+		AtomicLongArray counts = this.counts;
+		if (counts.length() > 0)
+			counts.decrementAndGet(bucket(bounds, key));
+	}
+
+	/**
+	 * A leaf page was added (`n' = 1) or freed (`n' = -1).
+	 */
+	void leafAdded(int n) {
+		leaves.addAndGet(n);
+	}
+
+	/**
+	 * An index page was added (`n' = 1) or freed (`n' = -1).
+	 */
+	void indexPageAdded(int n) {
+		indexPages.addAndGet(n);
+	}
+
+	/**
+	 * The tree grew a level (`n' = 1) or lost one (`n' = -1) at the root.
+	 */
+	void levelAdded(int n) {
+		height.addAndGet(n);
+	}
+
+	/**
+	 * Take over the counts of an analysis, and build the histogram from
+	 * the keys it kept. With `keysToo' false only the pages are taken
+	 * over: the tree was rebuilt from the same entries.
+	 */
+	void install(Analysis analysis, boolean keysToo) {
+		height.set(analysis.height);
+		leaves.set(analysis.leaves);
+		indexPages.set(analysis.indexPages);
+		if (!keysToo)
+			return;
+
+		entries.set(analysis.entries);
+		leafBytes.set(analysis.leafBytes);
+		analyzedEntries = analysis.entries;
+		analyzedDistinct = analysis.distinct;
+
+		// the bound of bucket i is the kept key last at or before the
+		// position of entry (i + 1) * n / buckets
+		ArrayList<byte[]> newBounds = new ArrayList<byte[]>();
+		ArrayList<Long> newCounts = new ArrayList<Long>();
+		if (analysis.size > 0 && analysis.lastKey != null) {
+			double unit = analysis.unit;
+			double n = analysis.entries / unit; // in units of position
+			int buckets = (int) Math.min(maxBuckets, analysis.entries);
+			double done = -1 / unit; // the position the last bucket ends at
+			int k = 0;
+			newBounds.add(analysis.keys[0]);
+			for (int i = 1; i <= buckets; i++) {
+				byte[] key;
+				double position;
+				if (i == buckets) {
+					key = analysis.lastKey;
+					position = analysis.lastPosition;
+				} else {
+					double target = i * n / buckets - 1 / unit;
+					while (k + 1 < analysis.size
+							&& analysis.positions[k + 1] <= target)
+						k++;
+					key = analysis.keys[k];
+					position = analysis.positions[k];
+				}
+				// a run of one key in many buckets makes one bucket
+				if (position <= done
+						|| compare(key, newBounds.get(newBounds.size() - 1)) <= 0)
+					continue;
+				newBounds.add(key);
+				newCounts.add(Math.round((position - done) * unit));
+				done = position;
+			}
+			if (newCounts.isEmpty()) { // a single key
+				newBounds.add(analysis.lastKey);
+				newCounts.add(analysis.entries);
+			}
+		}
+
+		AtomicLongArray counts = new AtomicLongArray(newCounts.size());
+		for (int i = 0; i < newCounts.size(); i++)
+			counts.set(i, newCounts.get(i));
+		this.counts = counts;
+		bounds = newBounds.toArray(new byte[newBounds.size()][]);
+		flags = analysis.sampled ? SAMPLED : 0;
+	}
+
+	/* reading them */
+
+	/**
+	 * The number of levels of the tree, leaves included; 0 if it is empty.
+	 */
+	public int height() {
+		return height.get();
+	}
+
+	/**
+	 * The number of leaf pages.
+	 */
+	public int leafPages() {
+		return leaves.get();
+	}
+
+	/**
+	 * The number of index pages.
+	 */
+	public int indexPages() {
+		return indexPages.get();
+	}
+
+	/**
+	 * The number of entries.
+	 */
+	public long entries() {
+		return Math.max(0, entries.get());
+	}
+
+	/**
+	 * The number of distinct keys: the entries over the entries per key the
+	 * last analysis found, all of the entries if there was none. An insert
+	 * or delete does not tell whether its key is new, so until the first
+	 * analyze every entry counts as a key of its own.
+	 */
+	public long distinctKeys() {
+		long n = entries();
+		if (analyzedEntries == 0 || n == 0)
+			return n;
+		return Math.max(1, Math.min(n, Math.round((double) n
+				* analyzedDistinct / analyzedEntries)));
+	}
+
+	/**
+	 * How full the leaf pages are on average, from 0 to 1.
+	 */
+	public double averageFill() {
+		int pages = leaves.get();
+		if (pages <= 0)
+			return 0;
+		return Math.max(0, Math.min(1, (double) leafBytes.get()
+				/ ((long) pages * PAGE_CAPACITY)));
+	}
+
+	/**
+	 * The number of buckets of the histogram, 0 before the first analysis.
+	 */
+	public int buckets() {
+		return counts.length();
+	}
+
+	/**
+	 * Bound `i' of the histogram: the smallest key for 0, the greatest key
+	 * of bucket i - 1 for the others, as of the last analysis.
+	 *
+	 * @param i
+	 *            0 to buckets(). Input parameter.
+	 * @exception IOException
+	 *                error decoding a string key
+	 */
+	public KeyClass bound(int i) throws IOException {
+		byte[] key = bounds[i];
+		if (keyType == AttrType.attrInteger)
+			return BTDenseLeaves.getKey(key);
+		return BTPrefixLeaves.getKey(key);
+	}
+
+	/**
+	 * The number of entries in bucket `i', 0 to buckets() - 1.
+	 */
+	public long bucketEntries(int i) {
+		return Math.max(0, counts.get(i));
+	}
+
+	/**
+	 * Whether the tree changed in a way the statistics do not follow since
+	 * the last analysis, or was never analyzed and is from before them.
+	 */
+	public boolean isStale() {
+		return (flags & STALE) != 0;
+	}
+
+	/**
+	 * Whether the last analysis read a sample of the leaves.
+	 */
+	public boolean isSampled() {
+		return (flags & SAMPLED) != 0;
+	}
+
+	/**
+	 * The fraction of the entries a scan from lo_key to hi_key returns,
+	 * like BTreeFile.new_scan(lo_key, hi_key), estimated without reading
+	 * the tree. A range is estimated from the histogram, interpolating
+	 * within the buckets it cuts; lo_key equal to hi_key as one over the
+	 * number of distinct keys. Before the first analyze that number is the
+	 * number of entries (see distinctKeys), so a key with many entries is
+	 * taken for one with a single entry until the tree is analyzed.
+	 *
+	 * @param lo_key
+	 *            the key the scan begins at, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the key the scan stops at, null for none. Input parameter.
+	 * @return the fraction of the entries, from 0 to 1
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	public double selectivity(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		byte[] lo = lo_key == null ? null : BTSortedPages.keyBytes(lo_key);
+		byte[] hi = hi_key == null ? null : BTSortedPages.keyBytes(hi_key);
+		if (entries() == 0)
+			return 0;
+		if (lo == null && hi == null)
+			return 1;
+		if (lo != null && hi != null) {
+			int c = compare(lo, hi);
+			if (c > 0)
+				return 0;
+			if (c == 0)
+				return 1.0 / distinctKeys();
+		}
+
+		byte[][] bounds = this.bounds;
+		AtomicLongArray counts = this.counts;
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++)
+			total += Math.max(0, counts.get(i));
+		if (total == 0)
+			return DEFAULT_RANGE;
+
+		double below = lo == null ? 0 : before(bounds, counts, lo, false);
+		double upTo = hi == null ? total : before(bounds, counts, hi, true);
+		return Math.max(0, Math.min(1, (upTo - below) / total));
+	}
+
+	/**
+	 * The number of entries a scan from lo_key to hi_key returns, estimated
+	 * like selectivity.
+	 *
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	public long estimateEntries(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		return Math.round(selectivity(lo_key, hi_key) * entries());
+	}
+
+	/**
+	 * The number of pages a scan from lo_key to hi_key reads: the index
+	 * pages on the way down and the leaves its entries are on, estimated
+	 * like selectivity.
+	 *
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	public long estimatePages(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		if (height() == 0)
+			return 0;
+		return height() - 1
+				+ Math.max(1, (long) Math.ceil(selectivity(lo_key, hi_key)
+						* leafPages()));
+	}
+
+	public String toString() {
+		return String.format("height %d, %d leaves, %d index pages, fill "
+				+ "%.2f, %d entries, %d distinct keys, %d buckets%s%s",
+				height(), leafPages(), indexPages(), averageFill(),
+				entries(), distinctKeys(), buckets(),
+				isSampled() ? ", sampled" : "", isStale() ? ", stale" : "");
+	}
+
+	/* the histogram */
+
+	private int compare(byte[] a, byte[] b) {
+		return BTSortedPages.compareKey(a, 0, keyType, b);
+	}
+
+	/* the bucket `key' falls in, the first or the last one if it is out */
+	private int bucket(byte[][] bounds, byte[] key) {
+		int lo = 0;
+		int hi = bounds.length - 2;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(bounds[mid + 1], key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/*
+	 * The estimated number of entries with a key less than `key', or not
+	 * greater than it with `inclusive'.
+	 */
+	private double before(byte[][] bounds, AtomicLongArray counts,
+			byte[] key, boolean inclusive) {
+		int last = counts.length() - 1;
+		if (compare(key, bounds[0]) < 0)
+			return 0;
+		double sum = 0;
+		int b = bucket(bounds, key);
+		for (int i = 0; i < b; i++)
+			sum += Math.max(0, counts.get(i));
+		if (b == last && compare(key, bounds[last + 1]) > 0)
+			return sum + Math.max(0, counts.get(b));
+		return sum + Math.max(0, counts.get(b))
+				* fraction(bounds[b], bounds[b + 1], key, inclusive, b == 0);
+	}
+
+	/*
+	 * Where `key' falls between the bounds of a bucket, from 0 to 1: the
+	 * keys over (lower, upper], [lower, upper] for the first bucket.
+	 * Integer keys are spread evenly over their range; string keys by their
+	 * first bytes after the prefix the bounds have in common.
+	 */
+	private double fraction(byte[] lower, byte[] upper, byte[] key,
+			boolean inclusive, boolean first) {
+		double f;
+		if (keyType == AttrType.attrInteger) {
+			long low = BTSortedPages.getInt(lower, 0) - (first ? 1 : 0);
+			long high = BTSortedPages.getInt(upper, 0);
+			long k = BTSortedPages.getInt(key, 0) - (inclusive ? 0 : 1);
+			f = (double) (k - low) / (high - low);
+		} else {
+			int common = 2;
+			while (common < lower.length && common < upper.length
+					&& lower[common] == upper[common])
+				common++;
+			double low = value(lower, common);
+			double width = value(upper, common) - low;
+			f = width <= 0 ? 0.5 : (value(key, common) - low) / width;
+		}
+		return Math.max(0, Math.min(1, f));
+	}
+
+	/* the 4 bytes of a string key from `from' on as a fraction */
+	private static double value(byte[] key, int from) {
+		double v = 0;
+		double scale = 1;
+		for (int i = from; i < from + 4; i++) {
+			scale /= 256;
+			if (i < key.length)
+				v += (key[i] & 0xff) * scale;
+		}
+		return v;
+	}
+}
@@ -0,0 +1,92 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * The buffer manager for BTreeFile's concurrent mode: it takes the place of
+ * the buffer manager in SystemDefs.JavabaseBM and passes every call on to
+ * it, one thread at a time. The buffer manager itself is not thread-safe.
+ * <p>
+ * Only the calls into the buffer manager are serialized, not the use of the
+ * pages: that is what the page latches of BTLatches are for.
+ */
+public class BTSyncBufMgr extends BufMgr {
+
+	private final BufMgr bufMgr;
+
+	private BTSyncBufMgr(BufMgr bufMgr) {
+		super(1, "Clock"); // the frames used are those of bufMgr
+		this.bufMgr = bufMgr;
+	}
+
+	/**
+	 * The serialized buffer manager for the open database, put in place on
+	 * first use.
+	 */
+	public static synchronized BTSyncBufMgr attach() {
+		if (!(SystemDefs.JavabaseBM instanceof BTSyncBufMgr))
+			SystemDefs.JavabaseBM = new BTSyncBufMgr(SystemDefs.JavabaseBM);
+		return (BTSyncBufMgr) SystemDefs.JavabaseBM;
+	}
+
+	public synchronized void pinPage(PageId pin_pgid, Page page,
+			boolean emptyPage) throws ReplacerException,
+			HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException,
+			IOException {
+		bufMgr.pinPage(pin_pgid, page, emptyPage);
+	}
+
+	public synchronized void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		bufMgr.unpinPage(PageId_in_a_DB, dirty);
+	}
+
+	public synchronized PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		return bufMgr.newPage(firstpage, howmany);
+	}
+
+	public synchronized void freePage(PageId globalPageId)
+			throws InvalidBufferException, ReplacerException,
+			HashOperationException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, PageUnpinnedException,
+			HashEntryNotFoundException, BufMgrException, DiskMgrException,
+			IOException {
+		bufMgr.freePage(globalPageId);
+	}
+
+	public synchronized void flushPage(PageId pageid)
+			throws HashOperationException, PageUnpinnedException,
+			PagePinnedException, PageNotFoundException, BufMgrException,
+			IOException {
+		bufMgr.flushPage(pageid);
+	}
+
+	public synchronized void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		bufMgr.flushAllPages();
+	}
+
+	public synchronized int getNumBuffers() {
+		if (bufMgr == null) // the replacer of super, while it is made
+			return super.getNumBuffers();
+		return bufMgr.getNumBuffers();
+	}
+
+	public synchronized int getNumUnpinnedBuffers() {
+		return bufMgr.getNumUnpinnedBuffers();
+	}
+}
@@ -0,0 +1,241 @@
+package btree;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The binary trace of BTreeFile.traceBinary: the events of the traced
+ * operations go into a ring of preallocated slots, and a background thread
+ * writes them out to the trace file. An operation only claims a slot and
+ * fills it in; it never waits for the file, and when the ring is full its
+ * events are dropped and counted instead. Only one descent in every
+ * `sampleEvery' is traced, with all the pages it visits.
+ * <p>
+ * The file starts with MAGIC and VERSION, and then has one record of
+ * RECORD_SIZE bytes per event: the event type, the page number, the id of
+ * the thread and System.nanoTime() when it happened. The last record is a
+ * DROPPED event with the number of events that were dropped in place of
+ * the page number. toText turns the file into the trace traceFilename
+ * writes, for the visualization tool; main does that from the command
+ * line.
+ */
+public final class BTTrace {
+
+	/** The first int of a trace file. */
+	public static final int MAGIC = 0x42545452; // "BTTR"
+
+	/** The version of the file format, the second int. */
+	public static final int VERSION = 1;
+
+	/** Bytes of one event in the file. */
+	public static final int RECORD_SIZE = 24;
+
+	/** Event type: a descent visited a page; "VISIT node" in text. */
+	public static final int VISIT = 1;
+
+	/** Event type: the number of events dropped, at the end of the file. */
+	public static final int DROPPED = 2;
+
+	private final int mask;
+	private final int sampleEvery;
+
+	/* slot i: type and page in one long, thread id, time */
+	private final long[] events;
+	/* the sequence number of the event in each slot, once it is written */
+	private final AtomicLongArray published;
+	private final AtomicLong claimed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long written; // events the writer is done with
+	private volatile boolean closed;
+	private int descents; // racy between threads, sampling is approximate
+
+	private final DataOutputStream out;
+	private final Thread writer;
+	private IOException failed;
+
+	/**
+	 * Open `filename' and start writing the events to it.
+	 *
+	 * @param capacity
+	 *            the number of events the ring holds, rounded up to a power
+	 *            of 2
+	 * @param sampleEvery
+	 *            trace one descent in this many, 1 for all of them
+	 */
+	BTTrace(String filename, int capacity, int sampleEvery)
+			throws IOException {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		this.sampleEvery = Math.max(sampleEvery, 1);
+		events = new long[3 * size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			published.set(i, -1);
+
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "BTTrace " + filename);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Whether the descent that starts now is traced.
+	 */
+	boolean sample() {
+		return sampleEvery == 1 || descents++ % sampleEvery == 0;
+	}
+
+	/**
+	 * Record that a descent visited page `pid'.
+	 */
+	void visit(int pid) {
+		add(VISIT, pid);
+	}
+
+	/**
+	 * The number of events dropped so far because the ring was full.
+	 */
+	long dropped() {
+		return dropped.get();
+	}
+
+	private void add(int type, int pid) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if (closed || seq - written > mask) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+
+		int slot = (int) seq & mask;
+		events[3 * slot] = ((long) type << 32) | (pid & 0xffffffffL);
+		events[3 * slot + 1] = Thread.currentThread().getId();
+		events[3 * slot + 2] = System.nanoTime();
+		published.lazySet(slot, seq); // the writer reads the slot after this
+	}
+
+	/* the writer thread: write out the events in sequence order */
+	private void drain() {
+		try {
+			long seq = 0;
+			while (true) {
+				int slot = (int) seq & mask;
+				if (published.get(slot) != seq) {
+					// a slot claimed before close is filled in yet
+					if (closed && seq == claimed.get())
+						break;
+					out.flush();
+					Thread.sleep(1);
+					continue;
+				}
+				long typeAndPage = events[3 * slot];
+				out.writeInt((int) (typeAndPage >>> 32));
+				out.writeInt((int) typeAndPage);
+				out.writeLong(events[3 * slot + 1]);
+				out.writeLong(events[3 * slot + 2]);
+				written = ++seq; // the slot may be claimed again
+			}
+
+			long drops = dropped.get();
+			out.writeInt(DROPPED);
+			out.writeInt((int) Math.min(drops, Integer.MAX_VALUE));
+			out.writeLong(0);
+			out.writeLong(System.nanoTime());
+			out.close();
+		} catch (IOException e) {
+			failed = e;
+		} catch (InterruptedException e) {
+			failed = new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Stop taking events, write out the ones taken and close the file.
+	 *
+	 * @exception IOException
+	 *                the writer thread could not write the file
+	 */
+	void close() throws IOException {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if (failed != null)
+			throw failed;
+	}
+
+	/**
+	 * Write a binary trace as the text trace of BTreeFile.traceFilename.
+	 *
+	 * @param binary
+	 *            the binary trace file. Input parameter.
+	 * @param text
+	 *            the text file to write. Input parameter.
+	 * @return the number of events dropped while the binary trace was
+	 *         written, as recorded in it
+	 * @exception IOException
+	 *                error reading or writing the files, or `binary' is not
+	 *                a binary trace
+	 */
+	public static long toText(String binary, String text) throws IOException {
+		String lineSep = System.getProperty("line.separator");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(binary)));
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(text), "US-ASCII"));
+		long drops = 0;
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(binary + " is not a binary trace");
+			while (true) {
+				int type, page;
+				try {
+					type = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				page = in.readInt();
+				in.readLong(); // thread
+				in.readLong(); // time
+				if (type == VISIT)
+					out.write("VISIT node " + page + lineSep);
+				else if (type == DROPPED)
+					drops = page;
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return drops;
+	}
+
+	/**
+	 * Convert a binary trace from the command line: BTTrace binary text.
+	 */
+	public static void main(String[] argvs) {
+		if (argvs.length != 2) {
+			System.err.println("usage: java btree.BTTrace binary-trace text-trace");
+			Runtime.getRuntime().exit(2);
+		}
+		try {
+			long drops = toText(argvs[0], argvs[1]);
+			if (drops > 0)
+				System.err.println(drops + " events were dropped");
+		} catch (IOException e) {
+			System.err.println(e);
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
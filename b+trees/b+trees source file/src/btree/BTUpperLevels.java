@@ -0,0 +1,129 @@
+package btree;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import global.*;
+
+/**
+ * The upper index levels of a tree, decoded, for BTreeFile.setCachedLevels.
+ * <p>
+ * An index page of one of the top levels is decoded the first time a
+ * search goes through it: its keys into an array that is binary searched,
+ * integer keys as ints, and its children into an array of page numbers. A
+ * search then goes through the decoded levels without the buffer manager
+ * and pins only the pages below them. BTreeFile drops a page as soon as it
+ * changes it, when it unpins it dirty or frees it, and every page when the
+ * root changes; the next search through it decodes it again.
+ */
+final class BTUpperLevels {
+
+	/** One decoded index page. */
+	static final class Node {
+		final int[] intKeys; // integer keys, or null
+		final byte[][] keys; // string keys as stored, or null
+		final int[] children; // children[i] is left of key i
+
+		private Node(int[] intKeys, byte[][] keys, int[] children) {
+			this.intKeys = intKeys;
+			this.keys = keys;
+			this.children = children;
+		}
+	}
+
+	private final int levels;
+	private final int keyType;
+	private final ConcurrentHashMap<Integer, Node> nodes = new ConcurrentHashMap<Integer, Node>();
+
+	BTUpperLevels(int levels, int keyType) {
+		this.levels = levels;
+		this.keyType = keyType;
+	}
+
+	/**
+	 * The number of index levels kept, from the root down.
+	 */
+	int levels() {
+		return levels;
+	}
+
+	/**
+	 * The decoded page `pid', null if it is not decoded.
+	 */
+	Node node(int pid) {
+		return nodes.get(pid);
+	}
+
+	/**
+	 * Decode a pinned index page and keep it.
+	 */
+	Node decode(BTIndexPage page) throws IOException, IteratorException {
+		int count = page.getSlotCnt();
+		int[] children = new int[count + 1];
+		int[] intKeys = null;
+		byte[][] keys = null;
+
+		if (keyType == AttrType.attrInteger)
+			intKeys = new int[count];
+		else
+			keys = new byte[count][];
+		for (int slot = 0; slot < count; slot++) {
+			byte[] key = BTSortedPages.keyBytes(page, slot);
+			if (intKeys != null)
+				intKeys[slot] = BTSortedPages.getInt(key, 0);
+			else
+				keys[slot] = key;
+		}
+		for (int n = 0; n <= count; n++)
+			children[n] = BTSortedPages.child(page, n).pid;
+
+		Node node = new Node(intKeys, keys, children);
+		nodes.put(page.getCurPage().pid, node);
+		return node;
+	}
+
+	/**
+	 * The child of `node' a search for `key' goes to, like
+	 * BTSortedPages.childForInsert with `right', else like childForSearch.
+	 * A null key goes to the last child with `right', else to the first.
+	 */
+	static int child(Node node, byte[] key, boolean right) {
+		if (key == null)
+			return node.children[right ? node.children.length - 1 : 0];
+
+		// the first key greater than `key' with `right', else the first
+		// key not less than it
+		int lo = 0;
+		int hi = node.children.length - 1;
+		int intKey = node.intKeys == null ? 0 : BTSortedPages.getInt(key, 0);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int c;
+			if (node.intKeys != null)
+				c = node.intKeys[mid] < intKey ? -1
+						: (node.intKeys[mid] == intKey ? 0 : 1);
+			else
+				c = BTSortedPages.compareKey(node.keys[mid], 0,
+						AttrType.attrString, key);
+			if (c < 0 || (right && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return node.children[lo];
+	}
+
+	/**
+	 * Drop page `pid', which changed or was freed.
+	 */
+	void changed(int pid) {
+		nodes.remove(pid);
+	}
+
+	/**
+	 * Drop every page: the root changed, and with it the levels.
+	 */
+	void clear() {
+		nodes.clear();
+	}
+}
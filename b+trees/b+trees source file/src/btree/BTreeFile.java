@@ -8,6 +8,10 @@
 package btree;
 
 import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import javax.management.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -24,8 +28,20 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static String lineSep = System.getProperty("line.separator");
 
+	/* outcome of _delete for the page it was called on */
+	private final static int NOT_FOUND = 0;
+	private final static int DELETED = 1;
+	private final static int UNDERFLOW = 2; // deleted, page now under MIN_USED
+
+	/* bytes of records and slots a page keeps in full delete mode */
+	private final static int PAGE_CAPACITY = MAX_SPACE - HFPage.DPFIXED;
+	private final static int MIN_USED = PAGE_CAPACITY / 2;
+
 	private static FileOutputStream fos;
 	private static DataOutputStream trace;
+	private static volatile BTTrace binaryTrace; // see traceBinary
+
+	private static volatile boolean bLink; // see setBLink
 
 	/**
 	 * It causes a structured trace to be written to a file. This output is used
@@ -39,6 +55,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public static void traceFilename(String filename) throws IOException {
 
+		stopBinaryTrace();
 		fos = new FileOutputStream(filename);
 		trace = new DataOutputStream(fos);
 	}
@@ -50,6 +67,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error from the lower layer
 	 */
 	public static void destroyTrace() throws IOException {
+		stopBinaryTrace();
 		if (trace != null)
 			trace.close();
 		if (fos != null)
@@ -58,9 +76,160 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		trace = null;
 	}
 
+	/**
+	 * Trace to a file like traceFilename, but in binary and off the
+	 * operations' path: the events go into a ring buffer of `capacity'
+	 * events, which a background thread writes to the file (see BTTrace),
+	 * and only one descent in every `sampleEvery' is traced. When the
+	 * writer falls behind, events are dropped rather than waited for.
+	 * BTTrace.toText turns the file into the text trace for the
+	 * visualization tool. destroyTrace writes out the events still in the
+	 * ring and closes the file.
+	 *
+	 * @param filename
+	 *            the trace file name. Input parameter.
+	 * @param capacity
+	 *            the number of events the ring buffer holds. Input
+	 *            parameter.
+	 * @param sampleEvery
+	 *            trace one descent in this many, 1 for every one. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static void traceBinary(String filename, int capacity,
+			int sampleEvery) throws IOException {
+		destroyTrace();
+		binaryTrace = new BTTrace(filename, capacity, sampleEvery);
+	}
+
+	/**
+	 * The number of events the binary trace dropped so far because its
+	 * ring buffer was full, 0 if there is no binary trace.
+	 */
+	public static long traceDropped() {
+		BTTrace sink = binaryTrace;
+		return sink == null ? 0 : sink.dropped();
+	}
+
+	private static void stopBinaryTrace() throws IOException {
+		BTTrace sink = binaryTrace;
+		binaryTrace = null;
+		if (sink != null)
+			sink.close();
+	}
+
+	/* whether to trace the pages of a descent that starts now */
+	private static boolean traceDescent() {
+		BTTrace sink = binaryTrace;
+		return sink != null ? sink.sample() : trace != null;
+	}
+
+	/* a descent that traceDescent chose visits page `pageno' */
+	private static void traceVisit(PageId pageno) throws IOException {
+		BTTrace sink = binaryTrace;
+		if (sink != null)
+			sink.visit(pageno.pid);
+		else
+			traceLine("VISIT node " + pageno);
+	}
+
+	/* one line of the trace; threads of concurrent mode share the file */
+	private static synchronized void traceLine(String line) throws IOException {
+		if (trace != null) {
+			trace.writeBytes(line + lineSep);
+			trace.flush();
+		}
+	}
+
+	/**
+	 * Switch concurrent mode on or off for every B+ tree file of the open
+	 * database. Without it a tree may only be used by one thread at a time.
+	 * In concurrent mode the buffer manager is put behind BTSyncBufMgr,
+	 * unless it is a BTBufMgr, which threads may share as it is, and the
+	 * pages of the trees are latched (see BTLatches), so that threads can
+	 * insert, delete and scan in the same tree at once:
+	 * <ul>
+	 * <li>a search goes down the tree with read latches, letting go of each
+	 * page once it has the latch of the child, and a scan keeps the read
+	 * latch of the leaf it is on until it moves on to the next one;</li>
+	 * <li>an insert or a delete first goes down the same way and latches
+	 * only its leaf for writing. If the leaf has to split, or would fall
+	 * under half full in a full delete, it goes down again with write
+	 * latches, and lets go of the pages above a child that is safe: one that
+	 * can take an entry without splitting, or lose one without falling under
+	 * half full;</li>
+	 * <li>insertBatch keeps the root latched for the whole batch;</li>
+	 * <li>creating or opening a file, bulkLoad and destroyFile still need the
+	 * tree to themselves;</li>
+	 * <li>compact is refused, see there.</li>
+	 * </ul>
+	 * Keys must not be longer than the maximum key size of the tree. A
+	 * thread must not change a tree while it has a scan open on it, or it
+	 * waits for its own latch. Switch the mode before the trees are shared,
+	 * while no scan is open.
+	 *
+	 * @param concurrent
+	 *            whether trees are shared between threads. Input parameter.
+	 */
+	public static void setConcurrent(boolean concurrent) {
+		if (concurrent && !(SystemDefs.JavabaseBM instanceof BTBufMgr))
+			BTSyncBufMgr.attach();
+		BTLatches.enable(concurrent);
+	}
+
+	/**
+	 * Whether concurrent mode is on; see setConcurrent.
+	 */
+	public static boolean isConcurrent() {
+		return BTLatches.enabled();
+	}
+
+	/**
+	 * Let the searches of concurrent mode go down trees created with
+	 * DeleteFashion.NAIVE_DELETE the way they go down a B-link tree, for
+	 * scans, point lookups and naive deletes.
+	 * <p>
+	 * Every page is linked to its right sibling, index pages too, and the
+	 * first key of that sibling bounds the keys of the page from above: it
+	 * is the page's high key. A search latches one page at a time, no
+	 * longer the page above it too. If a page split after the search read
+	 * its parent, the keys the search is after may have moved right, and it
+	 * follows the link to the sibling when its key is greater than the high
+	 * key; on the leaf level it goes right until it finds them. A naive
+	 * delete never frees a page, so the page a search arrives at is still
+	 * part of the tree. Inserts, full deletes, reverse scans and trees with
+	 * DeleteFashion.FULL_DELETE latch as described at setConcurrent.
+	 *
+	 * @param on
+	 *            whether the searches go down like in a B-link tree. Input
+	 *            parameter.
+	 */
+	public static void setBLink(boolean on) {
+		bLink = on;
+	}
+
+	/**
+	 * Whether B-link searches are on; see setBLink.
+	 */
+	public static boolean isBLink() {
+		return bLink;
+	}
+
 	private BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
+	private boolean prefixLeaves; // KeyCompression.PREFIX
+	private boolean denseLeaves; // LeafLayout.DENSE
+	private boolean countedIndex; // IndexLayout.COUNTED
+	private volatile BTLookupCache lookupCache; // see setLookupCache
+	private BTUpperLevels upperLevels; // see setCachedLevels
+	private BTMetrics metrics; // see enableMetrics
+	private BTStatistics statistics; // kept in the header page, see analyze
+	private ObjectName metricsName; // its JMX name, once registered
+
+	/* the metrics registered under each name, to unregister only one's own */
+	private static final HashMap<ObjectName, BTMetrics> registeredMetrics = new HashMap<ObjectName, BTMetrics>();
 
 	/**
 	 * Access method to data member.
@@ -82,6 +251,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private Page pinPage(PageId pageno) throws PinPageException {
+		if (metrics != null)
+			metrics.pins.increment();
 		try {
 			Page page = new Page();
 			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
@@ -103,6 +274,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void unpinPage(PageId pageno) throws UnpinPageException {
+		if (metrics != null)
+			metrics.unpins.increment();
 		try {
 			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
 		} catch (Exception e) {
@@ -112,6 +285,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void freePage(PageId pageno) throws FreePageException {
+		if (upperLevels != null)
+			upperLevels.changed(pageno.pid);
 		try {
 			SystemDefs.JavabaseBM.freePage(pageno);
 		} catch (Exception e) {
@@ -133,6 +308,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
+		if (dirty && upperLevels != null)
+			upperLevels.changed(pageno.pid);
+		if (metrics != null) {
+			metrics.unpins.increment();
+			if (dirty)
+				metrics.dirtyUnpins.increment();
+		}
 		try {
 			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
 		} catch (Exception e) {
@@ -141,6 +323,172 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
+	private void insertLeafRecord(BTLeafPage page, byte[] keyBytes,
+			KeyClass key, RID rid) throws LeafInsertRecException {
+		try {
+			BTSortedPages.insertRecord(page, keyBytes, BT
+					.getBytesFromEntry(new KeyDataEntry(key, rid)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	private void insertIndexRecord(BTIndexPage page, int slot, byte[] record)
+			throws IndexInsertRecException {
+		try {
+			BTSortedPages.insertRecord(page, slot, record);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IndexInsertRecException(e, "");
+		}
+	}
+
+	/*
+	 * A new, empty index page, pinned.
+	 */
+	private BTIndexPage newIndexPage() throws ConstructPageException,
+			IOException {
+		BTIndexPage page = new BTIndexPage(headerPage.get_keyType());
+		if (countedIndex)
+			BTCounts.init(page);
+		return page;
+	}
+
+	/*
+	 * The index record for page `pageNo' with key `key', and in a counted
+	 * tree the count `count'.
+	 */
+	private byte[] indexRecord(byte[] key, int count, PageId pageNo) {
+		if (countedIndex)
+			return BTCounts.indexRecord(key, count, pageNo);
+		return BTSortedPages.indexRecord(key, pageNo);
+	}
+
+	/*
+	 * The index record for child `n' of index page `page' with key `key',
+	 * its count included in a counted tree.
+	 */
+	private byte[] childRecord(byte[] key, BTIndexPage page, int n)
+			throws IteratorException {
+		return indexRecord(key, countedIndex ? BTCounts.count(page, n) : 0,
+				BTSortedPages.child(page, n));
+	}
+
+	/*
+	 * Make child `n' of `from' the left-most child of index page `page',
+	 * with its count in a counted tree.
+	 */
+	private void setLeftChild(BTIndexPage page, BTIndexPage from, int n)
+			throws IteratorException, IOException {
+		page.setPrevPage(BTSortedPages.child(from, n));
+		if (countedIndex)
+			BTCounts.setCount(page, 0, BTCounts.count(from, n));
+	}
+
+	/*
+	 * Bytes of an index record after its key.
+	 */
+	private int indexDataSize() {
+		return countedIndex ? BTCounts.DATA_SIZE : 4;
+	}
+
+	/*
+	 * The number of leaf entries under page `pageno', which is read
+	 * latched for it; see BTCounts.total.
+	 */
+	private int subtreeCount(PageId pageno) throws PinPageException,
+			UnpinPageException, IOException {
+		int count = BTCounts.total(new BTSortedPage(latchPage(pageno, false),
+				headerPage.get_keyType()));
+		unlatchPage(pageno, false);
+		return count;
+	}
+
+	/*
+	 * Set the count of every index record of `records' from `from' on to
+	 * the entries under its page, in a counted tree.
+	 */
+	private void recount(List<byte[]> records, int from)
+			throws PinPageException, UnpinPageException, IOException {
+		if (!countedIndex)
+			return;
+		for (int i = from; i < records.size(); i++)
+			BTCounts.setCountOf(records.get(i), subtreeCount(BTSortedPages
+					.childOf(records.get(i))));
+	}
+
+	/*
+	 * pinPage, after latching the page for reading or writing in concurrent
+	 * mode.
+	 */
+	private Page latchPage(PageId pageno, boolean exclusive)
+			throws PinPageException {
+		if (exclusive)
+			BTLatches.exclusive(pageno);
+		else
+			BTLatches.shared(pageno);
+		return pinPage(pageno);
+	}
+
+	/*
+	 * unpinPage, then let go of the latch of the page.
+	 */
+	private void unlatchPage(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		unpinPage(pageno, dirty);
+		BTLatches.release(pageno);
+	}
+
+	/*
+	 * In concurrent mode a writer that may change the pages above the one
+	 * it is on keeps them write latched, and pinned but for the header page,
+	 * on a list from the top down. Let go of every page on `held' above the
+	 * last one: that one is safe, nothing above it changes. In a counted
+	 * tree an insert has added to their counts on the way down already.
+	 */
+	private void letGoAbove(ArrayList<PageId> held) throws UnpinPageException {
+		while (held.size() > 1) {
+			PageId pageno = held.remove(0);
+			if (pageno.pid == headerPageId.pid)
+				BTLatches.release(pageno);
+			else
+				unlatchPage(pageno, countedIndex);
+		}
+	}
+
+	/*
+	 * Done with page `pageno': unpin it, and in concurrent mode let go of
+	 * it, unless it was let go of already as a page above a safe one.
+	 */
+	private void letGo(ArrayList<PageId> held, PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		if (held == null) {
+			unpinPage(pageno, dirty);
+			return;
+		}
+		for (int i = 0; i < held.size(); i++) {
+			if (held.get(i).pid == pageno.pid) {
+				held.remove(i);
+				if (pageno.pid == headerPageId.pid)
+					BTLatches.release(pageno);
+				else
+					unlatchPage(pageno, dirty);
+				return;
+			}
+		}
+	}
+
+	private void moveRecords(BTSortedPage from, int start, BTSortedPage to)
+			throws InsertException {
+		try {
+			BTSortedPages.moveRange(from, start, to);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
 	/**
 	 * BTreeFile class an index file with given filename should already exist;
 	 * this opens it.
@@ -161,6 +509,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		headerPage = new BTreeHeaderPage(headerPageId);
 		dbname = new String(filename);
+		try {
+			prefixLeaves = get_keyCompression() == KeyCompression.PREFIX;
+			denseLeaves = get_leafLayout() == LeafLayout.DENSE;
+			countedIndex = get_indexLayout() == IndexLayout.COUNTED;
+			statistics = BTStatistics.read(headerPage.getpage(), headerPage
+					.get_keyType(), headerPage.get_maxKeySize());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
 		/*
 		 * 
 		 * - headerPageId is the PageId of this BTreeFile's header page; -
@@ -193,6 +551,117 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename, int keytype, int keysize,
 			int delete_fashion) throws GetFileEntryException,
 			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, KeyCompression.NONE);
+	}
+
+	/**
+	 * if index file exists, open it; else create it, with the given way of
+	 * storing keys. A new file with integer keys gets LeafLayout.DENSE
+	 * leaves, any other one slotted leaves. An existing file keeps what it
+	 * was created with.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param key_compression
+	 *            KeyCompression.NONE or KeyCompression.PREFIX; PREFIX only
+	 *            applies to string keys, integer keys are always stored in
+	 *            full. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int key_compression)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, key_compression,
+				keytype == AttrType.attrInteger ? LeafLayout.DENSE
+						: LeafLayout.SLOTTED);
+	}
+
+	/**
+	 * if index file exists, open it; else create it, with the given way of
+	 * storing keys and of laying out the leaf pages. An existing file keeps
+	 * the ones it was created with.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param key_compression
+	 *            KeyCompression.NONE or KeyCompression.PREFIX. Input
+	 *            parameter.
+	 * @param leaf_layout
+	 *            LeafLayout.SLOTTED or LeafLayout.DENSE; DENSE only applies
+	 *            to integer keys. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int key_compression, int leaf_layout)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, key_compression,
+				leaf_layout, IndexLayout.PLAIN);
+	}
+
+	/**
+	 * if index file exists, open it; else create it, with the given way of
+	 * storing keys and of laying out the leaf and the index pages. An
+	 * existing file keeps the ones it was created with.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param key_compression
+	 *            KeyCompression.NONE or KeyCompression.PREFIX. Input
+	 *            parameter.
+	 * @param leaf_layout
+	 *            LeafLayout.SLOTTED or LeafLayout.DENSE. Input parameter.
+	 * @param index_layout
+	 *            IndexLayout.PLAIN or IndexLayout.COUNTED. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int key_compression, int leaf_layout,
+			int index_layout) throws GetFileEntryException,
+			ConstructPageException, IOException, AddFileEntryException {
 
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
@@ -205,13 +674,78 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_keyType((short) keytype);
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
+			if (keytype != AttrType.attrString)
+				key_compression = KeyCompression.NONE;
+			set_keyCompression(key_compression);
+			if (keytype != AttrType.attrInteger)
+				leaf_layout = LeafLayout.SLOTTED;
+			set_leafLayout(delete_fashion, leaf_layout);
+			set_indexLayout(index_layout);
 			headerPage.setType(NodeType.BTHEAD);
+			statistics = new BTStatistics(keytype, keysize);
+			statistics.write(headerPage.getpage());
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
+			statistics = BTStatistics.read(headerPage.getpage(), headerPage
+					.get_keyType(), headerPage.get_maxKeySize());
 		}
 
 		dbname = new String(filename);
+		prefixLeaves = get_keyCompression() == KeyCompression.PREFIX;
+		denseLeaves = get_leafLayout() == LeafLayout.DENSE;
+		countedIndex = get_indexLayout() == IndexLayout.COUNTED;
+	}
+
+	/**
+	 * How the keys of the file are stored.
+	 *
+	 * @return KeyCompression.NONE or KeyCompression.PREFIX
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int get_keyCompression() throws IOException {
+		// kept in the offset of the header slot that has the key type in
+		// its length; files from before KeyCompression have 0 there
+		return headerPage.getSlotOffset(3);
+	}
+
+	private void set_keyCompression(int key_compression) throws IOException {
+		headerPage.setSlot(3, headerPage.get_keyType(), key_compression);
+	}
+
+	/**
+	 * How the leaf pages of the file are laid out.
+	 *
+	 * @return LeafLayout.SLOTTED or LeafLayout.DENSE
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int get_leafLayout() throws IOException {
+		// kept in the offset of the header slot that has the delete fashion
+		// in its length; files from before LeafLayout have 0 there
+		return headerPage.getSlotOffset(2);
+	}
+
+	private void set_leafLayout(int delete_fashion, int leaf_layout)
+			throws IOException {
+		headerPage.setSlot(2, delete_fashion, leaf_layout);
+	}
+
+	/**
+	 * How the index pages of the file are laid out.
+	 *
+	 * @return IndexLayout.PLAIN or IndexLayout.COUNTED
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int get_indexLayout() throws IOException {
+		// kept in the offset of the header slot that has the maximum key
+		// size in its length; files from before IndexLayout have 0 there
+		return headerPage.getSlotOffset(1);
+	}
 
+	private void set_indexLayout(int index_layout) throws IOException {
+		headerPage.setSlot(1, headerPage.get_maxKeySize(), index_layout);
 	}
 
 	/**
@@ -230,9 +764,11 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			InvalidFrameNumberException, HashEntryNotFoundException,
 			ReplacerException {
 		if (headerPage != null) {
+			statistics.write(headerPage.getpage());
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
 		}
+		disableMetrics();
 	}
 
 	/**
@@ -265,6 +801,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			delete_file_entry(dbname);
 			headerPage = null;
 		}
+		disableMetrics();
 	}
 
 	private void _destroyFile(PageId pageno) throws IOException,
@@ -278,20 +815,14 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		if (sortedPage.getType() == NodeType.INDEX) {
 			BTIndexPage indexPage = new BTIndexPage(page,
 					headerPage.get_keyType());
-			RID rid = new RID();
-			PageId childId;
-			KeyDataEntry entry;
-			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
-					.getNext(rid)) {
-				childId = ((IndexData) (entry.data)).getData();
-				_destroyFile(childId);
-			}
-		} else { // BTLeafPage
-
-			unpinPage(pageno);
-			freePage(pageno);
+			int children = indexPage.getSlotCnt() + 1;
+			for (int child = 0; child < children; child++)
+				_destroyFile(BTSortedPages.child(indexPage, child));
 		}
 
+		unpinPage(pageno);
+		freePage(pageno);
+
 	}
 
 	private void updateHeader(PageId newRoot) throws IOException,
@@ -307,6 +838,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		// clock in dirty bit to bm so our dtor needn't have to worry about it
 		unpinPage(headerPageId, true /* = DIRTY */);
+		if (upperLevels != null)
+			upperLevels.clear();
 
 		// ASSERTIONS:
 		// - headerPage, headerPageId valid, pinned and marked as dirty
@@ -360,6 +893,31 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IOException
 
 	{
+		if(BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+		byte[] keyBytes = BTSortedPages.keyBytes(key);
+		ArrayList<PageId> held = null;	// the pages latched on the way down, in concurrent mode
+		BTMetrics timed = metrics;
+		long start = timed != null ? System.nanoTime() : 0;
+
+		if((BTLatches.enabled() || upperLevels != null) && !countedIndex)	// the leaf is found without pinning the levels above it, whose counts would not change
+		{
+			if(insertIfRoom(key, keyBytes, rid))	// the leaf did not split
+			{
+				invalidateLookup(keyBytes);
+				statistics.inserted(keyBytes, entrySpace(keyBytes));
+				if(timed != null)
+					timed.insert.record(System.nanoTime() - start);
+				return;
+			}
+		}
+		if(BTLatches.enabled())
+		{
+			held = new ArrayList<PageId>();		// go down again, latching for writes from the header page on
+			BTLatches.exclusive(headerPageId);
+			held.add(headerPageId);
+		}
+
 	//checking whether the header page id exists or not
 		if(headerPage.get_rootId().pid==-1) // if headerpage does not exist
 		{ 
@@ -370,98 +928,625 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			newRootPageID =newRootPage.getCurPage();			//get the page id of the root created
 			newRootPage.setNextPage(new PageId(-1));	// setting the next page pointer to null
 			newRootPage.setPrevPage(new PageId(-1));  	// setting the previous page pointer to null
-			newRootPage.insertRecord(key, rid);       	// inserting the record into the created page
-System.out.println(key);
+			if(prefixLeaves)
+				BTPrefixLeaves.init(newRootPage, BTPrefixLeaves.NO_PREFIX);	// the only leaf has no fences
+			if(denseLeaves)
+			{
+				BTDenseLeaves.init(newRootPage);
+				BTDenseLeaves.insertRecord(newRootPage, BT.getBytesFromEntry(new KeyDataEntry(key, rid)));
+			}
+			else
+				newRootPage.insertRecord(key, rid);       	// inserting the record into the created page
 			unpinPage(newRootPageID, true);					//	unpin the page
 			updateHeader(newRootPageID);						// updating the header of the page after the record is inserted
+			statistics.levelAdded(1);
+			statistics.leafAdded(1);
 		}
 		else
 		{  //if headerpage or a rootpage already exists
 			KeyDataEntry newRootEntry = null;
-			newRootEntry = _insert(key,rid, headerPage.get_rootId());	//creating instance to catch the return statement from _insert() 
+			if(metrics != null)
+				metrics.descents.increment();	// _insert counts its levels
+			newRootEntry = _insert(key, keyBytes, rid, new PageId(headerPage.get_rootId().pid), null, null, held);	//creating instance to catch the return statement from _insert() 
 			if(newRootEntry!=null)				// split has occured
 			{
-				BTIndexPage newRootIndexPage = new BTIndexPage(NodeType.INDEX);		//creating a new index page
-				IndexData indexRecord = (IndexData) newRootEntry.data;
-				newRootIndexPage.insertKey(newRootEntry.key, indexRecord.getData());  //inserting record into the new index page
+				BTIndexPage newRootIndexPage = newIndexPage();		//creating a new index page
+				PageId newPageId = ((IndexData) newRootEntry.data).getData();
+				insertIndexRecord(newRootIndexPage, 0, indexRecord(BTSortedPages.keyBytes(newRootEntry.key),
+						countedIndex ? subtreeCount(newPageId) : 0, newPageId));  //inserting record into the new index page
 				newRootIndexPage.setPrevPage(headerPage.get_rootId());		//setting the previous page pointer of the new root to the old root
+				if(countedIndex)
+					BTCounts.setCount(newRootIndexPage, 0, subtreeCount(headerPage.get_rootId()));
 				unpinPage(newRootIndexPage.getCurPage(), true);				//unpin the newroot(index node)
 				updateHeader(newRootIndexPage.getCurPage());				//updating the header of the newroot(index node)
+				if(metrics != null)
+					metrics.rootSplits.increment();
+				statistics.levelAdded(1);
+				statistics.indexPageAdded(1);
 			}
 		}
+		if(held != null)
+			letGo(held, headerPageId, false);	// still latched if the root changed
+		invalidateLookup(keyBytes);	// after the change, see BTLookupCache
+		statistics.inserted(keyBytes, entrySpace(keyBytes));
+		if(timed != null)
+			timed.insert.record(System.nanoTime() - start);
 	}
 
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
-			throws PinPageException, IOException, ConstructPageException,
-			LeafDeleteException, ConstructPageException, DeleteRecException,
-			IndexSearchException, UnpinPageException, LeafInsertRecException,
-			ConvertException, IteratorException, IndexInsertRecException,
-			KeyNotMatchException, NodeNotMatchException, InsertException
+	/*
+	 * The first go of an insert in concurrent mode, or with cached levels:
+	 * down to the leaf with read latches, and into it if it has room.
+	 * Returns false, with nothing latched, if it has not, or if the tree is
+	 * empty.
+	 */
+	private boolean insertIfRoom(KeyClass key, byte[] keyBytes, RID rid)
+			throws IOException, ConstructPageException, PinPageException,
+			UnpinPageException, IteratorException, LeafInsertRecException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		BTLeafPage leafPage = descend(keyBytes, true, true);
+		if (leafPage == null)
+			return false;
+
+		RID inserted = leafInsertRecord(leafPage, BT
+				.getBytesFromEntry(new KeyDataEntry(key, rid)));
+		unlatchPage(leafPage.getCurPage(), inserted != null);
+		return inserted != null;
+	}
 
-	{
-		BTSortedPage currentPage =  new BTSortedPage(currentPageId, headerPage.get_keyType()); 	//creating instance of a BTSortedPage
-		if(currentPage.getType() == NodeType.LEAF)			// if current page is a leaf type page
-		{
-			BTLeafPage currentLeafPage = new BTLeafPage(currentPageId, headerPage.get_keyType());	//create a leaf page
-			if(currentLeafPage.available_space() >= BT.getKeyDataLength(key, currentLeafPage.getType()))	//current leaf page has space for entries
-			{
-				currentLeafPage.insertRecord(key,rid);			//inserting data into current leaf page as there is space available
-				unpinPage(currentLeafPage.getCurPage(), true);	//unpin the leaf page after the record is inserted
-				return null;
-			}
-			else 		//leaf page does not have space for entries
-			{
-				BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());	//create a new leaf page
-				PageId newLeafPageID = newLeafPage.getCurPage();	//get the page id of the newly created leaf page
-				newLeafPage.setNextPage(currentLeafPage.getNextPage());  //Next page of new leaf points to the next page of old leaf
-				currentLeafPage.setNextPage(newLeafPageID);             //next page of old leaf points to new leaf
-				newLeafPage.setPrevPage(currentLeafPage.getCurPage());  //Previous page of new leaf points to old leaf
-				KeyDataEntry temp = null, lastTemp = null;
-				RID delRid = new RID();
-				System.out.println(currentLeafPage.getFirst(delRid).data);
-				int count=0;	//a variable is created to count the number of records in the leaf page
-				for(temp = currentLeafPage.getFirst(delRid); temp!=null; temp = currentLeafPage.getNext(delRid))
-				{
-					count++;	//increment the counter
-				}
-				System.out.println("No of records in old leaf = " + count);
-				temp = currentLeafPage.getFirst(delRid); //Get the first entry into the old leaf
-				for(int i=1;i<=count;i++)
-				{
-					if(i>count/2)	// dividing the number of records into two halves
-					{
-						LeafData lfData = (LeafData)temp.data;
-						System.out.println(lfData);
-						newLeafPage.insertRecord(temp.key, lfData.getData()); // Insert data into the split page
-						currentLeafPage.deleteSortedRecord(delRid);  //Delete the moved record from old leaf page
-						temp = currentLeafPage.getCurrent(delRid); 
+	/**
+	 * Insert a batch of records. The batch is sorted on its keys and
+	 * inserted in one pass over the tree: each index page on the way is
+	 * pinned once for all the keys below it, and every leaf takes all of its
+	 * keys while it stays pinned, splitting as often as it fills up. The
+	 * entries the splits add to an index page are inserted the same way, so
+	 * a batch descends from the root once, however many keys it has.
+	 * Records with equal keys keep their order in the batch. In concurrent
+	 * mode the batch keeps the pages it goes down through write latched
+	 * until it is done with them, the root until the end.
+	 *
+	 * @param keys
+	 *            the keys of the records. Input parameter.
+	 * @param rids
+	 *            the rids of the records, rids[i] goes with keys[i]. Input
+	 *            parameter.
+	 * @exception KeyTooLongException
+	 *                a key size exceeds the max keysize; nothing is
+	 *                inserted.
+	 * @exception InsertException
+	 *                the arrays differ in length, or a page could not be
+	 *                split
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void insertBatch(KeyClass[] keys, RID[] rids)
+			throws KeyTooLongException, InsertException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, LeafInsertRecException,
+			IndexInsertRecException, DeleteRecException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			IOException {
 
+		if (keys.length != rids.length)
+			throw new InsertException(null, "keys and rids differ in length");
+		if (keys.length == 0)
+			return;
+		for (int i = 0; i < keys.length; i++)
+			if (BT.getKeyLength(keys[i]) > headerPage.get_maxKeySize())
+				throw new KeyTooLongException(null, "");
+
+		// leaf records start with their key, so they sort on their bytes;
+		// the sort is stable
+		final int keyType = headerPage.get_keyType();
+		byte[][] records = new byte[keys.length][];
+		for (int i = 0; i < keys.length; i++)
+			records[i] = BT.getBytesFromEntry(new KeyDataEntry(keys[i],
+					rids[i]));
+		Arrays.sort(records, new Comparator<byte[]>() {
+			public int compare(byte[] a, byte[] b) {
+				return BTSortedPages.compareKey(a, 0, keyType, b);
+			}
+		});
+
+		BTLatches.exclusive(headerPageId);
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE) {
+			BTLeafPage rootPage = new BTLeafPage(keyType);
+			rootId = rootPage.getCurPage();
+			rootPage.setNextPage(new PageId(INVALID_PAGE));
+			rootPage.setPrevPage(new PageId(INVALID_PAGE));
+			if (prefixLeaves)
+				BTPrefixLeaves.init(rootPage, BTPrefixLeaves.NO_PREFIX);
+			if (denseLeaves)
+				BTDenseLeaves.init(rootPage);
+			unpinPage(rootId, true);
+			updateHeader(rootId);
+			statistics.levelAdded(1);
+			statistics.leafAdded(1);
+		}
+
+		ArrayList<byte[]> up = new ArrayList<byte[]>();
+		if (metrics != null)
+			metrics.descents.increment(); // _insertBatch counts its levels
+		_insertBatch(Arrays.asList(records), 0, records.length, rootId, null,
+				null, up);
+
+		// the root split: the old root becomes the left-most child of a new
+		// one, which may split again if the batch split many pages below
+		if (up.isEmpty()) {
+			BTLatches.release(headerPageId);
+			invalidateLookups(keys);
+			countInserted(keys);
+			return;
+		}
+		do {
+			BTIndexPage newRootPage = newIndexPage();
+			newRootPage.setPrevPage(rootId);
+			if (countedIndex) {
+				BTCounts.setCount(newRootPage, 0, subtreeCount(rootId));
+				recount(up, 0);
+			}
+			rootId = newRootPage.getCurPage();
+			BTLatches.exclusive(rootId); // insertIndexRecords lets go of it
+			ArrayList<byte[]> above = new ArrayList<byte[]>();
+			insertIndexRecords(newRootPage, up, Collections.nCopies(up.size(),
+					0), above);
+			up = above;
+			if (metrics != null)
+				metrics.rootSplits.increment();
+			statistics.levelAdded(1);
+			statistics.indexPageAdded(1);
+		} while (!up.isEmpty());
+		updateHeader(rootId);
+		BTLatches.release(headerPageId);
+		invalidateLookups(keys);
+		countInserted(keys);
+	}
+
+	/**
+	 * Build the B+ tree bottom-up from entries that are already sorted on
+	 * their key, instead of inserting them one at a time. Leaf pages are
+	 * packed to the given fill factor and the index levels are built from
+	 * the first key of every leaf; the header page is written once, when the
+	 * root is known. The tree must be empty, and stays empty if the load
+	 * fails: the pages built until then are freed.
+	 *
+	 * @param entries
+	 *            the <key, rid> pairs in non-decreasing key order. Input
+	 *            parameter.
+	 * @param fillFactor
+	 *            percentage (1..100) of each page to fill. Input parameter.
+	 * @exception InsertException
+	 *                the tree is not empty, the fill factor is out of range
+	 *                or the input is not sorted
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                entry data is not leaf data
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> entries, int fillFactor)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			UnpinPageException, PinPageException, IOException {
+
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			throw new InsertException(null, "bulk load needs an empty tree");
+		if (fillFactor < 1 || fillFactor > 100)
+			throw new InsertException(null, "fill factor out of range");
+
+		BTBulkLoader loader = new BTBulkLoader(headerPage.get_keyType(),
+				fillFactor, prefixLeaves, denseLeaves, countedIndex);
+		BTStatistics.Analysis analysis = new BTStatistics.Analysis();
+		byte[] previous = null;
+		PageId rootId = null;
+		try {
+			while (entries.hasNext()) {
+				KeyDataEntry entry = entries.next();
+				if (!(entry.data instanceof LeafData))
+					throw new NodeNotMatchException(null, "not a leaf entry");
+				loader.add(entry.key, ((LeafData) entry.data).getData());
+
+				// the entries come sorted: count them as analyze would
+				byte[] keyBytes = BTSortedPages.keyBytes(entry.key);
+				if (previous == null
+						|| BTSortedPages.compareKey(previous, 0, headerPage
+								.get_keyType(), keyBytes) != 0)
+					analysis.distinct++;
+				if (analysis.keeps())
+					analysis.add(keyBytes, analysis.entries);
+				analysis.leafBytes += entrySpace(keyBytes);
+				analysis.entries++;
+				previous = keyBytes;
+			}
+			if (previous != null)
+				analysis.end(previous, analysis.entries - 1);
+
+			rootId = loader.finish();
+		} finally {
+			// an exception: the tree stays empty, the pages go back
+			if (rootId == null)
+				loader.abort();
+		}
+		if (rootId.pid != INVALID_PAGE)
+			updateHeader(rootId);
+		try {
+			countPages(analysis, null);
+		} catch (IteratorException e) {
+			throw new InsertException(e, "cannot count the pages");
+		}
+		statistics.install(analysis, true);
+		statistics.write(headerPage.getpage());
+		if (lookupCache != null) // it may have found nothing before
+			lookupCache.clear();
+	}
+
+	/**
+	 * Rebuild the tree into a run of newly allocated, consecutive pages. The
+	 * leaf level is read along its next links and packed to the given fill
+	 * factor, with the leaves in key order at the front of the run and the
+	 * index pages behind them, so a scan reads the leaves in page order. The
+	 * old tree stays in place until the new one is complete; then the root
+	 * in the header page is switched to the new tree in one write and the
+	 * pages of the old tree are freed. If compact fails before that, the
+	 * old tree is left as it was and the run is deallocated again.
+	 * <p>
+	 * compact is refused in concurrent mode (see setConcurrent). It reads
+	 * the leaves twice, once to size the run and once to copy them, and a
+	 * latch on the header page would not keep out the scans already on the
+	 * leaves: an insert could outgrow the run, or land on a leaf already
+	 * copied and be lost with the old tree, whose pages a scan may still be
+	 * reading when they are freed.
+	 *
+	 * @param fillFactor
+	 *            percentage (1..100) of each page to fill. Input parameter.
+	 * @exception InsertException
+	 *                the fill factor is out of range, or concurrent mode is
+	 *                on
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor, or no page run of the
+	 *                size needed could be allocated
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void compact(int fillFactor) throws InsertException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException,
+			IOException {
+		BTLeafPage leafPage;
+		RID first = new RID();
+		PageId oldRoot = headerPage.get_rootId();
+		int slot, records, space, maxSpace, recordSpace;
+
+		if (fillFactor < 1 || fillFactor > 100)
+			throw new InsertException(null, "fill factor out of range");
+		if (BTLatches.enabled())
+			throw new InsertException(null, "no compact in concurrent mode");
+		if (oldRoot.pid == INVALID_PAGE)
+			return;
+
+		// size the leaf level for the run
+		records = space = maxSpace = 0;
+		for (leafPage = findRunStart(null, first); leafPage != null; leafPage = nextLeaf(leafPage)) {
+			for (slot = 0; slot < leafPage.getSlotCnt(); slot++) {
+				if (prefixLeaves) // sized with full keys, see maxPages
+					recordSpace = BTPrefixLeaves.record(leafPage, slot).length
+							+ HFPage.SIZE_OF_SLOT;
+				else if (denseLeaves) // sized as slotted, which bounds both
+					recordSpace = BTDenseLeaves.ENTRY_SIZE
+							+ HFPage.SIZE_OF_SLOT;
+				else
+					recordSpace = BTSortedPages.recordSpace(leafPage, slot);
+				records++;
+				space += recordSpace;
+				maxSpace = Math.max(maxSpace, recordSpace);
+			}
+		}
+
+		PageId newRoot = new PageId(INVALID_PAGE);
+		if (records > 0) {
+			if (prefixLeaves)
+				maxSpace += 2;
+			int runLength = BTBulkLoader.maxPages(records, space, maxSpace,
+					fillFactor, countedIndex);
+			PageId run = new PageId();
+			try {
+				// under the lock of newPage and freePage
+				BTBufMgr.allocate_page(run, runLength);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ConstructPageException(e, "allocate page run failed");
+			}
+
+			BTBulkLoader loader = new BTBulkLoader(headerPage.get_keyType(),
+					fillFactor, prefixLeaves, denseLeaves, countedIndex, run,
+					runLength);
+			leafPage = null;
+			newRoot = null;
+			try {
+				for (leafPage = findRunStart(null, first); leafPage != null; leafPage = nextLeaf(leafPage)) {
+					byte[] data = leafPage.getpage();
+					for (slot = 0; slot < leafPage.getSlotCnt(); slot++) {
+						if (prefixLeaves) {
+							loader.addRecord(BTPrefixLeaves.keyBytes(
+									leafPage, slot), BTPrefixLeaves.record(
+									leafPage, slot));
+							continue;
+						}
+						if (denseLeaves) {
+							loader.addRecord(BTDenseLeaves.keyBytes(leafPage,
+									slot), BTDenseLeaves.record(leafPage,
+									slot));
+							continue;
+						}
+						byte[] record = new byte[leafPage.getSlotLength(slot)];
+						System.arraycopy(data, leafPage.getSlotOffset(slot),
+								record, 0, record.length);
+						loader.addRecord(BTSortedPages.keyBytes(leafPage,
+								slot), record);
 					}
-					else
-					{
-						lastTemp = temp;
-						temp = currentLeafPage.getNext(delRid);
-					}
 				}
-				if(BT.keyCompare(key, lastTemp.key)>0)
+				newRoot = loader.finish();
+			} finally {
+				// an exception: the old tree stays, the run goes back whole
+				if (newRoot == null)
+					abortCompact(loader, leafPage, run, runLength);
+			}
+
+			if (loader.unusedLength() > 0) {
+				try {
+					BTBufMgr.deallocate_page(loader.unusedStart(), loader
+							.unusedLength());
+				} catch (Exception e) {
+					e.printStackTrace();
+					throw new FreePageException(e, "");
+				}
+			}
+		}
+
+		updateHeader(newRoot);
+		_destroyFile(oldRoot);
+
+		// the same entries on other pages
+		BTStatistics.Analysis analysis = new BTStatistics.Analysis();
+		countPages(analysis, null);
+		statistics.install(analysis, false);
+	}
+
+	/*
+	 * Give up a compact that failed while it copied the leaves into `run':
+	 * unpin the old leaf `leafPage' it was on, if any, and the pages the
+	 * loader has pinned, and deallocate the run. Errors are printed, not
+	 * thrown, so that the one compact failed with is the one reported.
+	 */
+	private void abortCompact(BTBulkLoader loader, BTLeafPage leafPage,
+			PageId run, int runLength) {
+		if (leafPage != null)
+			try {
+				unlatchPage(leafPage.getCurPage(), false);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		loader.abort();
+		try {
+			BTBufMgr.deallocate_page(run, runLength);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Unpin a pinned leaf page and pin the next one, null at the end of the
+	 * leaf level. In concurrent mode the next one is read latched before
+	 * the first one is let go of.
+	 */
+	private BTLeafPage nextLeaf(BTLeafPage leafPage) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException {
+		PageId next = leafPage.getNextPage();
+		BTLeafPage nextPage = null;
+		if (next.pid != INVALID_PAGE)
+			nextPage = new BTLeafPage(latchPage(next, false), headerPage
+					.get_keyType());
+		unlatchPage(leafPage.getCurPage(), false);
+		return nextPage;
+	}
+
+	/**
+	 * Count the pages of the tree.
+	 *
+	 * @return { leaf pages, index pages, leaf pages that do not follow their
+	 *         predecessor in the leaf level directly in page number order,
+	 *         levels }. The third one is the number of seeks a scan of the
+	 *         whole leaf level makes; the levels count the leaf level too.
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int[] pageCounts() throws IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			IOException {
+		int[] counts = new int[4];
+		PageId rootId;
+		PageId pageno;
+		int levels = 0; // index levels
+		int prev = INVALID_PAGE;
+
+		// in concurrent mode the root stays the same while the header page
+		// is read latched
+		BTLatches.shared(headerPageId);
+		rootId = pageno = new PageId(headerPage.get_rootId().pid);
+		if (pageno.pid == INVALID_PAGE) {
+			BTLatches.release(headerPageId);
+			return counts;
+		}
+
+		// down the left-most children to the first leaf
+		BTSortedPage page = new BTSortedPage(latchPage(pageno, false),
+				headerPage.get_keyType());
+		while (page.getType() == NodeType.INDEX) {
+			levels++;
+			PageId child = page.getPrevPage();
+			BTSortedPage childPage = new BTSortedPage(latchPage(child, false),
+					headerPage.get_keyType());
+			unlatchPage(pageno, false);
+			pageno = child;
+			page = childPage;
+		}
+
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		for (; leafPage != null; leafPage = nextLeaf(leafPage)) {
+			counts[0]++;
+			if (leafPage.getCurPage().pid != prev + 1)
+				counts[2]++;
+			prev = leafPage.getCurPage().pid;
+		}
+
+		counts[1] = countIndexPages(rootId, levels, null);
+		counts[3] = levels + 1;
+		BTLatches.release(headerPageId);
+		return counts;
+	}
+
+	/*
+	 * Number of index pages in the top `levels' levels of the subtree at
+	 * `pageno'. If `leaves' is not null and the subtree is `levels' index
+	 * levels high, the page numbers of its leaves are added to it in key
+	 * order; the leaves are not read.
+	 */
+	private int countIndexPages(PageId pageno, int levels,
+			ArrayList<Integer> leaves) throws IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			IOException {
+		if (levels == 0)
+			return 0;
+
+		int count = 1;
+		if (levels > 1 || leaves != null) {
+			BTIndexPage indexPage = new BTIndexPage(latchPage(pageno, false),
+					headerPage.get_keyType());
+			int children = indexPage.getSlotCnt() + 1;
+			for (int child = 0; child < children; child++) {
+				PageId childId = BTSortedPages.child(indexPage, child);
+				if (levels > 1)
+					count += countIndexPages(childId, levels - 1, leaves);
+				else
+					leaves.add(childId.pid);
+			}
+			unlatchPage(pageno, false);
+		}
+		return count;
+	}
+
+	/*
+	 * `low' and `high' are the fences of page `currentPageId', the
+	 * separators left and right of it in the pages above, or null for none;
+	 * only prefix-compressed leaves need them. `held' is null but in
+	 * concurrent mode; see letGoAbove.
+	 */
+	private KeyDataEntry _insert(KeyClass key, byte[] keyBytes, RID rid,
+			PageId currentPageId, byte[] low, byte[] high,
+			ArrayList<PageId> held)
+			throws PinPageException, IOException, ConstructPageException,
+			LeafDeleteException, ConstructPageException, DeleteRecException,
+			IndexSearchException, UnpinPageException, LeafInsertRecException,
+			ConvertException, IteratorException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException, InsertException
+
+	{
+		Page page = latchPage(currentPageId, true);		//pin the page once, the typed views below share it
+		if(held != null)
+			held.add(currentPageId);
+		if(metrics != null)
+			metrics.descentLevels.increment();	// a level of the descent insert counted
+		BTSortedPage currentPage =  new BTSortedPage(page, headerPage.get_keyType()); 	//creating instance of a BTSortedPage
+		if(currentPage.getType() == NodeType.LEAF)			// if current page is a leaf type page
+		{
+			BTLeafPage currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());	//create a leaf page
+			if(prefixLeaves || denseLeaves)
+				return insertIntoLeaf(currentLeafPage, key, rid, low, high, held);
+			if(currentLeafPage.available_space() >= BT.getKeyDataLength(key, currentLeafPage.getType()))	//current leaf page has space for entries
+			{
+				insertLeafRecord(currentLeafPage, keyBytes, key, rid);	//inserting data into current leaf page as there is space available
+				letGo(held, currentLeafPage.getCurPage(), true);	//unpin the leaf page after the record is inserted
+				return null;
+			}
+			else 		//leaf page does not have space for entries
+			{
+				BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());	//create a new leaf page
+				PageId newLeafPageID = newLeafPage.getCurPage();	//get the page id of the newly created leaf page
+				if(metrics != null)
+					metrics.leafSplits.increment();
+				statistics.leafAdded(1);
+				BTLatches.exclusive(newLeafPageID);		//latched before the other leaves link to it
+				newLeafPage.setNextPage(currentLeafPage.getNextPage());  //Next page of new leaf points to the next page of old leaf
+				currentLeafPage.setNextPage(newLeafPageID);             //next page of old leaf points to new leaf
+				newLeafPage.setPrevPage(currentLeafPage.getCurPage());  //Previous page of new leaf points to old leaf
+				if(newLeafPage.getNextPage().pid != INVALID_PAGE)		//the leaf after the old one now comes after the new leaf
+				{
+					BTLeafPage nextLeafPage = new BTLeafPage(latchPage(newLeafPage.getNextPage(), true), headerPage.get_keyType());
+					nextLeafPage.setPrevPage(newLeafPageID);
+					unlatchPage(nextLeafPage.getCurPage(), true);
+				}
+				int half = currentLeafPage.getSlotCnt() / 2;
+				moveRecords(currentLeafPage, half, newLeafPage);	//the upper half of the records moves to the new leaf in one pass
+				if(BTSortedPages.compareKey(currentLeafPage, half - 1, keyBytes) < 0)	//key goes after the last record that stayed
 				{
-					newLeafPage.insertRecord(key,rid);
+					insertLeafRecord(newLeafPage, keyBytes, key, rid);
 				}
 				else
 				{
-					currentLeafPage.insertRecord(key, rid);
+					insertLeafRecord(currentLeafPage, keyBytes, key, rid);
 				}
 				
-				unpinPage(currentLeafPage.getCurPage(), true);		//unpin the current page
-				
-				KeyDataEntry copy;   
-				
-				temp = newLeafPage.getFirst(delRid);   
+				letGo(held, currentLeafPage.getCurPage(), true);		//unpin the current page
 				
-				copy = new KeyDataEntry(temp.key, newLeafPageID); 	//The first entry record of the new split leaf node is copied to index node
+				KeyDataEntry copy = new KeyDataEntry(BTSortedPages.getKey(newLeafPage, 0), newLeafPageID); 	//The first key of the new split leaf node is copied to index node
 				
-				
-				unpinPage(newLeafPageID, true);
+				unlatchPage(newLeafPageID, true);
 				
 				return copy;
 	
@@ -469,76 +1554,66 @@ System.out.println(key);
 		}
 		else if(currentPage.getType() == NodeType.INDEX)		//if current page is a index type page
 		{
-			BTIndexPage currentIndexPage = new BTIndexPage(currentPageId, headerPage.get_keyType());	//create an instance of an index page
-			PageId currentIndexPageId = currentIndexPage.getPageNoByKey(key);		// get the page id of the created index page
-			unpinPage(currentIndexPage.getCurPage());		//unpin the current index page
+			BTIndexPage currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());	//create an instance of an index page
+			if(held != null && insertSafe(currentIndexPage))	//a split below cannot split this page, nothing above changes
+				letGoAbove(held);
+			int child = BTSortedPages.upperBound(currentIndexPage, keyBytes);		// binary search for the child the key belongs to
+			PageId currentIndexPageId = BTSortedPages.child(currentIndexPage, child);
+			if(prefixLeaves)	//the separators around the child are its fences
+			{
+				if(child > 0)
+					low = BTSortedPages.keyBytes(currentIndexPage, child - 1);
+				if(child < currentIndexPage.getSlotCnt())
+					high = BTSortedPages.keyBytes(currentIndexPage, child);
+			}
+			if(countedIndex)	//counted before going down, the pages above a safe child are let go of on the way
+				BTCounts.add(currentIndexPage, child, 1);
 			KeyDataEntry upEntry = null;
-			upEntry = _insert(key, rid, currentIndexPageId);
+			upEntry = _insert(key, keyBytes, rid, currentIndexPageId, low, high, held);	//the index page stays pinned, a split below may add an entry to it
 			if(upEntry==null)	//split has not occured
 			{
+				letGo(held, currentIndexPage.getCurPage(), countedIndex);		//unpin the current index page
 				return null;
 			}
 			else
 			{
-				if(currentIndexPage.available_space()>BT.getKeyDataLength(upEntry.key, NodeType.INDEX))	//index page has space for entries
+				byte[] upRecord = splitRecord(currentIndexPage, child, upEntry);
+				if(currentIndexPage.available_space()>upRecord.length)	//index page has space for entries
 				{
-					
-					IndexData indexRecord = (IndexData) upEntry.data;
-					currentIndexPage.insertKey(upEntry.key, indexRecord.getData());		//inserting data into current index page
-					unpinPage(currentIndexPage.getCurPage(), true);
+					insertIndexRecord(currentIndexPage, child, upRecord);		//the entry for the split off page goes right after the entry of the child
+					letGo(held, currentIndexPage.getCurPage(), true);
 				}
 				else		//index page does not have space for the record to be inserted
 				{
-					BTIndexPage newIndexPage = new BTIndexPage(headerPage.get_keyType());	//create a new index page
-					KeyDataEntry temp = null, lastTemp = null;
+					BTIndexPage newIndexPage = newIndexPage();	//create a new index page
+					BTLatches.exclusive(newIndexPage.getCurPage());		//latched before the current page links to it
+					if(metrics != null)
+						metrics.indexSplits.increment();
+					statistics.indexPageAdded(1);
 					RID delRid = new RID();
-					for(temp = currentIndexPage.getFirst(delRid); temp!=null; temp = currentIndexPage.getFirst(delRid))	//transfer records from current index page to new index page
-					{
-					
-						System.out.println(temp.key);
-						IndexData indexRecord = (IndexData)temp.data;
-						newIndexPage.insertKey(temp.key, indexRecord.getData());	//insert records on new index page
-						
-						currentIndexPage.deleteSortedRecord(delRid);	//delete the records from current index page
-					}
-					
-					for(temp = newIndexPage.getFirst(delRid); newIndexPage.available_space()< currentIndexPage.available_space();
-							temp = newIndexPage.getFirst(delRid))	//split the records
-					{
-						
-										
-						IndexData indexRecord = (IndexData)(temp.data);	
-						currentIndexPage.insertKey(temp.key, indexRecord.getData());
-						
-						newIndexPage.deleteSortedRecord(delRid);
-						lastTemp = temp;
-					
-					}
-					
-					temp = newIndexPage.getFirst(delRid);
+					int half = currentIndexPage.getSlotCnt() / 2;
+					moveRecords(currentIndexPage, half, newIndexPage);	//the upper half of the records moves to the new index page in one pass
 					
-					
-					if(BT.keyCompare(upEntry.key, temp.key) > 0)		
+					if(child > half)		//placed by position, not by key: with duplicate keys the key may equal its neighbours'
 					{
-						IndexData indexRecord = (IndexData)(upEntry.data);	
-						newIndexPage.insertKey(upEntry.key, indexRecord.getData());		//new key moves to new index page
+						insertIndexRecord(newIndexPage, child - half, upRecord);		//new key moves to new index page
 					}
 					else
 					{
-						IndexData indexRecord = (IndexData)(upEntry.data);	
-						currentIndexPage.insertKey(upEntry.key, indexRecord.getData());	//new key will be on the current index page only
-						
+						insertIndexRecord(currentIndexPage, child, upRecord);	//new key will be on the current index page only
 					}
-					unpinPage(currentIndexPage.getCurPage(), true);		//unpin the current index page
 					upEntry = newIndexPage.getFirst(delRid);
 					
 					
 					
-					newIndexPage.setPrevPage(((IndexData)upEntry.data).getData());		//set the left link of the new index page to the node where the data is referring to
+					setLeftChild(newIndexPage, newIndexPage, 1);		//set the left link of the new index page to the node where the data is referring to
 					
 					newIndexPage.deleteSortedRecord(delRid); //Delete the first record from new index page
-										
-					unpinPage(newIndexPage.getCurPage(), true);			//unpin the new index page
+					
+					newIndexPage.setNextPage(currentIndexPage.getNextPage());	//the new index page goes right of the current one on its level
+					currentIndexPage.setNextPage(newIndexPage.getCurPage());
+					letGo(held, currentIndexPage.getCurPage(), true);		//unpin the current index page
+					unlatchPage(newIndexPage.getCurPage(), true);			//unpin the new index page
 					
 					
 					((IndexData)upEntry.data).setData(newIndexPage.getCurPage());	//set the higher index page to the index new page
@@ -551,6 +1626,7 @@ System.out.println(key);
 		}
 		else
 		{
+			letGo(held, currentPageId, false);
 			throw new InsertException(null,"");
 		}
 		
@@ -561,6 +1637,338 @@ System.out.println(key);
 
 
 
+	/*
+	 * The leaf case of _insert for prefix-compressed and dense leaves:
+	 * insert into the pinned leaf, splitting it if it is full, and unpin it.
+	 * Returns the entry for the split off leaf, or null.
+	 */
+	private KeyDataEntry insertIntoLeaf(BTLeafPage leafPage, KeyClass key,
+			RID rid, byte[] low, byte[] high, ArrayList<PageId> held) throws PinPageException,
+			UnpinPageException, LeafInsertRecException, InsertException,
+			ConstructPageException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, IOException {
+		int keyType = headerPage.get_keyType();
+		byte[] record = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+		byte[] up = null;
+
+		if (leafInsertRecord(leafPage, record) == null) {
+			up = splitLeaf(leafPage, low, high);
+			if (BTSortedPages.compareKey(record, 0, keyType, up) >= 0) {
+				PageId newLeafPageId = BTSortedPages.childOf(up);
+				Page newLeaf = latchPage(newLeafPageId, true);
+				if (held != null)
+					held.add(newLeafPageId);
+				letGo(held, leafPage.getCurPage(), true);
+				leafPage = new BTLeafPage(newLeaf, keyType);
+			}
+			if (leafInsertRecord(leafPage, record) == null)
+				throw new InsertException(null, "record does not fit a leaf");
+		}
+		letGo(held, leafPage.getCurPage(), true);
+
+		if (up == null)
+			return null;
+		return new KeyDataEntry(prefixLeaves ? BTPrefixLeaves.getKey(up)
+				: BTDenseLeaves.getKey(up), BTSortedPages.childOf(up));
+	}
+
+	/*
+	 * The index record for the entry `entry' that a split of child `child'
+	 * of the pinned index page `page' pushed up. In a counted tree the count
+	 * of the child is set again, and the record gets the count of the page
+	 * split off, both read off the pages.
+	 */
+	private byte[] splitRecord(BTIndexPage page, int child, KeyDataEntry entry)
+			throws KeyNotMatchException, IteratorException, PinPageException,
+			UnpinPageException, IOException {
+		PageId pageNo = ((IndexData) entry.data).getData();
+		if (!countedIndex)
+			return BTSortedPages.indexRecord(BTSortedPages.keyBytes(entry.key),
+					pageNo);
+		BTCounts.setCount(page, child, subtreeCount(BTSortedPages.child(page,
+				child)));
+		return BTCounts.indexRecord(BTSortedPages.keyBytes(entry.key),
+				subtreeCount(pageNo), pageNo);
+	}
+
+	/*
+	 * Whether an index page can take the entry of any page split below it
+	 * without splitting itself.
+	 */
+	private boolean insertSafe(BTIndexPage indexPage) throws IOException {
+		return indexPage.available_space() > headerPage.get_maxKeySize()
+				+ indexDataSize();
+	}
+
+	/*
+	 * Insert a leaf record into the leaf where its key goes, whatever the
+	 * layout of the leaves. Returns null if the leaf is full.
+	 */
+	private RID leafInsertRecord(BTLeafPage page, byte[] record)
+			throws LeafInsertRecException, IOException {
+		try {
+			if (prefixLeaves)
+				return BTPrefixLeaves.insertRecord(page, record);
+			if (denseLeaves)
+				return BTDenseLeaves.insertRecord(page, record);
+			return BTSortedPages.insertRecord(page, record, record);
+		} catch (InsertRecException e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	/*
+	 * Insert records [from, to) of `records', sorted on their key and all
+	 * in the key range of page `pageno', into the subtree below it. The
+	 * index records for the pages that splits add right of `pageno' are
+	 * appended to `up' in page order; the caller inserts them into the
+	 * parent, right after the entry for `pageno'. `low' and `high' are the
+	 * fences of `pageno', as in _insert.
+	 */
+	private void _insertBatch(List<byte[]> records, int from, int to,
+			PageId pageno, byte[] low, byte[] high, ArrayList<byte[]> up)
+			throws PinPageException,
+			UnpinPageException, LeafInsertRecException,
+			IndexInsertRecException, InsertException, DeleteRecException,
+			IteratorException, ConstructPageException, IOException {
+
+		Page page = latchPage(pageno, true);
+		BTSortedPage sortedPage = new BTSortedPage(page, headerPage
+				.get_keyType());
+		// the pages the first record goes through make the one descent
+		if (from == 0 && metrics != null)
+			metrics.descentLevels.increment();
+
+		if (sortedPage.getType() == NodeType.LEAF) {
+			insertLeafRecords(new BTLeafPage(page, headerPage.get_keyType()),
+					records, from, to, low, high, up);
+			return;
+		}
+		if (sortedPage.getType() != NodeType.INDEX) {
+			unlatchPage(pageno, false);
+			throw new InsertException(null, "");
+		}
+
+		// hand every child the run of records that falls between its two
+		// separators; the page stays pinned, and unchanged but for the
+		// counts of a counted tree, until the index records of the
+		// children's splits go into it
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		ArrayList<byte[]> childUp = new ArrayList<byte[]>();
+		ArrayList<Integer> children = new ArrayList<Integer>();
+		int slots = indexPage.getSlotCnt();
+		int i = from;
+		while (i < to) {
+			int n = BTSortedPages.upperBound(indexPage, records.get(i));
+			int j = i + 1;
+			if (n == slots)
+				j = to;
+			else
+				while (j < to
+						&& BTSortedPages.compareKey(indexPage, n, records
+								.get(j)) > 0)
+					j++;
+			PageId childId = BTSortedPages.child(indexPage, n);
+			int split = childUp.size();
+			_insertBatch(records, i, j, childId, n > 0 ? BTSortedPages
+					.keyBytes(indexPage, n - 1) : low,
+					n < slots ? BTSortedPages.keyBytes(indexPage, n) : high,
+					childUp);
+			if (countedIndex) { // the child and the pages split off it
+				BTCounts.setCount(indexPage, n, subtreeCount(childId));
+				recount(childUp, split);
+			}
+			while (children.size() < childUp.size())
+				children.add(n);
+			i = j;
+		}
+		insertIndexRecords(indexPage, childUp, children, up);
+	}
+
+	/*
+	 * Insert records [from, to) of `records', sorted on their key, into the
+	 * pinned leaf `page', splitting it as it fills up, and unpin it. The
+	 * index record of every leaf split off is added to `up'; up[right] is
+	 * always the leaf right of the one records go into, so a record at or
+	 * past its key moves on to that leaf. `low' and `high' are the fences
+	 * of `page'.
+	 */
+	private void insertLeafRecords(BTLeafPage page, List<byte[]> records,
+			int from, int to, byte[] low, byte[] high, ArrayList<byte[]> up)
+			throws PinPageException,
+			UnpinPageException, LeafInsertRecException, InsertException,
+			ConstructPageException, IOException {
+
+		int keyType = headerPage.get_keyType();
+		int right = up.size();
+		int i = from;
+
+		while (i < to) {
+			byte[] record = records.get(i);
+			if (right < up.size()
+					&& BTSortedPages.compareKey(record, 0, keyType, up
+							.get(right)) >= 0) {
+				// the separator of the next leaf is its low fence
+				low = up.get(right);
+				PageId next = BTSortedPages.childOf(up.get(right++));
+				Page nextPage = latchPage(next, true);
+				unlatchPage(page.getCurPage(), true);
+				page = new BTLeafPage(nextPage, keyType);
+				continue;
+			}
+
+			RID rid = leafInsertRecord(page, record);
+			if (rid == null) // full: split, and look again where it goes
+				up.add(right, splitLeaf(page, low, right < up.size() ? up
+						.get(right) : high));
+			else
+				i++;
+		}
+		unlatchPage(page.getCurPage(), true);
+	}
+
+	/*
+	 * Insert index records into the pinned index page `page', splitting it
+	 * as it fills up, and unpin it. records[i] goes right after the entry
+	 * for child children[i] of the page as it was before the call; both
+	 * lists are in page order. Records go in by position, not by key: with
+	 * duplicate keys a separator can equal its neighbours. The index record
+	 * of every page split off is added to `up'.
+	 */
+	private void insertIndexRecords(BTIndexPage page, List<byte[]> records,
+			List<Integer> children, ArrayList<byte[]> up)
+			throws PinPageException, UnpinPageException,
+			IndexInsertRecException, InsertException, DeleteRecException,
+			IteratorException, ConstructPageException, IOException {
+
+		int keyType = headerPage.get_keyType();
+		int right = up.size();
+		int slot = 0; // where the next record goes
+		int child = 0; // the child of the original page right before `slot'
+		int i = 0;
+
+		while (i < records.size()) {
+			if (slot > page.getSlotCnt()) {
+				// past the end, the page was split: the records from there
+				// on, but the first, are on the next page, the first is its
+				// separator
+				slot -= page.getSlotCnt() + 1;
+				Page nextPage = latchPage(BTSortedPages.childOf(up
+						.get(right++)), true);
+				unlatchPage(page.getCurPage(), true);
+				page = new BTIndexPage(nextPage, keyType);
+				continue;
+			}
+			if (child < children.get(i)) { // step over an original entry
+				slot++;
+				child++;
+				continue;
+			}
+
+			RID rid;
+			try {
+				rid = BTSortedPages.insertRecord(page, slot, records.get(i));
+			} catch (InsertRecException e) {
+				e.printStackTrace();
+				throw new IndexInsertRecException(e, "");
+			}
+			if (rid == null) { // full: split, and look again where it goes
+				up.add(right, splitIndexPage(page));
+			} else {
+				slot++;
+				i++;
+			}
+		}
+		unlatchPage(page.getCurPage(), true);
+	}
+
+	/*
+	 * Move the upper half of a full leaf to a new leaf linked in after it.
+	 * Returns the index record for the new leaf, which is unpinned. For
+	 * prefix-compressed leaves the separator is cut short, and `low' and
+	 * `high', the fences of the full leaf, give both leaves their prefix.
+	 */
+	private byte[] splitLeaf(BTLeafPage leafPage, byte[] low, byte[] high)
+			throws PinPageException, UnpinPageException, InsertException,
+			ConstructPageException, IOException {
+
+		BTLeafPage newLeafPage = new BTLeafPage(headerPage.get_keyType());
+		PageId newLeafPageId = newLeafPage.getCurPage();
+		BTLatches.exclusive(newLeafPageId); // before its neighbours link to it
+		if (metrics != null)
+			metrics.leafSplits.increment();
+		statistics.leafAdded(1);
+		if (prefixLeaves)
+			BTPrefixLeaves.init(newLeafPage, BTPrefixLeaves.prefix(leafPage));
+		if (denseLeaves)
+			BTDenseLeaves.init(newLeafPage);
+		newLeafPage.setNextPage(leafPage.getNextPage());
+		newLeafPage.setPrevPage(leafPage.getCurPage());
+		leafPage.setNextPage(newLeafPageId);
+		if (newLeafPage.getNextPage().pid != INVALID_PAGE) {
+			BTLeafPage nextLeafPage = new BTLeafPage(latchPage(newLeafPage
+					.getNextPage(), true), headerPage.get_keyType());
+			nextLeafPage.setPrevPage(newLeafPageId);
+			unlatchPage(nextLeafPage.getCurPage(), true);
+		}
+		int count = leafPage.getSlotCnt();
+		if (denseLeaves)
+			BTDenseLeaves.moveRange(leafPage, count / 2, count, newLeafPage, 0);
+		else
+			moveRecords(leafPage, count / 2, newLeafPage);
+
+		byte[] key;
+		if (prefixLeaves) {
+			// longer prefixes leave the records shorter, so they always fit
+			key = BTPrefixLeaves.separator(BTPrefixLeaves.keyBytes(leafPage,
+					leafPage.getSlotCnt() - 1), BTPrefixLeaves.keyBytes(
+					newLeafPage, 0));
+			BTPrefixLeaves.setPrefix(leafPage, BTPrefixLeaves.prefixOf(low,
+					key));
+			BTPrefixLeaves.setPrefix(newLeafPage, BTPrefixLeaves.prefixOf(
+					key, high));
+		} else if (denseLeaves) {
+			key = BTDenseLeaves.keyBytes(newLeafPage, 0);
+		} else {
+			key = BTSortedPages.keyBytes(newLeafPage, 0);
+		}
+		byte[] record = indexRecord(key, newLeafPage.getSlotCnt(),
+				newLeafPageId);
+		unlatchPage(newLeafPageId, true);
+		return record;
+	}
+
+	/*
+	 * Move the upper half of a full index page to a new index page. The
+	 * first of the moved entries leaves the page: its child becomes the
+	 * left-most child of the new page and its key the separator. Returns
+	 * the index record for the new page, which is unpinned; in a counted
+	 * tree its count is the one of the page as it is now.
+	 */
+	private byte[] splitIndexPage(BTIndexPage indexPage)
+			throws UnpinPageException, InsertException, DeleteRecException,
+			IteratorException, ConstructPageException, IOException {
+
+		BTIndexPage newIndexPage = newIndexPage();
+		PageId newIndexPageId = newIndexPage.getCurPage();
+		BTLatches.exclusive(newIndexPageId);
+		if (metrics != null)
+			metrics.indexSplits.increment();
+		statistics.indexPageAdded(1);
+		moveRecords(indexPage, indexPage.getSlotCnt() / 2, newIndexPage);
+
+		byte[] key = BTSortedPages.keyBytes(newIndexPage, 0);
+		setLeftChild(newIndexPage, newIndexPage, 1);
+		newIndexPage.deleteSortedRecord(new RID(newIndexPageId, 0));
+		newIndexPage.setNextPage(indexPage.getNextPage());
+		indexPage.setNextPage(newIndexPageId);
+		byte[] record = indexRecord(key, countedIndex ? BTCounts
+				.total(newIndexPage) : 0, newIndexPageId);
+		unlatchPage(newIndexPageId, true);
+		return record;
+	}
+
 	/**
 	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
 	 * it is not the id of the data entry)
@@ -614,10 +2022,24 @@ System.out.println(key);
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
+		BTMetrics timed = metrics;
+		long start = timed != null ? System.nanoTime() : 0;
+		boolean deleted;
+
 		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
+			deleted = NaiveDelete(key, rid);
+		else if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE)
+			deleted = FullDelete(key, rid);
 		else
 			throw new DeleteFashionException(null, "");
+		if (deleted) {
+			byte[] keyBytes = BTSortedPages.keyBytes(key);
+			invalidateLookup(keyBytes);
+			statistics.deleted(keyBytes, entrySpace(keyBytes));
+		}
+		if (timed != null)
+			timed.delete.record(System.nanoTime() - start);
+		return deleted;
 	}
 
 	/*
@@ -644,175 +2066,1559 @@ System.out.println(key);
 	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
 			IteratorException, KeyNotMatchException, ConstructPageException,
 			PinPageException, UnpinPageException {
+		return findRunStart(lo_key, startrid, false);
+	}
+
+	/*
+	 * findRunStart, with the leaf latched for writing in concurrent mode if
+	 * `exclusive'; the leaves it goes right over are too.
+	 */
+	private BTLeafPage findRunStart(KeyClass lo_key, RID startrid,
+			boolean exclusive) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
 		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
-		Page page;
-		BTSortedPage sortPage;
 		PageId pageno;
-		PageId curpageno = null; // iterator
-		PageId prevpageno;
 		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
+		int slot;
+		byte[] loBytes; // lo_key as stored in the pages, compared in place
+
+		loBytes = lo_key == null ? null : BTSortedPages.keyBytes(lo_key);
+		pageLeaf = descend(loBytes, false, exclusive);
+		if (pageLeaf == null) // no pages in the BTREE
+			return null;
+		pageno = pageLeaf.getCurPage();
+
+		// binary search the leaf for the first key >= lo_key; if there is
+		// none (this also skips empty leaf pages), go right
+		slot = loBytes == null ? 0 : leafLowerBound(pageLeaf, loBytes);
+		while (slot == pageLeaf.getSlotCnt()) {
+			nextpageno = pageLeaf.getNextPage();
 
-		pageno = headerPage.get_rootId();
+			if (nextpageno.pid == INVALID_PAGE) {
+				// oops, no more records, so set this scan to indicate this.
+				unlatchPage(pageno, false);
+				return null;
+			}
 
-		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			pageLeaf = null; // should be handled by
-			// startrid =INVALID_PAGEID ; // the caller
-			return pageLeaf;
+			// the next leaf is latched before this one is let go of
+			pageLeaf = new BTLeafPage(latchPage(nextpageno, exclusive),
+					headerPage.get_keyType());
+			if (metrics != null)
+				metrics.leafSkips.increment();
+			unlatchPage(pageno, false);
+			pageno = nextpageno;
+			slot = loBytes == null ? 0 : leafLowerBound(pageLeaf,
+					loBytes);
 		}
 
-		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		// ASSERTIONS:
+		// - startrid: the first record >= lo_key
+		// - pageLeaf, pageno valid and pinned
+		// note that pageno/pageLeaf is still pinned;
+		// scan will unpin it when done
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
+		startrid.pageNo = pageLeaf.getCurPage();
+		startrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/*
+	 * Go down from the root to the leaf of `key' and return it pinned, or
+	 * null for an empty tree. With `right' the leaf is the one an insert of
+	 * `key' goes to, the right-most one with equal keys, or the last leaf
+	 * for a null key; else it is the one the left-most occurrence of `key'
+	 * is in, or the first leaf. In concurrent mode each page is read latched
+	 * before the one above it is let go of, and the leaf is latched for
+	 * writing if `exclusive'.
+	 */
+	private BTLeafPage descend(byte[] key, boolean right, boolean exclusive)
+			throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		if (!right && bLink && BTLatches.enabled()
+				&& headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
+			return descendLinked(key, exclusive);
+
+		PageId above = headerPageId; // latched, the root is read from it
+		PageId pageno;
+		Page page;
+		BTSortedPage sortPage;
+		BTIndexPage pageIndex;
+		boolean traced = traceDescent();
+
+		BTLatches.shared(headerPageId);
+		pageno = new PageId(headerPage.get_rootId().pid);
+		if (pageno.pid == INVALID_PAGE) {
+			BTLatches.release(headerPageId);
+			return null;
 		}
 
-		// ASSERTION
-		// - pageno and sortPage is the root of the btree
-		// - pageno and sortPage valid and pinned
+		if (upperLevels != null && !BTLatches.enabled())
+			page = pinBelowCached(pageno, key, right, traced);
+		else
+			page = latchPage(pageno, false);
+		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		if (traced)
+			traceVisit(pageno);
+		int depth = 1; // pages pinned, the cached ones count in pinBelowCached
 
 		while (sortPage.getType() == NodeType.INDEX) {
+			if (above == headerPageId)
+				BTLatches.release(above);
+			else
+				unlatchPage(above, false);
+
+			// keys equal to a separator go right of it, the left-most
+			// occurrence of one may be left of it
 			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+			above = pageno;
+			if (!right)
+				pageno = BTSortedPages.childForSearch(pageIndex, key);
+			else if (key != null)
+				pageno = BTSortedPages.childForInsert(pageIndex, key);
+			else
+				pageno = BTSortedPages.child(pageIndex, pageIndex.getSlotCnt());
+			page = latchPage(pageno, false);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+			if (traced)
+				traceVisit(pageno);
+			depth++;
+		}
+		if (metrics != null) {
+			metrics.descents.increment();
+			metrics.descentLevels.add(depth);
+		}
+
+		if (exclusive && BTLatches.enabled()) {
+			// while the page above is latched the leaf cannot split or be
+			// merged away
+			unlatchPage(pageno, false);
+			page = latchPage(pageno, true);
+		}
+		if (above == headerPageId)
+			BTLatches.release(above);
+		else
+			unlatchPage(above, false);
+
+		return new BTLeafPage(page, headerPage.get_keyType());
+	}
 
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
+	/*
+	 * The part of descend that goes through the cached levels (see
+	 * setCachedLevels), from the root `pageno' down: pin and return the
+	 * first page under them that the search goes to, or the leaf it gets
+	 * to before that, and set `pageno' to it. The pages of the cached
+	 * levels are decoded on the way if they are not yet, and traced like
+	 * the others if `traced'.
+	 */
+	private Page pinBelowCached(PageId pageno, byte[] key, boolean right,
+			boolean traced) throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTUpperLevels upper = upperLevels;
+
+		for (int level = 0; level < upper.levels(); level++) {
+			BTUpperLevels.Node node = upper.node(pageno.pid);
+			if (node == null) {
+				Page page = pinPage(pageno);
+				BTSortedPage sortPage = new BTSortedPage(page, headerPage
+						.get_keyType());
+				if (sortPage.getType() != NodeType.INDEX)
+					return page; // the tree has fewer levels
+				node = upper.decode(new BTIndexPage(page, headerPage
+						.get_keyType()));
+				unpinPage(pageno);
 			}
+			if (traced)
+				traceVisit(pageno);
+			if (metrics != null)
+				metrics.descentLevels.increment();
+			pageno.pid = BTUpperLevels.child(node, key, right);
+		}
+		return pinPage(pageno);
+	}
 
-			unpinPage(pageno);
+	/*
+	 * descend for the left-most occurrence of `key' in B-link mode (see
+	 * setBLink): each page is let go of before the next one is latched, and
+	 * an index page is left for its right sibling while `key' is greater
+	 * than the sibling's first key. The leaf may be left of the one `key'
+	 * is in, if that split since its parent was read; findRunStart goes
+	 * right from there.
+	 */
+	private BTLeafPage descendLinked(byte[] key, boolean exclusive)
+			throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		PageId pageno;
+		Page page;
+		BTSortedPage sortPage;
+		BTIndexPage pageIndex;
+		boolean traced = traceDescent();
+
+		// a copy: the header page object is shared, and so is its root id
+		BTLatches.shared(headerPageId);
+		pageno = new PageId(headerPage.get_rootId().pid);
+		BTLatches.release(headerPageId);
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+
+		// a page the header named once is still in the tree, and the root
+		// only ever moves up: an old root finds the keys through its links
+		page = latchPage(pageno, false);
+		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		if (traced)
+			traceVisit(pageno);
+		int depth = 1; // pages visited, right siblings included
 
-			pageno = prevpageno;
-			page = pinPage(pageno);
+		while (sortPage.getType() == NodeType.INDEX) {
+			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
+			PageId next = pageIndex.getNextPage();
+			int last = pageIndex.getSlotCnt() - 1;
+
+			// only a key past the last separator can belong to the sibling
+			if (key != null && next.pid != INVALID_PAGE && last >= 0
+					&& BTSortedPages.compareKey(pageIndex, last, key) < 0) {
+				Page nextPage = latchPage(next, false);
+				BTIndexPage sibling = new BTIndexPage(nextPage, headerPage
+						.get_keyType());
+				if (sibling.getSlotCnt() > 0
+						&& BTSortedPages.compareKey(sibling, 0, key) < 0) {
+					unlatchPage(pageno, false);
+					pageno = next;
+					page = nextPage;
+					if (traced)
+						traceVisit(pageno);
+					depth++;
+					continue;
+				}
+				unlatchPage(next, false);
+			}
+
+			PageId child = BTSortedPages.childForSearch(pageIndex, key);
+			unlatchPage(pageno, false);
+			pageno = child;
+			page = latchPage(pageno, false);
 			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+			if (traced)
+				traceVisit(pageno);
+			depth++;
+		}
+		if (metrics != null) {
+			metrics.descents.increment();
+			metrics.descentLevels.add(depth);
+		}
+
+		if (exclusive) {
+			// the leaf may split in between, findRunStart goes right
+			unlatchPage(pageno, false);
+			page = latchPage(pageno, true);
+		}
+		return new BTLeafPage(page, headerPage.get_keyType());
+	}
+
+	/*
+	 * The searches of BTSortedPages over the full keys of a leaf, which may
+	 * be prefix-compressed.
+	 */
+
+	private int leafLowerBound(BTLeafPage leafPage, byte[] key) {
+		if (prefixLeaves)
+			return BTPrefixLeaves.lowerBound(leafPage, key);
+		if (denseLeaves)
+			return BTDenseLeaves.lowerBound(leafPage, key);
+		return BTSortedPages.lowerBound(leafPage, key);
+	}
+
+	private int leafUpperBound(BTLeafPage leafPage, byte[] key) {
+		if (prefixLeaves)
+			return BTPrefixLeaves.upperBound(leafPage, key);
+		if (denseLeaves)
+			return BTDenseLeaves.upperBound(leafPage, key);
+		return BTSortedPages.upperBound(leafPage, key);
+	}
+
+	private int leafCompareKey(BTLeafPage leafPage, int slot, byte[] key) {
+		if (prefixLeaves)
+			return BTPrefixLeaves.compareKey(leafPage, slot, key);
+		if (denseLeaves)
+			return BTDenseLeaves.compareKey(leafPage, slot, key);
+		return BTSortedPages.compareKey(leafPage, slot, key);
+	}
+
+	private byte[] leafKeyBytes(BTLeafPage leafPage, int slot) {
+		if (prefixLeaves)
+			return BTPrefixLeaves.keyBytes(leafPage, slot);
+		if (denseLeaves)
+			return BTDenseLeaves.keyBytes(leafPage, slot);
+		return BTSortedPages.keyBytes(leafPage, slot);
+	}
+
+	private RID leafGetRid(BTLeafPage leafPage, int slot) {
+		if (denseLeaves)
+			return BTDenseLeaves.getRid(leafPage, slot);
+		return BTSortedPages.getRid(leafPage, slot);
+	}
+
+	private boolean leafHasRid(BTLeafPage leafPage, int slot, RID rid) {
+		if (denseLeaves)
+			return BTDenseLeaves.hasRid(leafPage, slot, rid);
+		return BTSortedPages.hasRid(leafPage, slot, rid);
+	}
+
+	/*
+	 * Delete entry `slot' of a leaf; the entries after it move down by one.
+	 */
+	private void leafDeleteEntry(BTLeafPage leafPage, int slot)
+			throws DeleteRecException, IOException {
+		if (denseLeaves)
+			BTDenseLeaves.deleteEntry(leafPage, slot);
+		else
+			leafPage.deleteSortedRecord(new RID(leafPage.getCurPage(), slot));
+	}
+
+	/*
+	 * findRunEnd: the mirror image of findRunStart. Find the right-most
+	 * occurrence of `hi_key', or of the greatest key less than it, going
+	 * all the way right if hi_key is null.
+	 * 
+	 * @param hi_key find right-most occurrence of `hi_key', going all the
+	 * way right if hi_key is null.
+	 * 
+	 * @param endrid it will return the last rid <= hi_key
+	 * 
+	 * @return return a BTLeafPage instance which is pinned. null if no key was
+	 * found.
+	 */
+
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTLeafPage pageLeaf;
+		PageId pageno;
+		PageId prevpageno;
+		int slot;
+		byte[] hiBytes; // hi_key as stored in the pages, compared in place
+
+		hiBytes = hi_key == null ? null : BTSortedPages.keyBytes(hi_key);
+
+		// keys equal to a separator go right of it, so the right-most
+		// occurrence of hi_key is below the last entry not greater than it
+		while (true) {
+			pageLeaf = descend(hiBytes, true, false);
+			if (pageLeaf == null) // no pages in the BTREE
+				return null;
+			pageno = pageLeaf.getCurPage();
+
+			// binary search the leaf for the last key <= hi_key; if there is
+			// none (this also skips empty leaf pages), go left
+			slot = (hiBytes == null ? pageLeaf.getSlotCnt() : leafUpperBound(
+					pageLeaf, hiBytes)) - 1;
+			while (slot < 0) {
+				prevpageno = pageLeaf.getPrevPage();
+				if (prevpageno.pid == INVALID_PAGE) {
+					unlatchPage(pageno, false);
+					return null;
+				}
+				// latches go left to right: if a writer has the previous
+				// leaf, let it finish and start over
+				if (!BTLatches.tryShared(prevpageno)) {
+					unlatchPage(pageno, false);
+					BTLatches.shared(prevpageno);
+					BTLatches.release(prevpageno);
+					break;
+				}
+
+				pageLeaf = new BTLeafPage(pinPage(prevpageno), headerPage
+						.get_keyType());
+				unlatchPage(pageno, false);
+				pageno = prevpageno;
+				slot = pageLeaf.getSlotCnt() - 1;
+			}
+			if (slot >= 0)
+				break;
+		}
+
+		endrid.pageNo = pageLeaf.getCurPage();
+		endrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/*
+	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index.
+	 * 
+	 * We don't do merging or redistribution, but do allow duplicates.
+	 * 
+	 * Page containing first occurrence of key `key' is found for us by
+	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
+	 * find the one containing <key,rid>, which we then delete via
+	 * BTLeafPage::delUserRid.
+	 *
+	 * In a counted tree the counts on the way down to the leaf go down with
+	 * the entry, so <key, rid> is deleted from the root down, as in a full
+	 * delete but without the rebalancing, once for every time it is there.
+	 */
+
+	private boolean NaiveDelete(KeyClass key, RID rid)
+			throws LeafDeleteException, KeyNotMatchException, PinPageException,
+			ConstructPageException, IOException, UnpinPageException,
+			PinPageException, IndexSearchException, IteratorException,
+			DeleteRecException, FreePageException, InsertRecException {
+		BTLeafPage leafPage;
+		RID curRid = new RID();
+		byte[] keyBytes = BTSortedPages.keyBytes(key);
+		int slot;
+		boolean dirty = false; // something was deleted from leafPage
+		boolean deleted = false;
+
+		if (countedIndex) {
+			while (deleteFromRoot(keyBytes, rid) != NOT_FOUND)
+				deleted = true;
+			return deleted;
+		}
+
+		leafPage = findRunStart(key, curRid, true);
+		if (leafPage == null)
+			return false;
+		slot = curRid.slotNo;
+
+		// the run of `key' starts at curRid and may go on over several
+		// leaves; delete every <key, rid> in it
+		while (true) {
+			if (slot == leafPage.getSlotCnt()) {
+				PageId nextpage = leafPage.getNextPage();
+				if (nextpage.pid == INVALID_PAGE) {
+					unlatchPage(leafPage.getCurPage(), dirty);
+					return deleted;
+				}
+				Page page = latchPage(nextpage, true);
+				unlatchPage(leafPage.getCurPage(), dirty);
+				leafPage = new BTLeafPage(page, headerPage.get_keyType());
+				slot = 0;
+				dirty = false;
+				continue;
+			}
+
+			if (leafCompareKey(leafPage, slot, keyBytes) > 0)
+				break; // end of the run
+
+			if (leafHasRid(leafPage, slot, rid)) {
+				// the next entry moves into `slot'
+				leafDeleteEntry(leafPage, slot);
+				dirty = deleted = true;
+			} else {
+				slot++;
+			}
+		}
+
+		unlatchPage(leafPage.getCurPage(), dirty);
+		return deleted;
+	}
+
+	/*
+	 * Remove the data entry <key, rid> and keep every page but the root at
+	 * least half full (MIN_USED). A page that falls below that takes entries
+	 * from a sibling under the same parent, or is merged with it if both fit
+	 * on one page; a merge removes their separator from the parent, which
+	 * may leave the parent under half full in turn. A root index page left
+	 * without entries is replaced by its only child, and an empty root leaf
+	 * leaves an empty tree.
+	 */
+	private boolean FullDelete(KeyClass key, RID rid) throws IOException,
+			KeyNotMatchException, PinPageException, UnpinPageException,
+			FreePageException, ConstructPageException, IteratorException,
+			InsertRecException, DeleteRecException {
+		byte[] keyBytes = BTSortedPages.keyBytes(key);
+		int result;
+
+		// in a counted tree every delete changes the pages above the leaf
+		if ((BTLatches.enabled() || upperLevels != null) && !countedIndex) {
+			result = deleteInLeaf(key, keyBytes, rid);
+			if (result != UNDERFLOW)
+				return result == DELETED;
+		}
+		return deleteFromRoot(keyBytes, rid) != NOT_FOUND;
+	}
+
+	/*
+	 * Delete <key, rid> going down from the root with _delete, and collapse
+	 * the root if it is left under half full. Returns the result of
+	 * _delete.
+	 */
+	private int deleteFromRoot(byte[] keyBytes, RID rid) throws IOException,
+			PinPageException, UnpinPageException, FreePageException,
+			ConstructPageException, IteratorException, InsertRecException,
+			DeleteRecException {
+		ArrayList<PageId> held = null; // see letGoAbove
+		PageId rootId;
+		int result;
+
+		if (BTLatches.enabled()) {
+			// go down again, latching for writes from the header page on
+			held = new ArrayList<PageId>();
+			BTLatches.exclusive(headerPageId);
+			held.add(headerPageId);
+		}
+
+		rootId = new PageId(headerPage.get_rootId().pid);
+		if (rootId.pid == INVALID_PAGE)
+			result = NOT_FOUND;
+		else
+			result = _delete(keyBytes, rid, rootId, held, true);
+		if (result == UNDERFLOW)
+			collapseRoot();
+		if (held != null)
+			letGo(held, headerPageId, false); // still latched if the root changed
+		return result;
+	}
+
+	/*
+	 * The first go of a full delete in concurrent mode, or with cached
+	 * levels: find <key, rid> with
+	 * read latches down to the leaves and write latches along them, and
+	 * delete it if its leaf stays at least half full. Returns DELETED,
+	 * NOT_FOUND, or UNDERFLOW if the leaf would fall under half full; then
+	 * nothing is deleted. Nothing is latched afterwards.
+	 */
+	private int deleteInLeaf(KeyClass key, byte[] keyBytes, RID rid)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			DeleteRecException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid, true);
+		int slot, space;
+		int result = NOT_FOUND;
+
+		if (leafPage == null)
+			return NOT_FOUND;
+		for (slot = curRid.slotNo;; slot++) {
+			if (slot == leafPage.getSlotCnt()) {
+				PageId nextpage = leafPage.getNextPage();
+				if (nextpage.pid == INVALID_PAGE)
+					break;
+				Page page = latchPage(nextpage, true);
+				unlatchPage(leafPage.getCurPage(), false);
+				leafPage = new BTLeafPage(page, headerPage.get_keyType());
+				slot = -1;
+				continue;
+			}
+			if (leafCompareKey(leafPage, slot, keyBytes) > 0)
+				break; // end of the run
+			if (leafHasRid(leafPage, slot, rid)) {
+				space = denseLeaves ? BTDenseLeaves.ENTRY_SIZE : BTSortedPages
+						.recordSpace(leafPage, slot);
+				if (BTSortedPages.usedSpace(leafPage) - space < MIN_USED) {
+					result = UNDERFLOW;
+				} else {
+					leafDeleteEntry(leafPage, slot);
+					result = DELETED;
+				}
+				break;
+			}
+		}
+		unlatchPage(leafPage.getCurPage(), result == DELETED);
+		return result;
+	}
+
+	/*
+	 * Delete <key, rid> from the subtree rooted at `pageno' and rebalance
+	 * the child it was deleted under. Returns NOT_FOUND, DELETED or
+	 * UNDERFLOW for `pageno'; never UNDERFLOW in a naive delete, which only
+	 * goes this way in a counted tree. `held' is null but in concurrent
+	 * mode, see letGoAbove; `alone' is set if <key, rid> can only be in this
+	 * subtree, and the pages above it are then let go of if it is safe. The
+	 * pages above are not safe in a counted tree, whose counts only go down
+	 * once the entry is found.
+	 */
+	private int _delete(byte[] keyBytes, RID rid, PageId pageno,
+			ArrayList<PageId> held, boolean alone) throws IOException,
+			PinPageException, UnpinPageException, FreePageException,
+			ConstructPageException, IteratorException, InsertRecException,
+			DeleteRecException {
+		Page page = latchPage(pageno, true);
+		BTSortedPage sortedPage = new BTSortedPage(page, headerPage
+				.get_keyType());
+		int slot, result;
+		boolean last;
+
+		if (held != null) {
+			held.add(pageno);
+			if (alone && !countedIndex && deleteSafe(sortedPage))
+				letGoAbove(held);
+		}
+
+		if (sortedPage.getType() == NodeType.LEAF) {
+			BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+			for (slot = leafLowerBound(leafPage, keyBytes); slot < leafPage
+					.getSlotCnt()
+					&& leafCompareKey(leafPage, slot, keyBytes) == 0; slot++) {
+				if (leafHasRid(leafPage, slot, rid)) {
+					leafDeleteEntry(leafPage, slot);
+					result = BTSortedPages.usedSpace(leafPage) < MIN_USED
+							&& headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE ? UNDERFLOW
+							: DELETED;
+					letGo(held, pageno, true);
+					return result;
+				}
+			}
+			letGo(held, pageno, false);
+			return NOT_FOUND;
+		}
+
+		// the entries of `key' start in the child left of the first
+		// separator >= key and go on right past every separator equal to it
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		slot = BTSortedPages.lowerBound(indexPage, keyBytes);
+		while (true) {
+			last = slot == indexPage.getSlotCnt()
+					|| BTSortedPages.compareKey(indexPage, slot, keyBytes) != 0;
+			result = _delete(keyBytes, rid, BTSortedPages.child(indexPage, slot),
+					held, alone && last);
+			if (result != NOT_FOUND || last)
+				break;
+			slot++;
+		}
+
+		if (countedIndex && result != NOT_FOUND)
+			BTCounts.add(indexPage, slot, -1);
+		if (result != UNDERFLOW) {
+			letGo(held, pageno, countedIndex && result == DELETED);
+			return result;
+		}
+		rebalance(indexPage, slot);
+		result = BTSortedPages.usedSpace(indexPage) < MIN_USED ? UNDERFLOW
+				: DELETED;
+		letGo(held, pageno, true);
+		return result;
+	}
+
+	/*
+	 * Whether a page stays at least half full whatever a delete below it
+	 * takes from it: an entry, or the part of a separator a shorter one
+	 * replaces.
+	 */
+	private boolean deleteSafe(BTSortedPage page) throws IOException {
+		return BTSortedPages.usedSpace(page) - headerPage.get_maxKeySize() - 8
+				- HFPage.SIZE_OF_SLOT >= MIN_USED;
+	}
+
+	/*
+	 * Child `child' of the pinned index page `parent' is under half full:
+	 * pair it with its left sibling (its right one if it is the left-most
+	 * child) and merge or redistribute the two.
+	 */
+	private void rebalance(BTIndexPage parent, int child) throws IOException,
+			PinPageException, UnpinPageException, FreePageException,
+			ConstructPageException, IteratorException, InsertRecException,
+			DeleteRecException {
+		int separator = child > 0 ? child - 1 : 0; // entry between the two
+		if (separator == parent.getSlotCnt())
+			return; // only child, nothing to pair it with
+
+		PageId leftId = BTSortedPages.child(parent, separator);
+		PageId rightId = BTSortedPages.child(parent, separator + 1);
+		Page left = latchPage(leftId, true);
+		Page right = latchPage(rightId, true);
+		boolean merged;
+		boolean leaves = new BTSortedPage(left, headerPage.get_keyType())
+				.getType() == NodeType.LEAF;
+
+		if (leaves)
+			merged = rebalanceLeaves(parent, separator, new BTLeafPage(left,
+					headerPage.get_keyType()), new BTLeafPage(right, headerPage
+					.get_keyType()));
+		else
+			merged = rebalanceIndexPages(parent, separator, new BTIndexPage(
+					left, headerPage.get_keyType()), new BTIndexPage(right,
+					headerPage.get_keyType()));
+
+		if (countedIndex) {
+			BTCounts.setCount(parent, separator, BTCounts.total(new BTSortedPage(
+					left, headerPage.get_keyType())));
+			if (!merged)
+				BTCounts.setCount(parent, separator + 1, BTCounts
+						.total(new BTSortedPage(right, headerPage.get_keyType())));
+		}
+		unpinPage(leftId, true);
+		unpinPage(rightId, true);
+		if (merged) {
+			freePage(rightId);
+			if (leaves)
+				statistics.leafAdded(-1);
+			else
+				statistics.indexPageAdded(-1);
+		}
+		BTLatches.release(leftId);
+		BTLatches.release(rightId);
+	}
+
+	/*
+	 * Merge leaf `right' into leaf `left' if both fit on one page, else move
+	 * entries from the fuller one to the other until they hold about the
+	 * same. Entry `separator' of `parent' is between them. Returns true if
+	 * `right' was merged and can be freed.
+	 */
+	private boolean rebalanceLeaves(BTIndexPage parent, int separator,
+			BTLeafPage left, BTLeafPage right) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			InsertRecException, DeleteRecException, IteratorException {
+		int leftUsed = BTSortedPages.usedSpace(left);
+		int rightUsed = BTSortedPages.usedSpace(right);
+		int n, moved;
+
+		if (prefixLeaves)
+			return rebalancePrefixed(parent, separator, left, right);
+		if (denseLeaves)
+			return rebalanceDense(parent, separator, left, right);
+
+		if (leftUsed + rightUsed <= PAGE_CAPACITY) {
+			BTSortedPages.moveRange(right, 0, right.getSlotCnt(), left, left
+					.getSlotCnt());
+			unlinkLeaf(left, right);
+			parent.deleteSortedRecord(new RID(parent.getCurPage(), separator));
+			return true;
+		}
+
+		// the first key of `right' afterwards becomes the separator
+		if (leftUsed < rightUsed) {
+			for (n = 0, moved = 0; leftUsed + moved < rightUsed - moved
+					&& n < right.getSlotCnt() - 1; n++)
+				moved += BTSortedPages.recordSpace(right, n);
+			if (!keyFits(parent, separator, BTSortedPages.keyBytes(right, n)))
+				return false;
+			BTSortedPages.moveRange(right, 0, n, left, left.getSlotCnt());
+		} else {
+			for (n = left.getSlotCnt(), moved = 0; rightUsed + moved < leftUsed
+					- moved
+					&& n > 1; n--)
+				moved += BTSortedPages.recordSpace(left, n - 1);
+			if (!keyFits(parent, separator, BTSortedPages.keyBytes(left, n)))
+				return false;
+			BTSortedPages.moveRange(left, n, left.getSlotCnt(), right, 0);
+		}
+		replaceKey(parent, separator, BTSortedPages.keyBytes(right, 0));
+		return false;
+	}
+
+	/*
+	 * rebalanceLeaves for prefix-compressed leaves. The records of both are
+	 * laid out again: merged, under the prefix the two have in common, or
+	 * split in two halves at a new separator cut short, each under the part
+	 * of its prefix that the new separator shares.
+	 */
+	private boolean rebalancePrefixed(BTIndexPage parent, int separator,
+			BTLeafPage left, BTLeafPage right) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			IteratorException, InsertRecException, DeleteRecException {
+		byte[] leftPrefix = BTPrefixLeaves.prefix(left);
+		byte[] rightPrefix = BTPrefixLeaves.prefix(right);
+		ArrayList<byte[]> records = BTPrefixLeaves.records(left);
+		records.addAll(BTPrefixLeaves.records(right));
+		int count = records.size();
+		int n, space, half;
+
+		byte[] prefix = BTPrefixLeaves.commonPrefix(leftPrefix, rightPrefix);
+		if (BTPrefixLeaves.space(records, 0, count, prefix.length) <= PAGE_CAPACITY) {
+			BTPrefixLeaves.fill(left, prefix, records, 0, count);
+			unlinkLeaf(left, right);
+			parent.deleteSortedRecord(new RID(parent.getCurPage(), separator));
+			return true;
+		}
+
+		half = BTPrefixLeaves.space(records, 0, count, 0) / 2;
+		for (n = 1, space = 0; n < count - 1; n++) {
+			space += records.get(n - 1).length + HFPage.SIZE_OF_SLOT;
+			if (space >= half)
+				break;
+		}
+		byte[] key = BTPrefixLeaves.separator(records.get(n - 1), records
+				.get(n));
+		leftPrefix = BTPrefixLeaves.narrow(leftPrefix, key);
+		rightPrefix = BTPrefixLeaves.narrow(rightPrefix, key);
+		if (BTPrefixLeaves.space(records, 0, n, leftPrefix.length) > PAGE_CAPACITY
+				|| BTPrefixLeaves.space(records, n, count, rightPrefix.length) > PAGE_CAPACITY
+				|| !keyFits(parent, separator, key))
+			return false;
+		BTPrefixLeaves.fill(left, leftPrefix, records, 0, n);
+		BTPrefixLeaves.fill(right, rightPrefix, records, n, count);
+		replaceKey(parent, separator, key);
+		return false;
+	}
+
+	/*
+	 * rebalanceLeaves for dense leaves, where every entry takes the same
+	 * space: merge them, or split the entries of both evenly.
+	 */
+	private boolean rebalanceDense(BTIndexPage parent, int separator,
+			BTLeafPage left, BTLeafPage right) throws IOException,
+			PinPageException, UnpinPageException, ConstructPageException,
+			IteratorException, InsertRecException, DeleteRecException {
+		int leftCount = left.getSlotCnt();
+		int rightCount = right.getSlotCnt();
+		int half = (leftCount + rightCount) / 2;
+
+		if (leftCount + rightCount <= BTDenseLeaves.CAPACITY) {
+			BTDenseLeaves.moveRange(right, 0, rightCount, left, leftCount);
+			unlinkLeaf(left, right);
+			parent.deleteSortedRecord(new RID(parent.getCurPage(), separator));
+			return true;
+		}
+
+		if (leftCount < half)
+			BTDenseLeaves.moveRange(right, 0, half - leftCount, left,
+					leftCount);
+		else
+			BTDenseLeaves.moveRange(left, half, leftCount, right, 0);
+		// integer separators are all the same length, the new one fits
+		replaceKey(parent, separator, BTDenseLeaves.keyBytes(right, 0));
+		return false;
+	}
+
+	/*
+	 * Take leaf `right', merged into `left', out of the leaf chain.
+	 */
+	private void unlinkLeaf(BTLeafPage left, BTLeafPage right)
+			throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		PageId nextId = right.getNextPage();
+		left.setNextPage(nextId);
+		if (nextId.pid != INVALID_PAGE) {
+			BTLeafPage next = new BTLeafPage(latchPage(nextId, true),
+					headerPage.get_keyType());
+			next.setPrevPage(left.getCurPage());
+			unlatchPage(nextId, true);
+		}
+	}
+
+	/*
+	 * rebalanceLeaves for index pages: the separator in `parent' comes down
+	 * into the merged page, or is rotated through when entries move.
+	 */
+	private boolean rebalanceIndexPages(BTIndexPage parent, int separator,
+			BTIndexPage left, BTIndexPage right) throws IOException,
+			IteratorException, InsertRecException, DeleteRecException {
+		int leftUsed = BTSortedPages.usedSpace(left);
+		int rightUsed = BTSortedPages.usedSpace(right);
+		byte[] down = BTSortedPages.keyBytes(parent, separator);
+		byte[] up;
+		int downSpace = down.length + indexDataSize() + HFPage.SIZE_OF_SLOT;
+		int n, moved;
+
+		if (leftUsed + downSpace + rightUsed <= PAGE_CAPACITY) {
+			// the separator comes down in front of the left-most child of
+			// `right'
+			BTSortedPages.insertRecord(left, left.getSlotCnt(), childRecord(
+					down, right, 0));
+			BTSortedPages.moveRange(right, 0, right.getSlotCnt(), left, left
+					.getSlotCnt());
+			left.setNextPage(right.getNextPage());
+			parent.deleteSortedRecord(new RID(parent.getCurPage(), separator));
+			return true;
+		}
+
+		if (leftUsed < rightUsed) {
+			// the separator and entries [0, n) of `right' go to `left', entry
+			// n of `right' goes up
+			for (n = 0, moved = 0; leftUsed + downSpace + moved < rightUsed
+					- moved
+					&& n < right.getSlotCnt() - 2; n++)
+				moved += BTSortedPages.recordSpace(right, n);
+			up = BTSortedPages.keyBytes(right, n);
+			if (!keyFits(parent, separator, up))
+				return false;
+			BTSortedPages.insertRecord(left, left.getSlotCnt(), childRecord(
+					down, right, 0));
+			BTSortedPages.moveRange(right, 0, n, left, left.getSlotCnt());
+			setLeftChild(right, right, 1);
+			right.deleteSortedRecord(new RID(right.getCurPage(), 0));
+		} else {
+			// entries (n, end) of `left' and the separator go to `right',
+			// entry n of `left' goes up
+			for (n = left.getSlotCnt() - 1, moved = 0; rightUsed + downSpace
+					+ moved < leftUsed - moved
+					&& n > 1; n--)
+				moved += BTSortedPages.recordSpace(left, n);
+			up = BTSortedPages.keyBytes(left, n);
+			if (!keyFits(parent, separator, up))
+				return false;
+			BTSortedPages.insertRecord(right, 0, childRecord(down, right, 0));
+			BTSortedPages.moveRange(left, n + 1, left.getSlotCnt(), right, 0);
+			setLeftChild(right, left, n + 1);
+			left.deleteSortedRecord(new RID(left.getCurPage(), n));
+		}
+		replaceKey(parent, separator, up);
+		return false;
+	}
+
+	/*
+	 * Whether entry `slot' of `parent' can take the key `key' instead of its
+	 * own; string keys of different lengths may not fit.
+	 */
+	private boolean keyFits(BTIndexPage parent, int slot, byte[] key)
+			throws IOException {
+		return parent.available_space() + BTSortedPages.recordSpace(parent, slot)
+				- HFPage.SIZE_OF_SLOT >= key.length + indexDataSize();
+	}
+
+	/*
+	 * Give entry `slot' of `parent' the key `key', keeping its child and
+	 * its count.
+	 */
+	private void replaceKey(BTIndexPage parent, int slot, byte[] key)
+			throws IOException, IteratorException, InsertRecException,
+			DeleteRecException {
+		byte[] record = childRecord(key, parent, slot + 1);
+		parent.deleteSortedRecord(new RID(parent.getCurPage(), slot));
+		BTSortedPages.insertRecord(parent, slot, record);
+	}
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
+	/*
+	 * After a full delete left the root under half full: while the root is an
+	 * index page without entries, make its only child the root. An empty
+	 * root leaf empties the tree.
+	 */
+	private void collapseRoot() throws IOException, PinPageException,
+			UnpinPageException, FreePageException {
+		PageId rootId = new PageId(headerPage.get_rootId().pid);
+		BTSortedPage root = new BTSortedPage(latchPage(rootId, true),
+				headerPage.get_keyType());
+		PageId newRootId;
+
+		while (root.getSlotCnt() == 0) {
+			if (root.getType() == NodeType.INDEX) {
+				newRootId = root.getPrevPage();
+				statistics.indexPageAdded(-1);
+			} else {
+				newRootId = new PageId(INVALID_PAGE);
+				statistics.leafAdded(-1);
 			}
+			statistics.levelAdded(-1);
+			unpinPage(rootId);
+			freePage(rootId);
+			BTLatches.release(rootId);
+			updateHeader(newRootId);
+			if (newRootId.pid == INVALID_PAGE)
+				return;
+			rootId = newRootId;
+			root = new BTSortedPage(latchPage(rootId, true), headerPage
+					.get_keyType());
+		}
+		unlatchPage(rootId, false);
+	}
+
+	/**
+	 * Look up the rids of the entries with key `key', in the order a scan
+	 * returns them. Unlike a scan from `key' to `key' this opens no scan
+	 * object: it goes down to the leaf, reads the rids off the run of `key'
+	 * in place and lets go of the leaf before it returns. With the lookup
+	 * cache on (setLookupCache) a key looked up lately costs no page pin.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rids, an empty array if there is no entry with `key'
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RID[] search(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		byte[] keyBytes = BTSortedPages.keyBytes(key);
+		BTLookupCache cache = lookupCache;
+		long version = 0;
+		RID[] rids;
+
+		if (cache != null) {
+			rids = cache.get(keyBytes);
+			if (rids != null)
+				return rids;
+			version = cache.version();
+		}
+
+		ArrayList<RID> found = new ArrayList<RID>();
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid);
+		if (leafPage != null) {
+			// the run starts at curRid and may go on over several leaves
+			int slot = curRid.slotNo;
+			while (true) {
+				if (slot == leafPage.getSlotCnt()) {
+					PageId nextpage = leafPage.getNextPage();
+					if (nextpage.pid == INVALID_PAGE)
+						break;
+					Page page = latchPage(nextpage, false);
+					unlatchPage(leafPage.getCurPage(), false);
+					leafPage = new BTLeafPage(page, headerPage.get_keyType());
+					slot = 0;
+					continue;
+				}
+				if (leafCompareKey(leafPage, slot, keyBytes) > 0)
+					break; // end of the run
+				found.add(leafGetRid(leafPage, slot++));
+			}
+			unlatchPage(leafPage.getCurPage(), false);
+		}
+
+		rids = found.toArray(new RID[found.size()]);
+		if (cache != null)
+			cache.put(keyBytes, rids, version);
+		return rids;
+	}
+
+	/**
+	 * Turn the lookup cache of search on, for up to `capacity' keys, or off
+	 * with 0. The cache keeps the rids of the keys looked up last; insert
+	 * and Delete drop the key they change, insertBatch every key of the
+	 * batch, and bulkLoad all of them; compact moves the entries to other
+	 * pages but keeps their rids, and the cache with them. It pays off when a few keys take
+	 * most of the lookups. Scans do not use it. Each BTreeFile object has a
+	 * cache of its own, so only one object should change a tree that has
+	 * one; turn it on or off while no other thread uses the object.
+	 *
+	 * @param capacity
+	 *            the number of keys to keep the rids of, 0 for no cache.
+	 *            Input parameter.
+	 */
+	public void setLookupCache(int capacity) {
+		lookupCache = capacity > 0 ? new BTLookupCache(capacity) : null;
+	}
+
+	/**
+	 * Keep the top `levels' index levels of the tree decoded in memory, or
+	 * none with 0. A search, insert or delete then goes through them
+	 * without pinning their pages, and pins only the pages below them: for
+	 * a tree no taller than `levels' index levels, only the leaf. An insert
+	 * goes into its leaf that way if the leaf has room, and a full delete
+	 * takes its entry out of the leaf that way if it stays half full; the
+	 * others go down from the root as before. A page is decoded the first
+	 * time a search goes through it, and decoded again after this object
+	 * changed it, so every change to the tree has to go through this
+	 * object. The levels are only used while concurrent mode is off.
+	 *
+	 * @param levels
+	 *            the number of index levels to keep, from the root down, 0
+	 *            for none. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void setCachedLevels(int levels) throws IOException {
+		upperLevels = levels > 0 ? new BTUpperLevels(levels, headerPage
+				.get_keyType()) : null;
+	}
+
+	/**
+	 * Start keeping the metrics of this tree, and register them with the
+	 * platform MBean server as btree:type=BTreeFile,name="file name", in
+	 * place of the ones of another object on the same file. They count
+	 * splits, page pins and unpins, descents and the leaves findRunStart
+	 * skips, and time insert, Delete, opening a scan and the get_next of
+	 * the scans new_scan and new_reverse_scan return; batch scans are only
+	 * timed when they are opened. The counters are striped, so threads of
+	 * concurrent mode seldom share one. Turn metrics on or off while no
+	 * other thread uses the object.
+	 *
+	 * @return the metrics, as getMetrics returns them from now on
+	 * @exception IOException
+	 *                the metrics could not be registered
+	 */
+	public BTMetrics enableMetrics() throws IOException {
+		if (metrics != null)
+			return metrics;
+
+		BTMetrics created = new BTMetrics();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (registeredMetrics) {
+			try {
+				ObjectName name = new ObjectName(
+						"btree:type=BTreeFile,name=" + ObjectName.quote(dbname));
+				if (server.isRegistered(name))
+					server.unregisterMBean(name);
+				server.registerMBean(created, name);
+				registeredMetrics.put(name, created);
+				metricsName = name;
+			} catch (JMException e) {
+				throw new IOException("cannot register the metrics of "
+						+ dbname + ": " + e);
+			}
+		}
+		metrics = created;
+		return created;
+	}
+
+	/**
+	 * Stop keeping the metrics of this tree and unregister them; close and
+	 * destroyFile do it too.
+	 */
+	public void disableMetrics() {
+		BTMetrics own = metrics;
+		metrics = null;
+		if (metricsName == null)
+			return;
+		synchronized (registeredMetrics) {
+			// unless another object on the same file took the name since
+			if (registeredMetrics.get(metricsName) == own) {
+				registeredMetrics.remove(metricsName);
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+							metricsName);
+				} catch (JMException e) {
+					// unregistered from outside
+				}
+			}
+		}
+		metricsName = null;
+	}
+
+	/**
+	 * The metrics of this tree, null unless enableMetrics turned them on.
+	 */
+	public BTMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * The number of entries new_scan(lo_key, hi_key) would return, counted
+	 * exactly. In a counted tree (IndexLayout.COUNTED) this goes down the
+	 * tree once for each key and reads one page per level; in any other it
+	 * reads the leaves, from the first one up to the one of `hi_key'. In
+	 * concurrent mode the inserts and deletes under way may or may not be
+	 * counted.
+	 *
+	 * @param lo_key
+	 *            the smallest key counted, null for none. Input parameter.
+	 * @param hi_key
+	 *            the largest key counted, null for none. Input parameter.
+	 * @return the number of entries with keys from lo_key to hi_key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int rangeCount(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		int before = lo_key == null ? 0 : countBefore(BTSortedPages
+				.keyBytes(lo_key), false);
+		int through = countBefore(hi_key == null ? null : BTSortedPages
+				.keyBytes(hi_key), true);
+		return Math.max(through - before, 0);
+	}
+
+	/**
+	 * The number of entries with keys less than `key', which is the
+	 * position of the first entry not less than it in a scan of the whole
+	 * tree. Read as rangeCount reads.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return the number of entries before `key'
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int rank(KeyClass key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		return countBefore(BTSortedPages.keyBytes(key), false);
+	}
+
+	/**
+	 * The entry at position `rank' of a scan of the whole tree, from 0. In
+	 * a counted tree this goes down one path from the root, following the
+	 * counts; in any other it reads the leaves up to the entry.
+	 *
+	 * @param rank
+	 *            the position. Input parameter.
+	 * @return the entry, null if there is none at `rank'
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public KeyDataEntry select(int rank) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		int keyType = headerPage.get_keyType();
+		BTLeafPage leafPage;
+
+		if (rank < 0)
+			return null;
+		if (countedIndex) {
+			BTLatches.shared(headerPageId);
+			PageId pageno = new PageId(headerPage.get_rootId().pid);
+			if (pageno.pid == INVALID_PAGE) {
+				BTLatches.release(headerPageId);
+				return null;
+			}
+			Page page = latchPage(pageno, false);
+			BTLatches.release(headerPageId);
+			// skip the children whose entries all come before `rank'
+			while (new BTSortedPage(page, keyType).getType() == NodeType.INDEX) {
+				BTIndexPage indexPage = new BTIndexPage(page, keyType);
+				int last = indexPage.getSlotCnt();
+				int child = 0;
+				while (child < last && rank >= BTCounts.count(indexPage, child))
+					rank -= BTCounts.count(indexPage, child++);
+				PageId childId = BTSortedPages.child(indexPage, child);
+				page = latchPage(childId, false);
+				unlatchPage(pageno, false);
+				pageno = childId;
+			}
+			leafPage = new BTLeafPage(page, keyType);
+		} else {
+			leafPage = descend(null, false, false);
+			while (leafPage != null && rank >= leafPage.getSlotCnt()) {
+				rank -= leafPage.getSlotCnt();
+				leafPage = nextLeaf(leafPage);
+			}
+			if (leafPage == null)
+				return null;
+		}
+
+		KeyDataEntry entry = null;
+		if (rank < leafPage.getSlotCnt()) {
+			byte[] key = leafKeyBytes(leafPage, rank);
+			entry = new KeyDataEntry(keyType == AttrType.attrInteger
+					? BTDenseLeaves.getKey(key) : BTPrefixLeaves.getKey(key),
+					leafGetRid(leafPage, rank));
+		}
+		unlatchPage(leafPage.getCurPage(), false);
+		return entry;
+	}
+
+	/*
+	 * The number of entries with keys less than `key', or not greater than
+	 * it if `upper'; all of them for a null key with `upper'. In a counted
+	 * tree the counts of the children left of the path to the leaf of
+	 * `key' are added up on the way down; in any other tree the leaves are
+	 * read from the first one on, until one has an entry past `key'.
+	 */
+	private int countBefore(byte[] key, boolean upper) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		int keyType = headerPage.get_keyType();
+		int count = 0;
+		int slot;
+
+		if (!countedIndex) {
+			BTLeafPage leafPage = descend(null, false, false);
+			while (leafPage != null) {
+				int slots = leafPage.getSlotCnt();
+				if (key == null)
+					slot = slots;
+				else
+					slot = upper ? leafUpperBound(leafPage, key)
+							: leafLowerBound(leafPage, key);
+				count += slot;
+				if (slot < slots) {
+					unlatchPage(leafPage.getCurPage(), false);
+					break;
+				}
+				leafPage = nextLeaf(leafPage);
+			}
+			return count;
+		}
+
+		BTLatches.shared(headerPageId);
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		if (pageno.pid == INVALID_PAGE) {
+			BTLatches.release(headerPageId);
+			return 0;
+		}
+		Page page = latchPage(pageno, false);
+		BTLatches.release(headerPageId);
+		// the keys of the children left of the one the path goes to are
+		// all less than `key' (not greater with `upper'), those of the ones
+		// right of it are not
+		while (new BTSortedPage(page, keyType).getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = new BTIndexPage(page, keyType);
+			if (key == null)
+				slot = indexPage.getSlotCnt();
+			else
+				slot = upper ? BTSortedPages.upperBound(indexPage, key)
+						: BTSortedPages.lowerBound(indexPage, key);
+			count += BTCounts.before(indexPage, slot);
+			PageId childId = BTSortedPages.child(indexPage, slot);
+			page = latchPage(childId, false);
+			unlatchPage(pageno, false);
+			pageno = childId;
+		}
+
+		BTLeafPage leafPage = new BTLeafPage(page, keyType);
+		if (key == null)
+			count += leafPage.getSlotCnt();
+		else
+			count += upper ? leafUpperBound(leafPage, key) : leafLowerBound(
+					leafPage, key);
+		unlatchPage(pageno, false);
+		return count;
+	}
+
+	/**
+	 * The statistics of the tree: its height and pages, the entries and
+	 * their keys, and a histogram of the keys. insert, Delete and the other
+	 * changes through this object keep them up to date, and analyze reads
+	 * the tree to build the histogram anew. Each BTreeFile object keeps its
+	 * own, and writes them to the header page when it is closed, so only
+	 * one object should change a tree.
+	 */
+	public BTStatistics getStatistics() {
+		return statistics;
+	}
 
-		}
+	/**
+	 * The fraction of the entries new_scan(lo_key, hi_key) would return,
+	 * estimated from the statistics without reading the tree; see
+	 * BTStatistics.selectivity.
+	 *
+	 * @param lo_key
+	 *            the key where the scan would begin, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the key where it would stop, null for none. Input
+	 *            parameter.
+	 * @return the fraction, from 0 to 1
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	public double selectivity(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		return statistics.selectivity(lo_key, hi_key);
+	}
 
-		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+	/**
+	 * Read the tree to bring its statistics up to date and build the
+	 * histogram of its keys, and write them to the header page. The height
+	 * and the pages are counted from the index levels. With sampleLeaves 0
+	 * every leaf is read, along the leaf chain, and the counts are exact;
+	 * otherwise only sampleLeaves leaves are read: the first, the last and
+	 * others picked at random from the children of the lowest index level,
+	 * which is much cheaper than following the chain to them. The entries,
+	 * distinct keys and fill are then estimated from the sample and the
+	 * histogram is placed by where the sampled leaves are in key order. In
+	 * concurrent mode the tree may change while it is read, and the counts
+	 * are as good as the changes let them be.
+	 *
+	 * @param sampleLeaves
+	 *            the number of leaves to read, 0 for all. Input parameter.
+	 * @return the statistics, as getStatistics returns them
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                error from the lower layer
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTStatistics analyze(int sampleLeaves) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTStatistics.Analysis analysis = new BTStatistics.Analysis();
+		ArrayList<Integer> leaves = new ArrayList<Integer>();
+		countPages(analysis, leaves);
+		if (sampleLeaves > 0 && sampleLeaves < leaves.size())
+			sampleLeaves(analysis, leaves, sampleLeaves);
+		else
+			readLeaves(analysis);
+		statistics.install(analysis, true);
+		statistics.write(headerPage.getpage());
+		return statistics;
+	}
 
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
-			nextpageno = pageLeaf.getNextPage();
-			unpinPage(pageno);
-			if (nextpageno.pid == INVALID_PAGE) {
-				// oops, no more records, so set this scan to indicate this.
-				return null;
+	/*
+	 * Count the levels and the pages of the tree into `analysis', reading
+	 * only its index pages; with `leaves' the page numbers of the leaves go
+	 * into it, in key order.
+	 */
+	private void countPages(BTStatistics.Analysis analysis,
+			ArrayList<Integer> leaves) throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (leaves == null)
+			leaves = new ArrayList<Integer>();
+
+		BTLatches.shared(headerPageId);
+		PageId rootId = new PageId(headerPage.get_rootId().pid);
+		PageId pageno = new PageId(rootId.pid);
+		int levels = 0; // index levels
+		if (pageno.pid != INVALID_PAGE) {
+			// down the left-most children to the first leaf
+			BTSortedPage page = new BTSortedPage(latchPage(pageno, false),
+					headerPage.get_keyType());
+			while (page.getType() == NodeType.INDEX) {
+				levels++;
+				PageId child = new PageId(page.getPrevPage().pid);
+				unlatchPage(pageno, false);
+				pageno = child;
+				page = new BTSortedPage(latchPage(pageno, false), headerPage
+						.get_keyType());
 			}
+			unlatchPage(pageno, false);
 
-			pageno = nextpageno;
-			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
+			if (levels == 0)
+				leaves.add(rootId.pid);
+			analysis.height = levels + 1;
 		}
+		analysis.indexPages = countIndexPages(rootId, levels, leaves);
+		analysis.leaves = leaves.size();
+		BTLatches.release(headerPageId);
+	}
 
-		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
-		// - pageLeaf, pageno valid and pinned
-
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
+	/*
+	 * The rest of analyze with every leaf read: the entries, their distinct
+	 * keys and the bytes they take, and the keys at their positions.
+	 */
+	private void readLeaves(BTStatistics.Analysis analysis)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		RID first = new RID();
+		byte[] previous = null;
+		long position = 0;
+
+		for (BTLeafPage leafPage = findRunStart(null, first); leafPage != null; leafPage = nextLeaf(leafPage)) {
+			analysis.leafBytes += BTSortedPages.usedSpace(leafPage);
+			for (int slot = 0; slot < leafPage.getSlotCnt(); slot++, position++) {
+				boolean keep = analysis.keeps();
+				if (previous == null
+						|| leafCompareKey(leafPage, slot, previous) != 0) {
+					previous = leafKeyBytes(leafPage, slot);
+					analysis.distinct++;
+				}
+				if (keep)
+					analysis.add(previous, position);
+			}
 		}
+		analysis.entries = position;
+		if (previous != null)
+			analysis.end(previous, position - 1);
+	}
 
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
-				unpinPage(pageno);
-
-				if (nextpageno.pid == INVALID_PAGE) {
-					return null;
+	/*
+	 * The rest of analyze with `count' of the leaves `leaves' read, the
+	 * first and the last among them. A position is in leaves: entry s of
+	 * the n of leaf i is at i + s / n.
+	 */
+	private void sampleLeaves(BTStatistics.Analysis analysis,
+			ArrayList<Integer> leaves, int count) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		TreeSet<Integer> picked = new TreeSet<Integer>();
+		picked.add(0);
+		picked.add(leaves.size() - 1);
+		Random random = new Random();
+		while (picked.size() < count)
+			picked.add(random.nextInt(leaves.size()));
+
+		long entries = 0;
+		long distinct = 0;
+		long bytes = 0;
+		byte[] last = null;
+		double lastPosition = 0;
+		for (int i : picked) {
+			PageId pageno = new PageId(leaves.get(i));
+			BTLeafPage leafPage = new BTLeafPage(latchPage(pageno, false),
+					headerPage.get_keyType());
+			int n = leafPage.getSlotCnt();
+			bytes += BTSortedPages.usedSpace(leafPage);
+			entries += n;
+			byte[] previous = null; // runs across leaves count once each
+			for (int slot = 0; slot < n; slot++) {
+				boolean keep = analysis.keeps();
+				if (previous == null
+						|| leafCompareKey(leafPage, slot, previous) != 0) {
+					previous = leafKeyBytes(leafPage, slot);
+					distinct++;
 				}
-
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno),
-						headerPage.get_keyType());
-
-				curEntry = pageLeaf.getFirst(startrid);
+				if (keep)
+					analysis.add(previous, i + (double) slot / n);
 			}
+			if (previous != null) {
+				last = previous;
+				lastPosition = i + (double) (n - 1) / n;
+			}
+			unlatchPage(pageno, false);
 		}
 
-		return pageLeaf;
+		double perLeaf = (double) entries / picked.size();
+		analysis.sampled = true;
+		analysis.unit = perLeaf;
+		analysis.entries = Math.round(perLeaf * leaves.size());
+		analysis.leafBytes = Math.round((double) bytes / picked.size()
+				* leaves.size());
+		analysis.distinct = entries == 0 ? 0 : Math.round((double) distinct
+				/ entries * analysis.entries);
+		if (last != null)
+			analysis.end(last, lastPosition);
+	}
+
+	/* drop `keyBytes' from the lookup cache, if there is one */
+	private void invalidateLookup(byte[] keyBytes) {
+		BTLookupCache cache = lookupCache;
+		if (cache != null)
+			cache.invalidate(keyBytes);
 	}
 
 	/*
-	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
-	 * 
-	 * Remove specified data entry (<key, rid>) from an index.
-	 * 
-	 * We don't do merging or redistribution, but do allow duplicates.
-	 * 
-	 * Page containing first occurrence of key `key' is found for us by
-	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
-	 * find the one containing <key,rid>, which we then delete via
-	 * BTLeafPage::delUserRid.
+	 * Bytes an entry with key `keyBytes' takes in a leaf, as the statistics
+	 * count them; a prefix-compressed one takes less.
 	 */
+	private int entrySpace(byte[] keyBytes) {
+		if (denseLeaves)
+			return BTDenseLeaves.ENTRY_SIZE;
+		return keyBytes.length + 8 + HFPage.SIZE_OF_SLOT;
+	}
 
-	private boolean NaiveDelete(KeyClass key, RID rid)
-			throws LeafDeleteException, KeyNotMatchException, PinPageException,
-			ConstructPageException, IOException, UnpinPageException,
-			PinPageException, IndexSearchException, IteratorException {
-	
-		 BTLeafPage leafPage;			//creating a leaf page
-		 RID iteratorID = new RID();	//iterator of type RID
-		 KeyDataEntry entry;
-		 leafPage = findRunStart(key, iteratorID);		//finding the first page and RID of the key
-		 if (leafPage == null)
-				return false;
-		 entry = leafPage.getCurrent(iteratorID);
-		 RID firstRID = new RID();		//first record  of the leaf page
-			int del=0; 	
-			while(true)
-			{
-				while (entry == null)
-				{
-					PageId nextpage = leafPage.getNextPage();		//traverse to the next page
-					unpinPage(leafPage.getCurPage());				//unpin the previous page after traversing to the next page
-					if (nextpage.pid == INVALID_PAGE)
-						return false;
-					Page nextPage = pinPage(nextpage);
-					leafPage = new BTLeafPage(nextPage, headerPage.get_keyType());		//initialize leaf page to the net page
-					entry = leafPage.getFirst(firstRID);			//initialize entry by getting the first record ID of the leaf page
-					
-				}
-				if (BT.keyCompare(key, entry.key) > 0) 		//Checking the key and the entry key
-					break;
-				while(leafPage.delEntry(new KeyDataEntry(key, rid)) == true)		//key is found and it is deleted
-				{
-					entry = leafPage.getCurrent(iteratorID);	//move to the next page
-					del=1;		//key is deleted
-				}
-				if(entry == null)  
-				{   
-					continue;		//traverse through all the leaf pages
-				}
-				else                     //If next entry is not key value then stop the deletion and exit
-				{
-					break;
-				}
-			}
-			unpinPage(leafPage.getCurPage());		//unpin the leaf page
-			if(del==1)
-			{
-				return true; 		//if records are deleted
-			}else
-			return false; 			//If no records were deleted
-}
+	/* count every key of a batch in the statistics */
+	private void countInserted(KeyClass[] keys) throws KeyNotMatchException {
+		for (int i = 0; i < keys.length; i++) {
+			byte[] keyBytes = BTSortedPages.keyBytes(keys[i]);
+			statistics.inserted(keyBytes, entrySpace(keyBytes));
+		}
+	}
+
+	/* drop every key of a batch from the lookup cache */
+	private void invalidateLookups(KeyClass[] keys) throws KeyNotMatchException {
+		BTLookupCache cache = lookupCache;
+		if (cache != null)
+			for (int i = 0; i < keys.length; i++)
+				cache.invalidate(BTSortedPages.keyBytes(keys[i]));
+	}
 
-			
 	/**
 	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
 	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
@@ -843,14 +3649,144 @@ System.out.println(key);
 			ConstructPageException, PinPageException, UnpinPageException
 
 	{
-		BTFileScan scan = new BTFileScan();
+		BTLeafScan scan = new BTLeafScan();
+		openScan(scan, lo_key, hi_key);
+		return scan;
+	}
+
+	/**
+	 * create a scan with given keys, like new_scan(lo_key, hi_key), that
+	 * reads the leaf pages ahead of the one it is on in the background.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param prefetch
+	 *            number of leaf pages to read ahead (1..
+	 *            BTPrefetchScan.MAX_WINDOW), or BTPrefetchScan.ADAPTIVE for
+	 *            a window that grows as the scan goes on. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTPrefetchScan new_scan(KeyClass lo_key, KeyClass hi_key,
+			int prefetch) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		BTPrefetchScan scan = new BTPrefetchScan(prefetch);
+		openScan(scan, lo_key, hi_key);
+		scan.start();
+		return scan;
+	}
+
+	/**
+	 * create a scan with given keys, like new_scan(lo_key, hi_key), that
+	 * returns the entries in batches of primitive arrays. The tree must have
+	 * integer keys.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception KeyNotMatchException
+	 *                the tree does not have integer keys, or the keys are
+	 *                not integer keys
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTBatchScan new_batch_scan(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException, IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (headerPage.get_keyType() != AttrType.attrInteger)
+			throw new KeyNotMatchException(null,
+					"batch scan needs integer keys");
+
+		BTMetrics timed = metrics;
+		long started = timed != null ? System.nanoTime() : 0;
+		RID start = new RID();
+		BTBatchScan scan = new BTBatchScan(findRunStart(lo_key, start),
+				start.slotNo, hi_key, denseLeaves);
+		if (timed != null)
+			timed.scanOpen.record(System.nanoTime() - started);
+		return scan;
+	}
+
+	/**
+	 * create a scan with given keys that returns the entries in descending
+	 * key order: it starts at the last entry not greater than hi_key,
+	 * follows the prev links of the leaf pages and stops at the first entry
+	 * less than lo_key. Either key may be null for no bound, as with
+	 * new_scan. The first N entries cost only the leaf pages they are on.
+	 *
+	 * @param lo_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTReverseScan new_reverse_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTMetrics timed = metrics;
+		long start = timed != null ? System.nanoTime() : 0;
+		BTReverseScan scan = new BTReverseScan();
+		scan.bfile = this;
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.lokey = lo_key == null ? null : BTSortedPages.keyBytes(lo_key);
+		scan.prefixed = prefixLeaves;
+		scan.dense = denseLeaves;
+		scan.latched = BTLatches.enabled();
+		scan.curRid = new RID();
+		scan.leafPage = findRunEnd(hi_key, scan.curRid);
+		if (timed != null) {
+			scan.metrics = timed;
+			timed.scanOpen.record(System.nanoTime() - start);
+		}
+		return scan;
+	}
+
+	private void openScan(BTLeafScan scan, KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTMetrics timed = metrics;
+		long start = timed != null ? System.nanoTime() : 0;
+		scan.metrics = timed;
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
-			return scan;
+			return;
 		}
 
 		scan.treeFilename = dbname;
-		scan.endkey = hi_key;
 		scan.didfirst = false;
 		scan.deletedcurrent = false;
 		scan.curRid = new RID();
@@ -858,9 +3794,202 @@ System.out.println(key);
 		scan.maxKeysize = headerPage.get_maxKeySize();
 		scan.bfile = this;
 
+		// BTLeafScan compares the keys with hi_key itself, as BTFileScan
+		// does with BT.keyCompare, which overflows on integer keys
+		scan.endkey = null;
+		scan.prefixed = prefixLeaves;
+		scan.dense = denseLeaves;
+		scan.latched = BTLatches.enabled();
+		scan.hikey = hi_key == null ? null : BTSortedPages.keyBytes(hi_key);
+
 		// this sets up scan at the starting position, ready for iteration
 		scan.leafPage = findRunStart(lo_key, scan.curRid);
-		return scan;
+		if (timed != null)
+			timed.scanOpen.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Print the pages of this tree level by level, like BT.printBTree, which
+	 * reads the index records as plain ones; in a counted tree every page is
+	 * printed with the number of entries under it.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void printBTree() throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		PageId root = headerPage.get_rootId();
+		if (root.pid == INVALID_PAGE) {
+			System.out.println("The Tree is Empty!!!");
+			return;
+		}
+
+		System.out.println("");
+		System.out.println("");
+		System.out.println("");
+		System.out.println("---------------The B+ Tree Structure---------------");
+		printTree(root, "     ", 1, countedIndex ? subtreeCount(root) : -1);
+		System.out.println("--------------- End ---------------");
+		System.out.println("");
+		System.out.println("");
+	}
+
+	/*
+	 * Print page `pageno' at `level' and the pages under it; `count' is
+	 * the entries under it in a counted tree, else -1.
+	 */
+	private void printTree(PageId pageno, String indent, int level, int count)
+			throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		System.out.println(level + indent + pageno
+				+ (count < 0 ? "" : "  (" + count + ")"));
+		BTSortedPage sortedPage = new BTSortedPage(pinPage(pageno), headerPage
+				.get_keyType());
+		if (sortedPage.getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = new BTIndexPage(sortedPage, headerPage
+					.get_keyType());
+			for (int n = 0; n <= BTSortedPages.slotCount(indexPage); n++)
+				printTree(BTSortedPages.child(indexPage, n), indent
+						+ "       ", level + 1, countedIndex ? BTCounts.count(
+						indexPage, n) : -1);
+		}
+		unpinPage(pageno);
+	}
+
+	/**
+	 * Print page `pageno' of this tree, like BT.printPage, which cannot read
+	 * dense leaves.
+	 *
+	 * @param pageno
+	 *            the page to print. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception HashEntryNotFoundException
+	 *                error from the buffer manager
+	 * @exception ReplacerException
+	 *                error from the buffer manager
+	 * @exception PageUnpinnedException
+	 *                error from the buffer manager
+	 * @exception InvalidFrameNumberException
+	 *                error from the buffer manager
+	 */
+	public void printPage(PageId pageno) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, HashEntryNotFoundException, ReplacerException,
+			PageUnpinnedException, InvalidFrameNumberException {
+		BTSortedPage sortedPage = new BTSortedPage(pinPage(pageno),
+				headerPage.get_keyType());
+		boolean dense = denseLeaves && sortedPage.getType() == NodeType.LEAF;
+		unpinPage(pageno);
+
+		if (dense)
+			printDenseLeaf(pageno);
+		else
+			BT.printPage(pageno, headerPage.get_keyType());
+	}
+
+	/**
+	 * Print the leaf pages of this tree from left to right, like
+	 * BT.printAllLeafPages, which cannot read dense leaves.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception HashEntryNotFoundException
+	 *                error from the buffer manager
+	 * @exception ReplacerException
+	 *                error from the buffer manager
+	 * @exception PageUnpinnedException
+	 *                error from the buffer manager
+	 * @exception InvalidFrameNumberException
+	 *                error from the buffer manager
+	 */
+	public void printAllLeafPages() throws IOException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException,
+			HashEntryNotFoundException, ReplacerException,
+			PageUnpinnedException, InvalidFrameNumberException {
+		PageId pageno = headerPage.get_rootId();
+
+		if (!denseLeaves || pageno.pid == INVALID_PAGE) {
+			BT.printAllLeafPages(headerPage);
+			return;
+		}
+
+		System.out.println("");
+		System.out.println("");
+		System.out.println("");
+		System.out.println("---------------The B+ Tree Leaf Pages---------------");
+
+		// down the left-most children to the first leaf, then along the
+		// next links
+		BTSortedPage sortedPage = new BTSortedPage(pinPage(pageno), headerPage
+				.get_keyType());
+		while (sortedPage.getType() == NodeType.INDEX) {
+			PageId child = sortedPage.getPrevPage();
+			unpinPage(pageno);
+			pageno = child;
+			sortedPage = new BTSortedPage(pinPage(pageno), headerPage
+					.get_keyType());
+		}
+		unpinPage(pageno);
+		while (pageno.pid != INVALID_PAGE)
+			pageno = printDenseLeaf(pageno);
+
+		System.out.println("");
+		System.out.println("");
+		System.out.println("------------- All Leaf Pages Have Been Printed --------");
+		System.out.println("");
+		System.out.println("");
+	}
+
+	/*
+	 * Print a dense leaf the way BT prints a leaf. Returns the page after
+	 * it.
+	 */
+	private PageId printDenseLeaf(PageId pageno) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTLeafPage leafPage = new BTLeafPage(pinPage(pageno), headerPage
+				.get_keyType());
+
+		System.out.println("");
+		System.out.println("**************To Print an Leaf Page ********");
+		System.out.println("Current Page ID: " + leafPage.getCurPage().pid);
+		System.out.println("Left Link      : " + leafPage.getPrevPage().pid);
+		System.out.println("Right Link     : " + leafPage.getNextPage().pid);
+		for (int slot = 0; slot < leafPage.getSlotCnt(); slot++) {
+			KeyDataEntry entry = BTDenseLeaves.getEntry(leafPage, slot);
+			System.out.println(slot + " (key, [pageNo, slotNo]):   ("
+					+ entry.key + ",  " + entry.data + " )");
+		}
+		System.out.println("************** END ********");
+		System.out.println("");
+
+		PageId next = leafPage.getNextPage();
+		unpinPage(pageno);
+		return next;
 	}
 
 	void trace_children(PageId id) throws IOException, IteratorException,
@@ -889,9 +4018,18 @@ System.out.println(key);
 				BTLeafPage leafPage = new BTLeafPage(sortedPage,
 						headerPage.get_keyType());
 				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
-				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
-						.getNext(metaRid)) {
-					trace.writeBytes("   " + entry.key + " " + entry.data);
+				if (denseLeaves) {
+					for (int slot = 0; slot < leafPage.getSlotCnt(); slot++) {
+						entry = BTDenseLeaves.getEntry(leafPage, slot);
+						trace.writeBytes("   " + entry.key + " " + entry.data);
+					}
+				} else {
+					for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
+							.getNext(metaRid)) {
+						if (prefixLeaves)
+							entry = BTPrefixLeaves.getEntry(leafPage, metaRid.slotNo);
+						trace.writeBytes("   " + entry.key + " " + entry.data);
+					}
 				}
 			}
 			unpinPage(id);
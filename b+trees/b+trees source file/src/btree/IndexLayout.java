@@ -0,0 +1,20 @@
+package btree;
+
+/**
+ * How a BTreeFile lays out the entries of its index pages, chosen when the
+ * file is created and kept in its header page.
+ */
+public class IndexLayout {
+
+	/** Each entry is a separator key and the page right of it. */
+	public static final int PLAIN = 0;
+
+	/**
+	 * Each entry also has the number of leaf entries under its page (see
+	 * BTCounts), kept up to date by every insert, delete, split and merge.
+	 * BTreeFile.rangeCount, rank and select then read one page per level
+	 * instead of the leaves; in exchange an insert or a delete writes every
+	 * index page on its way down, and an index page holds fewer entries.
+	 */
+	public static final int COUNTED = 1;
+}
@@ -0,0 +1,19 @@
+package btree;
+
+/**
+ * How a BTreeFile stores its keys, chosen when the file is created and kept
+ * in its header page.
+ */
+public class KeyCompression {
+
+	/** Every key is stored in full. */
+	public static final int NONE = 0;
+
+	/**
+	 * String keys only. Each leaf page stores the prefix its keys share
+	 * once, and its records only the rest of each key; the separators a
+	 * leaf split pushes up are cut to the shortest prefix that still
+	 * separates the two leaves.
+	 */
+	public static final int PREFIX = 1;
+}
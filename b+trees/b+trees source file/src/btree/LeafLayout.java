@@ -0,0 +1,18 @@
+package btree;
+
+/**
+ * How a BTreeFile lays out the entries of its leaf pages, chosen when the
+ * file is created and kept in its header page.
+ */
+public class LeafLayout {
+
+	/** Slotted pages: a slot per record, as on every other sorted page. */
+	public static final int SLOTTED = 0;
+
+	/**
+	 * Integer keys only. No slots and no records: each leaf holds parallel
+	 * arrays of keys and rids after its header, 83 entries a page instead
+	 * of 62. New files with integer keys get it unless asked otherwise.
+	 */
+	public static final int DENSE = 1;
+}
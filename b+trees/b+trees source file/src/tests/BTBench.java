@@ -0,0 +1,1730 @@
+package tests;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import global.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * Timing driver for the B+ tree. Every benchmark runs against a fresh
+ * minibase database and prints one line per measured variant; give the
+ * benchmark name (and optionally the number of keys) on the command line,
+ * or nothing to run them all.
+ */
+class BenchDriver implements GlobalConst {
+
+	public final static int DB_PAGES = 60000;
+	public final static int BUF_PAGES = 5000;
+
+	protected String dbpath;
+	public int postfix = 0;
+
+	/*
+	 * Create a database that only this benchmark uses.
+	 */
+	protected void openDB() {
+		openDB(BUF_PAGES);
+	}
+
+	protected void openDB(int bufPages) {
+		dbpath = "BTBENCH" + new Random().nextInt() + ".minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, DB_PAGES, bufPages, "Clock");
+	}
+
+	protected void closeDB() {
+		try {
+			if (SystemDefs.JavabaseBM instanceof BTBufMgr)
+				((BTBufMgr) SystemDefs.JavabaseBM).close();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (IOException e) {
+			System.err.println("IO error: " + e);
+		} catch (Exception e) {
+			System.err.println("Buffer manager error: " + e);
+		}
+		new File(dbpath).delete();
+	}
+
+	/*
+	 * The random permutation of 0..n-1 used by BTDriver.test3.
+	 */
+	protected int[] permutation(int n) {
+		int[] k = new int[n];
+		for (int i = 0; i < n; i++) {
+			k[i] = i;
+		}
+		Random ran = new Random();
+		int random;
+		int tmp;
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < n; i++) {
+				random = (ran.nextInt()) % n;
+				if (random < 0)
+					random = -random;
+				tmp = k[i];
+				k[i] = k[random];
+				k[random] = tmp;
+			}
+		}
+		return k;
+	}
+
+	protected int[] sequence(int n) {
+		int[] k = new int[n];
+		for (int i = 0; i < n; i++) {
+			k[i] = i;
+		}
+		return k;
+	}
+
+	/*
+	 * Leaf entries <k, (k, k)> for the keys in the order given, created
+	 * lazily so the input does not have to be materialised.
+	 */
+	protected Iterator<KeyDataEntry> entries(final int[] k) {
+		return new Iterator<KeyDataEntry>() {
+			int i = 0;
+
+			public boolean hasNext() {
+				return i < k.length;
+			}
+
+			public KeyDataEntry next() {
+				int key = k[i++];
+				return new KeyDataEntry(new IntegerKey(key), new RID(
+						new PageId(key), key));
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	protected BTreeFile newFile() throws Exception {
+		return new BTreeFile("BENCH" + postfix++, AttrType.attrInteger, 4,
+				DeleteFashion.NAIVE_DELETE);
+	}
+
+	protected void insertLoop(BTreeFile file, int[] k) throws Exception {
+		PageId pageno = new PageId();
+		for (int i = 0; i < k.length; i++) {
+			pageno.pid = k[i];
+			file.insert(new IntegerKey(k[i]), new RID(pageno, k[i]));
+		}
+	}
+
+	protected static void report(String what, long nanos, int n) {
+		System.out.println(String.format("%-44s %9.1f ms %10.0f keys/s",
+				what, nanos / 1e6, n / (nanos / 1e9)));
+	}
+
+	/**
+	 * Insert loop of BTDriver.test1 (sequential keys) and test3 (random
+	 * permutation) against bulkLoad of the same keys. The random input is
+	 * sorted first and the sort is part of the measured time.
+	 */
+	void bulkLoad(int n) throws Exception {
+		System.out.println("\n--- bulk load vs. insert loop, " + n + " keys");
+		openDB();
+
+		int[] seq = sequence(n);
+		int[] perm = permutation(n);
+		long start;
+
+		start = System.nanoTime();
+		insertLoop(newFile(), seq);
+		report("insert loop, sequential (test1)", System.nanoTime() - start,
+				n);
+
+		start = System.nanoTime();
+		insertLoop(newFile(), perm);
+		report("insert loop, random (test3)", System.nanoTime() - start, n);
+
+		int[] fills = { 100, 90, 70 };
+		for (int f = 0; f < fills.length; f++) {
+			start = System.nanoTime();
+			newFile().bulkLoad(entries(seq), fills[f]);
+			report("bulkLoad, sequential, fill " + fills[f] + "%",
+					System.nanoTime() - start, n);
+		}
+
+		start = System.nanoTime();
+		int[] sorted = perm.clone();
+		Arrays.sort(sorted);
+		newFile().bulkLoad(entries(sorted), 90);
+		report("sort + bulkLoad, random, fill 90%", System.nanoTime() - start,
+				n);
+
+		closeDB();
+	}
+
+	/*
+	 * Bytes allocated so far by this thread, -1 if the JVM cannot tell.
+	 */
+	protected static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory
+				.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) bean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	protected static void reportLookup(String what, long nanos, long bytes,
+			double compares, int lookups) {
+		System.out.println(String.format(
+				"%-44s %7.1f ns %8.1f compares %8.0f bytes   (per lookup)",
+				what, (double) nanos / lookups, compares, (double) bytes
+						/ lookups));
+	}
+
+	protected static void reportOperation(String what, long nanos, long bytes,
+			int ops) {
+		System.out.println(String.format("%-44s %7.2f us %8.0f bytes   (per op)",
+				what, nanos / 1e3 / ops, (double) bytes / ops));
+	}
+
+	/*
+	 * Linear walk used by findRunStart and getPageNoByKey before the binary
+	 * search; returns the number of key compares made.
+	 */
+	protected static int linearLookup(BTSortedPage page, KeyClass key)
+			throws Exception {
+		RID rid = new RID();
+		int compares = 1;
+		KeyDataEntry entry = page instanceof BTLeafPage ? ((BTLeafPage) page)
+				.getFirst(rid) : ((BTIndexPage) page).getFirst(rid);
+		while (entry != null && BT.keyCompare(entry.key, key) < 0) {
+			entry = page instanceof BTLeafPage ? ((BTLeafPage) page)
+					.getNext(rid) : ((BTIndexPage) page).getNext(rid);
+			compares++;
+		}
+		return compares;
+	}
+
+	/**
+	 * In-page lookup of random keys on a full leaf page and a full index page
+	 * with integer keys: the getFirst/getNext walk against the binary search
+	 * of BTSortedPages. Reports time, key compares and allocated bytes per
+	 * lookup.
+	 */
+	void pageSearch(int lookups) throws Exception {
+		System.out.println("\n--- in-page lookup, " + lookups + " lookups");
+		openDB();
+
+		BTLeafPage leaf = new BTLeafPage(AttrType.attrInteger);
+		BTIndexPage index = new BTIndexPage(AttrType.attrInteger);
+		int entries = 0;
+		while (leaf.insertRecord(new IntegerKey(2 * entries), new RID(
+				new PageId(entries), entries)) != null)
+			entries++;
+		int indexEntries = 0;
+		while (index.insertKey(new IntegerKey(2 * indexEntries), new PageId(
+				indexEntries)) != null)
+			indexEntries++;
+
+		BTSortedPage[] pages = { leaf, index };
+		int[] counts = { entries, indexEntries };
+		String[] names = { "leaf", "index" };
+		Random random = new Random(4331);
+		KeyClass[] keys = new KeyClass[lookups];
+
+		for (int p = 0; p < pages.length; p++) {
+			for (int i = 0; i < lookups; i++)
+				keys[i] = new IntegerKey(random.nextInt(2 * counts[p] + 1));
+
+			long compares = 0;
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++)
+				compares += linearLookup(pages[p], keys[i]);
+			long nanos = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			reportLookup("linear walk, " + names[p] + " page (" + counts[p]
+					+ " keys)", nanos, bytes, (double) compares / lookups,
+					lookups);
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < lookups; i++)
+				BTSortedPages.lowerBound(pages[p], keys[i]);
+			nanos = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			// a lower-bound binary search probes at most ceil(log2(n+1))
+			// slots
+			reportLookup("binary search, " + names[p] + " page (" + counts[p]
+					+ " keys)", nanos, bytes, Math.ceil(Math
+					.log(counts[p] + 1)
+					/ Math.log(2)), lookups);
+		}
+
+		SystemDefs.JavabaseBM.unpinPage(leaf.getCurPage(), true);
+		SystemDefs.JavabaseBM.unpinPage(index.getCurPage(), true);
+		closeDB();
+	}
+
+	/**
+	 * Time and allocation per operation of insert, point lookup (new_scan
+	 * with lo_key == hi_key) and delete for random integer keys, the
+	 * BTDriver.test3 workload.
+	 */
+	void operations(int n) throws Exception {
+		System.out.println("\n--- insert / lookup / delete, " + n + " keys");
+		openDB();
+
+		BTreeFile file = newFile();
+		int[] perm = permutation(n);
+		PageId pageno = new PageId();
+		long bytes, start;
+
+		bytes = allocatedBytes();
+		start = System.nanoTime();
+		insertLoop(file, perm);
+		reportOperation("insert, random", System.nanoTime() - start,
+				allocatedBytes() - bytes, n);
+
+		bytes = allocatedBytes();
+		start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			KeyClass key = new IntegerKey(perm[i]);
+			BTFileScan scan = file.new_scan(key, key);
+			scan.get_next();
+			scan.DestroyBTreeFileScan();
+		}
+		reportOperation("point lookup, random", System.nanoTime() - start,
+				allocatedBytes() - bytes, n);
+
+		bytes = allocatedBytes();
+		start = System.nanoTime();
+		for (int i = 0; i < n / 2; i++) {
+			pageno.pid = perm[i];
+			file.Delete(new IntegerKey(perm[i]), new RID(pageno, perm[i]));
+		}
+		reportOperation("naive delete, random", System.nanoTime() - start,
+				allocatedBytes() - bytes, n / 2);
+
+		closeDB();
+	}
+
+	/*
+	 * The leaf split of BTreeFile._insert before BTSortedPages.moveRange:
+	 * count the records, then move the upper half one record at a time.
+	 */
+	protected static void splitByReinsert(BTLeafPage page, BTLeafPage newPage)
+			throws Exception {
+		RID delRid = new RID();
+		KeyDataEntry temp;
+		int count = 0;
+		for (temp = page.getFirst(delRid); temp != null; temp = page
+				.getNext(delRid))
+			count++;
+		temp = page.getFirst(delRid);
+		for (int i = 1; i <= count; i++) {
+			if (i > count / 2) {
+				newPage.insertRecord(temp.key, ((LeafData) temp.data).getData());
+				page.deleteSortedRecord(delRid);
+				temp = page.getCurrent(delRid);
+			} else {
+				temp = page.getNext(delRid);
+			}
+		}
+	}
+
+	/**
+	 * Cost of splitting one full leaf page, record by record against
+	 * BTSortedPages.moveRange. The page size is fixed (MINIBASE_PAGESIZE),
+	 * so the number of entries per page is varied through the key length:
+	 * integer keys and string keys of several lengths. Each split starts
+	 * from a copy of the same full page; the copy is part of the time of
+	 * both variants.
+	 */
+	void splitCost(int splits) throws Exception {
+		System.out.println("\n--- leaf split, " + splits + " splits per size");
+		openDB();
+
+		int[] lengths = { 0, 8, 24, 56, 120 }; // 0: integer key
+		for (int l = 0; l < lengths.length; l++) {
+			int keyType = lengths[l] == 0 ? AttrType.attrInteger
+					: AttrType.attrString;
+			BTLeafPage page = new BTLeafPage(keyType);
+			BTLeafPage newPage = new BTLeafPage(keyType);
+			byte[] empty = newPage.getpage().clone();
+
+			int entries = 0;
+			while (page.insertRecord(lengths[l] == 0 ? new IntegerKey(entries)
+					: new StringKey(String.format("%0" + lengths[l] + "d",
+							entries)), new RID(new PageId(entries), entries)) != null)
+				entries++;
+			byte[] full = page.getpage().clone();
+
+			String what = (lengths[l] == 0 ? "integer key" : lengths[l]
+					+ " char key")
+					+ ", " + entries + " entries";
+			long bytes, start;
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < splits; i++) {
+				System.arraycopy(full, 0, page.getpage(), 0, MAX_SPACE);
+				System.arraycopy(empty, 0, newPage.getpage(), 0, MAX_SPACE);
+				splitByReinsert(page, newPage);
+			}
+			reportOperation("record by record, " + what, System.nanoTime()
+					- start, allocatedBytes() - bytes, splits);
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < splits; i++) {
+				System.arraycopy(full, 0, page.getpage(), 0, MAX_SPACE);
+				System.arraycopy(empty, 0, newPage.getpage(), 0, MAX_SPACE);
+				BTSortedPages.moveRange(page, entries / 2, newPage);
+			}
+			reportOperation("moveRange, " + what, System.nanoTime() - start,
+					allocatedBytes() - bytes, splits);
+
+			SystemDefs.JavabaseBM.unpinPage(page.getCurPage(), true);
+			SystemDefs.JavabaseBM.unpinPage(newPage.getCurPage(), true);
+		}
+
+		closeDB();
+	}
+
+	/*
+	 * Time a full scan and `ranges' range scans of `width' keys over the
+	 * keys 0..n-1.
+	 */
+	protected void scans(String what, BTreeFile file, int n, int ranges,
+			int width) throws Exception {
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		BTFileScan scan = file.new_scan(null, null);
+		int entries = 0;
+		while (scan.get_next() != null)
+			entries++;
+		scan.DestroyBTreeFileScan();
+		reportOperation(what + ", full scan (" + entries + ")", System
+				.nanoTime()
+				- start, allocatedBytes() - bytes, 1);
+
+		Random random = new Random(4331);
+		bytes = allocatedBytes();
+		start = System.nanoTime();
+		for (int i = 0; i < ranges; i++) {
+			int lo = random.nextInt(n - width);
+			scan = file.new_scan(new IntegerKey(lo), new IntegerKey(lo + width
+					- 1));
+			while (scan.get_next() != null)
+				;
+			scan.DestroyBTreeFileScan();
+		}
+		reportOperation(what + ", range scan of " + width + " keys", System
+				.nanoTime()
+				- start, allocatedBytes() - bytes, ranges);
+	}
+
+	/**
+	 * Scan latency after deleting a random half of the keys of a tree built
+	 * by random inserts, with naive delete (pages are never merged) and
+	 * full delete (pages are kept half full).
+	 */
+	void deleteScan(int n) throws Exception {
+		System.out.println("\n--- scans after 50% random deletes, " + n
+				+ " keys");
+		openDB();
+
+		int[] perm = permutation(n);
+		int[] fashions = { DeleteFashion.NAIVE_DELETE,
+				DeleteFashion.FULL_DELETE };
+		String[] names = { "naive delete", "full delete" };
+		PageId pageno = new PageId();
+
+		for (int f = 0; f < fashions.length; f++) {
+			BTreeFile file = new BTreeFile("BENCH" + postfix++,
+					AttrType.attrInteger, 4, fashions[f]);
+			insertLoop(file, perm);
+			scans("no deletes", file, n, 1000, 100);
+
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < n / 2; i++) {
+				pageno.pid = perm[i];
+				file.Delete(new IntegerKey(perm[i]), new RID(pageno, perm[i]));
+			}
+			reportOperation(names[f], System.nanoTime() - start,
+					allocatedBytes() - bytes, n / 2);
+			scans(names[f], file, n, 1000, 100);
+		}
+
+		closeDB();
+	}
+
+	protected static void reportPages(String what, int[] counts) {
+		System.out.println(String.format(
+				"%-44s %7d leaf %7d index pages %7d seeks", what, counts[0],
+				counts[1], counts[2]));
+	}
+
+	/**
+	 * Page counts and scans of a tree built by random inserts with two
+	 * thirds of its keys deleted again, before and after BTreeFile.compact.
+	 * The buffer pool is kept small so that the scans read their pages from
+	 * the database file.
+	 */
+	void compaction(int n) throws Exception {
+		System.out.println("\n--- compaction, " + n + " keys, 2/3 deleted");
+		openDB(100);
+
+		BTreeFile file = newFile();
+		int[] perm = permutation(n);
+		PageId pageno = new PageId();
+		insertLoop(file, perm);
+		for (int i = 0; i < n * 2 / 3; i++) {
+			pageno.pid = perm[i];
+			file.Delete(new IntegerKey(perm[i]), new RID(pageno, perm[i]));
+		}
+
+		reportPages("before", file.pageCounts());
+		scans("before", file, n, 1000, 300);
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		file.compact(90);
+		reportOperation("compact, fill 90%", System.nanoTime() - start,
+				allocatedBytes() - bytes, 1);
+
+		reportPages("after", file.pageCounts());
+		scans("after", file, n, 1000, 300);
+
+		closeDB();
+	}
+
+	/**
+	 * Random inserts, the BTDriver.test3 permutation, one key at a time
+	 * against BTreeFile.insertBatch with batches of several sizes.
+	 */
+	void batchInsert(int n) throws Exception {
+		System.out.println("\n--- batched insert, " + n + " random keys");
+		openDB();
+
+		int[] perm = permutation(n);
+		BTreeFile file = newFile();
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		insertLoop(file, perm);
+		reportOperation("insert, one key at a time", System.nanoTime()
+				- start, allocatedBytes() - bytes, n);
+
+		int[] sizes = { 100, 1000, 10000 };
+		for (int s = 0; s < sizes.length; s++) {
+			file = newFile();
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int from = 0; from < n; from += sizes[s]) {
+				int m = Math.min(sizes[s], n - from);
+				KeyClass[] keys = new KeyClass[m];
+				RID[] rids = new RID[m];
+				for (int i = 0; i < m; i++) {
+					int key = perm[from + i];
+					keys[i] = new IntegerKey(key);
+					rids[i] = new RID(new PageId(key), key);
+				}
+				file.insertBatch(keys, rids);
+			}
+			reportOperation("insertBatch, batches of " + sizes[s], System
+					.nanoTime()
+					- start, allocatedBytes() - bytes, n);
+		}
+
+		closeDB();
+	}
+
+	/*
+	 * Time `scans' range scans of `width' keys, or one full scan for width
+	 * 0, reading `prefetch' leaves ahead, 0 for none.
+	 */
+	protected void prefetchScans(String what, BTreeFile file, int n,
+			int scans, int width, int prefetch) throws Exception {
+		Random random = new Random(4331);
+		int entries = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < scans; i++) {
+			KeyClass lo = null, hi = null;
+			if (width > 0) {
+				int key = random.nextInt(n - width);
+				lo = new IntegerKey(key);
+				hi = new IntegerKey(key + width - 1);
+			}
+			BTFileScan scan = prefetch == 0 ? file.new_scan(lo, hi) : file
+					.new_scan(lo, hi, prefetch);
+			while (scan.get_next() != null)
+				entries++;
+			scan.DestroyBTreeFileScan();
+		}
+		report(what, System.nanoTime() - start, entries);
+	}
+
+	/**
+	 * Full and long range scans over a tree built by random inserts, with
+	 * and without reading leaves ahead, at several buffer pool sizes.
+	 */
+	void prefetchScan(int n) throws Exception {
+		int[] bufPages = { 50, 200, 1000, 5000 };
+		int[] prefetch = { 0, 4, 16, BTPrefetchScan.ADAPTIVE };
+		String[] names = { "no read ahead", "read ahead 4", "read ahead 16",
+				"read ahead adaptive" };
+
+		for (int b = 0; b < bufPages.length; b++) {
+			System.out.println("\n--- prefetching scan, " + n + " keys, "
+					+ bufPages[b] + " buffers");
+			openDB(bufPages[b]);
+			BTreeFile file = newFile();
+			insertLoop(file, permutation(n));
+
+			for (int p = 0; p < prefetch.length; p++) {
+				long hits = BTReadAhead.attach().hits();
+				prefetchScans("full scan, " + names[p], file, n, 3, 0,
+						prefetch[p]);
+				prefetchScans("range scan of " + n / 10 + ", " + names[p],
+						file, n, 10, n / 10, prefetch[p]);
+				System.out.println(String.format("%-44s %9d pages",
+						"  read ahead hits", BTReadAhead.attach().hits()
+								- hits));
+			}
+			closeDB();
+		}
+	}
+
+	/**
+	 * Full scans of a tree of n integer keys with get_next, one entry per
+	 * call, against next_batch into arrays of 1024 entries.
+	 */
+	void batchScan(int n) throws Exception {
+		System.out.println("\n--- batch scan, " + n + " keys");
+		openDB();
+
+		BTreeFile file = newFile();
+		file.bulkLoad(entries(sequence(n)), 100);
+		int rounds = 10;
+		long sum = 0;
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			BTFileScan scan = file.new_scan(null, null);
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				sum += ((IntegerKey) entry.key).getKey().intValue();
+			scan.DestroyBTreeFileScan();
+		}
+		long nanos = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+		report("get_next", nanos, rounds * n);
+		reportOperation("get_next", nanos, bytes, rounds * n);
+
+		int[] keys = new int[1024];
+		int[] pageIds = new int[1024];
+		int[] slotNos = new int[1024];
+		bytes = allocatedBytes();
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			BTBatchScan scan = file.new_batch_scan(null, null);
+			int count;
+			while ((count = scan.next_batch(keys, pageIds, slotNos)) > 0)
+				for (int i = 0; i < count; i++)
+					sum -= keys[i];
+			scan.DestroyBTreeFileScan();
+		}
+		nanos = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+		report("next_batch, 1024 entries", nanos, rounds * n);
+		reportOperation("next_batch, 1024 entries", nanos, bytes, rounds * n);
+
+		if (sum != 0)
+			System.out.println("batch scan returned other keys");
+		closeDB();
+	}
+
+	/**
+	 * "The last 100 keys up to hi", the way a forward scan has to answer it
+	 * (scan from lo and keep the last 100 seen) against a reverse scan that
+	 * stops after 100 entries, for ranges of 1% and 10% of the keys.
+	 */
+	void reverseScan(int n) throws Exception {
+		System.out.println("\n--- top 100 of a range, " + n + " keys");
+		openDB();
+
+		BTreeFile file = newFile();
+		file.bulkLoad(entries(sequence(n)), 100);
+		Random random = new Random(4331);
+		int queries = 200;
+		int top = 100;
+		int[] last = new int[top];
+
+		int[] widths = { n / 100, n / 10 };
+		for (int w = 0; w < widths.length; w++) {
+			int width = Math.max(widths[w], top);
+			int[] los = new int[queries];
+			for (int q = 0; q < queries; q++)
+				los[q] = random.nextInt(Math.max(n - width, 1));
+			long sum = 0;
+
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int q = 0; q < queries; q++) {
+				BTFileScan scan = file.new_scan(new IntegerKey(los[q]),
+						new IntegerKey(los[q] + width - 1));
+				KeyDataEntry entry;
+				int seen = 0;
+				while ((entry = scan.get_next()) != null)
+					last[seen++ % top] = ((IntegerKey) entry.key).getKey()
+							.intValue();
+				scan.DestroyBTreeFileScan();
+				for (int i = 0; i < Math.min(seen, top); i++)
+					sum += last[i];
+			}
+			long nanos = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			reportOperation("forward scan, range " + width, nanos, bytes,
+					queries);
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int q = 0; q < queries; q++) {
+				BTReverseScan scan = file.new_reverse_scan(new IntegerKey(
+						los[q]), new IntegerKey(los[q] + width - 1));
+				KeyDataEntry entry;
+				for (int i = 0; i < top && (entry = scan.get_next()) != null; i++)
+					sum -= ((IntegerKey) entry.key).getKey().intValue();
+				scan.DestroyBTreeFileScan();
+			}
+			nanos = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			reportOperation("reverse scan, range " + width, nanos, bytes,
+					queries);
+
+			if (sum != 0)
+				System.out.println("reverse scan returned other keys");
+		}
+		closeDB();
+	}
+
+	/**
+	 * String keys that share most of their bytes, "title/tt" and a seven
+	 * digit id as in a catalogue of film titles, in trees with and without
+	 * KeyCompression.PREFIX: pages, height and fanout after random inserts
+	 * and after a bulk load, and the time of random point lookups. The
+	 * buffer pool holds about a tenth of the leaves.
+	 */
+	void prefixCompression(int n) throws Exception {
+		System.out.println("\n--- prefix compression, " + n
+				+ " keys \"title/tt%07d\"");
+		int[] compression = { KeyCompression.NONE, KeyCompression.PREFIX };
+		String[] names = { "no compression", "prefix" };
+		int lookups = 20000;
+		int[] perm = permutation(n);
+		Random random = new Random(4331);
+		int[] probes = new int[lookups];
+		for (int i = 0; i < lookups; i++)
+			probes[i] = random.nextInt(n);
+
+		for (int c = 0; c < compression.length; c++) {
+			for (int build = 0; build < 2; build++) {
+				openDB(Math.max(n / 300, 50));
+				BTreeFile file = new BTreeFile("BENCH" + postfix++,
+						AttrType.attrString, 32, DeleteFashion.NAIVE_DELETE,
+						compression[c]);
+				if (build == 0) {
+					for (int i = 0; i < n; i++)
+						file.insert(new StringKey(String.format(
+								"title/tt%07d", perm[i])), new RID(
+								new PageId(perm[i]), perm[i]));
+				} else {
+					ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+					for (int i = 0; i < n; i++)
+						entries.add(new KeyDataEntry(new StringKey(String
+								.format("title/tt%07d", i)), new RID(
+								new PageId(i), i)));
+					file.bulkLoad(entries.iterator(), 100);
+				}
+
+				String what = names[c]
+						+ (build == 0 ? ", random inserts" : ", bulkLoad");
+				int[] counts = file.pageCounts();
+				System.out.println(String.format(
+						"%-44s %7d leaf %7d index pages %3d levels %6.1f fanout",
+						what, counts[0], counts[1], counts[3],
+						(double) (counts[0] + counts[1] - 1)
+								/ Math.max(counts[1], 1)));
+
+				StringKey[] keys = new StringKey[lookups];
+				for (int i = 0; i < lookups; i++)
+					keys[i] = new StringKey(String.format("title/tt%07d",
+							probes[i]));
+				int found = 0;
+				long bytes = allocatedBytes();
+				long start = System.nanoTime();
+				for (int i = 0; i < lookups; i++) {
+					BTFileScan scan = file.new_scan(keys[i], keys[i]);
+					if (scan.get_next() != null)
+						found++;
+					scan.DestroyBTreeFileScan();
+				}
+				reportOperation(what + ", point lookup", System.nanoTime()
+						- start, allocatedBytes() - bytes, lookups);
+				if (found != lookups)
+					System.out.println("point lookups missed "
+							+ (lookups - found) + " keys");
+				closeDB();
+			}
+		}
+	}
+
+	/**
+	 * Integer keys in slotted and in dense leaves (LeafLayout): pages and
+	 * entries per leaf after random inserts and after a bulk load, and the
+	 * time of full scans with get_next and next_batch and of range scans of
+	 * 1000 keys. The buffer pool holds about a tenth of the slotted leaves,
+	 * so the scans read most of their pages from the database file.
+	 */
+	void denseLeaves(int n) throws Exception {
+		System.out.println("\n--- dense leaves, " + n + " integer keys");
+		int[] layouts = { LeafLayout.SLOTTED, LeafLayout.DENSE };
+		String[] names = { "slotted", "dense" };
+		int[] perm = permutation(n);
+		int[] keys = new int[1024];
+		int[] pageIds = new int[1024];
+		int[] slotNos = new int[1024];
+
+		for (int l = 0; l < layouts.length; l++) {
+			for (int build = 0; build < 2; build++) {
+				openDB(Math.max(n / 600, 50));
+				BTreeFile file = new BTreeFile("BENCH" + postfix++,
+						AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE,
+						KeyCompression.NONE, layouts[l]);
+				if (build == 0)
+					insertLoop(file, perm);
+				else
+					file.bulkLoad(entries(sequence(n)), 100);
+
+				String what = names[l]
+						+ (build == 0 ? ", random inserts" : ", bulkLoad");
+				int[] counts = file.pageCounts();
+				System.out.println(String.format(
+						"%-44s %7d leaf %7d index pages %3d levels %6.1f per leaf",
+						what, counts[0], counts[1], counts[3], (double) n
+								/ counts[0]));
+				scans(what, file, n, 1000, 1000);
+
+				int rounds = 5, entries = 0, count;
+				long bytes = allocatedBytes();
+				long start = System.nanoTime();
+				for (int r = 0; r < rounds; r++) {
+					BTBatchScan scan = file.new_batch_scan(null, null);
+					while ((count = scan.next_batch(keys, pageIds, slotNos)) > 0)
+						entries += count;
+					scan.DestroyBTreeFileScan();
+				}
+				reportOperation(what + ", full next_batch (" + entries
+						/ rounds + ")", System.nanoTime() - start,
+						allocatedBytes() - bytes, rounds);
+				closeDB();
+			}
+		}
+	}
+
+	/**
+	 * Threads sharing one tree of integer keys, each doing point lookups
+	 * (a scan of one key) and one insert in ten: the throughput at 1, 2, 4,
+	 * 8 and 16 threads with every operation under one lock, and in
+	 * concurrent mode (BTreeFile.setConcurrent) without it. The tree is
+	 * bulk loaded with n even keys and the inserts add odd ones.
+	 */
+	void concurrentThreads(int n) throws Exception {
+		System.out.println("\n--- threads, " + n
+				+ " keys, 90% lookups 10% inserts, "
+				+ Runtime.getRuntime().availableProcessors() + " cpus");
+		int[] threadCounts = { 1, 2, 4, 8, 16 };
+		String[] names = { "one lock", "concurrent mode" };
+
+		for (int mode = 0; mode < names.length; mode++) {
+			for (int c = 0; c < threadCounts.length; c++) {
+				openDB();
+				BTreeFile.setConcurrent(mode == 1);
+				BTreeFile file = evenKeys(n);
+				long nanos = timeThreads(file, threadCounts[c], 2 * n, 10,
+						mode == 0 ? new Object() : null);
+				BTreeFile.setConcurrent(false);
+				reportThreads(names[mode] + ", " + threadCounts[c]
+						+ " threads", nanos, 2 * n);
+				closeDB();
+			}
+		}
+	}
+
+	/**
+	 * The read-heavy mix of concurrentThreads, 95% lookups and 5% inserts,
+	 * in concurrent mode with searches that latch their way down the tree
+	 * and with the searches of a B-link tree (BTreeFile.setBLink), at 1 to
+	 * 64 threads.
+	 */
+	void bLinkSearches(int n) throws Exception {
+		System.out.println("\n--- B-link searches, " + n
+				+ " keys, 95% lookups 5% inserts, "
+				+ Runtime.getRuntime().availableProcessors() + " cpus");
+		int[] threadCounts = { 1, 4, 16, 64 };
+		String[] names = { "latched descent", "B-link" };
+
+		for (int mode = 0; mode < names.length; mode++) {
+			for (int c = 0; c < threadCounts.length; c++) {
+				openDB();
+				BTreeFile.setConcurrent(true);
+				BTreeFile.setBLink(mode == 1);
+				BTreeFile file = evenKeys(n);
+				long nanos = timeThreads(file, threadCounts[c], 2 * n, 20,
+						null);
+				BTreeFile.setBLink(false);
+				BTreeFile.setConcurrent(false);
+				reportThreads(names[mode] + ", " + threadCounts[c]
+						+ " threads", nanos, 2 * n);
+				closeDB();
+			}
+		}
+	}
+
+	/**
+	 * Point lookups of keys drawn from a Zipf distribution (exponent 0.99,
+	 * the hottest keys spread over the key range): a scan from the key to
+	 * itself, BTreeFile.search, and search with lookup caches of two sizes
+	 * (BTreeFile.setLookupCache), the larger one also with every 20th
+	 * operation an insert of a new key.
+	 */
+	void pointLookups(int n) throws Exception {
+		System.out.println("\n--- point lookups, " + n + " keys, "
+				+ (4 * n) + " Zipf lookups");
+		openDB();
+
+		BTreeFile file = evenKeys(n);
+		int[] lookups = zipfKeys(n, 4 * n);
+		int[] capacities = { 0, 0, 100, n / 10, n / 10 };
+		String[] names = { "scan lo = hi", "search", "search, cache 100",
+				"search, cache " + n / 10,
+				"search, cache " + n / 10 + ", 5% inserts" };
+
+		for (int v = 0; v < names.length; v++) {
+			file.setLookupCache(capacities[v]);
+			int inserted = 0;
+			int found = 0;
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups.length; i++) {
+				IntegerKey key = new IntegerKey(lookups[i]);
+				if (v == 4 && i % 20 == 19) {
+					int odd = 2 * (inserted++ % n) + 1;
+					file.insert(new IntegerKey(odd), new RID(new PageId(odd),
+							odd));
+				} else if (v == 0) {
+					BTFileScan scan = file.new_scan(key, key);
+					if (scan.get_next() != null)
+						found++;
+					scan.DestroyBTreeFileScan();
+				} else {
+					found += file.search(key).length;
+				}
+			}
+			reportOperation(names[v], System.nanoTime() - start,
+					allocatedBytes() - bytes, lookups.length);
+			if (found == 0)
+				System.out.println("nothing found");
+		}
+		file.setLookupCache(0);
+
+		closeDB();
+	}
+
+	/*
+	 * `count' keys of evenKeys(n), the one of rank r drawn with a weight of
+	 * 1 / r^0.99; the ranks are shuffled over the keys.
+	 */
+	private int[] zipfKeys(int n, int count) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int r = 0; r < n; r++)
+			cdf[r] = sum += 1 / Math.pow(r + 1, 0.99);
+
+		int[] rank = permutation(n);
+		Random random = new Random(1999);
+		int[] keys = new int[count];
+		for (int i = 0; i < count; i++) {
+			int r = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+			if (r < 0)
+				r = -r - 1;
+			keys[i] = 2 * rank[Math.min(r, n - 1)];
+		}
+		return keys;
+	}
+
+	/**
+	 * A tall tree of string keys "title/tt%07d", bulk loaded with the even
+	 * numbers, and the same lookups (BTreeFile.search) and inserts of odd
+	 * numbers with none to all of its index levels cached
+	 * (BTreeFile.setCachedLevels).
+	 */
+	void cachedLevels(int n) throws Exception {
+		System.out.println("\n--- cached index levels, " + n
+				+ " keys \"title/tt%07d\"");
+		int lookups = 4 * n;
+		Random random = new Random(4331);
+		StringKey[] probes = new StringKey[lookups];
+		for (int i = 0; i < lookups; i++)
+			probes[i] = new StringKey(String.format("title/tt%07d", 2 * random
+					.nextInt(n)));
+		int[] perm = permutation(n);
+
+		for (int levels = 0; levels <= 3; levels++) {
+			openDB();
+			BTreeFile file = new BTreeFile("BENCH" + postfix++,
+					AttrType.attrString, 32, DeleteFashion.NAIVE_DELETE);
+			ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < n; i++)
+				entries.add(new KeyDataEntry(new StringKey(String.format(
+						"title/tt%07d", 2 * i)), new RID(new PageId(i), i)));
+			file.bulkLoad(entries.iterator(), 100);
+			if (levels == 0) {
+				int[] counts = file.pageCounts();
+				System.out.println(String.format(
+						"%-44s %7d leaf %7d index pages %3d levels", "tree",
+						counts[0], counts[1], counts[3]));
+			}
+			file.setCachedLevels(levels);
+
+			int found = 0;
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++)
+				found += file.search(probes[i]).length;
+			reportOperation(levels + " levels cached, search", System
+					.nanoTime()
+					- start, allocatedBytes() - bytes, lookups);
+			if (found != lookups)
+				System.out.println("search missed " + (lookups - found)
+						+ " keys");
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i = 0; i < n; i++)
+				file.insert(new StringKey(String.format("title/tt%07d",
+						2 * perm[i] + 1)), new RID(new PageId(perm[i]),
+						perm[i]));
+			reportOperation(levels + " levels cached, random insert", System
+					.nanoTime()
+					- start, allocatedBytes() - bytes, n);
+			closeDB();
+		}
+	}
+
+	/**
+	 * Random inserts and point lookups with no trace, with the text trace
+	 * of BTreeFile.traceFilename and with the binary trace of
+	 * BTreeFile.traceBinary, tracing every descent and one in 100.
+	 */
+	void tracing(int n) throws Exception {
+		System.out.println("\n--- tracing, " + n
+				+ " random inserts and lookups");
+		String[] names = { "no trace", "text trace", "binary trace",
+				"binary trace, 1 in 100" };
+		int[] perm = permutation(n);
+		String traceFile = "BTBENCH" + new Random().nextInt() + ".trace";
+
+		for (int mode = 0; mode < names.length; mode++) {
+			openDB();
+			BTreeFile file = newFile();
+			if (mode == 1)
+				BTreeFile.traceFilename(traceFile);
+			else if (mode > 1)
+				BTreeFile.traceBinary(traceFile, 1 << 16, mode == 2 ? 1 : 100);
+
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			insertLoop(file, perm);
+			for (int i = 0; i < n; i++)
+				file.search(new IntegerKey(perm[i]));
+			long nanos = System.nanoTime() - start;
+			bytes = allocatedBytes() - bytes;
+			long dropped = BTreeFile.traceDropped();
+			BTreeFile.destroyTrace();
+			reportOperation(names[mode], nanos, bytes, 2 * n);
+			if (dropped > 0)
+				System.out.println(dropped + " events dropped");
+			new File(traceFile).delete();
+			closeDB();
+		}
+	}
+
+	/**
+	 * The cost of BTreeFile.enableMetrics: random inserts, a full scan and
+	 * deletes of half the keys, without metrics and with them, and the
+	 * metrics the second run kept.
+	 */
+	void metrics(int n) throws Exception {
+		System.out.println("\n--- metrics, " + n
+				+ " random inserts, a scan and " + n / 2 + " deletes");
+		int[] perm = permutation(n);
+		BTMetrics.Snapshot kept = null;
+
+		for (int mode = 0; mode < 2; mode++) {
+			openDB();
+			BTreeFile file = newFile();
+			if (mode == 1)
+				file.enableMetrics();
+
+			long start = System.nanoTime();
+			insertLoop(file, perm);
+			BTFileScan scan = file.new_scan(null, null);
+			while (scan.get_next() != null)
+				;
+			scan.DestroyBTreeFileScan();
+			PageId pageno = new PageId();
+			for (int i = 0; i < n / 2; i++) {
+				pageno.pid = perm[i];
+				file.Delete(new IntegerKey(perm[i]), new RID(pageno, perm[i]));
+			}
+			long nanos = System.nanoTime() - start;
+			report(mode == 0 ? "no metrics" : "metrics", nanos, 2 * n + n / 2);
+			if (mode == 1)
+				kept = file.getMetrics().snapshot();
+			file.close();
+			closeDB();
+		}
+		System.out.println(kept);
+	}
+
+	/**
+	 * BTreeFile.analyze reading every leaf against a sample of 1% of them,
+	 * and the selectivity estimates of random ranges against counting the
+	 * entries with a scan, on a tree of n random inserts: the time each
+	 * takes and how far the estimates are off.
+	 */
+	void statistics(int n) throws Exception {
+		System.out.println("\n--- statistics, " + n + " random inserts");
+		openDB();
+		BTreeFile file = newFile();
+		int[] perm = permutation(n);
+		insertLoop(file, perm);
+		int queries = 1000;
+		Random random = new Random(42);
+		int[] lo = new int[queries];
+		int[] hi = new int[queries];
+		for (int i = 0; i < queries; i++) {
+			lo[i] = random.nextInt(n);
+			hi[i] = lo[i] + random.nextInt(n / 10 + 1);
+		}
+
+		long start = System.nanoTime();
+		file.analyze(0);
+		report("analyze, every leaf", System.nanoTime() - start, n);
+		double[] actual = new double[queries];
+		start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			BTFileScan scan = file.new_scan(new IntegerKey(lo[i]),
+					new IntegerKey(hi[i]));
+			int count = 0;
+			while (scan.get_next() != null)
+				count++;
+			scan.DestroyBTreeFileScan();
+			actual[i] = (double) count / n;
+		}
+		report("range scans, counted", System.nanoTime() - start, queries);
+		estimates("estimates, every leaf", file, lo, hi, actual);
+
+		int sample = Math.max(2, file.getStatistics().leafPages() / 100);
+		start = System.nanoTime();
+		file.analyze(sample);
+		report("analyze, " + sample + " leaves", System.nanoTime() - start, n);
+		estimates("estimates, " + sample + " leaves", file, lo, hi, actual);
+		System.out.println(file.getStatistics());
+		closeDB();
+	}
+
+	private static void estimates(String what, BTreeFile file, int[] lo,
+			int[] hi, double[] actual) throws Exception {
+		double error = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < lo.length; i++)
+			error += Math.abs(file.selectivity(new IntegerKey(lo[i]),
+					new IntegerKey(hi[i]))
+					- actual[i]);
+		report(what, System.nanoTime() - start, lo.length);
+		System.out.println(String.format("%-44s %9.4f", "  mean error",
+				error / lo.length));
+	}
+
+	/**
+	 * A tree of n random inserts with a plain index against one with a
+	 * counted index (IndexLayout.COUNTED): the inserts, range counts of
+	 * random ranges and select of random positions, then deletes of half
+	 * the keys. The plain tree answers rangeCount and select by reading the
+	 * leaves.
+	 */
+	void countedIndex(int n) throws Exception {
+		System.out.println("\n--- counted index, " + n + " random inserts");
+		int[] perm = permutation(n);
+		int queries = 1000;
+		Random random = new Random(42);
+		int[] lo = new int[queries];
+		int[] hi = new int[queries];
+		for (int i = 0; i < queries; i++) {
+			lo[i] = random.nextInt(n);
+			hi[i] = lo[i] + random.nextInt(n / 10 + 1);
+		}
+
+		for (int layout = IndexLayout.PLAIN; layout <= IndexLayout.COUNTED;
+				layout++) {
+			String what = layout == IndexLayout.PLAIN ? "plain" : "counted";
+			openDB();
+			BTreeFile file = new BTreeFile("BENCH" + postfix++,
+					AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE,
+					KeyCompression.NONE, LeafLayout.SLOTTED, layout);
+
+			long start = System.nanoTime();
+			insertLoop(file, perm);
+			report(what + ", insert", System.nanoTime() - start, n);
+
+			long total = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < queries; i++)
+				total += file.rangeCount(new IntegerKey(lo[i]), new IntegerKey(
+						hi[i]));
+			report(what + ", rangeCount", System.nanoTime() - start, queries);
+			start = System.nanoTime();
+			for (int i = 0; i < queries; i++)
+				total -= ((IntegerKey) file.select(lo[i]).key).getKey();
+			report(what + ", select", System.nanoTime() - start, queries);
+
+			PageId pageno = new PageId();
+			start = System.nanoTime();
+			for (int i = 0; i < n / 2; i++) {
+				pageno.pid = perm[i];
+				file.Delete(new IntegerKey(perm[i]), new RID(pageno, perm[i]));
+			}
+			report(what + ", delete", System.nanoTime() - start, n / 2);
+			System.out.println(String.format("%-44s %9d", "  checksum", total));
+			file.close();
+			closeDB();
+		}
+	}
+
+	/**
+	 * Zipf lookups of n keys while full scans go over the tree, about a
+	 * leaf per lookup, with a buffer pool of about a quarter of the tree's
+	 * pages, under each replacement policy of BTBufMgr: the share of the
+	 * lookups' pins and of all pins that found the page in the pool, and
+	 * the latency of the lookups. The policies start from a pool warmed
+	 * by lookups alone.
+	 */
+	void replacers(int n) throws Exception {
+		System.out.println("\n--- replacers, " + n + " Zipf lookups during "
+				+ "full scans, " + Math.max(20, n / 200) + " frames");
+		int[] lookups = zipfKeys(n, n);
+		String[] policies = { "Clock", "LRU", "MRU", "2Q" };
+
+		for (int p = 0; p < policies.length; p++) {
+			openDB(Math.max(20, n / 200));
+			BTBufMgr bufMgr = BTBufMgr.attach(policies[p]);
+			BTreeFile file = evenKeys(n);
+			for (int i = 0; i < n / 2; i++)
+				file.search(new IntegerKey(lookups[i]));
+
+			bufMgr.resetCounts();
+			long[] nanos = new long[lookups.length];
+			long hits = 0;
+			long misses = 0;
+			BTFileScan scan = file.new_scan(null, null);
+			for (int i = 0; i < lookups.length; i++) {
+				// about a leaf of the scan per lookup
+				for (int step = 0; step < 64; step++)
+					if (scan.get_next() == null) {
+						scan.DestroyBTreeFileScan();
+						scan = file.new_scan(null, null);
+					}
+				long h = bufMgr.hits();
+				long m = bufMgr.misses();
+				long start = System.nanoTime();
+				file.search(new IntegerKey(lookups[i]));
+				nanos[i] = System.nanoTime() - start;
+				hits += bufMgr.hits() - h;
+				misses += bufMgr.misses() - m;
+			}
+			scan.DestroyBTreeFileScan();
+
+			long total = 0;
+			for (int i = 0; i < nanos.length; i++)
+				total += nanos[i];
+			Arrays.sort(nanos);
+			System.out.println(String.format(
+					"%-12s lookups %5.1f%% hits, all %5.1f%% hits, "
+							+ "%7.2f us mean %7.2f us p99", bufMgr
+							.replacerName(), 100.0 * hits / (hits + misses),
+					100.0 * bufMgr.hits()
+							/ (bufMgr.hits() + bufMgr.misses()), total / 1e3
+							/ nanos.length, nanos[nanos.length * 99 / 100]
+							/ 1e3));
+			file.close();
+			closeDB();
+		}
+	}
+
+	/**
+	 * Pins and unpins of random pages that are all in the buffer pool, at
+	 * 1 to 16 threads: through the library's buffer manager behind
+	 * BTSyncBufMgr's one lock, and through BTBufMgr, where a pin of a page
+	 * in the pool takes only the lock of its part of the page table, with
+	 * Clock and with 2Q (whose queues are behind a lock of their own).
+	 */
+	void bufferPins(int n) throws Exception {
+		int pages = Math.max(10, Math.min(1000, n / 50));
+		int ops = 20 * n;
+		System.out.println("\n--- buffer pins, " + ops + " pins of " + pages
+				+ " pages in the pool, "
+				+ Runtime.getRuntime().availableProcessors() + " cpus");
+		int[] threadCounts = { 1, 2, 4, 8, 16 };
+		String[] names = { "BufMgr, one lock", "BTBufMgr, Clock",
+				"BTBufMgr, 2Q" };
+
+		for (int m = 0; m < names.length; m++) {
+			for (int c = 0; c < threadCounts.length; c++) {
+				openDB(2 * pages);
+				if (m == 0)
+					BTSyncBufMgr.attach();
+				else
+					BTBufMgr.attach(m == 1 ? "Clock" : "2Q");
+				int[] pids = new int[pages];
+				for (int i = 0; i < pages; i++) {
+					PageId pageno = SystemDefs.JavabaseBM.newPage(new Page(), 1);
+					pids[i] = pageno.pid;
+					SystemDefs.JavabaseBM.unpinPage(pageno, true);
+				}
+				long nanos = timePins(pids, threadCounts[c], ops);
+				reportThreads(names[m] + ", " + threadCounts[c] + " threads",
+						nanos, ops);
+				closeDB();
+			}
+		}
+	}
+
+	/*
+	 * Time `threads' threads that share `ops' pins and unpins of random
+	 * pages of `pids', and rethrow what failed in one of them.
+	 */
+	private static long timePins(final int[] pids, final int threads,
+			final int ops) throws Exception {
+		final Exception[] failed = new Exception[1];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			workers[t] = new Thread() {
+				public void run() {
+					Random random = new Random(id);
+					Page page = new Page();
+					PageId pageno = new PageId();
+					try {
+						for (int i = 0; i < ops / threads; i++) {
+							pageno.pid = pids[random.nextInt(pids.length)];
+							SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+							SystemDefs.JavabaseBM.unpinPage(pageno, false);
+						}
+					} catch (Exception e) {
+						failed[0] = e;
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++)
+			workers[t].start();
+		for (int t = 0; t < threads; t++)
+			workers[t].join();
+		long nanos = System.nanoTime() - start;
+		if (failed[0] != null)
+			throw failed[0];
+		return nanos;
+	}
+
+	/**
+	 * A database of 5000 pages with a pool of 5000 frames, as
+	 * SystemDefs(dbpath, 5000, 5000, "Clock"), and with 50 frames: the time
+	 * to open it and the heap its pool keeps, with the library's buffer
+	 * manager, with BTBufMgr, and with BTBufMgr reading and writing through
+	 * a memory mapping of the file. Then up to 100000 keys are bulk loaded
+	 * and looked up in Zipf order, with the time, the garbage collections
+	 * and the time they took.
+	 */
+	void bufferFrames(int n) throws Exception {
+		int keys = Math.min(n, 100000);
+		System.out.println("\n--- buffer frames, 5000 pages, " + keys
+				+ " keys, " + 4 * keys + " Zipf lookups");
+		int[] lookups = zipfKeys(keys, 4 * keys);
+		String[] names = { "BufMgr", "BTBufMgr", "BTBufMgr, mapped" };
+		int[] pools = { 5000, 50 };
+
+		// all opened before any runs, which leave garbage of their own
+		for (int m = 0; m < names.length; m++)
+			for (int p = 0; p < pools.length; p++) {
+				long heap = usedHeap();
+				long nanos = openFrames(m, pools[p]);
+				heap = usedHeap() - heap;
+				System.out.println(String.format(
+						"%-18s %4d frames: open %6.1f ms, heap %6.2f MB",
+						names[m], pools[p], nanos / 1e6, heap / 1e6));
+				closeDB();
+				SystemDefs.JavabaseBM = null;
+			}
+
+		for (int m = 0; m < names.length; m++)
+			for (int p = 0; p < pools.length; p++) {
+				openFrames(m, pools[p]);
+				long collections = collections();
+				long pauses = collectionMillis();
+				long start = System.nanoTime();
+				BTreeFile file = evenKeys(keys);
+				for (int i = 0; i < lookups.length; i++)
+					file.search(new IntegerKey(lookups[i]));
+				long nanos = System.nanoTime() - start;
+				System.out.println(String.format(
+						"%-18s %4d frames: run %7.1f ms, %3d GCs %5d ms",
+						names[m], pools[p], nanos / 1e6, collections()
+								- collections, collectionMillis() - pauses));
+				file.close();
+				closeDB();
+			}
+	}
+
+	/*
+	 * Open a database for bufferFrames with a pool of `frames', of the
+	 * library's buffer manager (mode 0) or of BTBufMgr, mapped in mode 2;
+	 * the time it took.
+	 */
+	private long openFrames(int mode, int frames) throws Exception {
+		dbpath = "BTBENCH" + new Random().nextInt() + ".minibase-db";
+		new File(dbpath).delete();
+		long start = System.nanoTime();
+		new SystemDefs(dbpath, 5000, frames, "Clock");
+		if (mode > 0)
+			BTBufMgr.attach("Clock", mode == 2);
+		return System.nanoTime() - start;
+	}
+
+	/*
+	 * The heap in use once the garbage is collected.
+	 */
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 2; i++) {
+			runtime.runFinalization();
+			runtime.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long collections() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			count += gc.getCollectionCount();
+		return count;
+	}
+
+	private static long collectionMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			millis += gc.getCollectionTime();
+		return millis;
+	}
+
+	/**
+	 * Inserts of n keys in random order into an empty tree, with a buffer
+	 * pool of about a tenth of the tree's pages, so that most inserts take
+	 * a victim, and splits leave several dirty pages behind them: the
+	 * latency percentiles of the inserts without BTBufMgr's background
+	 * writer and with it at two rates, and how many pages were written by
+	 * the pins that took them as victims and by the writer.
+	 */
+	void backgroundWriter(int n) throws Exception {
+		int frames = Math.max(20, n / 400);
+		System.out.println("\n--- background writer, " + n
+				+ " random inserts, " + frames + " frames");
+		int[] keys = permutation(n);
+		String[] names = { "no writer", "writer, 20 pages/frame/s, 20%-60%",
+				"writer, 200 pages/frame/s, 5%-30%" };
+		int[] rates = { 0, 20 * frames, 200 * frames };
+		double[] lows = { 0, 0.2, 0.05 };
+		double[] highs = { 0, 0.6, 0.3 };
+
+		for (int w = 0; w < names.length; w++) {
+			openDB(frames);
+			BTBufMgr bufMgr = BTBufMgr.attach("Clock");
+			BTreeFile file = newFile();
+			if (rates[w] > 0)
+				bufMgr.startWriter(rates[w], lows[w], highs[w]);
+			bufMgr.resetCounts();
+
+			long[] nanos = new long[n];
+			PageId pageno = new PageId();
+			for (int i = 0; i < n; i++) {
+				pageno.pid = keys[i];
+				long start = System.nanoTime();
+				file.insert(new IntegerKey(keys[i]), new RID(pageno, keys[i]));
+				nanos[i] = System.nanoTime() - start;
+			}
+			bufMgr.stopWriter();
+
+			long total = 0;
+			for (int i = 0; i < n; i++)
+				total += nanos[i];
+			Arrays.sort(nanos);
+			System.out.println(String.format(
+					"%-36s %6.2f us mean, p50 %6.2f p99 %7.2f p99.9 %8.2f "
+							+ "max %9.2f us", names[w], total / 1e3 / n,
+					nanos[n / 2] / 1e3, nanos[n * 99 / 100] / 1e3,
+					nanos[n * 999 / 1000] / 1e3, nanos[n - 1] / 1e3));
+			System.out.println(String.format(
+					"%-36s %6d pages written by victims, %6d by the writer",
+					"", bufMgr.victimWrites(), bufMgr.writerWrites()));
+			file.close();
+			closeDB();
+		}
+	}
+
+	/**
+	 * Runs of adjacent pages moved with one call: flushAllPages of a pool
+	 * holding the dirty pages of a bulk-loaded tree, with the library's
+	 * buffer manager, which writes a page a call, and with BTBufMgr, and
+	 * the calls that wrote them; then
+	 * full scans of the tree from a pool of 50 empty frames, without and
+	 * with reading ahead, and the pages read ahead and the reads it took.
+	 */
+	void pageRuns(int n) throws Exception {
+		int keys = Math.min(n, 200000);
+		System.out.println("\n--- page runs, " + keys + " keys");
+		String[] names = { "BufMgr", "BTBufMgr" };
+
+		for (int m = 0; m < names.length; m++) {
+			long best = Long.MAX_VALUE;
+			int dirty = 0;
+			long calls = 0;
+			for (int round = 0; round < 3; round++) {
+				openDB();
+				BTBufMgr bufMgr = m == 0 ? null : BTBufMgr.attach("Clock");
+				evenKeys(keys).close();
+				if (bufMgr != null) {
+					dirty = bufMgr.dirtyPages();
+					bufMgr.resetCounts();
+				}
+				long start = System.nanoTime();
+				SystemDefs.JavabaseBM.flushAllPages();
+				best = Math.min(best, System.nanoTime() - start);
+				calls = bufMgr == null ? 0 : bufMgr.fileWrites();
+				closeDB();
+			}
+			System.out.println(String.format("%-44s %9.1f ms%s",
+					"flushAllPages, " + names[m] + ", best of 3", best / 1e6,
+					m == 0 ? "" : String.format(" %7d pages %7d writes",
+							dirty, calls)));
+		}
+
+		openDB(50);
+		BTBufMgr.attach("Clock");
+		evenKeys(keys).close();
+		BTBufMgr.attach("Clock"); // written out, and the pool empty
+		BTreeFile file = new BTreeFile("BENCH" + (postfix - 1));
+		int[] prefetch = { 0, BTPrefetchScan.ADAPTIVE };
+		String[] scans = { "full scan, no read ahead",
+				"full scan, read ahead adaptive" };
+		for (int p = 0; p < prefetch.length; p++) {
+			BTReadAhead readAhead = BTReadAhead.attach();
+			long hits = readAhead.hits();
+			long reads = readAhead.reads();
+			prefetchScans(scans[p], file, keys, 3, 0, prefetch[p]);
+			System.out.println(String.format(
+					"%-44s %9d pages %7d reads", "  read ahead",
+					readAhead.hits() - hits, readAhead.reads() - reads));
+		}
+		file.close();
+		closeDB();
+	}
+
+	/*
+	 * A new file with the keys 0, 2, .., 2n-2, bulk loaded.
+	 */
+	private BTreeFile evenKeys(int n) throws Exception {
+		BTreeFile file = newFile();
+		int[] even = new int[n];
+		for (int i = 0; i < n; i++)
+			even[i] = 2 * i;
+		file.bulkLoad(entries(even), 90);
+		return file;
+	}
+
+	/*
+	 * Time `threads' threads that share `ops' operations on `file' (see
+	 * work), and rethrow what failed in one of them.
+	 */
+	private static long timeThreads(final BTreeFile file, final int threads,
+			final int ops, final int insertEvery, final Object lock)
+			throws Exception {
+		final Exception[] failed = new Exception[1];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			workers[t] = new Thread() {
+				public void run() {
+					try {
+						work(file, id, threads, ops / threads, insertEvery,
+								lock);
+					} catch (Exception e) {
+						failed[0] = e;
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++)
+			workers[t].start();
+		for (int t = 0; t < threads; t++)
+			workers[t].join();
+		long nanos = System.nanoTime() - start;
+		if (failed[0] != null)
+			throw failed[0];
+		return nanos;
+	}
+
+	private static void reportThreads(String what, long nanos, int ops) {
+		System.out.println(String.format("%-44s %9.1f ms %10.0f ops/s", what,
+				nanos / 1e6, ops / (nanos / 1e9)));
+	}
+
+	/*
+	 * The operations of thread `id' of `threads': lookups of random keys,
+	 * and every `insertEvery'-th operation an insert, each under `lock'
+	 * unless it is null.
+	 */
+	private static void work(BTreeFile file, int id, int threads, int ops,
+			int insertEvery, Object lock) throws Exception {
+		Random random = new Random(id);
+		int range = 2 * ops * threads;
+		int inserted = 0;
+
+		for (int i = 0; i < ops; i++) {
+			if (i % insertEvery == insertEvery - 1) {
+				// odd keys, none inserted by two threads
+				int key = 2 * (id + threads * inserted++) + 1;
+				if (lock == null)
+					file.insert(new IntegerKey(key), new RID(new PageId(key),
+							key));
+				else
+					synchronized (lock) {
+						file.insert(new IntegerKey(key), new RID(new PageId(
+								key), key));
+					}
+			} else {
+				IntegerKey key = new IntegerKey(random.nextInt(range));
+				if (lock == null)
+					lookup(file, key);
+				else
+					synchronized (lock) {
+						lookup(file, key);
+					}
+			}
+		}
+	}
+
+	private static void lookup(BTreeFile file, IntegerKey key)
+			throws Exception {
+		BTFileScan scan = file.new_scan(key, key);
+		scan.get_next();
+		scan.DestroyBTreeFileScan();
+	}
+
+	void runBench(String name, int n) throws Exception {
+		boolean all = name == null;
+
+		if (all || name.equals("bulkload"))
+			bulkLoad(n);
+		if (all || name.equals("search"))
+			pageSearch(4 * n);
+		if (all || name.equals("ops"))
+			operations(n);
+		if (all || name.equals("split"))
+			splitCost(n / 10);
+		if (all || name.equals("delete"))
+			deleteScan(n);
+		if (all || name.equals("compact"))
+			compaction(n);
+		if (all || name.equals("batch"))
+			batchInsert(n);
+		if (all || name.equals("prefetch"))
+			prefetchScan(n);
+		if (all || name.equals("batchscan"))
+			batchScan(n);
+		if (all || name.equals("reverse"))
+			reverseScan(n);
+		if (all || name.equals("prefix"))
+			prefixCompression(n);
+		if (all || name.equals("dense"))
+			denseLeaves(n);
+		if (all || name.equals("threads"))
+			concurrentThreads(n);
+		if (all || name.equals("blink"))
+			bLinkSearches(n);
+		if (all || name.equals("lookup"))
+			pointLookups(n);
+		if (all || name.equals("levels"))
+			cachedLevels(n);
+		if (all || name.equals("trace"))
+			tracing(n);
+		if (all || name.equals("metrics"))
+			metrics(n);
+		if (all || name.equals("stats"))
+			statistics(n);
+		if (all || name.equals("count"))
+			countedIndex(n);
+		if (all || name.equals("replacer"))
+			replacers(n);
+		if (all || name.equals("pins"))
+			bufferPins(n);
+		if (all || name.equals("frames"))
+			bufferFrames(n);
+		if (all || name.equals("writer"))
+			backgroundWriter(n);
+		if (all || name.equals("runs"))
+			pageRuns(n);
+	}
+}
+
+public class BTBench implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		String name = argvs.length > 0 ? argvs[0] : null;
+		int n = argvs.length > 1 ? Integer.parseInt(argvs[1]) : 50000;
+
+		try {
+			BenchDriver bench = new BenchDriver();
+			// one small round first so the timed runs are not dominated by
+			// class loading and the JIT
+			bench.runBench(name, 2000);
+			bench.runBench(name, n);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during B+ tree benchmarks:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+}
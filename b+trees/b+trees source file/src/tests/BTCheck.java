@@ -0,0 +1,1643 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import global.*;
+import bufmgr.*;
+import diskmgr.*;
+import btree.*;
+
+/**
+ * Regression driver for the B+ tree. Every check runs random operations
+ * against a fresh minibase database and against a reference of what the
+ * tree should hold, and compares the two; give the check name (and
+ * optionally the number of keys) on the command line, or nothing to run
+ * them all. The exit status is 1 if any check failed.
+ */
+class CheckDriver implements GlobalConst {
+
+	public final static int DB_PAGES = 60000;
+	public final static int BUF_PAGES = 1000;
+	public final static int SMALL_POOL = 40;
+
+	protected String dbpath;
+	protected String fileName; // of the last file newFile created
+	public int postfix = 0;
+	public int failures = 0;
+	private int nextId = 0;
+
+	/*
+	 * Create a database that only this check uses.
+	 */
+	protected void openDB() {
+		openDB(BUF_PAGES);
+	}
+
+	protected void openDB(int bufPages) {
+		dbpath = "BTCHECK" + new Random().nextInt() + ".minibase-db";
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, DB_PAGES, bufPages, "Clock");
+	}
+
+	protected void closeDB() {
+		try {
+			if (SystemDefs.JavabaseBM instanceof BTBufMgr)
+				((BTBufMgr) SystemDefs.JavabaseBM).close();
+			SystemDefs.JavabaseDB.closeDB();
+		} catch (IOException e) {
+			System.err.println("IO error: " + e);
+		} catch (Exception e) {
+			System.err.println("Buffer manager error: " + e);
+		}
+		new File(dbpath).delete();
+	}
+
+	/*
+	 * Count a failure unless `ok'; tell whether it was.
+	 */
+	protected boolean expect(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("FAILED: " + what);
+			failures++;
+		}
+		return ok;
+	}
+
+	protected static void passed(String what) {
+		System.out.println(String.format("%-60s ok", what));
+	}
+
+	/* keys: the value itself, or a string in the same order */
+
+	protected static KeyClass key(int keyType, int value) {
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(value);
+		return new StringKey(String.format("k%08d", value));
+	}
+
+	protected static int value(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey().intValue();
+		return Integer.parseInt(((StringKey) key).getKey().substring(1));
+	}
+
+	/*
+	 * An entry of the reference: its key value and the page number of its
+	 * rid, which is unique.
+	 */
+	protected static long entry(int value, int id) {
+		return (long) value << 32 | id;
+	}
+
+	protected static RID rid(long entry) {
+		return new RID(new PageId((int) entry), (int) (entry >> 32));
+	}
+
+	/*
+	 * The entries of a scan of `file' from `lo' to `hi', either null, in
+	 * the order of the reference; false in `order' if the keys of the scan
+	 * went down.
+	 */
+	protected List<Long> scan(BTreeFile file, KeyClass lo, KeyClass hi,
+			boolean[] order) throws Exception {
+		ArrayList<Long> entries = new ArrayList<Long>();
+		BTFileScan scan = prefetch == 0 ? file.new_scan(lo, hi) : file
+				.new_scan(lo, hi, prefetch);
+		KeyDataEntry e;
+		int last = Integer.MIN_VALUE;
+		while ((e = scan.get_next()) != null) {
+			int value = value(e.key);
+			if (value < last)
+				order[0] = false;
+			last = value;
+			entries.add(entry(value, ((LeafData) e.data).getData().pageNo.pid));
+		}
+		scan.DestroyBTreeFileScan();
+		// entries with equal keys are in the order the leaves split them
+		Collections.sort(entries);
+		return entries;
+	}
+
+	/* the read-ahead of the scans of scan, 0 for none */
+	protected int prefetch = 0;
+
+	/*
+	 * Compare a full scan and `ranges' random range scans of `file' with
+	 * `expected'; false if they differ.
+	 */
+	protected boolean compare(BTreeFile file, int keyType,
+			TreeSet<Long> expected, int ranges, Random random, String what)
+			throws Exception {
+		boolean[] order = { true };
+		if (!expect(scan(file, null, null, order).equals(
+				new ArrayList<Long>(expected)), what + ": full scan differs"))
+			return false;
+
+		int n = expected.isEmpty() ? 1 : (int) (expected.last() >> 32) + 2;
+		for (int i = 0; i < ranges; i++) {
+			int lo = random.nextInt(n);
+			int hi = lo + random.nextInt(n / 8 + 1);
+			List<Long> got = scan(file, key(keyType, lo), key(keyType, hi),
+					order);
+			ArrayList<Long> want = new ArrayList<Long>(expected.subSet(
+					entry(lo, 0), entry(hi + 1, 0)));
+			if (!expect(got.equals(want), what + ": range scan " + lo
+					+ ".." + hi + " has " + got.size() + " entries, not "
+					+ want.size()))
+				return false;
+		}
+		return expect(order[0], what + ": scan keys out of order");
+	}
+
+	/*
+	 * The file types the checks run on: key type, key compression and leaf
+	 * layout.
+	 */
+	protected final static int[][] LAYOUTS = {
+			{ AttrType.attrInteger, KeyCompression.NONE, LeafLayout.SLOTTED },
+			{ AttrType.attrInteger, KeyCompression.NONE, LeafLayout.DENSE },
+			{ AttrType.attrString, KeyCompression.NONE, LeafLayout.SLOTTED },
+			{ AttrType.attrString, KeyCompression.PREFIX, LeafLayout.SLOTTED } };
+
+	protected static String layoutName(int[] layout) {
+		return (layout[0] == AttrType.attrInteger ? "integer" : "string")
+				+ (layout[1] == KeyCompression.PREFIX ? " prefix" : "")
+				+ (layout[2] == LeafLayout.DENSE ? " dense" : "");
+	}
+
+	protected BTreeFile newFile(int[] layout, int deleteFashion)
+			throws Exception {
+		return newFile(layout, deleteFashion, IndexLayout.PLAIN);
+	}
+
+	protected BTreeFile newFile(int[] layout, int deleteFashion,
+			int indexLayout) throws Exception {
+		fileName = "CHECK" + postfix++;
+		return new BTreeFile(fileName, layout[0],
+				layout[0] == AttrType.attrInteger ? 4 : 12, deleteFashion,
+				layout[1], layout[2], indexLayout);
+	}
+
+	/*
+	 * `rounds' rounds of `n' random inserts into `file', each followed by
+	 * deletes of most of the entries in random order and of entries the
+	 * tree does not hold, the last one down to `left' entries; compares the
+	 * tree with `expected' after every step, and false if they differ.
+	 */
+	protected boolean rounds(BTreeFile file, int keyType, int n, int rounds,
+			int left, TreeSet<Long> expected, Random random, String what)
+			throws Exception {
+		ArrayList<Long> live = new ArrayList<Long>(expected);
+		boolean ok = true;
+		for (int round = 0; ok && round < rounds; round++) {
+			for (int i = 0; i < n; i++) {
+				long e = entry(random.nextInt(n), nextId++);
+				file.insert(key(keyType, (int) (e >> 32)), rid(e));
+				expected.add(e);
+				live.add(e);
+			}
+			ok = compare(file, keyType, expected, 10, random, what
+					+ ", round " + round + " inserts");
+
+			Collections.shuffle(live, random);
+			int deletes = round == rounds - 1 ? live.size() - left : live
+					.size() * 3 / 4;
+			for (int i = 0; ok && i < deletes; i++) {
+				long e = live.remove(live.size() - 1);
+				expected.remove(e);
+				ok = expect(file.Delete(key(keyType, (int) (e >> 32)),
+						rid(e)), what + ": entry not deleted");
+				if (ok && i % 16 == 0) // one that is gone by now
+					ok = expect(!file.Delete(key(keyType, (int) (e >> 32)),
+							rid(e)), what + ": entry deleted twice");
+			}
+			if (ok)
+				ok = compare(file, keyType, expected, 10, random, what
+						+ ", round " + round + " deletes");
+		}
+		return ok;
+	}
+
+	/*
+	 * The entries of `expected' for BTreeFile.bulkLoad, in key order.
+	 */
+	protected static ArrayList<KeyDataEntry> loadEntries(int keyType,
+			TreeSet<Long> expected) {
+		ArrayList<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		for (long e : expected)
+			entries.add(new KeyDataEntry(key(keyType, (int) (e >> 32)),
+					rid(e)));
+		return entries;
+	}
+
+	/*
+	 * Close `file', write the pool out and put an empty BTBufMgr with
+	 * `policy' in its place, and open the file again; its pages are then
+	 * read from the database.
+	 */
+	protected BTreeFile reopen(BTreeFile file, String policy, boolean mapped)
+			throws Exception {
+		file.close();
+		BTBufMgr.attach(policy, mapped);
+		return new BTreeFile(fileName);
+	}
+
+	/**
+	 * FULL_DELETE: rounds of random inserts, each followed by deletes of
+	 * most of the entries in random order and of entries the tree does not
+	 * hold, until only a few are left; the tree must then be a single leaf,
+	 * and take new entries again. Once as it is and once with the top two
+	 * index levels cached (BTreeFile.setCachedLevels), which the splits,
+	 * merges and root changes of the rounds must keep up to date.
+	 */
+	void fullDelete(int n) throws Exception {
+		for (int levels = 0; levels <= 2; levels += 2)
+			for (int[] layout : LAYOUTS)
+				fullDelete(n, layout, levels);
+	}
+
+	protected void fullDelete(int n, int[] layout, int levels)
+			throws Exception {
+		String what = "full delete, " + layoutName(layout) + ", " + n
+				+ " keys" + (levels > 0 ? ", " + levels
+				+ " cached levels" : "");
+		openDB();
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		Random random = new Random(n);
+		BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+		file.setCachedLevels(levels);
+		TreeSet<Long> expected = new TreeSet<Long>();
+		boolean ok = rounds(file, layout[0], n, 4, 5, expected, random,
+				what);
+		if (ok) {
+			int[] pages = file.pageCounts();
+			ok = expect(pages[0] == 1 && pages[1] == 0, what
+					+ ": " + pages[0] + " leaves and " + pages[1]
+					+ " index pages left for " + expected.size()
+					+ " entries");
+		}
+		for (int i = 0; ok && i < n; i++) {
+			long e = entry(random.nextInt(n), nextId++);
+			file.insert(key(layout[0], (int) (e >> 32)), rid(e));
+			expected.add(e);
+		}
+		if (ok)
+			ok = compare(file, layout[0], expected, 10, random, what
+					+ ", inserts after deletes");
+		file.close();
+		if (ok)
+			ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+					what + ": pages left pinned");
+		closeDB();
+		if (ok)
+			passed(what);
+	}
+
+	/*
+	 * Run `writers' threads that each insert keys of their own into `file'
+	 * and delete every third one again, and `readers' threads that scan
+	 * random ranges meanwhile and look up keys nobody deletes; then compare
+	 * the tree with what the writers left, which goes into `expected'. In
+	 * concurrent mode.
+	 */
+	protected boolean threads(final BTreeFile file, final int keyType,
+			final int n, int writers, int readers, TreeSet<Long> expected,
+			String what) throws Exception {
+		// keys n..2n-1, every other one, stay in the tree throughout
+		for (int v = n; v < 2 * n; v += 2) {
+			file.insert(key(keyType, v), rid(entry(v, v)));
+			expected.add(entry(v, v));
+		}
+
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicReference<String> error = new AtomicReference<String>();
+		final AtomicInteger running = new AtomicInteger(writers);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < writers; t++) {
+			final ArrayList<Integer> values = new ArrayList<Integer>();
+			for (int v = t; v < n; v += writers)
+				values.add(v);
+			Collections.shuffle(values, new Random(t));
+			for (int i = 0; i < values.size(); i++)
+				if (i % 3 != 0)
+					expected.add(entry(values.get(i), values.get(i)));
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < values.size(); i++) {
+							int v = values.get(i);
+							file.insert(key(keyType, v), rid(entry(v, v)));
+							// the delete trails the inserts by a few keys
+							int d = i - 4;
+							if (d >= 0 && d % 3 == 0) {
+								v = values.get(d);
+								if (!file.Delete(key(keyType, v),
+										rid(entry(v, v))))
+									fail("entry " + v + " not deleted");
+							}
+						}
+						for (int d = Math.max(values.size() - 4, 0); d < values
+								.size(); d++)
+							if (d % 3 == 0) {
+								int v = values.get(d);
+								if (!file.Delete(key(keyType, v),
+										rid(entry(v, v))))
+									fail("entry " + v + " not deleted");
+							}
+					} catch (Exception e) {
+						fail(e.toString());
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+
+				private void fail(String message) {
+					errors.incrementAndGet();
+					error.compareAndSet(null, message);
+				}
+			});
+		}
+		for (int t = 0; t < readers; t++) {
+			final Random random = new Random(-1 - t);
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						while (running.get() > 0) {
+							int lo = random.nextInt(2 * n);
+							int hi = lo + random.nextInt(200);
+							BTFileScan scan = file.new_scan(key(keyType, lo),
+									key(keyType, hi));
+							KeyDataEntry e;
+							int last = lo;
+							int stable = 0;
+							while ((e = scan.get_next()) != null) {
+								int v = value(e.key);
+								if (v < last || v > hi)
+									fail("scan " + lo + ".." + hi
+											+ " returned " + v + " after "
+											+ last);
+								if (v >= n && v % 2 == 0)
+									stable++;
+								last = v;
+							}
+							scan.DestroyBTreeFileScan();
+							int first = Math.max(lo + lo % 2, n);
+							int end = Math.min(hi, 2 * n - 1);
+							int want = first > end ? 0 : (end - first) / 2 + 1;
+							if (stable != want)
+								fail("scan " + lo + ".." + hi + " returned "
+										+ stable + " of " + want
+										+ " keys nobody deletes");
+
+							int v = n + 2 * random.nextInt(n / 2);
+							if (file.search(key(keyType, v)).length != 1)
+								fail("lookup of " + v + " failed");
+						}
+					} catch (Exception e) {
+						fail(e.toString());
+					}
+				}
+
+				private void fail(String message) {
+					errors.incrementAndGet();
+					error.compareAndSet(null, message);
+				}
+			});
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		if (!expect(errors.get() == 0, what + ": " + errors.get()
+				+ " errors, the first: " + error.get()))
+			return false;
+		return compare(file, keyType, expected, 10, new Random(n), what);
+	}
+
+	/**
+	 * Concurrent mode: four threads insert and delete in the same tree
+	 * while two scan and look up keys, for every file type and delete
+	 * fashion.
+	 */
+	void concurrentThreads(int n) throws Exception {
+		int[] fashions = { DeleteFashion.NAIVE_DELETE,
+				DeleteFashion.FULL_DELETE };
+		for (int fashion : fashions)
+			for (int[] layout : LAYOUTS) {
+				String what = "threads, " + layoutName(layout)
+						+ (fashion == DeleteFashion.FULL_DELETE ? ", full"
+								: ", naive") + " delete, " + n + " keys";
+				openDB();
+				BTreeFile.setConcurrent(true);
+				int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+				BTreeFile file = newFile(layout, fashion);
+				boolean ok = threads(file, layout[0], n, 4, 2,
+						new TreeSet<Long>(), what);
+				file.close();
+				if (ok)
+					ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+							what + ": pages left pinned");
+				BTreeFile.setConcurrent(false);
+				closeDB();
+				if (ok)
+					passed(what);
+			}
+	}
+
+	/**
+	 * The threads of concurrentThreads with B-link searches
+	 * (BTreeFile.setBLink), on every file type with NAIVE_DELETE: scans and
+	 * lookups that went down to a page before it split must still find
+	 * every key.
+	 */
+	void bLinkSearches(int n) throws Exception {
+		for (int[] layout : LAYOUTS) {
+			String what = "B-link, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB();
+			BTreeFile.setConcurrent(true);
+			BTreeFile.setBLink(true);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile file = newFile(layout, DeleteFashion.NAIVE_DELETE);
+			boolean ok = threads(file, layout[0], n, 4, 4,
+					new TreeSet<Long>(), what);
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			BTreeFile.setBLink(false);
+			BTreeFile.setConcurrent(false);
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/**
+	 * BTBufMgr with every replacement policy, on a pool small enough that
+	 * most pins take a victim: the rounds of fullDelete, then the file is
+	 * opened again through an empty pool and compared once more.
+	 */
+	void replacers(int n) throws Exception {
+		String[] policies = { "Clock", "LRU", "MRU", "2Q" };
+		int[][] layouts = { LAYOUTS[0], LAYOUTS[3] };
+		for (String policy : policies)
+			for (int[] layout : layouts) {
+				String what = "replacer " + policy + ", "
+						+ layoutName(layout) + ", " + n + " keys";
+				openDB(SMALL_POOL);
+				BTBufMgr.attach(policy);
+				int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+				Random random = new Random(n);
+				BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+				TreeSet<Long> expected = new TreeSet<Long>();
+				boolean ok = rounds(file, layout[0], n, 3, n / 2, expected,
+						random, what);
+				file = reopen(file, policy, false);
+				if (ok)
+					ok = compare(file, layout[0], expected, 10, random, what
+							+ ", opened again");
+				file.close();
+				if (ok)
+					ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+							what + ": pages left pinned");
+				closeDB();
+				if (ok)
+					passed(what);
+			}
+	}
+
+	/*
+	 * `threads' threads that share `ops' pins of random pages of `pages'
+	 * new ones. Every page holds its page number, which they check, and a
+	 * count that only the thread the page belongs to raises, so a page
+	 * that was written out and read again must come back as it was left;
+	 * false if one did not.
+	 */
+	protected boolean pins(int pages, final int threads, final int ops,
+			String what) throws Exception {
+		final int[] pids = new int[pages];
+		for (int i = 0; i < pages; i++) {
+			Page page = new Page();
+			PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+			Convert.setIntValue(pageno.pid, 0, page.getpage());
+			Convert.setIntValue(0, 4, page.getpage());
+			pids[i] = pageno.pid;
+			SystemDefs.JavabaseBM.unpinPage(pageno, true);
+		}
+
+		final int[] counts = new int[pages];
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicReference<String> error = new AtomicReference<String>();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			workers[t] = new Thread() {
+				public void run() {
+					Random random = new Random(id);
+					Page page = new Page();
+					PageId pageno = new PageId();
+					try {
+						for (int i = 0; i < ops / threads; i++) {
+							int p = random.nextInt(pids.length);
+							boolean own = p % threads == id;
+							pageno.pid = pids[p];
+							SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+							byte[] data = page.getpage();
+							if (Convert.getIntValue(0, data) != pids[p])
+								fail("page " + pids[p] + " holds page "
+										+ Convert.getIntValue(0, data));
+							else if (own) {
+								if (Convert.getIntValue(4, data) != counts[p])
+									fail("page " + pids[p] + " lost a write");
+								Convert.setIntValue(++counts[p], 4, data);
+							}
+							SystemDefs.JavabaseBM.unpinPage(pageno, own);
+						}
+					} catch (Exception e) {
+						fail(e.toString());
+					}
+				}
+
+				private void fail(String message) {
+					errors.incrementAndGet();
+					error.compareAndSet(null, message);
+				}
+			};
+		}
+		for (int t = 0; t < threads; t++)
+			workers[t].start();
+		for (int t = 0; t < threads; t++)
+			workers[t].join();
+		if (!expect(errors.get() == 0, what + ": " + errors.get()
+				+ " errors, the first: " + error.get()))
+			return false;
+
+		Page page = new Page();
+		for (int p = 0; p < pages; p++) {
+			PageId pageno = new PageId(pids[p]);
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			int count = Convert.getIntValue(4, page.getpage());
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			if (!expect(count == counts[p], what + ": page " + pids[p]
+					+ " has count " + count + ", not " + counts[p]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * BTBufMgr shared by threads, on a small pool: threads pinning pages
+	 * directly, then the threads of concurrentThreads, after which the
+	 * file is opened again through an empty pool and compared once more.
+	 */
+	void bufferThreads(int n) throws Exception {
+		String[] policies = { "Clock", "LRU", "2Q" };
+		for (String policy : policies) {
+			String what = "buffer threads " + policy + ", " + 20 * n
+					+ " pins";
+			openDB(SMALL_POOL);
+			BTBufMgr.attach(policy);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			boolean ok = pins(4 * SMALL_POOL, 4, 20 * n, what);
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+
+			what = "buffer threads " + policy + ", tree, " + n + " keys";
+			openDB(2 * SMALL_POOL);
+			BTBufMgr.attach(policy);
+			BTreeFile.setConcurrent(true);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			BTreeFile file = newFile(LAYOUTS[3], DeleteFashion.FULL_DELETE);
+			ok = threads(file, LAYOUTS[3][0], n, 4, 2, expected, what);
+			BTreeFile.setConcurrent(false);
+			file = reopen(file, policy, false);
+			if (ok)
+				ok = compare(file, LAYOUTS[3][0], expected, 10, new Random(
+						n), what + ", opened again");
+			file.close();
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/**
+	 * BTBufMgr reading and writing through a memory mapping, on a small
+	 * pool: the pins of bufferThreads and the rounds of fullDelete, after
+	 * which the file is opened again through an empty pool that reads the
+	 * database file itself, and through a mapped one, and compared.
+	 */
+	void mappedPages(int n) throws Exception {
+		int[][] layouts = { LAYOUTS[1], LAYOUTS[3] };
+		for (int[] layout : layouts) {
+			String what = "mapped, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB(SMALL_POOL);
+			BTBufMgr.attach("2Q", true);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			boolean ok = pins(4 * SMALL_POOL, 4, 20 * n, what);
+			Random random = new Random(n);
+			BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			if (ok)
+				ok = rounds(file, layout[0], n, 3, n / 2, expected, random,
+						what);
+			file = reopen(file, "2Q", false);
+			if (ok)
+				ok = compare(file, layout[0], expected, 10, random, what
+						+ ", opened again unmapped");
+			file = reopen(file, "2Q", true);
+			if (ok)
+				ok = compare(file, layout[0], expected, 10, random, what
+						+ ", opened again mapped");
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/**
+	 * BTBufMgr with the background writer on, on a small pool and with and
+	 * without a memory mapping: the pins of bufferThreads, the rounds of
+	 * fullDelete and the threads of concurrentThreads while the writer
+	 * writes the pages out under them, after which the file is opened
+	 * again through an empty pool and compared.
+	 */
+	void backgroundWriter(int n) throws Exception {
+		for (int mapped = 0; mapped < 2; mapped++) {
+			String what = "writer" + (mapped == 1 ? ", mapped" : "") + ", "
+					+ n + " keys";
+			openDB(2 * SMALL_POOL);
+			BTBufMgr bufMgr = BTBufMgr.attach("Clock", mapped == 1);
+			bufMgr.startWriter(100000, 0, 0.2);
+			int unpinned = bufMgr.getNumUnpinnedBuffers();
+			boolean ok = pins(4 * SMALL_POOL, 4, 20 * n, what);
+			Random random = new Random(n);
+			BTreeFile file = newFile(LAYOUTS[3], DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			if (ok)
+				ok = rounds(file, LAYOUTS[3][0], n, 3, n / 2, expected,
+						random, what);
+			BTreeFile.setConcurrent(true);
+			if (ok)
+				ok = threads(file, LAYOUTS[3][0], n, 4, 2, expected, what);
+			BTreeFile.setConcurrent(false);
+			if (ok)
+				ok = expect(bufMgr.writerWrites() > 0, what
+						+ ": the writer wrote nothing");
+			bufMgr.stopWriter();
+			file = reopen(file, "Clock", false);
+			if (ok)
+				ok = compare(file, LAYOUTS[3][0], expected, 10, random, what
+						+ ", opened again");
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/**
+	 * The writes of BTBufMgr through its handle on the database file: keys
+	 * inserted in order leave runs of adjacent dirty leaves, which
+	 * flushAllPages should write with fewer calls than pages, with and
+	 * without the writer. The file is then opened again through an empty
+	 * pool and compared with and without read-ahead.
+	 */
+	void fileRuns(int n) throws Exception {
+		for (int writer = 0; writer < 2; writer++) {
+			String what = "runs" + (writer == 1 ? ", writer" : "") + ", "
+					+ n + " keys";
+			openDB();
+			BTBufMgr bufMgr = BTBufMgr.attach("Clock", false);
+			if (writer == 1)
+				bufMgr.startWriter(100000, 0, 0.2);
+			int unpinned = bufMgr.getNumUnpinnedBuffers();
+			Random random = new Random(n);
+			BTreeFile file = newFile(LAYOUTS[0], DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			for (int i = 0; i < n; i++) {
+				int id = nextId++;
+				file.insert(key(LAYOUTS[0][0], i), rid(entry(i, id)));
+				expected.add(entry(i, id));
+			}
+			bufMgr.stopWriter();
+			int dirty = bufMgr.dirtyPages();
+			bufMgr.resetCounts();
+			try {
+				bufMgr.flushAllPages();
+			} catch (PagePinnedException e) {
+				// the header page; the pages are written all the same
+			}
+			boolean ok = expect(bufMgr.dirtyPages() == 0, what
+					+ ": pages left dirty");
+			if (ok && dirty > 1)
+				ok = expect(bufMgr.fileWrites() < dirty, what + ": "
+						+ bufMgr.fileWrites() + " writes for " + dirty
+						+ " pages");
+			file = reopen(file, "Clock", false);
+			if (ok)
+				ok = compare(file, LAYOUTS[0][0], expected, 10, random, what
+						+ ", opened again");
+			file = reopen(file, "Clock", false);
+			prefetch = BTPrefetchScan.ADAPTIVE;
+			if (ok)
+				ok = compare(file, LAYOUTS[0][0], expected, 10, random, what
+						+ ", opened again, read ahead");
+			prefetch = 0;
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/**
+	 * bulkLoad on every file type, on a small pool: input that is out of
+	 * order near its end must be refused again and again, each time with
+	 * the pages built until then unpinned and freed, and sorted input with
+	 * repeated keys must then load into the same file and take inserts and
+	 * deletes.
+	 */
+	void bulkLoads(int n) throws Exception {
+		for (int[] layout : LAYOUTS) {
+			String what = "bulk load, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB(SMALL_POOL);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			Random random = new Random(n);
+			BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			for (int i = 0; i < 2 * n; i++)
+				expected.add(entry(random.nextInt(n), nextId++));
+			ArrayList<KeyDataEntry> entries = loadEntries(layout[0],
+					expected);
+			ArrayList<KeyDataEntry> unsorted = new ArrayList<KeyDataEntry>(
+					entries);
+			Collections.swap(unsorted, unsorted.size() * 3 / 4, unsorted
+					.size() - 1);
+
+			// the page a failed load must leave free
+			Page page = new Page();
+			PageId free = SystemDefs.JavabaseBM.newPage(page, 1);
+			SystemDefs.JavabaseBM.unpinPage(free, false);
+			SystemDefs.JavabaseBM.freePage(free);
+
+			boolean ok = true;
+			for (int i = 0; ok && i < 10; i++)
+				try {
+					file.bulkLoad(unsorted.iterator(), 100);
+					ok = expect(false, what + ": unsorted input loaded");
+				} catch (InsertException e) {
+					ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned
+							- 1, what + ": pages left pinned by a failed load");
+				}
+			if (ok) {
+				PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				SystemDefs.JavabaseBM.freePage(pageno);
+				ok = expect(pageno.pid == free.pid, what
+						+ ": pages of a failed load not freed");
+			}
+
+			if (ok) {
+				file.bulkLoad(entries.iterator(), 90);
+				ok = compare(file, layout[0], expected, 10, random, what
+						+ ", loaded");
+			}
+			if (ok)
+				ok = rounds(file, layout[0], n, 1, n / 2, expected, random,
+						what + ", after the load");
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/**
+	 * compact on every file type: after rounds of inserts and deletes, at
+	 * two fill factors, the tree must hold the same entries, on leaves in
+	 * page order, with nothing left pinned; it must take inserts and
+	 * deletes afterwards, and read the same when opened again. In
+	 * concurrent mode compact must be refused.
+	 */
+	void compacts(int n) throws Exception {
+		for (int[] layout : LAYOUTS) {
+			String what = "compact, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB();
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			Random random = new Random(n);
+			BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			boolean ok = true;
+			int[] fillFactors = { 100, 70 };
+			for (int fillFactor : fillFactors) {
+				if (ok)
+					ok = rounds(file, layout[0], n, 2, n / 2, expected,
+							random, what);
+				if (!ok)
+					break;
+				BTreeFile.setConcurrent(true);
+				try {
+					file.compact(fillFactor);
+					ok = expect(false, what + ": compact in concurrent mode");
+				} catch (InsertException e) {
+				}
+				BTreeFile.setConcurrent(false);
+				if (ok)
+					ok = compare(file, layout[0], expected, 10, random, what
+							+ ", compact refused");
+				if (!ok)
+					break;
+				file.compact(fillFactor);
+				ok = compare(file, layout[0], expected, 10, random, what
+						+ ", compacted to " + fillFactor + "%");
+				if (ok)
+					ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned - 1,
+							what + ": pages left pinned by compact");
+				if (ok) {
+					int[] pages = file.pageCounts();
+					ok = expect(pages[2] <= 1, what + ": " + pages[2]
+							+ " leaves out of page order after compact");
+				}
+			}
+			file = reopen(file, "Clock", false);
+			if (ok)
+				ok = compare(file, layout[0], expected, 10, random, what
+						+ ", opened again");
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/*
+	 * Compare rangeCount, rank and select of `file' with `expected', over
+	 * random keys and positions and the ends of the tree; false if they
+	 * differ.
+	 */
+	protected boolean counts(BTreeFile file, int keyType,
+			TreeSet<Long> expected, Random random, String what)
+			throws Exception {
+		ArrayList<Long> entries = new ArrayList<Long>(expected);
+		int n = expected.isEmpty() ? 1 : (int) (expected.last() >> 32) + 2;
+		if (!expect(file.rangeCount(null, null) == entries.size(), what
+				+ ": rangeCount of the whole tree is "
+				+ file.rangeCount(null, null) + ", not " + entries.size()))
+			return false;
+		for (int i = 0; i < 50; i++) {
+			int lo = random.nextInt(n);
+			int hi = lo + random.nextInt(n / 4 + 1);
+			int want = expected.subSet(entry(lo, 0), entry(hi + 1, 0)).size();
+			int got = file.rangeCount(key(keyType, lo), key(keyType, hi));
+			if (!expect(got == want, what + ": rangeCount " + lo + ".." + hi
+					+ " is " + got + ", not " + want))
+				return false;
+			want = expected.headSet(entry(hi + 1, 0)).size();
+			got = file.rangeCount(null, key(keyType, hi));
+			if (!expect(got == want, what + ": rangeCount .." + hi + " is "
+					+ got + ", not " + want))
+				return false;
+			want = expected.headSet(entry(lo, 0)).size();
+			got = file.rank(key(keyType, lo));
+			if (!expect(got == want, what + ": rank of " + lo + " is " + got
+					+ ", not " + want))
+				return false;
+			if (entries.isEmpty())
+				continue;
+			int rank = random.nextInt(entries.size());
+			KeyDataEntry e = file.select(rank);
+			int value = (int) (entries.get(rank) >> 32);
+			if (!expect(e != null && value(e.key) == value, what
+					+ ": select " + rank + " is "
+					+ (e == null ? null : e.key) + ", not " + value))
+				return false;
+		}
+		return expect(file.select(entries.size()) == null, what
+				+ ": select past the last entry");
+	}
+
+	/**
+	 * Counted trees (IndexLayout.COUNTED) on every file type and with both
+	 * delete fashions: rangeCount, rank and select after rounds of random
+	 * inserts and deletes, which split and merge pages and move the root,
+	 * after compact, after more rounds, and after the file is opened again.
+	 */
+	void countedTrees(int n) throws Exception {
+		int[] fashions = { DeleteFashion.NAIVE_DELETE,
+				DeleteFashion.FULL_DELETE };
+		for (int fashion : fashions)
+			for (int[] layout : LAYOUTS) {
+				String what = "counted, " + layoutName(layout)
+						+ (fashion == DeleteFashion.FULL_DELETE ? ", full"
+								: ", naive") + " delete, " + n + " keys";
+				openDB();
+				int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+				Random random = new Random(n);
+				BTreeFile file = newFile(layout, fashion, IndexLayout.COUNTED);
+				TreeSet<Long> expected = new TreeSet<Long>();
+				boolean ok = rounds(file, layout[0], n, 3, n / 2, expected,
+						random, what);
+				if (ok)
+					ok = counts(file, layout[0], expected, random, what);
+				if (ok) {
+					file.compact(90);
+					ok = counts(file, layout[0], expected, random, what
+							+ ", compacted");
+				}
+				if (ok)
+					ok = rounds(file, layout[0], n, 1, n / 2, expected,
+							random, what + ", after compact");
+				if (ok)
+					ok = counts(file, layout[0], expected, random, what
+							+ ", after compact");
+				file = reopen(file, "Clock", false);
+				if (ok)
+					ok = counts(file, layout[0], expected, random, what
+							+ ", opened again");
+				file.close();
+				if (ok)
+					ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+							what + ": pages left pinned");
+				closeDB();
+				if (ok)
+					passed(what);
+			}
+	}
+
+	/**
+	 * insertBatch on every file type, plain and counted: batches of random
+	 * entries in random order, every other one over few keys so that runs
+	 * of equal keys fill leaves, with a quarter of the entries deleted
+	 * between batches. The batches must split leaves, index pages and the
+	 * root, and the tree must hold what the reference does after each.
+	 */
+	void batches(int n) throws Exception {
+		int[] indexLayouts = { IndexLayout.PLAIN, IndexLayout.COUNTED };
+		for (int indexLayout : indexLayouts)
+			for (int[] layout : LAYOUTS) {
+				String what = "batches, " + layoutName(layout)
+						+ (indexLayout == IndexLayout.COUNTED ? ", counted"
+								: "") + ", " + n + " keys";
+				openDB();
+				int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+				Random random = new Random(n);
+				BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE,
+						indexLayout);
+				TreeSet<Long> expected = new TreeSet<Long>();
+				ArrayList<Long> live = new ArrayList<Long>();
+				boolean ok = true;
+				// leaves, index pages and levels that a batch added
+				boolean[] split = new boolean[3];
+				for (int batch = 0; ok && batch < 8; batch++) {
+					int size = batch == 0 ? n / 2 : n / 4 + random.nextInt(n);
+					int values = batch % 2 == 0 ? n : n / 50 + 1;
+					KeyClass[] keys = new KeyClass[size];
+					RID[] rids = new RID[size];
+					for (int i = 0; i < size; i++) {
+						long e = entry(random.nextInt(values), nextId++);
+						keys[i] = key(layout[0], (int) (e >> 32));
+						rids[i] = rid(e);
+						expected.add(e);
+						live.add(e);
+					}
+					int[] before = file.pageCounts();
+					file.insertBatch(keys, rids);
+					int[] after = file.pageCounts();
+					if (after[0] > before[0])
+						split[0] = true;
+					// more index pages than the new levels account for
+					if (after[1] - before[1] > after[3] - before[3])
+						split[1] = true;
+					if (after[3] > before[3])
+						split[2] = true;
+					ok = compare(file, layout[0], expected, 10, random, what
+							+ ", batch " + batch);
+					if (ok && indexLayout == IndexLayout.COUNTED)
+						ok = counts(file, layout[0], expected, random, what
+								+ ", batch " + batch);
+
+					Collections.shuffle(live, random);
+					for (int i = live.size() / 4; ok && i > 0; i--) {
+						long e = live.remove(live.size() - 1);
+						expected.remove(e);
+						ok = expect(file.Delete(key(layout[0],
+								(int) (e >> 32)), rid(e)), what
+								+ ": entry not deleted");
+					}
+				}
+				if (ok)
+					ok = expect(split[0] && split[1] && split[2], what
+							+ ": the batches did not split leaves, index"
+							+ " pages and the root");
+				if (ok)
+					ok = compare(file, layout[0], expected, 10, random, what
+							+ ", deletes");
+				file.close();
+				if (ok)
+					ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+							what + ": pages left pinned");
+				closeDB();
+				if (ok)
+					passed(what);
+			}
+	}
+
+	/*
+	 * The entries `scan' returns, in the order it returns them; with
+	 * `expected', every one whose id is a multiple of 3 is deleted through
+	 * the scan, and from `expected'.
+	 */
+	protected static ArrayList<Long> entries(IndexFileScan scan,
+			TreeSet<Long> expected) throws Exception {
+		ArrayList<Long> entries = new ArrayList<Long>();
+		KeyDataEntry e;
+		while ((e = scan.get_next()) != null) {
+			long entry = entry(value(e.key), ((LeafData) e.data)
+					.getData().pageNo.pid);
+			entries.add(entry);
+			if (expected != null && (int) entry % 3 == 0) {
+				scan.delete_current();
+				expected.remove(entry);
+			}
+		}
+		if (scan instanceof BTReverseScan)
+			((BTReverseScan) scan).DestroyBTreeFileScan();
+		else
+			((BTFileScan) scan).DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/*
+	 * The entries of `expected' with keys from `lo' to `hi', either of
+	 * which may be null for no bound.
+	 */
+	protected static ArrayList<Long> inRange(TreeSet<Long> expected,
+			Integer lo, Integer hi) {
+		long from = entry(lo == null ? Integer.MIN_VALUE : lo, 0);
+		long to = hi == null ? Long.MAX_VALUE : entry(hi + 1, 0);
+		if (from >= to)
+			return new ArrayList<Long>();
+		return new ArrayList<Long>(expected.subSet(from, to));
+	}
+
+	/*
+	 * Compare a reverse scan of `file' from `lo' to `hi', either of which
+	 * may be null, with a forward scan of the same range and with
+	 * `expected'; with `delete', the reverse scan deletes every entry whose
+	 * id is a multiple of 3 (see entries). False if they differ.
+	 */
+	protected boolean reverse(BTreeFile file, int keyType, Integer lo,
+			Integer hi, TreeSet<Long> expected, boolean delete, String what)
+			throws Exception {
+		KeyClass loKey = lo == null ? null : key(keyType, lo);
+		KeyClass hiKey = hi == null ? null : key(keyType, hi);
+		String range = (lo == null ? "" : lo.toString()) + ".."
+				+ (hi == null ? "" : hi.toString());
+		ArrayList<Long> want = inRange(expected, lo, hi);
+		ArrayList<Long> forward = entries(file.new_scan(loKey, hiKey), null);
+		ArrayList<Long> got = entries(file.new_reverse_scan(loKey, hiKey),
+				delete ? expected : null);
+
+		for (int i = 1; i < got.size(); i++)
+			if (!expect(got.get(i) >> 32 <= got.get(i - 1) >> 32, what
+					+ ": reverse scan " + range + " keys go up"))
+				return false;
+		Collections.reverse(forward);
+		if (!expect(got.equals(forward), what + ": reverse scan " + range
+				+ " is not the forward scan reversed"))
+			return false;
+		Collections.sort(got);
+		return expect(got.equals(want), what + ": reverse scan " + range
+				+ " has " + got.size() + " entries, not " + want.size());
+	}
+
+	/**
+	 * new_reverse_scan on every file type with FULL_DELETE, over a tree
+	 * with runs of equal keys longer than a leaf: random ranges, ranges
+	 * without a bound, and ranges on a run, compared with the forward scan
+	 * and the reference; then reverse scans that delete every third entry
+	 * through delete_current, merging leaves, after which the tree must
+	 * hold what the reference does.
+	 */
+	void reverseScans(int n) throws Exception {
+		for (int[] layout : LAYOUTS) {
+			String what = "reverse scans, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB();
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			Random random = new Random(n);
+			BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			int[] runs = new int[10];
+			for (int i = 0; i < runs.length; i++)
+				runs[i] = random.nextInt(n);
+			for (int i = 0; i < 2 * n; i++) {
+				int v = i % 2 == 0 ? random.nextInt(n) : runs[i % runs.length];
+				long e = entry(v, nextId++);
+				file.insert(key(layout[0], v), rid(e));
+				expected.add(e);
+			}
+
+			boolean ok = reverse(file, layout[0], null, null, expected,
+					false, what);
+			for (int i = 0; ok && i < 20; i++) {
+				int lo = random.nextInt(n);
+				int hi = lo + random.nextInt(n / 8 + 1);
+				int run = runs[i % runs.length];
+				ok = reverse(file, layout[0], lo, hi, expected, false, what)
+						&& reverse(file, layout[0], null, hi, expected,
+								false, what)
+						&& reverse(file, layout[0], lo, null, expected,
+								false, what)
+						&& reverse(file, layout[0], run, run, expected,
+								false, what)
+						&& reverse(file, layout[0], run - 1, run + 1,
+								expected, false, what);
+			}
+
+			for (int i = 0; ok && i < 5; i++) {
+				int run = runs[i];
+				ok = reverse(file, layout[0], run, run, expected, true, what
+						+ ", deleting");
+				int lo = random.nextInt(n);
+				if (ok)
+					ok = reverse(file, layout[0], lo, lo + n / 4, expected,
+							true, what + ", deleting");
+			}
+			if (ok)
+				ok = reverse(file, layout[0], null, null, expected, true,
+						what + ", deleting");
+			if (ok)
+				ok = compare(file, layout[0], expected, 10, random, what
+						+ ", after the deletes");
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/*
+	 * Compare a batch scan of `file' from `lo' to `hi', either of which may
+	 * be null, read `max' entries at a time into arrays of `length', with
+	 * a forward scan of the same range and with `expected'; false if they
+	 * differ.
+	 */
+	protected boolean batchScan(BTreeFile file, Integer lo, Integer hi,
+			int length, int max, TreeSet<Long> expected, String what)
+			throws Exception {
+		KeyClass loKey = lo == null ? null : new IntegerKey(lo);
+		KeyClass hiKey = hi == null ? null : new IntegerKey(hi);
+		String range = (lo == null ? "" : lo.toString()) + ".."
+				+ (hi == null ? "" : hi.toString()) + " by " + max;
+		ArrayList<Long> forward = entries(file.new_scan(loKey, hiKey), null);
+
+		ArrayList<Long> got = new ArrayList<Long>();
+		int[] keys = new int[length];
+		int[] pageIds = new int[length];
+		int[] slotNos = new int[length];
+		BTBatchScan scan = file.new_batch_scan(loKey, hiKey);
+		int count;
+		do {
+			count = scan.next_batch(keys, pageIds, slotNos, max);
+			for (int i = 0; i < count; i++) {
+				if (!expect(slotNos[i] == keys[i], what + ": batch scan "
+						+ range + " returned rid slot " + slotNos[i]
+						+ " with key " + keys[i]))
+					return false;
+				got.add(entry(keys[i], pageIds[i]));
+			}
+		} while (count == max);
+		// the arrays past `max' are the caller's
+		for (int i = max; i < length; i++)
+			if (!expect(keys[i] == 0 && pageIds[i] == 0, what
+					+ ": batch scan " + range + " wrote past " + max))
+				return false;
+		scan.DestroyBTreeFileScan();
+
+		if (!expect(got.equals(forward), what + ": batch scan " + range
+				+ " is not the forward scan"))
+			return false;
+		Collections.sort(got);
+		ArrayList<Long> want = inRange(expected, lo, hi);
+		return expect(got.equals(want), what + ": batch scan " + range
+				+ " has " + got.size() + " entries, not " + want.size());
+	}
+
+	/**
+	 * new_batch_scan on slotted and dense integer leaves: random ranges,
+	 * most of them ending inside a leaf, ranges without a bound and empty
+	 * ones, read into arrays shorter than a leaf and longer, and into
+	 * arrays longer than the batches asked for, compared with the forward
+	 * scan and the reference.
+	 */
+	void batchScans(int n) throws Exception {
+		int[][] layouts = { LAYOUTS[0], LAYOUTS[1] };
+		int[] sizes = { 1, 7, 50, 1000 };
+		for (int[] layout : layouts) {
+			String what = "batch scans, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB();
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			Random random = new Random(n);
+			BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			boolean ok = rounds(file, layout[0], n, 2, n, expected, random,
+					what);
+			for (int i = 0; ok && i < 20; i++) {
+				int size = sizes[i % sizes.length];
+				int lo = random.nextInt(n);
+				int hi = lo + random.nextInt(n / 4 + 1);
+				ok = batchScan(file, lo, hi, size, size, expected, what)
+						&& batchScan(file, null, hi, size + 3, size,
+								expected, what)
+						&& batchScan(file, lo, null, size, size, expected,
+								what)
+						&& batchScan(file, hi + 1, lo, size, size,
+								expected, what);
+			}
+			if (ok)
+				ok = batchScan(file, null, null, 64, 64, expected, what);
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/*
+	 * Look up every key of `values' in `file' twice, the second time from
+	 * the lookup cache if it has one, and compare the rids found with
+	 * `expected'; false if they differ.
+	 */
+	protected boolean lookups(BTreeFile file, int keyType, int[] values,
+			TreeSet<Long> expected, String what) throws Exception {
+		for (int v : values)
+			for (int i = 0; i < 2; i++) {
+				ArrayList<Long> got = new ArrayList<Long>();
+				for (RID rid : file.search(key(keyType, v)))
+					got.add(entry(rid.slotNo, rid.pageNo.pid));
+				Collections.sort(got);
+				ArrayList<Long> want = inRange(expected, v, v);
+				if (!expect(got.equals(want), what + ": lookup " + i
+						+ " of " + v + " found " + got.size()
+						+ " entries, not " + want.size()))
+					return false;
+			}
+		return true;
+	}
+
+	/**
+	 * The lookup cache of search (BTreeFile.setLookupCache) on every file
+	 * type: a few hot keys are looked up again and again, from an empty
+	 * tree on, between inserts, deletes and batches of them and of other
+	 * keys, a bulkLoad and a compact, and what search finds must be what
+	 * the reference holds every time.
+	 */
+	void lookupCache(int n) throws Exception {
+		for (int[] layout : LAYOUTS) {
+			String what = "lookup cache, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB();
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			Random random = new Random(n);
+			BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+			file.setLookupCache(16);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			int[] hot = new int[8];
+			for (int i = 0; i < hot.length; i++)
+				hot[i] = random.nextInt(n);
+
+			// the cache has the empty tree's answers when the load comes
+			boolean ok = lookups(file, layout[0], hot, expected, what
+					+ ", empty");
+			for (int i = 0; i < n; i++)
+				expected.add(entry(i % 2 == 0 ? hot[i % hot.length]
+						: random.nextInt(n), nextId++));
+			file.bulkLoad(loadEntries(layout[0], expected).iterator(), 80);
+			if (ok)
+				ok = lookups(file, layout[0], hot, expected, what
+						+ ", loaded");
+
+			ArrayList<Long> live = new ArrayList<Long>(expected);
+			for (int step = 0; ok && step < 200; step++) {
+				int v = random.nextBoolean() ? hot[random.nextInt(hot.length)]
+						: random.nextInt(n);
+				switch (random.nextInt(3)) {
+				case 0:
+					long e = entry(v, nextId++);
+					file.insert(key(layout[0], v), rid(e));
+					expected.add(e);
+					live.add(e);
+					break;
+				case 1:
+					e = live.remove(random.nextInt(live.size()));
+					expected.remove(e);
+					ok = expect(file.Delete(key(layout[0], (int) (e >> 32)),
+							rid(e)), what + ": entry not deleted");
+					break;
+				default:
+					KeyClass[] keys = new KeyClass[1 + random.nextInt(20)];
+					RID[] rids = new RID[keys.length];
+					for (int i = 0; i < keys.length; i++) {
+						e = entry(i == 0 ? v : random.nextInt(n), nextId++);
+						keys[i] = key(layout[0], (int) (e >> 32));
+						rids[i] = rid(e);
+						expected.add(e);
+						live.add(e);
+					}
+					file.insertBatch(keys, rids);
+				}
+				if (ok)
+					ok = lookups(file, layout[0], hot, expected, what
+							+ ", step " + step);
+				if (ok && step == 100) {
+					file.compact(70);
+					ok = lookups(file, layout[0], hot, expected, what
+							+ ", compacted");
+				}
+			}
+			if (ok)
+				ok = compare(file, layout[0], expected, 10, random, what);
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/*
+	 * What `stats' tell, with the histogram and a few estimates, to compare
+	 * the statistics of a file before and after it is opened again.
+	 */
+	protected static String summary(BTStatistics stats, int keyType, int n)
+			throws Exception {
+		StringBuilder s = new StringBuilder(stats.toString());
+		for (int i = 0; i < stats.buckets(); i++)
+			s.append(" | ").append(stats.bound(i)).append(' ').append(
+					stats.bucketEntries(i));
+		if (stats.buckets() > 0)
+			s.append(" | ").append(stats.bound(stats.buckets()));
+		for (int v = 0; v < n; v += n / 4)
+			s.append(" | ").append(stats.selectivity(key(keyType, v),
+					key(keyType, v + n / 8))).append(' ').append(
+					stats.selectivity(key(keyType, v), key(keyType, v)));
+		return s.toString();
+	}
+
+	/**
+	 * The statistics on every file type: as inserts and deletes keep them,
+	 * after analyze, and after more changes, they must count the pages and
+	 * entries of the tree, analyze the distinct keys, and each time come
+	 * back the same when the file is opened again from the database.
+	 */
+	void statistics(int n) throws Exception {
+		for (int[] layout : LAYOUTS) {
+			String what = "statistics, " + layoutName(layout) + ", " + n
+					+ " keys";
+			openDB();
+			BTBufMgr.attach("Clock", false);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			Random random = new Random(n);
+			BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+			TreeSet<Long> expected = new TreeSet<Long>();
+			ArrayList<Long> live = new ArrayList<Long>();
+			boolean ok = true;
+			for (int step = 0; ok && step < 3; step++) {
+				// keys repeat four times on average
+				for (int i = 0; i < n; i++) {
+					long e = entry(random.nextInt(n / 4), nextId++);
+					file.insert(key(layout[0], (int) (e >> 32)), rid(e));
+					expected.add(e);
+					live.add(e);
+				}
+				for (int i = 0; i < n / 3; i++) {
+					long e = live.remove(random.nextInt(live.size()));
+					expected.remove(e);
+					file.Delete(key(layout[0], (int) (e >> 32)), rid(e));
+				}
+				if (step == 1) {
+					file.analyze(0);
+					TreeSet<Integer> keys = new TreeSet<Integer>();
+					for (long e : expected)
+						keys.add((int) (e >> 32));
+					BTStatistics stats = file.getStatistics();
+					ok = expect(stats.distinctKeys() == keys.size()
+							&& stats.buckets() > 0 && !stats.isStale(), what
+							+ ": " + stats + " after analyze, not "
+							+ keys.size() + " distinct keys");
+				}
+				BTStatistics stats = file.getStatistics();
+				int[] pages = file.pageCounts();
+				if (ok)
+					ok = expect(stats.entries() == expected.size()
+							&& stats.leafPages() == pages[0]
+							&& stats.indexPages() == pages[1], what + ": "
+							+ stats + ", not " + expected.size()
+							+ " entries, " + pages[0] + " leaves and "
+							+ pages[1] + " index pages");
+				String before = summary(stats, layout[0], n);
+				file = reopen(file, "Clock", false);
+				String after = summary(file.getStatistics(), layout[0], n);
+				if (ok)
+					ok = expect(after.equals(before), what + ", step " + step
+							+ ": " + after + " opened again, not " + before);
+			}
+			if (ok)
+				ok = compare(file, layout[0], expected, 10, random, what);
+			file.close();
+			if (ok)
+				ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+						what + ": pages left pinned");
+			closeDB();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	/*
+	 * `n' random keys into a new file of `layout' with the top index level
+	 * cached, so that inserts go down through descend as searches do; then
+	 * inserts and searches traced to `traceFile', as text or in binary.
+	 * The same `n' makes the same tree, on the same pages, and the same
+	 * operations every time; false if a search finds the wrong entries.
+	 */
+	protected boolean tracedOps(int[] layout, int n, String traceFile,
+			boolean binary, String what) throws Exception {
+		openDB();
+		int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+		Random random = new Random(n);
+		BTreeFile file = newFile(layout, DeleteFashion.FULL_DELETE);
+		file.setCachedLevels(1);
+		TreeSet<Long> expected = new TreeSet<Long>();
+		for (int i = 0; i < n; i++) {
+			long e = entry(random.nextInt(n), i);
+			file.insert(key(layout[0], (int) (e >> 32)), rid(e));
+			expected.add(e);
+		}
+
+		if (binary)
+			BTreeFile.traceBinary(traceFile, 1 << 16, 1);
+		else
+			BTreeFile.traceFilename(traceFile);
+		boolean ok = true;
+		for (int i = 0; ok && i < 20; i++) {
+			long e = entry(random.nextInt(n), n + i);
+			file.insert(key(layout[0], (int) (e >> 32)), rid(e));
+			expected.add(e);
+			ok = lookups(file, layout[0], new int[] { random.nextInt(n) },
+					expected, what);
+		}
+		BTreeFile.destroyTrace();
+
+		file.close();
+		if (ok)
+			ok = expect(SystemDefs.JavabaseBM.getNumUnpinnedBuffers() == unpinned,
+					what + ": pages left pinned");
+		closeDB();
+		return ok;
+	}
+
+	/* the lines of text file `name' */
+	protected static ArrayList<String> lines(String name) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(name));
+		try {
+			for (String line; (line = in.readLine()) != null;)
+				lines.add(line);
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * The binary trace (BTreeFile.traceBinary) on every file type: the same
+	 * inserts and searches on the same tree, traced once as text and once
+	 * in binary, must give the same text trace after BTTrace.toText, with
+	 * no events dropped.
+	 */
+	void traces(int n) throws Exception {
+		for (int[] layout : LAYOUTS) {
+			String what = "trace, " + layoutName(layout) + ", " + n + " keys";
+			String text = "BTCHECK.trace";
+			String binary = "BTCHECK.trace.bin";
+			String converted = "BTCHECK.trace.txt";
+			boolean ok = tracedOps(layout, n, text, false, what + ", text")
+					&& tracedOps(layout, n, binary, true, what + ", binary");
+			if (ok) {
+				long dropped = BTTrace.toText(binary, converted);
+				ArrayList<String> want = lines(text);
+				ArrayList<String> got = lines(converted);
+				ok = expect(dropped == 0 && want.size() >= 40
+						&& got.equals(want), what + ": " + got.size()
+						+ " lines and " + dropped + " dropped, not the "
+						+ want.size() + " lines of the text trace");
+			}
+			new File(text).delete();
+			new File(binary).delete();
+			new File(converted).delete();
+			if (ok)
+				passed(what);
+		}
+	}
+
+	void runChecks(String name, int n) throws Exception {
+		boolean all = name == null;
+
+		if (all || name.equals("delete"))
+			fullDelete(n);
+		if (all || name.equals("threads"))
+			concurrentThreads(n);
+		if (all || name.equals("blink"))
+			bLinkSearches(n);
+		if (all || name.equals("replacer"))
+			replacers(n);
+		if (all || name.equals("bufthreads"))
+			bufferThreads(n);
+		if (all || name.equals("mapped"))
+			mappedPages(n);
+		if (all || name.equals("writer"))
+			backgroundWriter(n);
+		if (all || name.equals("runs"))
+			fileRuns(n);
+		if (all || name.equals("bulkload"))
+			bulkLoads(n);
+		if (all || name.equals("compact"))
+			compacts(n);
+		if (all || name.equals("counted"))
+			countedTrees(n);
+		if (all || name.equals("batch"))
+			batches(n);
+		if (all || name.equals("reverse"))
+			reverseScans(n);
+		if (all || name.equals("batchscan"))
+			batchScans(n);
+		if (all || name.equals("lookup"))
+			lookupCache(n);
+		if (all || name.equals("stats"))
+			statistics(n);
+		if (all || name.equals("trace"))
+			traces(n);
+	}
+}
+
+public class BTCheck implements GlobalConst {
+
+	public static void main(String[] argvs) {
+
+		String name = argvs.length > 0 ? argvs[0] : null;
+		int n = argvs.length > 1 ? Integer.parseInt(argvs[1]) : 5000;
+
+		try {
+			CheckDriver check = new CheckDriver();
+			check.runChecks(name, n);
+			if (check.failures > 0) {
+				System.err.println(check.failures + " B+ tree checks failed");
+				Runtime.getRuntime().exit(1);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during B+ tree checks:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+}
@@ -132,17 +132,17 @@ class BTDriver implements GlobalConst {
 
 				switch (choice) {
 				case 0:
-					BT.printBTree(file.getHeaderPage());
+					file.printBTree();
 					break;
 				case 1:
-					BT.printAllLeafPages(file.getHeaderPage());
+					file.printAllLeafPages();
 					break;
 				case 2:
 					System.out.println("Please input the page number: ");
 					num = GetStuff.getChoice();
 					if (num < 0)
 						break;
-					BT.printPage(new PageId(num), keyType);
+					file.printPage(new PageId(num));
 					break;
 				case 3:
 					int i = 0,